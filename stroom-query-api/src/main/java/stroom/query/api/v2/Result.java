@@ -36,15 +36,16 @@ import java.util.Objects;
 )
 @JsonSubTypes({
         @JsonSubTypes.Type(value = TableResult.class, name = "table"),
+        @JsonSubTypes.Type(value = TableDeltaResult.class, name = "tableDelta"),
         @JsonSubTypes.Type(value = FlatResult.class, name = "vis")
 })
 @JsonInclude(Include.NON_NULL)
 @XmlType(name = "Result", propOrder = "componentId")
-@XmlSeeAlso({TableResult.class, FlatResult.class})
+@XmlSeeAlso({TableResult.class, TableDeltaResult.class, FlatResult.class})
 @XmlAccessorType(XmlAccessType.FIELD)
 @ApiModel(
         description = "Base object for describing a set of result data",
-        subTypes = {TableResult.class, FlatResult.class})
+        subTypes = {TableResult.class, TableDeltaResult.class, FlatResult.class})
 public abstract class Result implements Serializable {
     private static final long serialVersionUID = -7455554742243923562L;
 
@@ -28,9 +28,9 @@ import javax.xml.bind.annotation.*;
 import java.io.Serializable;
 import java.util.*;
 
-@JsonPropertyOrder({"componentId", "mappings", "requestedRange", "openGroups", "resultStyle", "fetch"})
+@JsonPropertyOrder({"componentId", "mappings", "requestedRange", "openGroups", "resultStyle", "fetch", "baseVersion"})
 @JsonInclude(Include.NON_NULL)
-@XmlType(name = "ResultRequest", propOrder = {"componentId", "mappings", "requestedRange", "openGroups", "resultStyle", "fetch"})
+@XmlType(name = "ResultRequest", propOrder = {"componentId", "mappings", "requestedRange", "openGroups", "resultStyle", "fetch", "baseVersion"})
 @XmlAccessorType(XmlAccessType.FIELD)
 @ApiModel(description = "A definition for how to return the raw results of the query in the SearchResponse, " +
         "e.g. sorted, grouped, limited, etc.")
@@ -79,6 +79,14 @@ public final class ResultRequest implements Serializable {
     @JsonProperty
     private Fetch fetch;
 
+    @XmlElement
+    @ApiModelProperty(
+            value = "The version of the last result that the client received for this component. If this is set and " +
+                    "the fetch mode is CHANGES then table results are returned as the changes since that version. " +
+                    "Use 0 to receive changes when no result has been received yet")
+    @JsonProperty
+    private Long baseVersion;
+
     public ResultRequest() {
     }
 
@@ -101,19 +109,30 @@ public final class ResultRequest implements Serializable {
         this.resultStyle = ResultStyle.FLAT;
     }
 
+    public ResultRequest(final String componentId,
+                         final List<TableSettings> mappings,
+                         final OffsetRange requestedRange,
+                         final List<String> openGroups,
+                         final ResultStyle resultStyle,
+                         final Fetch fetch) {
+        this(componentId, mappings, requestedRange, openGroups, resultStyle, fetch, null);
+    }
+
     @JsonCreator
     public ResultRequest(@JsonProperty("componentId") final String componentId,
                          @JsonProperty("mappings") final List<TableSettings> mappings,
                          @JsonProperty("requestedRange") final OffsetRange requestedRange,
                          @JsonProperty("openGroups") final List<String> openGroups,
                          @JsonProperty("resultStyle") final ResultStyle resultStyle,
-                         @JsonProperty("fetch") final Fetch fetch) {
+                         @JsonProperty("fetch") final Fetch fetch,
+                         @JsonProperty("baseVersion") final Long baseVersion) {
         this.componentId = componentId;
         this.mappings = mappings;
         this.requestedRange = requestedRange;
         this.openGroups = openGroups;
         this.resultStyle = resultStyle;
         this.fetch = fetch;
+        this.baseVersion = baseVersion;
     }
 
     public String getComponentId() {
@@ -169,6 +188,19 @@ public final class ResultRequest implements Serializable {
         this.fetch = fetch;
     }
 
+    /**
+     * The version of the last result the client received. When set along with the CHANGES fetch type a table result
+     * is returned as the rows that have changed since that version rather than as the whole result.
+     * @return The base version.
+     */
+    public Long getBaseVersion() {
+        return baseVersion;
+    }
+
+    public void setBaseVersion(final Long baseVersion) {
+        this.baseVersion = baseVersion;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -179,12 +211,13 @@ public final class ResultRequest implements Serializable {
                 Objects.equals(requestedRange, that.requestedRange) &&
                 Objects.equals(openGroups, that.openGroups) &&
                 resultStyle == that.resultStyle &&
-                fetch == that.fetch;
+                fetch == that.fetch &&
+                Objects.equals(baseVersion, that.baseVersion);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(componentId, mappings, requestedRange, openGroups, resultStyle, fetch);
+        return Objects.hash(componentId, mappings, requestedRange, openGroups, resultStyle, fetch, baseVersion);
     }
 
     @Override
@@ -196,6 +229,7 @@ public final class ResultRequest implements Serializable {
                 ", openGroups=" + openGroups +
                 ", resultStyle=" + resultStyle +
                 ", fetch=" + fetch +
+                ", baseVersion=" + baseVersion +
                 '}';
     }
 
@@ -226,6 +260,8 @@ public final class ResultRequest implements Serializable {
 
         private ResultRequest.Fetch fetch;
 
+        private Long baseVersion;
+
         /**
          * @param value The ID of the component that will receive the results corresponding to this ResultRequest
          *
@@ -291,8 +327,19 @@ public final class ResultRequest implements Serializable {
             return this;
         }
 
+        /**
+         * @param value The version of the last result that the client received for this component
+         *
+         * @return The {@link Builder}, enabling method chaining
+         */
+        public Builder baseVersion(final Long value) {
+            this.baseVersion = value;
+            return this;
+        }
+
         public ResultRequest build() {
-            return new ResultRequest(componentId, mappings, requestedRange, openGroups, resultStyle, fetch);
+            return new ResultRequest(componentId, mappings, requestedRange, openGroups, resultStyle, fetch,
+                    baseVersion);
         }
     }
 }
\ No newline at end of file
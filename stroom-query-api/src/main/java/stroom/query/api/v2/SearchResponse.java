@@ -62,6 +62,7 @@ public final class SearchResponse implements Serializable {
     @XmlElementWrapper(name = "results")
     @XmlElements({
             @XmlElement(name = "table", type = TableResult.class),
+            @XmlElement(name = "tableDelta", type = TableDeltaResult.class),
             @XmlElement(name = "vis", type = FlatResult.class)
     })
     @JsonProperty
@@ -0,0 +1,309 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stroom.query.api.v2;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+import io.swagger.annotations.ApiModel;
+import io.swagger.annotations.ApiModelProperty;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * The changes to a table result since a version of the result that the client already holds. Each row of the new
+ * result is either a row of the base result, identified by its index in the base result, or a new row, i.e. a row that
+ * has been inserted or updated since the base result. Rows of the base result that are not referenced have been
+ * removed.
+ */
+@JsonPropertyOrder({"componentId", "baseVersion", "version", "fields", "rowIndexes", "rows", "resultRange",
+        "totalResults", "error"})
+@JsonInclude(Include.NON_NULL)
+@ApiModel(
+        description = "Object for describing the changes to a table result since a previous version of the result",
+        parent = Result.class)
+public final class TableDeltaResult extends Result {
+    private static final long serialVersionUID = 7291562839147286613L;
+
+    /**
+     * The row index used to show that a row is the next of the new rows rather than a row of the base result.
+     */
+    public static final int NEW_ROW = -1;
+
+    @ApiModelProperty(value = "The version of the result that these changes apply to, or null if the rows replace " +
+            "any rows the client holds")
+    @JsonProperty
+    private Long baseVersion;
+
+    @ApiModelProperty(
+            value = "The version of the result once these changes have been applied, to be supplied as the base " +
+                    "version when requesting the next changes",
+            required = true)
+    @JsonProperty
+    private Long version;
+
+    @ApiModelProperty(
+            required = true)
+    @JsonProperty
+    private List<Field> fields;
+
+    @ApiModelProperty(
+            value = "For each row of the result, the index of the same row in the base result, or -1 if the row is " +
+                    "the next of the inserted or updated rows",
+            required = true)
+    @JsonProperty
+    private List<Integer> rowIndexes;
+
+    @ApiModelProperty(
+            value = "The rows that have been inserted or updated since the base result",
+            required = true)
+    @JsonProperty
+    private List<Row> rows;
+
+    @ApiModelProperty(
+            required = true)
+    @JsonProperty
+    private OffsetRange resultRange;
+
+    @ApiModelProperty(value = "The total number of results in this result set")
+    @JsonProperty
+    private Integer totalResults;
+
+    public TableDeltaResult() {
+    }
+
+    @JsonCreator
+    public TableDeltaResult(@JsonProperty("componentId") final String componentId,
+                            @JsonProperty("baseVersion") final Long baseVersion,
+                            @JsonProperty("version") final Long version,
+                            @JsonProperty("fields") final List<Field> fields,
+                            @JsonProperty("rowIndexes") final List<Integer> rowIndexes,
+                            @JsonProperty("rows") final List<Row> rows,
+                            @JsonProperty("resultRange") final OffsetRange resultRange,
+                            @JsonProperty("totalResults") final Integer totalResults,
+                            @JsonProperty("error") final String error) {
+        super(componentId, error);
+        this.baseVersion = baseVersion;
+        this.version = version;
+        this.fields = fields;
+        this.rowIndexes = rowIndexes;
+        this.rows = rows;
+        this.resultRange = resultRange;
+        this.totalResults = totalResults;
+    }
+
+    public Long getBaseVersion() {
+        return baseVersion;
+    }
+
+    public void setBaseVersion(final Long baseVersion) {
+        this.baseVersion = baseVersion;
+    }
+
+    public Long getVersion() {
+        return version;
+    }
+
+    public void setVersion(final Long version) {
+        this.version = version;
+    }
+
+    public List<Field> getFields() {
+        return fields;
+    }
+
+    public void setFields(final List<Field> fields) {
+        this.fields = fields;
+    }
+
+    public List<Integer> getRowIndexes() {
+        return rowIndexes;
+    }
+
+    public void setRowIndexes(final List<Integer> rowIndexes) {
+        this.rowIndexes = rowIndexes;
+    }
+
+    public List<Row> getRows() {
+        return rows;
+    }
+
+    public void setRows(final List<Row> rows) {
+        this.rows = rows;
+    }
+
+    public OffsetRange getResultRange() {
+        return resultRange;
+    }
+
+    public void setResultRange(final OffsetRange resultRange) {
+        this.resultRange = resultRange;
+    }
+
+    public Integer getTotalResults() {
+        return totalResults;
+    }
+
+    public void setTotalResults(final Integer totalResults) {
+        this.totalResults = totalResults;
+    }
+
+    /**
+     * Apply these changes to the rows of the base result.
+     *
+     * @param baseRows The rows of the base result, ignored if there is no base version.
+     * @return The rows of the new result.
+     */
+    public List<Row> apply(final List<Row> baseRows) {
+        final List<Row> result = new ArrayList<>(rowIndexes == null ? 0 : rowIndexes.size());
+        if (rowIndexes != null) {
+            int rowIndex = 0;
+            for (final Integer index : rowIndexes) {
+                if (index == NEW_ROW) {
+                    result.add(rows.get(rowIndex++));
+                } else {
+                    result.add(baseRows.get(index));
+                }
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        if (!super.equals(o)) return false;
+        final TableDeltaResult that = (TableDeltaResult) o;
+        return Objects.equals(baseVersion, that.baseVersion) &&
+                Objects.equals(version, that.version) &&
+                Objects.equals(fields, that.fields) &&
+                Objects.equals(rowIndexes, that.rowIndexes) &&
+                Objects.equals(rows, that.rows) &&
+                Objects.equals(resultRange, that.resultRange) &&
+                Objects.equals(totalResults, that.totalResults);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(super.hashCode(), baseVersion, version, fields, rowIndexes, rows, resultRange,
+                totalResults);
+    }
+
+    @Override
+    public String toString() {
+        if (rows == null) {
+            return "0 changed rows";
+        }
+
+        return rows.size() + " changed rows";
+    }
+
+    /**
+     * Builder for constructing a {@link TableDeltaResult tableDeltaResult}
+     */
+    public static class Builder
+            extends Result.Builder<TableDeltaResult, Builder> {
+        private final List<Field> fields = new ArrayList<>();
+        private final List<Integer> rowIndexes = new ArrayList<>();
+        private final List<Row> rows = new ArrayList<>();
+        private Long baseVersion;
+        private Long version;
+        private OffsetRange resultRange;
+        private Integer totalResults;
+
+        /**
+         * @param value The version of the result that these changes apply to
+         * @return The {@link Builder}, enabling method chaining
+         */
+        public Builder baseVersion(final Long value) {
+            this.baseVersion = value;
+            return this;
+        }
+
+        /**
+         * @param value The version of the result once these changes have been applied
+         * @return The {@link Builder}, enabling method chaining
+         */
+        public Builder version(final Long value) {
+            this.version = value;
+            return this;
+        }
+
+        /**
+         * @param values add fields to our table
+         * @return The {@link Builder}, enabling method chaining
+         */
+        public Builder addFields(final Field... values) {
+            this.fields.addAll(Arrays.asList(values));
+            return this;
+        }
+
+        /**
+         * @param value The index of a row of the base result that is the next row of the result
+         * @return The {@link Builder}, enabling method chaining
+         */
+        public Builder addBaseRow(final int value) {
+            this.rowIndexes.add(value);
+            return this;
+        }
+
+        /**
+         * @param value A row that has been inserted or updated that is the next row of the result
+         * @return The {@link Builder}, enabling method chaining
+         */
+        public Builder addRow(final Row value) {
+            this.rowIndexes.add(NEW_ROW);
+            this.rows.add(value);
+            return this;
+        }
+
+        /**
+         * @param value The offset range used to generate the results
+         * @return The {@link Builder}, enabling method chaining
+         */
+        public Builder resultRange(final OffsetRange value) {
+            this.resultRange = value;
+            return this;
+        }
+
+        /**
+         * @param value The total number of results in this result set
+         * @return The {@link Builder}, enabling method chaining
+         */
+        public Builder totalResults(final Integer value) {
+            this.totalResults = value;
+            return this;
+        }
+
+        @Override
+        protected Builder self() {
+            return this;
+        }
+
+        @Override
+        public TableDeltaResult build() {
+            return new TableDeltaResult(getComponentId(), baseVersion, version, fields, rowIndexes, rows, resultRange,
+                    totalResults, getError());
+        }
+    }
+}
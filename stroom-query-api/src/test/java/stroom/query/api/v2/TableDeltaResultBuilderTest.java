@@ -0,0 +1,41 @@
+package stroom.query.api.v2;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class TableDeltaResultBuilderTest {
+    @Test
+    void doesBuild() {
+        // Given
+        final String componentId = "someTabularComponentId";
+        final Long baseVersion = 10L;
+        final Long version = 11L;
+        final Row row0 = new Row.Builder().groupKey("row0").build();
+        final Row row1 = new Row.Builder().groupKey("row1").build();
+        final Row row2 = new Row.Builder().groupKey("row2").build();
+
+        // When
+        final TableDeltaResult tableDeltaResult = new TableDeltaResult.Builder()
+                .componentId(componentId)
+                .baseVersion(baseVersion)
+                .version(version)
+                .addBaseRow(1)
+                .addRow(row2)
+                .totalResults(2)
+                .build();
+
+        // Then
+        assertThat(tableDeltaResult.getComponentId()).isEqualTo(componentId);
+        assertThat(tableDeltaResult.getBaseVersion()).isEqualTo(baseVersion);
+        assertThat(tableDeltaResult.getVersion()).isEqualTo(version);
+        assertThat(tableDeltaResult.getRowIndexes()).containsExactly(1, TableDeltaResult.NEW_ROW);
+        assertThat(tableDeltaResult.getRows()).containsExactly(row2);
+
+        final List<Row> rows = tableDeltaResult.apply(Arrays.asList(row0, row1));
+        assertThat(rows).containsExactly(row1, row2);
+    }
+}
@@ -79,7 +79,7 @@ public class CriteriaStore implements Store {
         UnsafePairQueue<GroupKey, Item> queue = tablePayload.getQueue();
 
         CompiledSorter compiledSorter = new CompiledSorter(tableSettings.getFields());
-        final ResultStoreCreator resultStoreCreator = new ResultStoreCreator(compiledSorter);
+        final ResultStoreCreator resultStoreCreator = new ResultStoreCreator(compiledSorter, storeSize);
         resultStoreCreator.read(queue);
 
         // Trim the number of results in the store.
@@ -2,6 +2,7 @@ package stroom.query.audit.rest;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import event.logging.Event;
 import event.logging.EventLoggingService;
 import event.logging.ObjectOutcome;
 import event.logging.Outcome;
@@ -22,7 +23,11 @@ import stroom.query.audit.service.QueryService;
 import stroom.query.security.ServiceUser;
 
 import javax.inject.Inject;
+import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.IOException;
+import java.util.Optional;
 
 /**
  * A standard implementation of {@link QueryResource} which logs all activity to the {@link EventLoggingService eventLoggingService}
@@ -96,37 +101,85 @@ public class AuditedQueryResourceImpl<T extends DocRefEntity> implements QueryRe
                 .withAuthSupplier(docRef -> authorisationService.isAuthorised(user,
                         docRef,
                         DocumentPermission.READ))
-                .withResponse(docRefEntity -> service.search(user, request)
-                        .map(d -> Response.ok(d).build())
-                        .orElse(Response.status(HttpStatus.NOT_FOUND_404)
-                                .build()))
+                .withResponse(docRefEntity -> {
+                    // Prefer writing the response as it is created so large results are never held in memory.
+                    final Optional<StreamingOutput> streamingOutput = service.searchStreaming(user, request);
+                    if (streamingOutput.isPresent()) {
+                        return Response.ok(auditWriteFailure(user, request, streamingOutput.get()),
+                                MediaType.APPLICATION_JSON_TYPE).build();
+                    }
+
+                    return service.search(user, request)
+                            .map(d -> Response.ok(d).build())
+                            .orElse(Response.status(HttpStatus.NOT_FOUND_404)
+                                    .build());
+                })
                 .withPopulateAudit((eventDetail, response, exception) -> {
                     eventDetail.setTypeId(QUERY_SEARCH);
                     eventDetail.setDescription("Run a Query over the data");
 
-                    final Search search = new Search();
-                    if (null != request.getQuery() && null != request.getQuery().getDataSource()) {
-                        search.setId(request.getQuery().getDataSource().getUuid());
-                        search.setType(request.getQuery().getDataSource().getType());
-                        search.setName(request.getQuery().getDataSource().getName());
-                    }
+                    final Search search = createSearch(request);
                     eventDetail.setSearch(search);
 
-                    final Query query = new Query();
-                    try {
-                        final String requestJson = objectMapper.writeValueAsString(request);
-                        query.setRaw(requestJson);
-                    } catch (JsonProcessingException e) {
-                        LOGGER.warn("Could not serialize request details for audit", e);
-                    }
-                    search.setQuery(query);
-
                     final Outcome outcome = new Outcome();
                     outcome.setSuccess(null != exception);
                     search.setOutcome(outcome);
                 }).callAndAudit(eventLoggingService);
     }
 
+    /**
+     * A search is audited when its response is returned, which is before a streamed response is written. Any failure
+     * while writing is therefore audited as a separate failed search.
+     */
+    private StreamingOutput auditWriteFailure(final ServiceUser user,
+                                              final SearchRequest request,
+                                              final StreamingOutput streamingOutput) {
+        return outputStream -> {
+            try {
+                streamingOutput.write(outputStream);
+            } catch (final IOException | RuntimeException e) {
+                LOGGER.error("Failed to write search response: " + e.getLocalizedMessage(), e);
+
+                final Event event = eventLoggingService.createEvent();
+                final Event.EventDetail eventDetail = event.getEventDetail();
+                event.getEventSource().getUser().setId(user.getName());
+
+                eventDetail.setTypeId(QUERY_SEARCH);
+                eventDetail.setDescription("Write the results of a Query over the data");
+
+                final Search search = createSearch(request);
+                eventDetail.setSearch(search);
+
+                final Outcome outcome = new Outcome();
+                outcome.setSuccess(false);
+                outcome.setDescription(e.getLocalizedMessage());
+                search.setOutcome(outcome);
+
+                eventLoggingService.log(event);
+                throw e;
+            }
+        };
+    }
+
+    private Search createSearch(final SearchRequest request) {
+        final Search search = new Search();
+        if (null != request.getQuery() && null != request.getQuery().getDataSource()) {
+            search.setId(request.getQuery().getDataSource().getUuid());
+            search.setType(request.getQuery().getDataSource().getType());
+            search.setName(request.getQuery().getDataSource().getName());
+        }
+
+        final Query query = new Query();
+        try {
+            final String requestJson = objectMapper.writeValueAsString(request);
+            query.setRaw(requestJson);
+        } catch (JsonProcessingException e) {
+            LOGGER.warn("Could not serialize request details for audit", e);
+        }
+        search.setQuery(query);
+        return search;
+    }
+
     public static final String QUERY_DESTROY = "QUERY_DESTROY";
 
     @Override
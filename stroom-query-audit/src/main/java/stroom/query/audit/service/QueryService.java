@@ -7,6 +7,7 @@ import stroom.query.api.v2.SearchRequest;
 import stroom.query.api.v2.SearchResponse;
 import stroom.query.security.ServiceUser;
 
+import javax.ws.rs.core.StreamingOutput;
 import java.util.Optional;
 
 public interface QueryService {
@@ -40,6 +41,28 @@ public interface QueryService {
     Optional<SearchResponse> search(ServiceUser user,
                                     SearchRequest request) throws QueryApiException;
 
+    /**
+     * Conduct a search on the data and write the search response straight to the HTTP response as it is created,
+     * rather than creating the whole response first. The JSON written must be the same as the response returned by
+     * {@link #search(ServiceUser, SearchRequest)}. This is an extension point, by default responses are not streamed.
+     * Services that keep their results in a {@code SearchResponseCreator} can implement this with
+     * {@code SearchResponseCreator.write}, passing the {@code ObjectMapper} that the application serialises other
+     * responses with.
+     * <p>
+     * The search is audited when the output is returned, before it is written. A failure while writing is audited
+     * as a separate failed search.
+     *
+     * @param user    The authenticated user
+     * @param request The details of the search
+     * @return An optional output that writes the search response, empty if the service does not stream responses in
+     * which case {@link #search(ServiceUser, SearchRequest)} is used.
+     * @throws QueryApiException if anything goes wrong
+     */
+    default Optional<StreamingOutput> searchStreaming(ServiceUser user,
+                                                      SearchRequest request) throws QueryApiException {
+        return Optional.empty();
+    }
+
     /**
      * Destroy any existing query being conducted under the given key.
      *
@@ -43,6 +43,37 @@ public class BlockingPairQueue<K, V> implements PairQueue<K, V> {
         }
     }
 
+    @Override
+    public PairCursor<K, V> cursor() {
+        // Take pairs straight from the queue rather than draining them into a list first. Only take the pairs that
+        // are present now so that a reader can't be kept busy forever by writers.
+        final int count = queue.size();
+        return new PairCursor<>() {
+            private int remaining = count;
+            private Pair<K, V> current;
+
+            @Override
+            public boolean next() {
+                current = null;
+                if (remaining > 0) {
+                    remaining--;
+                    current = queue.poll();
+                }
+                return current != null;
+            }
+
+            @Override
+            public K getKey() {
+                return current.getKey();
+            }
+
+            @Override
+            public V getValue() {
+                return current.getValue();
+            }
+        };
+    }
+
     @Override
     public Iterator<Pair<K, V>> iterator() {
         final List<Pair<K, V>> local = new ArrayList<>(queue.size());
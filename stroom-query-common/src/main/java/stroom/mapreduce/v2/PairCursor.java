@@ -0,0 +1,34 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stroom.mapreduce.v2;
+
+/**
+ * Moves through the key/value pairs of a {@link Source} without creating a {@link Pair} for each one. The cursor is
+ * positioned before the first pair until {@link #next()} is called.
+ */
+public interface PairCursor<K, V> {
+    /**
+     * Move to the next pair.
+     *
+     * @return True if the cursor is now positioned on a pair, false if there are no more pairs.
+     */
+    boolean next();
+
+    K getKey();
+
+    V getValue();
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stroom.mapreduce.v2;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * A partitioner that runs reduction tasks on a fork/join pool. The partitioned keys are split into one bucket per
+ * thread of the pool and each bucket is reduced into its own output buffer, so reducers never contend on a shared
+ * output collector. Buffers are forwarded to the output collector on the calling thread once all reduction tasks
+ * have finished, in the same order that the keys were first seen, so the output is identical to that of a
+ * {@link SimplePartitioner}.
+ * <p>
+ * If no pool is supplied or there are fewer keys than the threshold then reduction is performed on the calling
+ * thread. Reducers returned by {@link #createReducer()} may be called from several threads at once.
+ */
+public abstract class ParallelPartitioner<K2, V2, K3, V3> extends SimplePartitioner<K2, V2, K3, V3> {
+    public static final int DEFAULT_THRESHOLD = 10000;
+
+    private final ForkJoinPool pool;
+    private final int threshold;
+
+    public ParallelPartitioner() {
+        this(null, DEFAULT_THRESHOLD);
+    }
+
+    /**
+     * @param pool      The pool to run reduction tasks on, or null to always reduce on the calling thread.
+     * @param threshold The minimum number of keys that are worth reducing in parallel.
+     */
+    public ParallelPartitioner(final ForkJoinPool pool, final int threshold) {
+        this.pool = pool;
+        this.threshold = threshold;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public void partition() {
+        final Map<K2, Collection<V2>> store = getStore();
+        if (pool == null || pool.getParallelism() < 2 || store.size() < threshold) {
+            super.partition();
+            return;
+        }
+
+        final Entry<K2, Collection<V2>>[] entries = store.entrySet().toArray(new Entry[0]);
+        final int bucketCount = Math.min(pool.getParallelism(), entries.length);
+        final Bucket<K3, V3>[] buckets = new Bucket[bucketCount];
+        final List<ForkJoinTask<?>> tasks = new ArrayList<>(bucketCount);
+        for (int i = 0; i < bucketCount; i++) {
+            final int from = (int) ((long) entries.length * i / bucketCount);
+            final int to = (int) ((long) entries.length * (i + 1) / bucketCount);
+            final Bucket<K3, V3> bucket = new Bucket<>(to - from);
+            buckets[i] = bucket;
+            tasks.add(pool.submit(() -> reduce(entries, from, to, bucket)));
+        }
+
+        // Wait for all reduction tasks to complete, rethrowing any failure.
+        for (final ForkJoinTask<?> task : tasks) {
+            task.join();
+        }
+
+        final OutputCollector<K3, V3> outputCollector = getOutputCollector();
+        for (final Bucket<K3, V3> bucket : buckets) {
+            bucket.forward(outputCollector);
+        }
+    }
+
+    private void reduce(final Entry<K2, Collection<V2>>[] entries,
+                        final int from,
+                        final int to,
+                        final Bucket<K3, V3> bucket) {
+        for (int i = from; i < to; i++) {
+            final Entry<K2, Collection<V2>> entry = entries[i];
+            final Collection<V2> value = entry.getValue();
+            if (value != null) {
+                final Reducer<K2, V2, K3, V3> reducer = createReducer();
+                reducer.reduce(entry.getKey(), value, bucket);
+            }
+        }
+    }
+
+    private static class Bucket<K, V> implements OutputCollector<K, V> {
+        private final List<K> keys;
+        private final List<V> values;
+
+        Bucket(final int initialCapacity) {
+            keys = new ArrayList<>(initialCapacity);
+            values = new ArrayList<>(initialCapacity);
+        }
+
+        @Override
+        public void collect(final K key, final V value) {
+            keys.add(key);
+            values.add(value);
+        }
+
+        void forward(final OutputCollector<K, V> outputCollector) {
+            for (int i = 0; i < keys.size(); i++) {
+                outputCollector.collect(keys.get(i), values.get(i));
+            }
+        }
+    }
+}
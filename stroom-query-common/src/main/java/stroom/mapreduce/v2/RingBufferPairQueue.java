@@ -0,0 +1,372 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stroom.mapreduce.v2;
+
+import java.io.Serializable;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded, lock free queue for many producers and a single consumer. Keys and values are written into array
+ * segments so no objects are created per pair. Segments are only allocated when producers first reach them so a queue
+ * with a large capacity that only ever sees a few pairs stays small. Producers claim a slot by advancing the tail
+ * sequence and publish the pair by writing the value, the consumer frees slots in chunks by advancing the head
+ * sequence.
+ * <p>
+ * Values must not be null as a null value marks a slot that has not been published yet. Only one thread may read
+ * from the queue at a time and a reader must move a cursor until it returns false, otherwise the pairs it has
+ * already seen will be read again by the next cursor.
+ */
+public class RingBufferPairQueue<K, V> implements PairQueue<K, V> {
+    private static final long serialVersionUID = -6893472613427781937L;
+
+    private static final VarHandle ARRAY = MethodHandles.arrayElementVarHandle(Object[].class);
+    private static final VarHandle SEGMENTS = MethodHandles.arrayElementVarHandle(Object[][].class);
+
+    // The maximum number of slots in each segment.
+    private static final int SEGMENT_SIZE = 4096;
+
+    // The number of slots a reader will consume before freeing them for producers.
+    private static final int DRAIN_CHUNK = 1024;
+    private static final int SPIN_TRIES = 100;
+    private static final long PARK_NANOS = 100_000;
+
+    /**
+     * What a producer does when the queue is full.
+     */
+    public enum BackPressure {
+        /**
+         * Wait until the reader frees some space.
+         */
+        BLOCK,
+        /**
+         * Spin for a short time and then park repeatedly until there is some space.
+         */
+        SPIN_THEN_PARK,
+        /**
+         * Discard the pair and count it, see {@link #getDroppedCount()}.
+         */
+        DROP_AND_COUNT
+    }
+
+    private final int capacity;
+    private final int mask;
+    private final int segmentShift;
+    private final int segmentMask;
+    // Each segment holds a key followed by a value for every slot.
+    private final Object[][] segments;
+    private final BackPressure backPressure;
+
+    private final Sequence tail = new Sequence();
+    private final Sequence head = new Sequence();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
+    private final AtomicInteger waitingProducers = new AtomicInteger();
+    private final LongAdder dropped = new LongAdder();
+
+    public RingBufferPairQueue(final int capacity) {
+        this(capacity, BackPressure.BLOCK);
+    }
+
+    public RingBufferPairQueue(final int capacity, final BackPressure backPressure) {
+        if (capacity < 1 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("Capacity must be between 1 and " + (1 << 30));
+        }
+        this.capacity = capacity;
+        // Round the array size up to a power of 2 so that we can find slots with a mask.
+        final int length = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        this.mask = length - 1;
+        final int segmentLength = Math.min(length, SEGMENT_SIZE);
+        this.segmentShift = Integer.numberOfTrailingZeros(segmentLength);
+        this.segmentMask = segmentLength - 1;
+        this.segments = new Object[length / segmentLength][];
+        this.backPressure = Objects.requireNonNull(backPressure);
+    }
+
+    @Override
+    public void collect(final K key, final V value) {
+        Objects.requireNonNull(value, "Null values cannot be added to the queue");
+
+        long pos;
+        while (true) {
+            pos = tail.get();
+            if (pos - head.get() >= capacity) {
+                if (!awaitSpace()) {
+                    return;
+                }
+            } else if (tail.compareAndSet(pos, pos + 1)) {
+                break;
+            }
+        }
+
+        final int slot = (int) pos & mask;
+        final Object[] segment = getOrCreateSegment(slot);
+        final int index = keyIndex(slot);
+        segment[index] = key;
+        // Writing the value publishes the pair to the reader.
+        ARRAY.setRelease(segment, index + 1, value);
+    }
+
+    private Object[] getOrCreateSegment(final int slot) {
+        final int segmentIndex = slot >>> segmentShift;
+        Object[] segment = (Object[]) SEGMENTS.getAcquire(segments, segmentIndex);
+        if (segment == null) {
+            final Object[] newSegment = new Object[(segmentMask + 1) << 1];
+            if (SEGMENTS.compareAndSet(segments, segmentIndex, null, newSegment)) {
+                segment = newSegment;
+            } else {
+                // Another producer created the segment first.
+                segment = (Object[]) SEGMENTS.getAcquire(segments, segmentIndex);
+            }
+        }
+        return segment;
+    }
+
+    private Object[] getSegment(final int slot) {
+        return (Object[]) SEGMENTS.getAcquire(segments, slot >>> segmentShift);
+    }
+
+    private int keyIndex(final int slot) {
+        return (slot & segmentMask) << 1;
+    }
+
+    private boolean isFull() {
+        return tail.get() - head.get() >= capacity;
+    }
+
+    private boolean awaitSpace() {
+        switch (backPressure) {
+            case DROP_AND_COUNT:
+                dropped.increment();
+                return false;
+
+            case SPIN_THEN_PARK:
+                for (int i = 0; isFull(); i++) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        return false;
+                    }
+                    if (i < SPIN_TRIES) {
+                        Thread.onSpinWait();
+                    } else {
+                        LockSupport.parkNanos(this, PARK_NANOS);
+                    }
+                }
+                return true;
+
+            default:
+                lock.lock();
+                waitingProducers.incrementAndGet();
+                try {
+                    while (isFull()) {
+                        notFull.await();
+                    }
+                    return true;
+                } catch (final InterruptedException e) {
+                    // Continue to interrupt this thread.
+                    Thread.currentThread().interrupt();
+                    return false;
+                } finally {
+                    waitingProducers.decrementAndGet();
+                    lock.unlock();
+                }
+        }
+    }
+
+    /**
+     * Pass up to the specified number of pairs to an output collector, removing them from the queue.
+     *
+     * @param outputCollector The collector to receive the pairs.
+     * @param maxElements     The maximum number of pairs to pass.
+     * @return The number of pairs passed to the output collector.
+     */
+    public int drainTo(final OutputCollector<K, V> outputCollector, final int maxElements) {
+        final PairCursor<K, V> cursor = cursor(maxElements);
+        int count = 0;
+        while (cursor.next()) {
+            outputCollector.collect(cursor.getKey(), cursor.getValue());
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * @return A cursor that removes the pairs that are in the queue when it is created. Pairs are read straight
+     * from the queue's arrays and the slots they occupy are freed in chunks as the cursor moves.
+     */
+    @Override
+    public PairCursor<K, V> cursor() {
+        return cursor(size());
+    }
+
+    private PairCursor<K, V> cursor(final long limit) {
+        final long start = head.get();
+        final long end = start + limit;
+        return new PairCursor<>() {
+            private long pos = start - 1;
+            private long released = start;
+            private Object[] segment;
+            private int index;
+
+            @Override
+            public boolean next() {
+                final long nextPos = pos + 1;
+                if (nextPos - released >= DRAIN_CHUNK) {
+                    release(released, nextPos);
+                    released = nextPos;
+                }
+
+                final int slot = (int) nextPos & mask;
+                final Object[] nextSegment = nextPos < end ? getSegment(slot) : null;
+                final int nextIndex = keyIndex(slot);
+                if (nextSegment == null || ARRAY.getAcquire(nextSegment, nextIndex + 1) == null) {
+                    release(released, nextPos);
+                    released = nextPos;
+                    return false;
+                }
+
+                pos = nextPos;
+                segment = nextSegment;
+                index = nextIndex;
+                return true;
+            }
+
+            @SuppressWarnings("unchecked")
+            @Override
+            public K getKey() {
+                return (K) segment[index];
+            }
+
+            @SuppressWarnings("unchecked")
+            @Override
+            public V getValue() {
+                return (V) segment[index + 1];
+            }
+        };
+    }
+
+    private void release(final long from, final long to) {
+        if (to > from) {
+            for (long pos = from; pos < to; pos++) {
+                final int slot = (int) pos & mask;
+                final Object[] segment = getSegment(slot);
+                final int index = keyIndex(slot);
+                segment[index] = null;
+                segment[index + 1] = null;
+            }
+
+            // Advancing the head makes the slots available to producers.
+            head.set(to);
+
+            if (waitingProducers.get() > 0) {
+                lock.lock();
+                try {
+                    notFull.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+
+    @Override
+    public Iterator<Pair<K, V>> iterator() {
+        final PairCursor<K, V> cursor = cursor();
+        return new Iterator<>() {
+            private Pair<K, V> next;
+
+            @Override
+            public boolean hasNext() {
+                if (next == null && cursor.next()) {
+                    next = new Pair<>(cursor.getKey(), cursor.getValue());
+                }
+                return next != null;
+            }
+
+            @Override
+            public Pair<K, V> next() {
+                hasNext();
+                final Pair<K, V> pair = next;
+                next = null;
+                return pair;
+            }
+        };
+    }
+
+    public int size() {
+        return (int) Math.max(0, tail.get() - head.get());
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return The number of slots in the segments that have been allocated so far.
+     */
+    int getAllocatedSlots() {
+        int count = 0;
+        for (int i = 0; i < segments.length; i++) {
+            if (SEGMENTS.getAcquire(segments, i) != null) {
+                count += segmentMask + 1;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return The number of pairs that have been discarded because the queue was full.
+     */
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * A sequence number padded on both sides so that the head and tail do not share a cache line.
+     */
+    @SuppressWarnings("unused")
+    private static class Sequence implements Serializable {
+        private static final long serialVersionUID = 2585394372711390398L;
+
+        private static final AtomicLongFieldUpdater<Sequence> VALUE =
+                AtomicLongFieldUpdater.newUpdater(Sequence.class, "value");
+
+        private long p1, p2, p3, p4, p5, p6, p7;
+        private volatile long value;
+        private long p9, p10, p11, p12, p13, p14, p15;
+
+        long get() {
+            return value;
+        }
+
+        void set(final long value) {
+            this.value = value;
+        }
+
+        boolean compareAndSet(final long expect, final long update) {
+            return VALUE.compareAndSet(this, expect, update);
+        }
+    }
+}
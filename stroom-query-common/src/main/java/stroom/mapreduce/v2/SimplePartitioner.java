@@ -19,6 +19,7 @@ package stroom.mapreduce.v2;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Map.Entry;
 
 public abstract class SimplePartitioner<K2, V2, K3, V3> implements Partitioner<K2, V2, K3, V3> {
@@ -37,8 +38,9 @@ public abstract class SimplePartitioner<K2, V2, K3, V3> implements Partitioner<K
 
     @Override
     public void read(final Source<K2, V2> source) {
-        for (final Pair<K2, V2> pair : source) {
-            collect(pair.key, pair.value);
+        final PairCursor<K2, V2> cursor = source.cursor();
+        while (cursor.next()) {
+            collect(cursor.getKey(), cursor.getValue());
         }
     }
 
@@ -63,5 +65,13 @@ public abstract class SimplePartitioner<K2, V2, K3, V3> implements Partitioner<K
         this.outputCollector = outputCollector;
     }
 
+    protected OutputCollector<K3, V3> getOutputCollector() {
+        return outputCollector;
+    }
+
+    protected Map<K2, Collection<V2>> getStore() {
+        return store;
+    }
+
     protected abstract Reducer<K2, V2, K3, V3> createReducer();
 }
@@ -16,5 +16,37 @@
 
 package stroom.mapreduce.v2;
 
+import java.util.Iterator;
+
 public interface Source<K, V> extends Iterable<Pair<K, V>> {
+    /**
+     * @return A cursor over the pairs in this source. Sources that do not store pairs should override this so that
+     * readers do not need a pair object for each key/value.
+     */
+    default PairCursor<K, V> cursor() {
+        final Iterator<Pair<K, V>> iterator = iterator();
+        return new PairCursor<>() {
+            private Pair<K, V> current;
+
+            @Override
+            public boolean next() {
+                if (iterator.hasNext()) {
+                    current = iterator.next();
+                    return true;
+                }
+                current = null;
+                return false;
+            }
+
+            @Override
+            public K getKey() {
+                return current.getKey();
+            }
+
+            @Override
+            public V getValue() {
+                return current.getValue();
+            }
+        };
+    }
 }
@@ -16,32 +16,117 @@
 
 package stroom.mapreduce.v2;
 
-import java.util.ArrayList;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
 import java.util.Iterator;
-import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.Objects;
 
+/**
+ * A queue that is not thread safe. Keys and values are held in parallel arrays rather than as {@link Pair} objects,
+ * readers should use {@link #cursor()} to avoid creating a pair for each entry.
+ */
 public class UnsafePairQueue<K, V> implements PairQueue<K, V> {
-    private static final long serialVersionUID = 3205692727588879153L;
+    private static final long serialVersionUID = -2719823346418294707L;
+
+    private static final int DEFAULT_CAPACITY = 10;
 
-    private final List<Pair<K, V>> queue = new ArrayList<>();
+    private transient Object[] keys;
+    private transient Object[] values;
+    private transient int size;
 
     public UnsafePairQueue() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public UnsafePairQueue(final int initialCapacity) {
+        keys = new Object[Math.max(1, initialCapacity)];
+        values = new Object[keys.length];
     }
 
     @Override
     public void collect(final K key, final V value) {
-        final Pair<K, V> pair = new Pair<>(key, value);
-        queue.add(pair);
+        if (size == keys.length) {
+            final int capacity = keys.length + (keys.length >> 1) + 1;
+            keys = Arrays.copyOf(keys, capacity);
+            values = Arrays.copyOf(values, capacity);
+        }
+        keys[size] = key;
+        values[size] = value;
+        size++;
+    }
+
+    @Override
+    public PairCursor<K, V> cursor() {
+        return new PairCursor<>() {
+            private int index = -1;
+
+            @Override
+            public boolean next() {
+                return ++index < size;
+            }
+
+            @SuppressWarnings("unchecked")
+            @Override
+            public K getKey() {
+                return (K) keys[index];
+            }
+
+            @SuppressWarnings("unchecked")
+            @Override
+            public V getValue() {
+                return (V) values[index];
+            }
+        };
     }
 
     @Override
     public Iterator<Pair<K, V>> iterator() {
-        return queue.iterator();
+        return new Iterator<>() {
+            private int index;
+
+            @Override
+            public boolean hasNext() {
+                return index < size;
+            }
+
+            @SuppressWarnings("unchecked")
+            @Override
+            public Pair<K, V> next() {
+                if (index >= size) {
+                    throw new NoSuchElementException();
+                }
+                final Pair<K, V> pair = new Pair<>((K) keys[index], (V) values[index]);
+                index++;
+                return pair;
+            }
+        };
     }
 
     public int size() {
-        return queue.size();
+        return size;
+    }
+
+    private void writeObject(final ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeInt(size);
+        for (int i = 0; i < size; i++) {
+            out.writeObject(keys[i]);
+            out.writeObject(values[i]);
+        }
+    }
+
+    private void readObject(final ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        size = in.readInt();
+        keys = new Object[Math.max(1, size)];
+        values = new Object[keys.length];
+        for (int i = 0; i < size; i++) {
+            keys[i] = in.readObject();
+            values[i] = in.readObject();
+        }
     }
 
     @Override
@@ -49,11 +134,17 @@ public class UnsafePairQueue<K, V> implements PairQueue<K, V> {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         final UnsafePairQueue<?, ?> that = (UnsafePairQueue<?, ?>) o;
-        return Objects.equals(queue, that.queue);
+        return size == that.size &&
+                Arrays.equals(keys, 0, size, that.keys, 0, size) &&
+                Arrays.equals(values, 0, size, that.values, 0, size);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(queue);
+        int result = 1;
+        for (int i = 0; i < size; i++) {
+            result = 31 * result + Objects.hash(keys[i], values[i]);
+        }
+        return result;
     }
 }
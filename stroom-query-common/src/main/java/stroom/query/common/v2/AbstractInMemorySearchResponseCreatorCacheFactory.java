@@ -4,9 +4,15 @@ import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
+import com.google.common.cache.RemovalCause;
 import com.google.common.cache.RemovalNotification;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import stroom.query.api.v2.QueryKey;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.function.Supplier;
 
 @SuppressWarnings("unused")
 public abstract class AbstractInMemorySearchResponseCreatorCacheFactory implements SearchResponseCreatorCacheFactory {
@@ -29,8 +35,20 @@ public abstract class AbstractInMemorySearchResponseCreatorCacheFactory implemen
             }
         };
 
+        final long maxQueryMemoryBytes = getMaxQueryMemoryBytes();
+        final SearchResponseCreatorWeigher weigher = maxQueryMemoryBytes > 0 ? new SearchResponseCreatorWeigher() : null;
+
         final CacheBuilder<SearchResponseCreatorCache.Key, SearchResponseCreator> cacheBuilder = CacheBuilder.newBuilder()
-                .removalListener(AbstractInMemorySearchResponseCreatorCacheFactory::onRemove);
+                .removalListener(notification -> onRemove(notification, weigher));
+
+        if (weigher != null) {
+            // Use a single segment as the maximum weight is split between segments and one large search could
+            // otherwise be evicted as soon as it was weighed.
+            cacheBuilder
+                    .maximumWeight(SearchResponseCreatorWeigher.toWeight(maxQueryMemoryBytes))
+                    .weigher(weigher)
+                    .concurrencyLevel(1);
+        }
 
         addAdditionalBuildOptions(cacheBuilder);
 
@@ -38,10 +56,19 @@ public abstract class AbstractInMemorySearchResponseCreatorCacheFactory implemen
 
         registerCache(cacheBuilder, cache);
 
+        if (weigher != null) {
+            registerWeights(weigher::getByteSizes);
+
+            // Stop admitting new searches before the budget is reached so that running searches have room to grow
+            // before the least recently used ones are evicted.
+            return new InMemorySearchResponseCreatorCache(cache, weigher, maxQueryMemoryBytes / 4 * 3,
+                    getAdmissionTimeout());
+        }
         return new InMemorySearchResponseCreatorCache(cache);
     }
 
-    private static void onRemove(final RemovalNotification<SearchResponseCreatorCache.Key, SearchResponseCreator> notification) {
+    private static void onRemove(final RemovalNotification<SearchResponseCreatorCache.Key, SearchResponseCreator> notification,
+                                 final SearchResponseCreatorWeigher weigher) {
         if (LOGGER.isDebugEnabled()) {
             LOGGER.debug("Removal notification for key {}, value {}, cause {}",
                     notification.getKey(),
@@ -49,11 +76,45 @@ public abstract class AbstractInMemorySearchResponseCreatorCacheFactory implemen
                     notification.getCause());
         }
 
-        if (notification != null && notification.getValue() != null) {
+        // Entries are only replaced with themselves so that they are weighed again.
+        if (notification == null || notification.getCause() == RemovalCause.REPLACED) {
+            return;
+        }
+
+        if (weigher != null) {
+            weigher.remove(notification.getKey());
+        }
+        if (notification.getValue() != null) {
             notification.getValue().destroy();
         }
     }
 
+    /**
+     * The estimated number of bytes of results that all cached searches can hold. If this is greater than zero each
+     * search is weighed by the results its store holds, the least recently used searches are evicted and destroyed
+     * once the budget is exceeded, and new searches are not started while the cached searches hold more than three
+     * quarters of the budget. Subclasses that set a budget must not set a maximum size or concurrency level in
+     * {@link #addAdditionalBuildOptions(CacheBuilder)}.
+     * <p>
+     * Searches are weighed again by replacing their entries with themselves whenever their results have grown or
+     * shrunk. The cache counts a replacement as a write, so a search that is still receiving results will never
+     * expire under {@code expireAfterWrite}. Use {@code expireAfterAccess} to expire searches that are no longer
+     * being polled.
+     *
+     * @return The query memory budget in bytes, or zero for no budget.
+     */
+    protected long getMaxQueryMemoryBytes() {
+        return 0;
+    }
+
+    /**
+     * @return How long a new search waits for memory to become available before it is rejected with a
+     * {@link QueryMemoryExhaustedException}.
+     */
+    protected Duration getAdmissionTimeout() {
+        return Duration.ZERO;
+    }
+
     protected abstract void addAdditionalBuildOptions(
             final CacheBuilder<SearchResponseCreatorCache.Key, SearchResponseCreator> cacheBuilder);
 
@@ -64,4 +125,11 @@ public abstract class AbstractInMemorySearchResponseCreatorCacheFactory implemen
             final CacheBuilder<SearchResponseCreatorCache.Key, SearchResponseCreator> cacheBuilder,
             final Cache<SearchResponseCreatorCache.Key, SearchResponseCreator> cache);
 
+    /**
+     * Allows the estimated number of bytes held by each cached search to be registered as metrics. This is only
+     * called if there is a query memory budget.
+     */
+    protected void registerWeights(final Supplier<Map<QueryKey, Long>> byteSizes) {
+    }
+
 }
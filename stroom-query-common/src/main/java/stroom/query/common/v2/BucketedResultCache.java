@@ -0,0 +1,630 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package stroom.query.common.v2;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import stroom.mapreduce.v2.UnsafePairQueue;
+import stroom.query.api.v2.ExpressionItem;
+import stroom.query.api.v2.ExpressionOperator;
+import stroom.query.api.v2.ExpressionOperator.Op;
+import stroom.query.api.v2.ExpressionParamUtil;
+import stroom.query.api.v2.ExpressionTerm;
+import stroom.query.api.v2.ExpressionTerm.Condition;
+import stroom.query.api.v2.Query;
+import stroom.query.api.v2.ResultRequest;
+import stroom.query.api.v2.SearchRequest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * A cache on local disk of the items extracted for each time bucket of a search that has a time range, so that a
+ * search that is run again, e.g. a dashboard showing the last 24 hours that is refreshed every minute, only has to
+ * extract the buckets that it hasn't seen before.
+ * <p>
+ * A search can use the cache if its expression is an AND with a single BETWEEN term on the time field. The time range
+ * is resolved to absolute times, including relative dates such as {@code now()-1d}, and split into buckets that are
+ * aligned to the bucket size. Whole buckets that are entirely in the past are cached for each component of the search
+ * against the fingerprint of the rest of the search, see {@link SearchFingerprint}, while the partial buckets at
+ * either edge of the range, including the bucket that holds the current time, are always extracted. A bucket is only
+ * read from the cache if it is cached for every component of the search. Buckets are shared by every user that runs
+ * the same search so the cache must only be used for data sources whose results do not depend on the user.
+ * <p>
+ * Each bucket must hold every item extracted for its time range, before any trimming, so that merging the buckets
+ * through an {@link ItemReducer}, e.g. by adding them to a {@link TablePayloadHandler}, gives the same result as
+ * extracting the whole range at once. This is the same merge that combines results from several nodes so it is only
+ * as correct as the merging of the generators of the table.
+ * <p>
+ * Buckets are written with {@link TablePayloadCodec} to one file each and the least recently used buckets are deleted
+ * once the files take up more than the maximum number of bytes. Each file starts with a header describing its bucket
+ * so the cache survives restarts. Buckets are only used for the version of the data source that they were extracted
+ * from and buckets for any other version are deleted as soon as a new version is seen.
+ */
+public class BucketedResultCache {
+    private static final Logger LOGGER = LoggerFactory.getLogger(BucketedResultCache.class);
+
+    private static final int MAGIC = 0x53544243;
+    private static final int VERSION = 2;
+    private static final String FILE_EXTENSION = ".bucket";
+
+    private final Path directory;
+    private final long maxBytes;
+
+    // The cached buckets, least recently used first.
+    private final LinkedHashMap<BucketId, CachedBucket> buckets = new LinkedHashMap<>(16, 0.75F, true);
+    private long totalBytes;
+
+    /**
+     * @param directory The directory to keep buckets in. Buckets already in the directory are reused.
+     * @param maxBytes  The number of bytes that bucket files can take up before the least recently used are deleted.
+     */
+    public BucketedResultCache(final Path directory, final long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        load();
+    }
+
+    /**
+     * Work out which buckets of a search are cached and which need extracting.
+     *
+     * @param searchRequest     The search.
+     * @param timeField         The name of the field that holds the time of each record.
+     * @param dateFields        The names of any other fields that hold dates.
+     * @param dataSourceVersion The current version of the data source, buckets from any other version are discarded.
+     * @param bucketSize        The size of each bucket.
+     * @param nowEpochMilli     The time to resolve relative dates against.
+     * @return The plan for the search, or null if the search can't use the cache.
+     */
+    public synchronized Plan plan(final SearchRequest searchRequest,
+                                  final String timeField,
+                                  final Set<String> dateFields,
+                                  final String dataSourceVersion,
+                                  final Duration bucketSize,
+                                  final long nowEpochMilli) {
+        final Query query = searchRequest.getQuery();
+        if (query == null || query.getDataSource() == null || query.getExpression() == null) {
+            return null;
+        }
+
+        final ExpressionTerm timeTerm = findTimeTerm(query.getExpression(), timeField);
+        if (timeTerm == null) {
+            return null;
+        }
+
+        final long[] range = resolveRange(timeTerm, query, nowEpochMilli);
+        final long size = bucketSize.toMillis();
+        if (range == null || size <= 0) {
+            return null;
+        }
+
+        // Every component of the search holds different items so each is cached separately.
+        final List<String> componentIds = new ArrayList<>();
+        if (searchRequest.getResultRequests() != null) {
+            for (final ResultRequest resultRequest : searchRequest.getResultRequests()) {
+                componentIds.add(resultRequest.getComponentId());
+            }
+        }
+        if (componentIds.isEmpty()) {
+            return null;
+        }
+
+        final String dataSourceUuid = query.getDataSource().getUuid();
+        invalidate(dataSourceUuid, dataSourceVersion);
+
+        final String key = SearchFingerprint.create(searchRequest, null, timeTerm, dateFields, nowEpochMilli) +
+                ",timeField=" + timeField + ",bucketSize=" + size;
+        final List<Bucket> planned = new ArrayList<>();
+        final long from = range[0];
+        final long to = range[1];
+
+        // Only whole buckets that have ended can be cached as later buckets may still receive data.
+        final long firstWhole = Math.floorDiv(from + size - 1, size) * size;
+        final long lastWholeEnd = Math.floorDiv(Math.min(to, nowEpochMilli), size) * size;
+        if (firstWhole >= lastWholeEnd) {
+            planned.add(new Bucket(from, to, false, false));
+        } else {
+            if (from < firstWhole) {
+                planned.add(new Bucket(from, firstWhole, false, false));
+            }
+            for (long start = firstWhole; start < lastWholeEnd; start += size) {
+                boolean cached = true;
+                for (final String componentId : componentIds) {
+                    cached = cached && buckets.containsKey(new BucketId(key, componentId, start));
+                }
+                planned.add(new Bucket(start, start + size, true, cached));
+            }
+            if (lastWholeEnd < to) {
+                planned.add(new Bucket(lastWholeEnd, to, false, false));
+            }
+        }
+
+        return new Plan(key, componentIds, dataSourceUuid, dataSourceVersion, planned);
+    }
+
+    /**
+     * Add the items of every cached bucket in a plan for a component to a payload handler, where they are merged with
+     * each other and with the items of the extracted buckets.
+     *
+     * @param plan                The plan for the search.
+     * @param componentId         The component of the search that the handler holds results for.
+     * @param tablePayloadHandler The handler to add the cached items to.
+     * @return The buckets that were cached when the plan was made but have since been evicted, these must be
+     * extracted too.
+     */
+    public List<Bucket> addCachedResults(final Plan plan,
+                                         final String componentId,
+                                         final TablePayloadHandler tablePayloadHandler) {
+        final List<Bucket> missing = new ArrayList<>();
+        for (final Bucket bucket : plan.getCachedBuckets()) {
+            final UnsafePairQueue<GroupKey, Item> queue = get(plan, componentId, bucket);
+            if (queue == null) {
+                missing.add(bucket);
+            } else {
+                tablePayloadHandler.addQueue(queue);
+            }
+        }
+        return missing;
+    }
+
+    /**
+     * @return The items cached for a bucket of a component, or null if the bucket is not cached.
+     */
+    public UnsafePairQueue<GroupKey, Item> get(final Plan plan, final String componentId, final Bucket bucket) {
+        final BucketId id = new BucketId(plan.key, componentId, bucket.from);
+        final CachedBucket cachedBucket;
+        synchronized (this) {
+            cachedBucket = buckets.get(id);
+        }
+        if (cachedBucket == null) {
+            return null;
+        }
+
+        try {
+            final byte[] bytes = Files.readAllBytes(cachedBucket.path);
+            Files.setLastModifiedTime(cachedBucket.path, FileTime.fromMillis(System.currentTimeMillis()));
+            final ByteBuffer buffer = ByteBuffer.wrap(bytes, cachedBucket.payloadOffset,
+                    bytes.length - cachedBucket.payloadOffset);
+            return TablePayloadCodec.decode(buffer);
+        } catch (final IOException | RuntimeException e) {
+            LOGGER.warn("Unable to read cached bucket {}", cachedBucket.path, e);
+            synchronized (this) {
+                // The bucket may have been evicted and cached again while we were reading it.
+                if (buckets.get(id) == cachedBucket) {
+                    remove(id);
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Cache every item extracted for a bucket of a component.
+     *
+     * @param plan        The plan for the search.
+     * @param componentId The component of the search that the items were extracted for.
+     * @param bucket      A cacheable bucket of the plan.
+     * @param queue       All of the items extracted for the bucket.
+     */
+    public void put(final Plan plan,
+                    final String componentId,
+                    final Bucket bucket,
+                    final UnsafePairQueue<GroupKey, Item> queue) {
+        if (!bucket.isCacheable()) {
+            throw new IllegalArgumentException("Bucket " + bucket + " can't be cached");
+        }
+
+        final Path path = directory.resolve(UUID.randomUUID().toString() + FILE_EXTENSION);
+        final int payloadOffset;
+        try {
+            Files.createDirectories(directory);
+            final byte[] header = writeHeader(plan, componentId, bucket);
+            payloadOffset = header.length;
+            try (final OutputStream outputStream = Files.newOutputStream(path)) {
+                outputStream.write(header);
+                // The writer closes the file too but closing it twice does no harm.
+                try (final TablePayloadCodec.Writer writer = new TablePayloadCodec.Writer(outputStream)) {
+                    writer.writeAll(queue);
+                }
+            }
+        } catch (final IOException | RuntimeException e) {
+            LOGGER.warn("Unable to cache bucket {}", bucket, e);
+            delete(path);
+            return;
+        }
+
+        synchronized (this) {
+            final BucketId id = new BucketId(plan.key, componentId, bucket.from);
+            remove(id);
+            add(id, new CachedBucket(path, payloadOffset, size(path), plan.dataSourceUuid, plan.dataSourceVersion));
+            evict();
+        }
+    }
+
+    /**
+     * Delete every cached bucket.
+     */
+    public synchronized void clear() {
+        for (final CachedBucket cachedBucket : buckets.values()) {
+            delete(cachedBucket.path);
+        }
+        buckets.clear();
+        totalBytes = 0;
+    }
+
+    synchronized int size() {
+        return buckets.size();
+    }
+
+    private ExpressionTerm findTimeTerm(final ExpressionOperator expression, final String timeField) {
+        if (!expression.enabled() || expression.op() != Op.AND || expression.getChildren() == null) {
+            return null;
+        }
+
+        ExpressionTerm timeTerm = null;
+        for (final ExpressionItem child : expression.getChildren()) {
+            if (child.enabled() && child instanceof ExpressionTerm &&
+                    Objects.equals(((ExpressionTerm) child).getField(), timeField)) {
+                if (timeTerm != null || ((ExpressionTerm) child).getCondition() != Condition.BETWEEN) {
+                    // Anything other than a single range on the time field can't be split into buckets.
+                    return null;
+                }
+                timeTerm = (ExpressionTerm) child;
+            }
+        }
+        return timeTerm;
+    }
+
+    private long[] resolveRange(final ExpressionTerm timeTerm, final Query query, final long nowEpochMilli) {
+        if (timeTerm.getValue() == null) {
+            return null;
+        }
+
+        final String value = ExpressionParamUtil.replaceParameters(timeTerm.getValue(),
+                ExpressionParamUtil.createParamMap(query.getParams()));
+        final String[] parts = value.split(",");
+        if (parts.length != 2) {
+            return null;
+        }
+
+        try {
+            final Optional<ZonedDateTime> from = DateExpressionParser.parse(parts[0].trim(), nowEpochMilli);
+            final Optional<ZonedDateTime> to = DateExpressionParser.parse(parts[1].trim(), nowEpochMilli);
+            if (from.isPresent() && to.isPresent()) {
+                final long start = from.get().toInstant().toEpochMilli();
+                final long end = to.get().toInstant().toEpochMilli();
+                if (start < end) {
+                    return new long[]{start, end};
+                }
+            }
+        } catch (final RuntimeException e) {
+            LOGGER.debug("Unable to resolve time range '{}'", value, e);
+        }
+        return null;
+    }
+
+    private void invalidate(final String dataSourceUuid, final String dataSourceVersion) {
+        final Iterator<Map.Entry<BucketId, CachedBucket>> iterator = buckets.entrySet().iterator();
+        while (iterator.hasNext()) {
+            final CachedBucket cachedBucket = iterator.next().getValue();
+            if (Objects.equals(cachedBucket.dataSourceUuid, dataSourceUuid) &&
+                    !Objects.equals(cachedBucket.dataSourceVersion, dataSourceVersion)) {
+                delete(cachedBucket.path);
+                totalBytes -= cachedBucket.bytes;
+                iterator.remove();
+            }
+        }
+    }
+
+    private void add(final BucketId id, final CachedBucket cachedBucket) {
+        buckets.put(id, cachedBucket);
+        totalBytes += cachedBucket.bytes;
+    }
+
+    private void remove(final BucketId id) {
+        final CachedBucket cachedBucket = buckets.remove(id);
+        if (cachedBucket != null) {
+            delete(cachedBucket.path);
+            totalBytes -= cachedBucket.bytes;
+        }
+    }
+
+    private void evict() {
+        final Iterator<CachedBucket> iterator = buckets.values().iterator();
+        while (totalBytes > maxBytes && iterator.hasNext()) {
+            final CachedBucket cachedBucket = iterator.next();
+            delete(cachedBucket.path);
+            totalBytes -= cachedBucket.bytes;
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Read the headers of the buckets that are already in the directory, least recently used first.
+     */
+    private void load() {
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+
+        final List<Path> paths = new ArrayList<>();
+        try (final DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + FILE_EXTENSION)) {
+            stream.forEach(paths::add);
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        paths.sort(Comparator.comparing(this::lastModified));
+
+        for (final Path path : paths) {
+            try (final DataInputStream input = new DataInputStream(Files.newInputStream(path))) {
+                if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+                    throw new IOException("Not a bucket file");
+                }
+                final String key = readString(input);
+                final String componentId = readString(input);
+                final String dataSourceUuid = readString(input);
+                final String dataSourceVersion = readString(input);
+                final long from = input.readLong();
+                final int payloadOffset = input.readInt();
+                add(new BucketId(key, componentId, from),
+                        new CachedBucket(path, payloadOffset, size(path), dataSourceUuid, dataSourceVersion));
+            } catch (final IOException | RuntimeException e) {
+                LOGGER.warn("Deleting unreadable cached bucket {}", path, e);
+                delete(path);
+            }
+        }
+        evict();
+    }
+
+    private byte[] writeHeader(final Plan plan, final String componentId, final Bucket bucket) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (final DataOutputStream output = new DataOutputStream(bytes)) {
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            writeString(output, plan.key);
+            writeString(output, componentId);
+            writeString(output, plan.dataSourceUuid);
+            writeString(output, plan.dataSourceVersion);
+            output.writeLong(bucket.from);
+        }
+
+        // The header ends with its own length so that the payload can be found without reading the header again.
+        final int length = bytes.size() + Integer.BYTES;
+        new DataOutputStream(bytes).writeInt(length);
+        return bytes.toByteArray();
+    }
+
+    private static void writeString(final DataOutputStream output, final String string) throws IOException {
+        if (string == null) {
+            output.writeInt(-1);
+        } else {
+            final byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+            output.writeInt(bytes.length);
+            output.write(bytes);
+        }
+    }
+
+    private static String readString(final DataInputStream input) throws IOException {
+        final int length = input.readInt();
+        if (length == -1) {
+            return null;
+        }
+        final byte[] bytes = new byte[length];
+        input.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private FileTime lastModified(final Path path) {
+        try {
+            return Files.getLastModifiedTime(path);
+        } catch (final IOException e) {
+            return FileTime.fromMillis(0);
+        }
+    }
+
+    private static long size(final Path path) {
+        try {
+            return Files.size(path);
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void delete(final Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (final IOException e) {
+            LOGGER.warn("Unable to delete cached bucket {}", path, e);
+        }
+    }
+
+    /**
+     * The buckets that a search has been split into.
+     */
+    public static final class Plan {
+        private final String key;
+        private final List<String> componentIds;
+        private final String dataSourceUuid;
+        private final String dataSourceVersion;
+        private final List<Bucket> buckets;
+
+        private Plan(final String key,
+                     final List<String> componentIds,
+                     final String dataSourceUuid,
+                     final String dataSourceVersion,
+                     final List<Bucket> buckets) {
+            this.key = key;
+            this.componentIds = Collections.unmodifiableList(componentIds);
+            this.dataSourceUuid = dataSourceUuid;
+            this.dataSourceVersion = dataSourceVersion;
+            this.buckets = Collections.unmodifiableList(buckets);
+        }
+
+        /**
+         * @return The components of the search that buckets are cached for.
+         */
+        public List<String> getComponentIds() {
+            return componentIds;
+        }
+
+        /**
+         * @return Every bucket of the search in time order.
+         */
+        public List<Bucket> getBuckets() {
+            return buckets;
+        }
+
+        /**
+         * @return The buckets that can be read from the cache for every component.
+         */
+        public List<Bucket> getCachedBuckets() {
+            final List<Bucket> list = new ArrayList<>();
+            for (final Bucket bucket : buckets) {
+                if (bucket.isCached()) {
+                    list.add(bucket);
+                }
+            }
+            return list;
+        }
+
+        /**
+         * @return The buckets that must be extracted, those that are cacheable should be cached for each component once
+         * extracted.
+         */
+        public List<Bucket> getBucketsToExtract() {
+            final List<Bucket> list = new ArrayList<>();
+            for (final Bucket bucket : buckets) {
+                if (!bucket.isCached()) {
+                    list.add(bucket);
+                }
+            }
+            return list;
+        }
+    }
+
+    /**
+     * A time range of a search, from its start inclusive to its end exclusive.
+     */
+    public static final class Bucket {
+        private final long from;
+        private final long to;
+        private final boolean cacheable;
+        private final boolean cached;
+
+        private Bucket(final long from, final long to, final boolean cacheable, final boolean cached) {
+            this.from = from;
+            this.to = to;
+            this.cacheable = cacheable;
+            this.cached = cached;
+        }
+
+        public long getFrom() {
+            return from;
+        }
+
+        public long getTo() {
+            return to;
+        }
+
+        public boolean isCacheable() {
+            return cacheable;
+        }
+
+        public boolean isCached() {
+            return cached;
+        }
+
+        @Override
+        public String toString() {
+            return "Bucket{" +
+                    "from=" + from +
+                    ", to=" + to +
+                    ", cacheable=" + cacheable +
+                    ", cached=" + cached +
+                    '}';
+        }
+    }
+
+    private static final class BucketId {
+        private final String key;
+        private final String componentId;
+        private final long from;
+
+        private BucketId(final String key, final String componentId, final long from) {
+            this.key = key;
+            this.componentId = componentId;
+            this.from = from;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            final BucketId bucketId = (BucketId) o;
+            return from == bucketId.from &&
+                    key.equals(bucketId.key) &&
+                    Objects.equals(componentId, bucketId.componentId);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(key, componentId, from);
+        }
+    }
+
+    private static final class CachedBucket {
+        private final Path path;
+        private final int payloadOffset;
+        private final long bytes;
+        private final String dataSourceUuid;
+        private final String dataSourceVersion;
+
+        private CachedBucket(final Path path,
+                             final int payloadOffset,
+                             final long bytes,
+                             final String dataSourceUuid,
+                             final String dataSourceVersion) {
+            this.path = path;
+            this.payloadOffset = payloadOffset;
+            this.bytes = bytes;
+            this.dataSourceUuid = dataSourceUuid;
+            this.dataSourceVersion = dataSourceVersion;
+        }
+    }
+}
@@ -26,12 +26,14 @@ import stroom.query.api.v2.Field;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
 public class CompiledFields implements Iterable<CompiledField> {
     private final List<CompiledField> compiledFields;
+    private final int[] filterFieldIndexes;
 
     public CompiledFields(final List<Field> fields,
                           final FieldIndexMap fieldIndexMap,
@@ -70,6 +72,22 @@ public class CompiledFields implements Iterable<CompiledField> {
         } else {
             compiledFields = Collections.emptyList();
         }
+
+        filterFieldIndexes = createFilterFieldIndexes(compiledFields);
+    }
+
+    private static int[] createFilterFieldIndexes(final List<CompiledField> compiledFields) {
+        final List<Integer> indexes = new ArrayList<>();
+        for (int i = 0; i < compiledFields.size(); i++) {
+            final CompiledField compiledField = compiledFields.get(i);
+            if (compiledField.getExpression() != null && compiledField.getCompiledFilter() != null) {
+                indexes.add(i);
+            }
+        }
+
+        // Check filters whose values can be worked out without aggregation first as their generators can be reused.
+        indexes.sort(Comparator.comparing(i -> compiledFields.get(i).getExpression().hasAggregate()));
+        return indexes.stream().mapToInt(Integer::intValue).toArray();
     }
 
     @Override
@@ -85,6 +103,13 @@ public class CompiledFields implements Iterable<CompiledField> {
         return compiledFields.get(i);
     }
 
+    /**
+     * @return The indexes of the fields that have filters, in the order that the filters should be checked.
+     */
+    public int[] getFilterFieldIndexes() {
+        return filterFieldIndexes;
+    }
+
     @Override
     public String toString() {
         return "CompiledFields{" +
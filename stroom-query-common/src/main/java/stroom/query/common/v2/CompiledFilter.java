@@ -16,42 +16,90 @@
 
 package stroom.query.common.v2;
 
+import stroom.dashboard.expression.v1.Val;
+import stroom.dashboard.expression.v1.ValInteger;
+import stroom.dashboard.expression.v1.ValLong;
 import stroom.query.api.v2.Filter;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.regex.Pattern;
 
+/**
+ * Matches values against the include and exclude patterns of a filter. A value matches if it is found by any include
+ * pattern, or there are no include patterns, and is not found by any exclude pattern.
+ * <p>
+ * Each pattern is analysed when the filter is compiled so that patterns that are really plain text, optionally anchored
+ * to the start or end of the value, are matched with string operations rather than regular expressions. Many text
+ * patterns are searched for in a single pass and any remaining regular expressions are combined into one alternation
+ * where that is safe to do.
+ */
 public class CompiledFilter {
+    // Use a single pass search for text patterns once there are this many of them.
+    private static final int MIN_MULTI_TEXT_SEARCH = 8;
+
     private final List<Pattern> includes;
     private final List<Pattern> excludes;
+    private final Matcher includeMatcher;
+    private final Matcher excludeMatcher;
+    // Set if every pattern is an exact whole number so numbers can be matched without converting them to strings.
+    private final long[] includeNumbers;
+    private final long[] excludeNumbers;
 
     public CompiledFilter(final Filter filter, final Map<String, String> paramMap) {
         includes = createPatternList(filter.getIncludes(), paramMap);
         excludes = createPatternList(filter.getExcludes(), paramMap);
+
+        final List<Text> includeText = analyse(includes);
+        final List<Text> excludeText = analyse(excludes);
+        includeMatcher = createMatcher(includes, includeText);
+        excludeMatcher = createMatcher(excludes, excludeText);
+
+        final long[] includeNumbers = getNumbers(includes, includeText);
+        final long[] excludeNumbers = getNumbers(excludes, excludeText);
+        if (includeNumbers != null && excludeNumbers != null) {
+            this.includeNumbers = includeNumbers;
+            this.excludeNumbers = excludeNumbers;
+        } else {
+            this.includeNumbers = null;
+            this.excludeNumbers = null;
+        }
+    }
+
+    /**
+     * @param value The value to match.
+     * @return True if the value matches the filter.
+     */
+    public boolean match(final Val value) {
+        if (includeNumbers != null && (value instanceof ValLong || value instanceof ValInteger)) {
+            final long number = value.toLong();
+            boolean match = true;
+            if (includes != null) {
+                match = Arrays.binarySearch(includeNumbers, number) >= 0;
+            }
+            if (excludes != null && match) {
+                match = Arrays.binarySearch(excludeNumbers, number) < 0;
+            }
+            return match;
+        }
+
+        return match(value == null ? null : value.toString());
     }
 
     public boolean match(final String value) {
         final String v = value == null ? "" : value;
         boolean match = true;
 
-        if (includes != null) {
-            match = false;
-            for (final Pattern pattern : includes) {
-                if (pattern.matcher(v).find()) {
-                    match = true;
-                    break;
-                }
-            }
+        if (includeMatcher != null) {
+            match = includeMatcher.find(v);
         }
-        if (excludes != null && match) {
-            for (final Pattern pattern : excludes) {
-                if (pattern.matcher(v).find()) {
-                    match = false;
-                    break;
-                }
-            }
+        if (excludeMatcher != null && match) {
+            match = !excludeMatcher.find(v);
         }
         return match;
     }
@@ -73,6 +121,131 @@ public class CompiledFilter {
         return patternList;
     }
 
+    /**
+     * @return The text that each pattern matches or null for patterns that are real regular expressions.
+     */
+    private List<Text> analyse(final List<Pattern> patterns) {
+        if (patterns == null) {
+            return null;
+        }
+
+        final List<Text> list = new ArrayList<>(patterns.size());
+        for (final Pattern pattern : patterns) {
+            list.add(Text.parse(pattern.pattern()));
+        }
+        return list;
+    }
+
+    private Matcher createMatcher(final List<Pattern> patterns, final List<Text> texts) {
+        if (patterns == null) {
+            // Only a null list of patterns matches everything, an empty list of includes matches nothing.
+            return null;
+        }
+
+        final List<Matcher> matchers = new ArrayList<>();
+        final List<String> containsText = new ArrayList<>();
+        final List<Pattern> regexPatterns = new ArrayList<>();
+        for (int i = 0; i < patterns.size(); i++) {
+            final Text text = texts.get(i);
+            if (text == null) {
+                regexPatterns.add(patterns.get(i));
+            } else if (text.start || text.end) {
+                matchers.add(text.createMatcher());
+            } else {
+                containsText.add(text.text);
+            }
+        }
+
+        if (containsText.size() >= MIN_MULTI_TEXT_SEARCH) {
+            matchers.add(new MultiTextMatcher(containsText));
+        } else {
+            for (final String text : containsText) {
+                matchers.add(v -> v.contains(text));
+            }
+        }
+
+        if (regexPatterns.size() > 1 && canCombine(regexPatterns)) {
+            final StringBuilder sb = new StringBuilder();
+            for (final Pattern pattern : regexPatterns) {
+                if (sb.length() > 0) {
+                    sb.append('|');
+                }
+                sb.append("(?:").append(pattern.pattern()).append(')');
+            }
+            final Pattern combined = Pattern.compile(sb.toString());
+            matchers.add(v -> combined.matcher(v).find());
+        } else {
+            for (final Pattern pattern : regexPatterns) {
+                matchers.add(v -> pattern.matcher(v).find());
+            }
+        }
+
+        if (matchers.size() == 1) {
+            return matchers.get(0);
+        }
+        final Matcher[] array = matchers.toArray(new Matcher[0]);
+        return v -> {
+            for (final Matcher matcher : array) {
+                if (matcher.find(v)) {
+                    return true;
+                }
+            }
+            return false;
+        };
+    }
+
+    /**
+     * Patterns can't be combined into one alternation if they use back references, as the group numbers would change,
+     * inline flags, as comments mode could hide the rest of the alternation, or quotes, as a quote that isn't ended
+     * would quote the rest of the alternation.
+     */
+    private boolean canCombine(final List<Pattern> patterns) {
+        for (final Pattern pattern : patterns) {
+            final String string = pattern.pattern();
+            if (string.contains("(?")) {
+                return false;
+            }
+            for (int i = 0; i < string.length() - 1; i++) {
+                if (string.charAt(i) == '\\') {
+                    final char next = string.charAt(i + 1);
+                    if (Character.isDigit(next) || next == 'k' || next == 'Q') {
+                        return false;
+                    }
+                    i++;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The sorted numbers that the patterns match exactly, or null if any pattern is not an exact whole number.
+     */
+    private long[] getNumbers(final List<Pattern> patterns, final List<Text> texts) {
+        if (patterns == null) {
+            return new long[0];
+        }
+
+        final long[] numbers = new long[patterns.size()];
+        for (int i = 0; i < patterns.size(); i++) {
+            final Text text = texts.get(i);
+            if (text == null || !text.start || !text.end) {
+                return null;
+            }
+            try {
+                numbers[i] = Long.parseLong(text.text);
+            } catch (final NumberFormatException e) {
+                return null;
+            }
+            // Only use numbers that are written the way a number value is turned into a string.
+            if (!Long.toString(numbers[i]).equals(text.text)) {
+                return null;
+            }
+        }
+        Arrays.sort(numbers);
+        return numbers;
+    }
+
     @Override
     public String toString() {
         return "CompiledFilter{" +
@@ -80,4 +253,165 @@ public class CompiledFilter {
                 ", excludes=" + excludes +
                 '}';
     }
+
+    @FunctionalInterface
+    private interface Matcher {
+        boolean find(String value);
+    }
+
+    /**
+     * The plain text that a pattern matches, optionally anchored to the start and or end of the value.
+     */
+    private static class Text {
+        private final String text;
+        private final boolean start;
+        private final boolean end;
+
+        private Text(final String text, final boolean start, final boolean end) {
+            this.text = text;
+            this.start = start;
+            this.end = end;
+        }
+
+        /**
+         * @return The text that the pattern matches, or null if the pattern is a real regular expression.
+         */
+        static Text parse(final String pattern) {
+            final StringBuilder sb = new StringBuilder(pattern.length());
+            boolean start = false;
+            boolean end = false;
+
+            int i = 0;
+            if (pattern.startsWith("^")) {
+                start = true;
+                i++;
+            }
+            while (i < pattern.length()) {
+                final char c = pattern.charAt(i);
+                if (c == '\\') {
+                    // Escaped punctuation is plain text, escaped letters and digits are classes or references.
+                    if (i + 1 >= pattern.length() || Character.isLetterOrDigit(pattern.charAt(i + 1))) {
+                        return null;
+                    }
+                    sb.append(pattern.charAt(i + 1));
+                    i += 2;
+                } else if (c == '$' && i == pattern.length() - 1) {
+                    end = true;
+                    i++;
+                } else if ("[](){}.*+?^$|".indexOf(c) != -1) {
+                    return null;
+                } else if (isLineTerminator(c)) {
+                    // Leave the way line terminators interact with anchors to the regular expression.
+                    return null;
+                } else {
+                    sb.append(c);
+                    i++;
+                }
+            }
+
+            return new Text(sb.toString(), start, end);
+        }
+
+        Matcher createMatcher() {
+            if (start && end) {
+                return v -> v.equals(text) || (v.startsWith(text) && endBeforeTerminator(v) == text.length());
+            } else if (start) {
+                return v -> v.startsWith(text);
+            }
+            return v -> {
+                if (v.endsWith(text)) {
+                    return true;
+                }
+                final int length = endBeforeTerminator(v);
+                return length != v.length() && length >= text.length() &&
+                        v.regionMatches(length - text.length(), text, 0, text.length());
+            };
+        }
+
+        /**
+         * As '$' also matches before a line terminator at the end of the input, get the length of the value
+         * without any final line terminator.
+         */
+        private static int endBeforeTerminator(final String value) {
+            final int length = value.length();
+            if (length >= 2 && value.charAt(length - 2) == '\r' && value.charAt(length - 1) == '\n') {
+                return length - 2;
+            }
+            if (length >= 1 && isLineTerminator(value.charAt(length - 1))) {
+                return length - 1;
+            }
+            return length;
+        }
+
+        private static boolean isLineTerminator(final char c) {
+            return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+        }
+    }
+
+    /**
+     * Finds any of a number of strings in a single pass over a value using the Aho-Corasick algorithm.
+     */
+    private static class MultiTextMatcher implements Matcher {
+        private final Node root = new Node();
+
+        MultiTextMatcher(final List<String> texts) {
+            for (final String text : texts) {
+                Node node = root;
+                for (int i = 0; i < text.length(); i++) {
+                    node = node.children.computeIfAbsent(text.charAt(i), k -> new Node());
+                }
+                node.match = true;
+            }
+
+            // Link each node to the node for the longest proper suffix of its text, breadth first.
+            final Deque<Node> queue = new ArrayDeque<>();
+            root.fail = root;
+            for (final Node child : root.children.values()) {
+                child.fail = root;
+                queue.add(child);
+            }
+            while (!queue.isEmpty()) {
+                final Node node = queue.poll();
+                for (final Map.Entry<Character, Node> entry : node.children.entrySet()) {
+                    final Node child = entry.getValue();
+                    Node fail = node.fail;
+                    while (fail != root && !fail.children.containsKey(entry.getKey())) {
+                        fail = fail.fail;
+                    }
+                    final Node next = fail.children.get(entry.getKey());
+                    child.fail = next != null && next != child ? next : root;
+                    child.match |= child.fail.match;
+                    queue.add(child);
+                }
+            }
+        }
+
+        @Override
+        public boolean find(final String value) {
+            if (root.match) {
+                return true;
+            }
+
+            Node node = root;
+            for (int i = 0; i < value.length(); i++) {
+                final char c = value.charAt(i);
+                Node next = node.children.get(c);
+                while (next == null && node != root) {
+                    node = node.fail;
+                    next = node.children.get(c);
+                }
+                node = next == null ? root : next;
+                if (node.match) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static class Node {
+            private final Map<Character, Node> children = new HashMap<>();
+            private Node fail;
+            private boolean match;
+        }
+    }
 }
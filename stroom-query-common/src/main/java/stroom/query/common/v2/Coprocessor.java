@@ -20,4 +20,14 @@ import stroom.dashboard.expression.v1.Val;
 
 public interface Coprocessor extends PayloadFactory {
     void receive(Val[] values);
+
+    /**
+     * Tell the coprocessor about the worst item that is currently being kept by the result handler for this
+     * coprocessor, see {@link SearchResultHandler#getThresholds()}. Coprocessors that can tell that a value cannot
+     * beat this item may skip it.
+     *
+     * @param threshold The worst item being kept, or null if any item might still be kept.
+     */
+    default void setThreshold(final Item threshold) {
+    }
 }
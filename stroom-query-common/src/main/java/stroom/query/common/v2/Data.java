@@ -16,13 +16,22 @@
 
 package stroom.query.common.v2;
 
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 public class Data {
     private final Map<GroupKey, Items<Item>> childMap;
     private final long size;
     private final long totalSize;
 
+    // Built on demand as a snapshot is usually read several times, e.g. once for each page that is requested.
+    private volatile Map<String, GroupKey> parentKeys;
+    private volatile PagingIndex pagingIndex;
+
     public Data(final Map<GroupKey, Items<Item>> childMap, final long size, final long totalSize) {
         this.childMap = childMap;
         this.size = size;
@@ -40,4 +49,54 @@ public class Data {
     public long getTotalSize() {
         return totalSize;
     }
+
+    /**
+     * Find the group keys of open groups from their string form. Only groups that have children can be open so only
+     * the keys of parents are considered.
+     *
+     * @param openGroups The string form of the keys of open groups.
+     * @return The keys of the open groups that exist in this data.
+     */
+    Set<GroupKey> getOpenGroupKeys(final List<String> openGroups) {
+        if (openGroups == null || openGroups.isEmpty()) {
+            return Collections.emptySet();
+        }
+
+        Map<String, GroupKey> keys = parentKeys;
+        if (keys == null) {
+            keys = new HashMap<>();
+            for (final GroupKey key : childMap.keySet()) {
+                if (key != null) {
+                    keys.put(key.toString(), key);
+                }
+            }
+            parentKeys = keys;
+        }
+
+        final Set<GroupKey> set = new HashSet<>();
+        for (final String openGroup : openGroups) {
+            final GroupKey key = keys.get(openGroup);
+            if (key != null) {
+                set.add(key);
+            }
+        }
+        return set;
+    }
+
+    /**
+     * Get an index of the visible rows for a set of open groups and maximum result sizes. The last index is kept so
+     * that paging through the same view of the data does not need to rebuild it.
+     *
+     * @param openGroups The keys of open groups.
+     * @param maxResults The maximum number of results to show at each depth.
+     * @return An index of the visible rows.
+     */
+    PagingIndex getPagingIndex(final Set<GroupKey> openGroups, final Sizes maxResults) {
+        PagingIndex index = pagingIndex;
+        if (index == null || !index.matches(openGroups, maxResults)) {
+            index = new PagingIndex(this, openGroups, maxResults);
+            pagingIndex = index;
+        }
+        return index;
+    }
 }
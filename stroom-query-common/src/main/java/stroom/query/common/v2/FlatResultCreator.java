@@ -16,6 +16,7 @@
 
 package stroom.query.common.v2;
 
+import com.fasterxml.jackson.core.JsonGenerator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import stroom.dashboard.expression.v1.FieldIndexMap;
@@ -31,6 +32,8 @@ import stroom.query.api.v2.ResultRequest;
 import stroom.query.api.v2.TableSettings;
 import stroom.query.common.v2.format.FieldFormatter;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
@@ -39,12 +42,14 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.function.Consumer;
 
 public class FlatResultCreator implements ResultCreator {
     private static final Logger LOGGER = LoggerFactory.getLogger(FlatResultCreator.class);
     private final FieldFormatter fieldFormatter;
     private final List<Mapper> mappers;
     private final List<Field> fields;
+    private final RowFormat rowFormat;
 
     private String error;
 
@@ -76,6 +81,8 @@ public class FlatResultCreator implements ResultCreator {
         final TableSettings child = tableSettings.get(tableSettings.size() - 1);
 
         fields = child.getFields();
+        // Values are converted rather than formatted if there is no formatter.
+        rowFormat = new RowFormat(fieldFormatter != null ? fieldFormatter : FlatResultCreator.class, fields);
     }
 
     private List<Object> toNodeKey(final Map<Integer, List<Field>> groupFields, final GroupKey key) {
@@ -127,48 +134,16 @@ public class FlatResultCreator implements ResultCreator {
         if (error == null) {
             try {
                 // Map data.
-                Data mappedData = data;
-                for (final Mapper mapper : mappers) {
-                    mappedData = mapper.map(mappedData);
-                }
-
-                long totalResults = 0;
-
-                // Get top level items.
-                final Items<Item> items = mappedData.getChildMap().get(null);
+                final Data mappedData = map(data);
 
                 final List<List<Object>> results = new ArrayList<>();
-
-                if (items != null) {
-                    final RangeChecker rangeChecker = RangeCheckerFactory.create(resultRequest.getRequestedRange());
-                    final OpenGroups openGroups = OpenGroupsFactory.create(resultRequest.getOpenGroups());
-
-                    // Extract the maxResults settings from the last TableSettings object in the chain.
-                    // Do not constrain the max results with the default max results as the result size will have already
-                    // been constrained by the previous table mapping.
-                    final List<TableSettings> mappings = resultRequest.getMappings();
-                    final TableSettings tableSettings = mappings.get(mappings.size() - 1);
-                    // Create a set of max result sizes that are determined by the supplied max results or default to integer max value.
-                    final Sizes maxResults = Sizes.create(tableSettings.getMaxResults(), Integer.MAX_VALUE);
-
-                    totalResults = addResults(mappedData, rangeChecker, openGroups, items, results, 0,
-                            0, maxResults);
-                }
+                final long totalResults = addResults(mappedData, resultRequest, results::add);
 
                 final FlatResult.Builder resultBuilder = new FlatResult.Builder()
                         .componentId(resultRequest.getComponentId())
                         .size(totalResults)
-                        .error(error)
-                        .addField(new Field.Builder()
-                                .name(":ParentKey")
-                                .build())
-                        .addField(new Field.Builder()
-                                .name(":Key")
-                                .build())
-                        .addField(new Field.Builder()
-                                .name(":Depth")
-                                .build());
-                this.fields.forEach(resultBuilder::addField);
+                        .error(error);
+                createStructure().forEach(resultBuilder::addField);
 
                 results.forEach(resultBuilder::addValues);
 
@@ -183,8 +158,101 @@ public class FlatResultCreator implements ResultCreator {
         return new FlatResult(resultRequest.getComponentId(), null, null, 0L, error);
     }
 
+    @Override
+    public void write(final Data data, final ResultRequest resultRequest, final JsonGenerator generator)
+            throws IOException {
+        Data mappedData = null;
+        if (error == null) {
+            try {
+                mappedData = map(data);
+            } catch (final RuntimeException e) {
+                LOGGER.error("Error creating result for resultRequest {}", resultRequest.getComponentId(), e);
+                error = e.getMessage();
+            }
+        }
+
+        if (mappedData == null) {
+            generator.writeObject(new FlatResult(resultRequest.getComponentId(), null, null, 0L, error));
+            return;
+        }
+
+        // Write each row as soon as it has been created rather than collecting them all first. Everything else is
+        // written by the model serialiser so the output matches a serialised FlatResult.
+        final String componentId = resultRequest.getComponentId();
+        final List<Field> structure = createStructure();
+        final Data finalMappedData = mappedData;
+        final long[] totalResults = new long[1];
+        StreamedResultWriter.write(generator,
+                new FlatResult(componentId, structure, Collections.emptyList(), null, null),
+                "values",
+                () -> {
+                    try {
+                        totalResults[0] = addResults(finalMappedData, resultRequest, values -> {
+                            try {
+                                generator.writeObject(values);
+                            } catch (final IOException e) {
+                                throw new UncheckedIOException(e);
+                            }
+                        });
+                    } catch (final UncheckedIOException e) {
+                        throw e.getCause();
+                    } catch (final RuntimeException e) {
+                        // Some rows may already have been written so report the error alongside them.
+                        LOGGER.error("Error creating result for resultRequest {}", componentId, e);
+                        error = e.getMessage();
+                    }
+                },
+                () -> new FlatResult(componentId, structure, Collections.emptyList(), totalResults[0], error));
+    }
+
+    private Data map(final Data data) {
+        Data mappedData = data;
+        for (final Mapper mapper : mappers) {
+            mappedData = mapper.map(mappedData);
+        }
+        return mappedData;
+    }
+
+    private List<Field> createStructure() {
+        final List<Field> structure = new ArrayList<>(fields.size() + 3);
+        structure.add(new Field.Builder()
+                .name(":ParentKey")
+                .build());
+        structure.add(new Field.Builder()
+                .name(":Key")
+                .build());
+        structure.add(new Field.Builder()
+                .name(":Depth")
+                .build());
+        structure.addAll(fields);
+        return structure;
+    }
+
+    private long addResults(final Data mappedData,
+                            final ResultRequest resultRequest,
+                            final Consumer<List<Object>> results) {
+        // Get top level items.
+        final Items<Item> items = mappedData.getChildMap().get(null);
+        if (items == null) {
+            return 0;
+        }
+
+        final RangeChecker rangeChecker = RangeCheckerFactory.create(resultRequest.getRequestedRange());
+        final OpenGroups openGroups = OpenGroupsFactory.create(resultRequest.getOpenGroups());
+
+        // Extract the maxResults settings from the last TableSettings object in the chain.
+        // Do not constrain the max results with the default max results as the result size will have already
+        // been constrained by the previous table mapping.
+        final List<TableSettings> mappings = resultRequest.getMappings();
+        final TableSettings tableSettings = mappings.get(mappings.size() - 1);
+        // Create a set of max result sizes that are determined by the supplied max results or default to integer max value.
+        final Sizes maxResults = Sizes.create(tableSettings.getMaxResults(), Integer.MAX_VALUE);
+
+        return addResults(mappedData, rangeChecker, openGroups, items, results, 0, 0, maxResults);
+    }
+
     private int addResults(final Data data, final RangeChecker rangeChecker,
-                           final OpenGroups openGroups, final Items<Item> items, final List<List<Object>> results,
+                           final OpenGroups openGroups, final Items<Item> items, final Consumer<List<Object>> results,
                            final int depth, final int parentCount, final Sizes maxResults) {
         int count = parentCount;
         int maxResultsAtThisDepth = maxResults.size(depth);
@@ -214,29 +282,10 @@ public class FlatResultCreator implements ResultCreator {
 
                     // Convert all list into fully resolved objects evaluating
                     // functions where necessary.
-                    int i = 0;
-                    for (final Field field : fields) {
-                        final Generator generator = item.getGenerators()[i];
-                        Object value = null;
-                        if (generator != null) {
-                            // Convert all list into fully resolved
-                            // objects evaluating functions where necessary.
-                            final Val val = generator.eval();
-                            if (val != null) {
-                                if (fieldFormatter != null) {
-                                    value = fieldFormatter.format(field, val);
-                                } else {
-                                    value = convert(field, val);
-                                }
-                            }
-                        }
-
-                        values.add(value);
-                        i++;
-                    }
+                    values.addAll(getFieldValues(item));
 
                     // Add the values.
-                    results.add(values);
+                    results.accept(values);
                     resultCountAtThisLevel++;
 
                     // Add child results if a node is open.
@@ -261,6 +310,31 @@ public class FlatResultCreator implements ResultCreator {
         return count;
     }
 
+    private List<Object> getFieldValues(final Item item) {
+        final ItemValues itemValues = item.getValues();
+        return itemValues.getRow(rowFormat, () -> {
+            final List<Object> values = new ArrayList<>(fields.size());
+            int i = 0;
+            for (final Field field : fields) {
+                Object value = null;
+                // Convert all list into fully resolved
+                // objects evaluating functions where necessary.
+                final Val val = itemValues.getValue(item.getGenerators(), i);
+                if (val != null) {
+                    if (fieldFormatter != null) {
+                        value = fieldFormatter.format(field, val);
+                    } else {
+                        value = convert(field, val);
+                    }
+                }
+
+                values.add(value);
+                i++;
+            }
+            return values;
+        });
+    }
+
     // TODO : Replace this with conversion at the item level.
     private Object convert(final Field field, final Val val) {
         if (field != null && field.getFormat() != null && field.getFormat().getType() != null) {
@@ -313,6 +387,11 @@ public class FlatResultCreator implements ResultCreator {
         private final TablePayloadHandler tablePayloadHandler;
         private final int maxItems;
 
+        // The last data that was mapped and the result so that the result can be reused until the data changes.
+        private Data lastData;
+        private Items<Item> lastItems;
+        private Data lastResult;
+
         Mapper(final TableSettings parent,
                final TableSettings child,
                final Map<String, String> paramMap,
@@ -339,26 +418,32 @@ public class FlatResultCreator implements ResultCreator {
             tablePayloadHandler = new TablePayloadHandler(child.getFields(), true, maxResults, null);
         }
 
-        public Data map(final Data data) {
-            // Create a new table coprocessor to receive data.
-            final TableCoprocessor tableCoprocessor = new TableCoprocessor(new UnsafePairQueue<>(), compiledFields, compiledDepths);
-
+        public synchronized Data map(final Data data) {
             // Get top level items.
             // TODO : Add an option to get detail level items rather than root level items.
             final Items<Item> items = data.getChildMap().get(null);
 
+            // Stores publish the same data, or at least the same list of top level items, until they change so reuse
+            // the previous result if the input is the same. Only the top level items are mapped.
+            if (lastResult != null && (data == lastData || (items != null && items == lastItems))) {
+                return lastResult;
+            }
+
+            // Create a new table coprocessor to receive data.
+            final TableCoprocessor tableCoprocessor = new TableCoprocessor(new UnsafePairQueue<>(), compiledFields, compiledDepths);
+
             int itemCount = 0;
             tablePayloadHandler.clear();
             if (items != null) {
                 for (final Item item : items) {
                     final Generator[] generators = item.getGenerators();
+                    final ItemValues itemValues = item.getValues();
                     final Val[] values = new Val[fieldIndexMap.size()];
                     for (int i = 0; i < generators.length; i++) {
-                        final Generator generator = generators[i];
-                        if (generator != null) {
+                        if (generators[i] != null) {
                             final int index = fieldIndexMap.get(parentFields[i]);
                             if (index >= 0) {
-                                values[index] = generator.eval();
+                                values[index] = itemValues.getValue(generators, i);
                             }
                         }
                     }
@@ -372,11 +457,17 @@ public class FlatResultCreator implements ResultCreator {
                         break;
                     }
                 }
+                // No payload is created if every item was filtered out.
                 final TablePayload payload = (TablePayload) tableCoprocessor.createPayload();
-                tablePayloadHandler.addQueue(payload.getQueue());
+                if (payload != null) {
+                    tablePayloadHandler.addQueue(payload.getQueue());
+                }
             }
 
-            return tablePayloadHandler.getData();
+            lastData = data;
+            lastItems = items;
+            lastResult = tablePayloadHandler.getData();
+            return lastResult;
         }
     }
 
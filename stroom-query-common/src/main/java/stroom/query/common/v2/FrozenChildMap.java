@@ -0,0 +1,659 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package stroom.query.common.v2;
+
+import stroom.dashboard.expression.v1.Generator;
+import stroom.dashboard.expression.v1.Selector;
+import stroom.dashboard.expression.v1.Val;
+import stroom.dashboard.expression.v1.ValBoolean;
+import stroom.dashboard.expression.v1.ValDouble;
+import stroom.dashboard.expression.v1.ValErr;
+import stroom.dashboard.expression.v1.ValInteger;
+import stroom.dashboard.expression.v1.ValLong;
+import stroom.dashboard.expression.v1.ValNull;
+import stroom.dashboard.expression.v1.ValString;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A read only child map that holds the items of a completed search off heap in a columnar layout.
+ * <p>
+ * Every item is given an index, with the items of each child list stored next to each other. The depth, key values,
+ * child list and number of generators of each item are held in columns, as are the values of each field, which are
+ * evaluated when the data is frozen. Selector functions select from the child items when the data is frozen too. The
+ * tree is held as the start, size and parent item of each child list, and the child lists of parent keys are found
+ * with an open addressing hash table of key hashes.
+ * <p>
+ * All columns are held in direct buffers so frozen data takes up very little heap and the garbage collector never has
+ * to mark the items. Items, keys and values are created from the columns every time a list is walked so they only live
+ * for as long as they are being used.
+ */
+final class FrozenChildMap extends AbstractMap<GroupKey, Items<Item>> {
+    private static final int NONE = -1;
+
+    private static final byte VAL_NULL = 0;
+    private static final byte VAL_EMPTY = 1;
+    private static final byte VAL_STRING = 2;
+    private static final byte VAL_INTEGER = 3;
+    private static final byte VAL_LONG = 4;
+    private static final byte VAL_DOUBLE = 5;
+    private static final byte VAL_BOOLEAN = 6;
+    private static final byte VAL_ERR = 7;
+    private static final byte VAL_OBJECT = 8;
+
+    // Item columns.
+    private final IntBuffer depths;
+    private final IntBuffer itemLists;
+    private final IntBuffer childLists;
+    private final IntBuffer generatorCounts;
+    private final IntBuffer keyOffsets;
+    private final ByteBuffer keyValues;
+
+    // Field columns, the selected value columns are null for fields that never selected from child items.
+    private final IntBuffer[] valueOffsets;
+    private final ByteBuffer[] values;
+    private final IntBuffer[] selectedOffsets;
+    private final ByteBuffer[] selectedValues;
+
+    // Child list columns.
+    private final int listCount;
+    private final int rootList;
+    private final IntBuffer listStarts;
+    private final IntBuffer listSizes;
+    private final IntBuffer listParents;
+
+    // Hash table of child list number + 1 by the hash of the parent key.
+    private final IntBuffer lookup;
+    private final int lookupMask;
+
+    private final long byteSize;
+
+    private FrozenChildMap(final Builder builder) {
+        final int itemCount = builder.depths.size;
+        depths = builder.depths.toBuffer(itemCount);
+        itemLists = builder.itemLists.toBuffer(itemCount);
+        childLists = builder.childLists.toBuffer(itemCount);
+        generatorCounts = builder.generatorCounts.toBuffer(itemCount);
+        keyOffsets = builder.keyOffsets.toBuffer(itemCount);
+        keyValues = toBuffer(builder.keyValues);
+
+        final int fieldCount = builder.values.size();
+        valueOffsets = new IntBuffer[fieldCount];
+        values = new ByteBuffer[fieldCount];
+        selectedOffsets = new IntBuffer[fieldCount];
+        selectedValues = new ByteBuffer[fieldCount];
+        for (int i = 0; i < fieldCount; i++) {
+            valueOffsets[i] = builder.valueOffsets.get(i).toBuffer(itemCount);
+            values[i] = toBuffer(builder.values.get(i));
+            if (builder.selectedValues.get(i) != null) {
+                selectedOffsets[i] = builder.selectedOffsets.get(i).toBuffer(itemCount);
+                selectedValues[i] = toBuffer(builder.selectedValues.get(i));
+            }
+        }
+
+        listCount = builder.listStarts.size;
+        rootList = builder.rootList;
+        listStarts = builder.listStarts.toBuffer(listCount);
+        listSizes = builder.listSizes.toBuffer(listCount);
+        listParents = builder.listParents.toBuffer(listCount);
+
+        // Keep the table at most half full.
+        final int capacity = Integer.highestOneBit(Math.max(1, listCount) * 2 - 1) << 1;
+        lookupMask = capacity - 1;
+        lookup = allocate(capacity);
+        for (int list = 0; list < listCount; list++) {
+            final GroupKey parentKey = builder.listKeys.get(list);
+            if (parentKey != null) {
+                int slot = spread(parentKey.hashCode()) & lookupMask;
+                while (lookup.get(slot) != 0) {
+                    slot = (slot + 1) & lookupMask;
+                }
+                lookup.put(slot, list + 1);
+            }
+        }
+
+        long bytes = Integer.BYTES * ((long) depths.capacity() + itemLists.capacity() + childLists.capacity() +
+                generatorCounts.capacity() + keyOffsets.capacity() + listStarts.capacity() + listSizes.capacity() +
+                listParents.capacity() + lookup.capacity()) + keyValues.capacity();
+        for (int i = 0; i < fieldCount; i++) {
+            bytes += Integer.BYTES * (long) valueOffsets[i].capacity() + values[i].capacity();
+            if (selectedValues[i] != null) {
+                bytes += Integer.BYTES * (long) selectedOffsets[i].capacity() + selectedValues[i].capacity();
+            }
+        }
+        byteSize = bytes;
+    }
+
+    /**
+     * Create a read only copy of data whose items will not change again, e.g. because the search is complete, that
+     * holds the items off heap.
+     *
+     * @param data The data to freeze.
+     * @return Frozen data with the same items, sizes and structure.
+     */
+    static Data freeze(final Data data) {
+        final Builder builder = new Builder(data.getChildMap());
+        builder.build();
+        return new Data(new FrozenChildMap(builder), data.getSize(), data.getTotalSize());
+    }
+
+    /**
+     * @return The number of bytes held off heap.
+     */
+    long getByteSize() {
+        return byteSize;
+    }
+
+    @Override
+    public Items<Item> get(final Object key) {
+        if (key == null) {
+            return rootList == NONE ? null : new FrozenItems(rootList, null);
+        }
+        if (!(key instanceof GroupKey)) {
+            return null;
+        }
+
+        final GroupKey groupKey = (GroupKey) key;
+        int slot = spread(groupKey.hashCode()) & lookupMask;
+        int entry;
+        while ((entry = lookup.get(slot)) != 0) {
+            final int list = entry - 1;
+            if (groupKey.equals(getKey(listParents.get(list)))) {
+                return new FrozenItems(list, groupKey);
+            }
+            slot = (slot + 1) & lookupMask;
+        }
+        return null;
+    }
+
+    @Override
+    public boolean containsKey(final Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public int size() {
+        return listCount;
+    }
+
+    @Override
+    public Set<Entry<GroupKey, Items<Item>>> entrySet() {
+        return new AbstractSet<Entry<GroupKey, Items<Item>>>() {
+            @Override
+            public Iterator<Entry<GroupKey, Items<Item>>> iterator() {
+                return new Iterator<Entry<GroupKey, Items<Item>>>() {
+                    private int list;
+
+                    @Override
+                    public boolean hasNext() {
+                        return list < listCount;
+                    }
+
+                    @Override
+                    public Entry<GroupKey, Items<Item>> next() {
+                        if (list >= listCount) {
+                            throw new NoSuchElementException();
+                        }
+                        final GroupKey parentKey = getKey(listParents.get(list));
+                        final Items<Item> items = new FrozenItems(list, parentKey);
+                        list++;
+                        return new SimpleImmutableEntry<>(parentKey, items);
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return listCount;
+            }
+        };
+    }
+
+    /**
+     * Create the key of an item from its values and the key of the parent of its list.
+     */
+    private GroupKey getKey(final int item) {
+        if (item == NONE) {
+            return null;
+        }
+        final int offset = keyOffsets.get(item);
+        if (offset == NONE) {
+            return null;
+        }
+        return new GroupKey(getKey(listParents.get(itemLists.get(item))), readKeyValues(offset));
+    }
+
+    private Item getItem(final int item, final GroupKey parentKey) {
+        final int keyOffset = keyOffsets.get(item);
+        final GroupKey key = keyOffset == NONE ? null : new GroupKey(parentKey, readKeyValues(keyOffset));
+
+        Generator[] generators = null;
+        final int generatorCount = generatorCounts.get(item);
+        if (generatorCount != NONE) {
+            generators = new Generator[generatorCount];
+            for (int i = 0; i < generatorCount; i++) {
+                final int offset = valueOffsets[i].get(item);
+                if (offset != NONE) {
+                    final Val value = readVal(values[i], offset);
+                    Val selectedValue = value;
+                    if (selectedOffsets[i] != null) {
+                        final int selectedOffset = selectedOffsets[i].get(item);
+                        if (selectedOffset != NONE) {
+                            selectedValue = readVal(selectedValues[i], selectedOffset);
+                        }
+                    }
+                    generators[i] = new FrozenGenerator(value, selectedValue);
+                }
+            }
+        }
+
+        return new Item(key, generators, depths.get(item));
+    }
+
+    private List<Val> readKeyValues(final int offset) {
+        final ByteBuffer buffer = keyValues.duplicate();
+        buffer.position(offset);
+        final int size = buffer.getInt();
+        if (size == NONE) {
+            return null;
+        }
+
+        final Val[] vals = new Val[size];
+        for (int i = 0; i < size; i++) {
+            vals[i] = readVal(buffer);
+        }
+        return Arrays.asList(vals);
+    }
+
+    private static Val readVal(final ByteBuffer buffer, final int offset) {
+        final ByteBuffer duplicate = buffer.duplicate();
+        duplicate.position(offset);
+        return readVal(duplicate);
+    }
+
+    private static Val readVal(final ByteBuffer buffer) {
+        final byte type = buffer.get();
+        switch (type) {
+            case VAL_NULL:
+                return null;
+            case VAL_EMPTY:
+                return ValNull.INSTANCE;
+            case VAL_STRING:
+                return ValString.create(readString(buffer));
+            case VAL_INTEGER:
+                return ValInteger.create(buffer.getInt());
+            case VAL_LONG:
+                return ValLong.create(buffer.getLong());
+            case VAL_DOUBLE:
+                return ValDouble.create(buffer.getDouble());
+            case VAL_BOOLEAN:
+                return ValBoolean.create(buffer.get() != 0);
+            case VAL_ERR:
+                return ValErr.create(readString(buffer));
+            case VAL_OBJECT:
+                final byte[] bytes = new byte[buffer.getInt()];
+                buffer.get(bytes);
+                try (final ObjectInputStream inputStream = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+                    return (Val) inputStream.readObject();
+                } catch (final IOException e) {
+                    throw new UncheckedIOException(e);
+                } catch (final ClassNotFoundException e) {
+                    throw new IllegalStateException(e.getMessage(), e);
+                }
+            default:
+                throw new IllegalStateException("Unexpected value type " + type);
+        }
+    }
+
+    private static String readString(final ByteBuffer buffer) {
+        final byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int spread(final int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    private static IntBuffer allocate(final int size) {
+        return ByteBuffer.allocateDirect(Math.max(1, size) * Integer.BYTES).order(ByteOrder.nativeOrder()).asIntBuffer();
+    }
+
+    private static ByteBuffer toBuffer(final ByteArrayOutputStream outputStream) {
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(Math.max(1, outputStream.size()));
+        buffer.put(outputStream.toByteArray());
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * A read only view of a child list.
+     */
+    private final class FrozenItems implements Items<Item> {
+        private final int list;
+        private final GroupKey parentKey;
+
+        private FrozenItems(final int list, final GroupKey parentKey) {
+            this.list = list;
+            this.parentKey = parentKey;
+        }
+
+        @Override
+        public boolean add(final Item item) {
+            throw new UnsupportedOperationException("Frozen items are read only");
+        }
+
+        @Override
+        public boolean remove(final Item item) {
+            throw new UnsupportedOperationException("Frozen items are read only");
+        }
+
+        @Override
+        public int size() {
+            return listSizes.get(list);
+        }
+
+        @Override
+        public void sort(final Comparator<Item> comparator) {
+            throw new UnsupportedOperationException("Frozen items are read only");
+        }
+
+        @Override
+        public void sortAndTrim(final int size, final Comparator<Item> comparator, final RemoveHandler<Item> removeHandler) {
+            throw new UnsupportedOperationException("Frozen items are read only");
+        }
+
+        @Override
+        public Iterator<Item> iterator() {
+            final int start = listStarts.get(list);
+            final int end = start + listSizes.get(list);
+            return new Iterator<Item>() {
+                private int item = start;
+
+                @Override
+                public boolean hasNext() {
+                    return item < end;
+                }
+
+                @Override
+                public Item next() {
+                    if (item >= end) {
+                        throw new NoSuchElementException();
+                    }
+                    return getItem(item++, parentKey);
+                }
+            };
+        }
+
+        @Override
+        public String toString() {
+            return "FrozenItems{size=" + size() + '}';
+        }
+    }
+
+    /**
+     * Builds the columns on heap, walking the tree one child list at a time from the top level down.
+     */
+    private static final class Builder {
+        private final Map<GroupKey, Items<Item>> childMap;
+
+        private final IntColumn depths = new IntColumn();
+        private final IntColumn itemLists = new IntColumn();
+        private final IntColumn childLists = new IntColumn();
+        private final IntColumn generatorCounts = new IntColumn();
+        private final IntColumn keyOffsets = new IntColumn();
+        private final ByteArrayOutputStream keyValues = new ByteArrayOutputStream();
+
+        private final List<IntColumn> valueOffsets = new ArrayList<>();
+        private final List<ByteArrayOutputStream> values = new ArrayList<>();
+        private final List<IntColumn> selectedOffsets = new ArrayList<>();
+        private final List<ByteArrayOutputStream> selectedValues = new ArrayList<>();
+
+        private int rootList = NONE;
+        private final IntColumn listStarts = new IntColumn();
+        private final IntColumn listSizes = new IntColumn();
+        private final IntColumn listParents = new IntColumn();
+        private final List<GroupKey> listKeys = new ArrayList<>();
+
+        private Builder(final Map<GroupKey, Items<Item>> childMap) {
+            this.childMap = childMap;
+        }
+
+        private void build() {
+            final Items<Item> rootItems = childMap.get(null);
+            if (rootItems == null) {
+                return;
+            }
+
+            rootList = 0;
+            final Deque<PendingList> pending = new ArrayDeque<>();
+            pending.add(new PendingList(NONE, null, rootItems));
+            try {
+                while (!pending.isEmpty()) {
+                    addList(pending.poll(), pending);
+                }
+            } catch (final IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private void addList(final PendingList pendingList, final Deque<PendingList> pending) throws IOException {
+            final int list = listStarts.size;
+            listStarts.add(depths.size);
+            listParents.add(pendingList.parentItem);
+            listKeys.add(pendingList.parentKey);
+            if (pendingList.parentItem != NONE) {
+                childLists.set(pendingList.parentItem, list);
+            }
+
+            int size = 0;
+            for (final Item item : pendingList.items) {
+                final int index = depths.size;
+                depths.add(item.depth);
+                itemLists.add(list);
+
+                final Items<Item> children = item.key == null ? null : childMap.get(item.key);
+                addKey(index, item.key);
+                addValues(index, item, children);
+
+                if (children != null) {
+                    pending.add(new PendingList(index, item.key, children));
+                }
+                size++;
+            }
+            listSizes.add(size);
+        }
+
+        private void addKey(final int index, final GroupKey key) throws IOException {
+            if (key == null) {
+                keyOffsets.set(index, NONE);
+                return;
+            }
+
+            keyOffsets.set(index, keyValues.size());
+            final DataOutputStream output = new DataOutputStream(keyValues);
+            final List<Val> vals = key.getValues();
+            if (vals == null) {
+                output.writeInt(NONE);
+            } else {
+                output.writeInt(vals.size());
+                for (final Val val : vals) {
+                    writeVal(output, val);
+                }
+            }
+            output.flush();
+        }
+
+        private void addValues(final int index, final Item item, final Items<Item> children) throws IOException {
+            final Generator[] generators = item.generators;
+            if (generators == null) {
+                generatorCounts.set(index, NONE);
+                return;
+            }
+
+            generatorCounts.set(index, generators.length);
+            while (values.size() < generators.length) {
+                valueOffsets.add(new IntColumn());
+                values.add(new ByteArrayOutputStream());
+                selectedOffsets.add(null);
+                selectedValues.add(null);
+            }
+
+            for (int i = 0; i < generators.length; i++) {
+                final Generator generator = generators[i];
+                if (generator != null) {
+                    valueOffsets.get(i).set(index, values.get(i).size());
+                    writeVal(values.get(i), generator.eval());
+
+                    if (children != null && generator instanceof Selector) {
+                        // Select from the child items now as they won't change again.
+                        if (selectedValues.get(i) == null) {
+                            selectedOffsets.set(i, new IntColumn());
+                            selectedValues.set(i, new ByteArrayOutputStream());
+                        }
+                        selectedOffsets.get(i).set(index, selectedValues.get(i).size());
+                        writeVal(selectedValues.get(i), select((Selector) generator, children, i));
+                    }
+                }
+            }
+        }
+
+        private Val select(final Selector selector, final Items<Item> children, final int index) {
+            final Generator[] childGenerators = new Generator[children.size()];
+            int pos = 0;
+            for (final Item child : children) {
+                childGenerators[pos++] = child.generators[index];
+            }
+            return selector.select(childGenerators);
+        }
+
+        private static void writeVal(final ByteArrayOutputStream outputStream, final Val val) throws IOException {
+            final DataOutputStream output = new DataOutputStream(outputStream);
+            writeVal(output, val);
+            output.flush();
+        }
+
+        private static void writeVal(final DataOutputStream output, final Val val) throws IOException {
+            if (val == null) {
+                output.writeByte(VAL_NULL);
+            } else if (val instanceof ValString) {
+                output.writeByte(VAL_STRING);
+                writeString(output, val.toString());
+            } else if (val instanceof ValInteger) {
+                output.writeByte(VAL_INTEGER);
+                output.writeInt(val.toInteger());
+            } else if (val instanceof ValLong) {
+                output.writeByte(VAL_LONG);
+                output.writeLong(val.toLong());
+            } else if (val instanceof ValDouble) {
+                output.writeByte(VAL_DOUBLE);
+                output.writeDouble(val.toDouble());
+            } else if (val instanceof ValBoolean) {
+                output.writeByte(VAL_BOOLEAN);
+                output.writeBoolean(val.toBoolean());
+            } else if (val instanceof ValErr) {
+                output.writeByte(VAL_ERR);
+                writeString(output, ((ValErr) val).getMessage());
+            } else if (val instanceof ValNull) {
+                output.writeByte(VAL_EMPTY);
+            } else {
+                // We don't know about this type of value so fall back to Java serialisation.
+                final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                try (final ObjectOutputStream objectOutputStream = new ObjectOutputStream(bytes)) {
+                    objectOutputStream.writeObject(val);
+                }
+                output.writeByte(VAL_OBJECT);
+                output.writeInt(bytes.size());
+                bytes.writeTo(output);
+            }
+        }
+
+        private static void writeString(final DataOutputStream output, final String string) throws IOException {
+            final byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+            output.writeInt(bytes.length);
+            output.write(bytes);
+        }
+    }
+
+    private static final class PendingList {
+        private final int parentItem;
+        private final GroupKey parentKey;
+        private final Items<Item> items;
+
+        private PendingList(final int parentItem, final GroupKey parentKey, final Items<Item> items) {
+            this.parentItem = parentItem;
+            this.parentKey = parentKey;
+            this.items = items;
+        }
+    }
+
+    /**
+     * A growable column of ints where values that are never set are {@link #NONE}.
+     */
+    private static final class IntColumn {
+        private int[] array = new int[16];
+        private int size;
+
+        void add(final int value) {
+            set(size, value);
+        }
+
+        void set(final int index, final int value) {
+            if (index >= array.length) {
+                final int oldLength = array.length;
+                array = Arrays.copyOf(array, Math.max(index + 1, oldLength * 2));
+                Arrays.fill(array, oldLength, array.length, NONE);
+            }
+            if (index >= size) {
+                Arrays.fill(array, size, index, NONE);
+                size = index + 1;
+            }
+            array[index] = value;
+        }
+
+        IntBuffer toBuffer(final int length) {
+            final IntBuffer buffer = allocate(length);
+            buffer.put(array, 0, Math.min(size, length));
+            for (int i = size; i < length; i++) {
+                buffer.put(NONE);
+            }
+            buffer.flip();
+            return buffer;
+        }
+    }
+}
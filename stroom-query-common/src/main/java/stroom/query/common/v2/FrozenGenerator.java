@@ -0,0 +1,80 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package stroom.query.common.v2;
+
+import stroom.dashboard.expression.v1.Generator;
+import stroom.dashboard.expression.v1.Key;
+import stroom.dashboard.expression.v1.Val;
+
+/**
+ * A generator of an item read from frozen data. It holds the value that the original generator evaluated to when the
+ * data was frozen, and for selector functions the value that was selected from the child items, so it can't be
+ * changed.
+ */
+final class FrozenGenerator implements Generator {
+    private static final long serialVersionUID = -2357626253216045113L;
+
+    private final Val value;
+    private final Val selectedValue;
+
+    FrozenGenerator(final Val value, final Val selectedValue) {
+        this.value = value;
+        this.selectedValue = selectedValue;
+    }
+
+    @Override
+    public void set(final Val[] values) {
+        throw new UnsupportedOperationException("Frozen generators can't be changed");
+    }
+
+    @Override
+    public Val eval() {
+        return value;
+    }
+
+    /**
+     * @return The value selected from the child items of the item if the original generator was a selector,
+     * otherwise the same as {@link #eval()}.
+     */
+    Val getSelectedValue() {
+        return selectedValue;
+    }
+
+    @Override
+    public void merge(final Generator generator) {
+        throw new UnsupportedOperationException("Frozen generators can't be changed");
+    }
+
+    @Override
+    public void addChildKey(final Key key) {
+        throw new UnsupportedOperationException("Frozen generators can't be changed");
+    }
+
+    @Override
+    public int compareTo(final Generator generator) {
+        final Val other = generator.eval();
+        if (value == null || other == null) {
+            return value == null ? (other == null ? 0 : -1) : 1;
+        }
+
+        final Double d1 = value.toDouble();
+        final Double d2 = other.toDouble();
+        if (d1 != null && d2 != null) {
+            return Double.compare(d1, d2);
+        }
+        return value.toString().compareTo(other.toString());
+    }
+}
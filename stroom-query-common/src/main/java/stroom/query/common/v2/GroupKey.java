@@ -39,6 +39,9 @@ public class GroupKey implements Key {
     private GroupKey parent;
     private List<Val> values;
 
+    // Keys are hashed many times while partitioning and storing items so remember the hash once it is known.
+    private transient int hash;
+
     GroupKey() {
     }
 
@@ -92,13 +95,23 @@ public class GroupKey implements Key {
         if (o == null || getClass() != o.getClass()) return false;
         final GroupKey key = (GroupKey) o;
         return depth == key.depth &&
+                hashCode() == key.hashCode() &&
                 Objects.equals(parent, key.parent) &&
                 Objects.equals(values, key.values);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(depth, parent, values);
+        int h = hash;
+        if (h == 0) {
+            // This is the same as Objects.hash(depth, parent, values) without boxing into an array. The parent hash
+            // is cached by the parent so we don't walk the whole parent chain.
+            h = 31 + depth;
+            h = 31 * h + (parent == null ? 0 : parent.hashCode());
+            h = 31 * h + (values == null ? 0 : values.hashCode());
+            hash = h;
+        }
+        return h;
     }
 
     private void append(final StringBuilder sb) {
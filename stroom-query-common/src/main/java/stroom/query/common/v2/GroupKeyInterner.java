@@ -0,0 +1,56 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stroom.query.common.v2;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Ensures that equal group keys share a single instance so that comparing keys, and the parents of keys, is usually
+ * an identity check. An interner is intended to live for a single search, or less, and can be used from many
+ * threads at once.
+ */
+public class GroupKeyInterner {
+    private final ConcurrentMap<GroupKey, GroupKey> keys = new ConcurrentHashMap<>();
+
+    /**
+     * @param key The key to intern.
+     * @return The instance of the key that was interned first, or the supplied key if no equal key has been seen.
+     */
+    public GroupKey intern(final GroupKey key) {
+        if (key == null) {
+            return null;
+        }
+
+        final GroupKey existing = keys.putIfAbsent(key, key);
+        if (existing != null) {
+            return existing;
+        }
+        return key;
+    }
+
+    public int size() {
+        return keys.size();
+    }
+
+    /**
+     * Forget all keys, e.g. once the items that use them have been sent elsewhere.
+     */
+    public void clear() {
+        keys.clear();
+    }
+}
@@ -4,30 +4,118 @@ import com.google.common.cache.LoadingCache;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
 class InMemorySearchResponseCreatorCache implements SearchResponseCreatorCache {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(InMemorySearchResponseCreatorCache.class);
 
+    private static final long ADMISSION_POLL_MS = 100;
+
     private final LoadingCache<Key, SearchResponseCreator> cache;
+    private final SearchResponseCreatorWeigher weigher;
+    private final long admissionThresholdBytes;
+    private final Duration admissionTimeout;
+    private final Object admissionLock = new Object();
 
     InMemorySearchResponseCreatorCache(final LoadingCache<Key, SearchResponseCreator> cache) {
+        this(cache, null, 0, Duration.ZERO);
+    }
+
+    /**
+     * @param weigher                 The weigher the cache was built with, or null if entries are not weighed.
+     * @param admissionThresholdBytes New searches are only started while the cached searches are estimated to hold
+     *                                fewer bytes than this.
+     * @param admissionTimeout        How long a new search waits for cached searches to be removed before it is
+     *                                rejected.
+     */
+    InMemorySearchResponseCreatorCache(final LoadingCache<Key, SearchResponseCreator> cache,
+                                       final SearchResponseCreatorWeigher weigher,
+                                       final long admissionThresholdBytes,
+                                       final Duration admissionTimeout) {
         this.cache = cache;
+        this.weigher = weigher;
+        this.admissionThresholdBytes = admissionThresholdBytes;
+        this.admissionTimeout = admissionTimeout;
     }
 
     @Override
     public SearchResponseCreator get(final SearchResponseCreatorCache.Key key) {
+        // Only requests that carry a search can start a new one.
+        if (weigher != null && key.getSearchRequest() != null && cache.getIfPresent(key) == null) {
+            admit(key);
+        }
         return cache.getUnchecked(key);
     }
 
+    /**
+     * Wait until the cached searches hold few enough results for a new search to start.
+     */
+    private void admit(final SearchResponseCreatorCache.Key key) {
+        final long deadline = System.nanoTime() + admissionTimeout.toNanos();
+        synchronized (admissionLock) {
+            while (true) {
+                reweigh();
+                final long totalBytes = weigher.getTotalByteSize();
+                if (totalBytes < admissionThresholdBytes) {
+                    return;
+                }
+
+                final long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    LOGGER.debug("Rejecting {} as cached searches hold {} bytes", key, totalBytes);
+                    throw new QueryMemoryExhaustedException("Unable to start search as searches already hold " +
+                            totalBytes + " bytes of results, try again later");
+                }
+
+                try {
+                    admissionLock.wait(Math.max(1, Math.min(ADMISSION_POLL_MS, TimeUnit.NANOSECONDS.toMillis(remaining))));
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new QueryMemoryExhaustedException("Interrupted while waiting to start search");
+                }
+            }
+        }
+    }
+
+    /**
+     * Weigh any entries again whose results have grown or shrunk since they were last weighed, e.g. as payloads have
+     * arrived. Each estimate only reads a counter kept by the store so this is cheap enough to do on every eviction
+     * and admission. Replacing an entry with itself is the only way to make the cache weigh it again, and may evict
+     * the least recently used entries if the cache is now over its maximum weight.
+     */
+    private void reweigh() {
+        cache.cleanUp();
+        if (weigher != null) {
+            final ConcurrentMap<Key, SearchResponseCreator> map = cache.asMap();
+            for (final Map.Entry<Key, SearchResponseCreator> entry : map.entrySet()) {
+                if (weigher.hasChanged(entry.getKey(), entry.getValue())) {
+                    map.replace(entry.getKey(), entry.getValue(), entry.getValue());
+                }
+            }
+        }
+    }
+
+    private void onRemoved() {
+        synchronized (admissionLock) {
+            admissionLock.notifyAll();
+        }
+    }
+
     @Override
     public void remove(final SearchResponseCreatorCache.Key key) {
         cache.invalidate(key);
         cache.cleanUp();
+        onRemoved();
     }
 
     @Override
     public void evictExpiredElements() {
-        cache.cleanUp();
+        reweigh();
+        onRemoved();
     }
 
     @Override
@@ -40,5 +128,6 @@ class InMemorySearchResponseCreatorCache implements SearchResponseCreatorCache {
         } catch (final RuntimeException e) {
             LOGGER.error("Error clearing cache: " + e.getMessage(), e);
         }
+        onRemoved();
     }
 }
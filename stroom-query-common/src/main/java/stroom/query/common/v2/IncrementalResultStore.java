@@ -0,0 +1,367 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stroom.query.common.v2;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import stroom.mapreduce.v2.PairCursor;
+import stroom.mapreduce.v2.Reader;
+import stroom.mapreduce.v2.Source;
+
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A result store that lives for the duration of a search and merges each new batch of items into the items it
+ * already holds. Grouped items are indexed by key so that a new item for an existing group is reduced into the
+ * existing item in place. Only the parents that received new items are sorted and trimmed after each batch so the
+ * cost of reading a batch depends on the size of the batch rather than the size of the store.
+ * <p>
+ * The store keeps an estimate of the bytes taken up by the items it holds in memory. If the store is given a
+ * {@link SpillStore} then once the estimate passes the memory budget the lists of child items that have gone longest
+ * without changing are moved to temporary files until the estimate is comfortably below the budget again. A list is
+ * read back into memory as soon as an item is added to it. The top level items are always kept in memory as every
+ * result reads them. Spilled lists that are read back or removed are only released once a new snapshot has been
+ * created, so a file is never deleted while the latest snapshot still refers to it.
+ * <p>
+ * This class is not thread safe, callers must synchronise access to it.
+ */
+class IncrementalResultStore implements Reader<GroupKey, Item> {
+    private static final Logger LOGGER = LoggerFactory.getLogger(IncrementalResultStore.class);
+
+    private final CompiledSorter sorter;
+    private final ItemReducer itemReducer;
+    private final Sizes storeSize;
+
+    private final Map<GroupKey, Item> keyIndex = new HashMap<>();
+    private final Map<GroupKey, Items<Item>> childMap = new HashMap<>();
+
+    // The parents that have had items added since the last sort and trim.
+    private final Set<GroupKey> changedParents = new HashSet<>();
+    // The parents whose items have changed since the last snapshot was created.
+    private final Set<GroupKey> unpublishedParents = new HashSet<>();
+
+    private Map<GroupKey, Items<Item>> publishedChildMap = Collections.emptyMap();
+    private long size;
+
+    private final SpillStore spillStore;
+    private final long maxResidentBytes;
+    // The parents of in memory child lists, least recently changed first.
+    private final LinkedHashMap<GroupKey, Boolean> residentParents = new LinkedHashMap<>(16, 0.75F, true);
+    private long residentBytes;
+    private int spilledCount;
+    // Spilled lists that the store no longer holds but the last snapshot might.
+    private final List<SpilledItems> releasedItems = new ArrayList<>();
+
+    IncrementalResultStore(final CompiledSorter sorter,
+                           final CompiledDepths compiledDepths,
+                           final Sizes storeSize) {
+        this(sorter, compiledDepths, storeSize, null, 0);
+    }
+
+    /**
+     * @param spillStore       The store to move child lists to once the items held take up more than the memory
+     *                         budget, or null to always keep every item in memory.
+     * @param maxResidentBytes The estimated number of bytes of items that can be held in memory.
+     */
+    IncrementalResultStore(final CompiledSorter sorter,
+                           final CompiledDepths compiledDepths,
+                           final Sizes storeSize,
+                           final SpillStore spillStore,
+                           final long maxResidentBytes) {
+        this.sorter = sorter;
+        this.itemReducer = new ItemReducer(compiledDepths.getDepths(), compiledDepths.getMaxDepth());
+        this.storeSize = storeSize;
+        this.spillStore = spillStore;
+        this.maxResidentBytes = maxResidentBytes;
+    }
+
+    @Override
+    public void read(final Source<GroupKey, Item> source) {
+        final PairCursor<GroupKey, Item> cursor = source.cursor();
+        while (cursor.next()) {
+            add(cursor.getValue());
+        }
+
+        sortAndTrim();
+        spillIfOverBudget();
+    }
+
+    /**
+     * Merge a batch of items into the store.
+     *
+     * @param items The items to merge.
+     */
+    void addAll(final List<Item> items) {
+        for (final Item item : items) {
+            add(item);
+        }
+
+        sortAndTrim();
+        spillIfOverBudget();
+    }
+
+    private void add(final Item item) {
+        GroupKey parentKey = null;
+
+        if (item.key != null) {
+            parentKey = item.key.getParent();
+
+            if (spillStore != null && parentKey != null) {
+                // Siblings are only indexed while they are in memory so bring them back before looking for a match.
+                if (spilledCount > 0) {
+                    load(parentKey);
+                }
+                residentParents.put(parentKey, Boolean.TRUE);
+            }
+
+            // Items with a null key value are not grouped, e.g. detail rows below a group, so they are never merged.
+            if (item.key.getValues() != null) {
+                final Item existing = keyIndex.putIfAbsent(item.key, item);
+                if (existing != null) {
+                    // Reduce the new item into the one we already hold.
+                    itemReducer.merge(existing, item);
+                    changedParents.add(parentKey);
+                    return;
+                }
+            }
+        }
+
+        if (childMap.computeIfAbsent(parentKey, k -> createItems(item)).add(item)) {
+            changedParents.add(parentKey);
+            size++;
+            residentBytes += ItemSizeEstimator.estimate(item);
+        }
+    }
+
+    private Items<Item> createItems(final Item firstItem) {
+        // Ungrouped items that are sorted only ever need the top items so keep them in a bounded heap.
+        if (firstItem.key == null && storeSize != null && sorter.hasSort()) {
+            return new ItemsHeap<>(storeSize.size(0), sorter, this::remove);
+        }
+        return new ItemsArrayList<>();
+    }
+
+    private void sortAndTrim() {
+        for (final GroupKey parentKey : changedParents) {
+            final Items<Item> items = childMap.get(parentKey);
+
+            // The parent may have been trimmed by a cascading removal while dealing with another parent.
+            if (items != null) {
+                if (storeSize == null) {
+                    // no store limits so just sort
+                    items.sort(sorter);
+                } else {
+                    // sort then trim
+                    final int depth = parentKey == null ? 0 : parentKey.getDepth() + 1;
+                    items.sortAndTrim(storeSize.size(depth), sorter, this::remove);
+                }
+                unpublishedParents.add(parentKey);
+            }
+        }
+        changedParents.clear();
+    }
+
+    private void remove(final Item item) {
+        remove(item, true);
+    }
+
+    private void remove(final Item item, final boolean resident) {
+        size--;
+        if (resident) {
+            residentBytes -= ItemSizeEstimator.estimate(item);
+        }
+
+        if (item.key != null) {
+            if (item.key.getValues() != null) {
+                keyIndex.remove(item.key);
+            }
+
+            // Cascade delete.
+            final Items<Item> children = childMap.remove(item.key);
+            if (children != null) {
+                unpublishedParents.add(item.key);
+                final boolean spilled = children instanceof SpilledItems;
+                if (!spilled) {
+                    residentParents.remove(item.key);
+                }
+
+                for (final Item child : children) {
+                    remove(child, !spilled);
+                }
+
+                if (spilled) {
+                    spilledCount--;
+                    releasedItems.add((SpilledItems) children);
+                }
+            }
+        }
+    }
+
+    /**
+     * Read a list of child items back into memory if it has been spilled.
+     */
+    private void load(final GroupKey parentKey) {
+        final Items<Item> items = childMap.get(parentKey);
+        if (items instanceof SpilledItems) {
+            final ItemsArrayList<Item> loaded = new ItemsArrayList<>();
+            for (final Item item : items) {
+                loaded.add(item);
+                residentBytes += ItemSizeEstimator.estimate(item);
+                if (item.key != null && item.key.getValues() != null) {
+                    keyIndex.put(item.key, item);
+                }
+            }
+
+            childMap.put(parentKey, loaded);
+            unpublishedParents.add(parentKey);
+            spilledCount--;
+            releasedItems.add((SpilledItems) items);
+        }
+    }
+
+    /**
+     * Move the least recently changed child lists to temporary files if the items held take up more than the memory
+     * budget. Lists are moved until the items held take up no more than three quarters of the budget so that lists
+     * are not spilled again every time a few items are added.
+     */
+    private void spillIfOverBudget() {
+        if (spillStore == null || residentBytes <= maxResidentBytes) {
+            return;
+        }
+
+        final long target = maxResidentBytes / 4 * 3;
+        final List<GroupKey> parentKeys = new ArrayList<>();
+        final List<Items<Item>> partitions = new ArrayList<>();
+        long bytes = residentBytes;
+        for (final GroupKey parentKey : residentParents.keySet()) {
+            if (bytes <= target) {
+                break;
+            }
+
+            final Items<Item> items = childMap.get(parentKey);
+            if (items != null && items.size() > 0) {
+                for (final Item item : items) {
+                    bytes -= ItemSizeEstimator.estimate(item);
+                }
+                parentKeys.add(parentKey);
+                partitions.add(items);
+            }
+        }
+
+        if (partitions.isEmpty()) {
+            return;
+        }
+
+        final List<SpilledItems> spilled;
+        try {
+            spilled = spillStore.spill(partitions);
+        } catch (final UncheckedIOException e) {
+            // Keep everything in memory rather than fail the search.
+            LOGGER.error("Unable to spill items to disk", e);
+            return;
+        }
+
+        for (int i = 0; i < parentKeys.size(); i++) {
+            final GroupKey parentKey = parentKeys.get(i);
+            for (final Item item : partitions.get(i)) {
+                if (item.key != null && item.key.getValues() != null) {
+                    keyIndex.remove(item.key);
+                }
+            }
+            childMap.put(parentKey, spilled.get(i));
+            residentParents.remove(parentKey);
+            unpublishedParents.add(parentKey);
+        }
+        spilledCount += spilled.size();
+        residentBytes = bytes;
+    }
+
+    /**
+     * Delete any temporary files that items have been spilled to.
+     */
+    void destroy() {
+        if (spillStore != null) {
+            spillStore.destroy();
+        }
+    }
+
+    /**
+     * Create a snapshot of the current state of the store. The item lists of parents that have not changed since the
+     * last snapshot are shared with that snapshot rather than copied.
+     *
+     * @param totalSize The total number of items that have been received by the store.
+     * @return A snapshot of the store that will not change as new items are read.
+     */
+    Data createData(final long totalSize) {
+        if (unpublishedParents.size() > 0) {
+            final Map<GroupKey, Items<Item>> map = new HashMap<>(publishedChildMap);
+            for (final GroupKey parentKey : unpublishedParents) {
+                final Items<Item> items = childMap.get(parentKey);
+                if (items instanceof SpilledItems) {
+                    // Spilled items never change so they can be shared rather than read back in to be copied.
+                    map.put(parentKey, items);
+                } else if (items != null) {
+                    map.put(parentKey, new ItemsArrayList<>(items));
+                } else {
+                    map.remove(parentKey);
+                }
+            }
+            unpublishedParents.clear();
+            publishedChildMap = map;
+        }
+
+        // The new snapshot no longer refers to any lists that have been released.
+        for (final SpilledItems items : releasedItems) {
+            items.release();
+        }
+        releasedItems.clear();
+
+        return new Data(publishedChildMap, size, totalSize);
+    }
+
+    long size() {
+        return size;
+    }
+
+    /**
+     * @return An estimate of the bytes of heap taken up by the items held in memory.
+     */
+    long getResidentBytes() {
+        return residentBytes;
+    }
+
+    /**
+     * @return The worst top level item being kept if the top level is full and new items will only be kept if they
+     * are better than it, or null if any new item might be kept.
+     */
+    @SuppressWarnings("unchecked")
+    Item getThreshold() {
+        final Items<Item> items = childMap.get(null);
+        if (items instanceof ItemsHeap) {
+            return ((ItemsHeap<Item>) items).getThreshold();
+        }
+        return null;
+    }
+}
@@ -27,6 +27,10 @@ public class Item implements Serializable {
     Generator[] generators;
     int depth;
 
+    // Incremented whenever the generators are changed so that values worked out before the change are discarded.
+    private transient volatile int generation;
+    private transient volatile ItemValues values;
+
     Item() {
     }
 
@@ -50,6 +54,26 @@ public class Item implements Serializable {
         return depth;
     }
 
+    /**
+     * Record that the generators of this item have changed.
+     */
+    void changed() {
+        generation++;
+    }
+
+    /**
+     * @return The cached values of the current generation of this item.
+     */
+    ItemValues getValues() {
+        final int currentGeneration = generation;
+        ItemValues itemValues = values;
+        if (itemValues == null || itemValues.getGeneration() != currentGeneration) {
+            itemValues = new ItemValues(currentGeneration, generators == null ? 0 : generators.length);
+            values = itemValues;
+        }
+        return itemValues;
+    }
+
     @Override
     public boolean equals(final Object o) {
         if (this == o) return true;
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stroom.query.common.v2;
+
+import stroom.mapreduce.v2.OutputCollector;
+
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Sits between an {@link ItemMapper} and the coprocessor queue and reduces items that share a group key as they
+ * arrive, so that the queue receives one partially aggregated item per group rather than one item per row. Items
+ * that are not grouped are passed straight to the output collector.
+ * <p>
+ * Items are held in a number of stripes, chosen by key hash, each of which is bounded. When a stripe is full the
+ * group that has gone longest without a new item is forwarded to the output collector, so memory is bounded by the
+ * capacity regardless of how many rows are received while frequently seen groups keep being combined. Any items
+ * that are still held must be forwarded with {@link #flush(OutputCollector)} before the output is read. Items are
+ * always forwarded outside of the stripe locks so a producer waiting on a full queue never stops another thread from
+ * flushing.
+ */
+class ItemCombiner implements OutputCollector<GroupKey, Item> {
+    private final OutputCollector<GroupKey, Item> outputCollector;
+    private final ItemReducer itemReducer;
+    private final Stripe[] stripes;
+    private final int stripeCapacity;
+
+    /**
+     * @param outputCollector The collector to forward combined items to.
+     * @param compiledDepths  The depths of the table being combined.
+     * @param capacity        The maximum number of items to hold before forwarding them.
+     * @param stripeCount     The number of independently locked stripes to spread items across.
+     */
+    ItemCombiner(final OutputCollector<GroupKey, Item> outputCollector,
+                 final CompiledDepths compiledDepths,
+                 final int capacity,
+                 final int stripeCount) {
+        this.outputCollector = outputCollector;
+        this.itemReducer = new ItemReducer(compiledDepths.getDepths(), compiledDepths.getMaxDepth());
+
+        final int count = Math.max(1, Math.min(stripeCount, capacity));
+        this.stripes = new Stripe[count];
+        for (int i = 0; i < count; i++) {
+            stripes[i] = new Stripe();
+        }
+        this.stripeCapacity = Math.max(1, capacity / count);
+    }
+
+    @Override
+    public void collect(final GroupKey key, final Item value) {
+        // Items with a null key value are never grouped so just pass them on.
+        if (key == null || key.getValues() == null) {
+            outputCollector.collect(key, value);
+            return;
+        }
+
+        final Stripe stripe = stripes[(key.hashCode() & Integer.MAX_VALUE) % stripes.length];
+        Entry<GroupKey, Item> evicted = null;
+        synchronized (stripe) {
+            final Item existing = stripe.items.get(key);
+            if (existing != null) {
+                itemReducer.merge(existing, value);
+            } else {
+                stripe.items.put(key, value);
+                if (stripe.items.size() > stripeCapacity) {
+                    evicted = stripe.evict();
+                }
+            }
+        }
+
+        if (evicted != null) {
+            outputCollector.collect(evicted.getKey(), evicted.getValue());
+        }
+    }
+
+    /**
+     * Forward all of the items currently held to the supplied output collector.
+     *
+     * @param output The collector to receive the items.
+     */
+    void flush(final OutputCollector<GroupKey, Item> output) {
+        for (final Stripe stripe : stripes) {
+            final Map<GroupKey, Item> items;
+            synchronized (stripe) {
+                items = stripe.take();
+            }
+            forward(items, output);
+        }
+    }
+
+    private void forward(final Map<GroupKey, Item> items, final OutputCollector<GroupKey, Item> output) {
+        items.forEach(output::collect);
+    }
+
+    private static class Stripe {
+        // Keep access order so that the least recently used group is the first to be evicted.
+        private Map<GroupKey, Item> items = new LinkedHashMap<>(16, 0.75F, true);
+
+        Entry<GroupKey, Item> evict() {
+            final Iterator<Entry<GroupKey, Item>> iterator = items.entrySet().iterator();
+            final Entry<GroupKey, Item> eldest = iterator.next();
+            iterator.remove();
+            return new SimpleImmutableEntry<>(eldest.getKey(), eldest.getValue());
+        }
+
+        Map<GroupKey, Item> take() {
+            final Map<GroupKey, Item> taken = items;
+            items = new LinkedHashMap<>(16, 0.75F, true);
+            return taken;
+        }
+    }
+}
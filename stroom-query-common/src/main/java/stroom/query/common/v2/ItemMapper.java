@@ -31,23 +31,80 @@ public class ItemMapper extends MapperBase<GroupKey, Val[], GroupKey, Item> {
     private final CompiledFields fields;
     private final int maxDepth;
     private final int maxGroupDepth;
+    private final GroupKeyInterner groupKeyInterner;
+    // Generators used to check filters that can be reused for the next row on the same thread.
+    private final ThreadLocal<Generator[]> filterGenerators;
 
     public ItemMapper(final OutputCollector<GroupKey, Item> outputCollector,
                       final CompiledFields fields,
                       final int maxDepth,
                       final int maxGroupDepth) {
+        this(outputCollector, fields, maxDepth, maxGroupDepth, null);
+    }
+
+    /**
+     * @param outputCollector  The collector to output items to.
+     * @param fields           The fields to create generators for.
+     * @param maxDepth         The maximum depth of items to create.
+     * @param maxGroupDepth    The maximum depth that fields are grouped at.
+     * @param groupKeyInterner An interner that is used to make equal group keys share an instance, or null if keys
+     *                         should not be interned.
+     */
+    public ItemMapper(final OutputCollector<GroupKey, Item> outputCollector,
+                      final CompiledFields fields,
+                      final int maxDepth,
+                      final int maxGroupDepth,
+                      final GroupKeyInterner groupKeyInterner) {
         super(outputCollector);
         this.fields = fields;
         this.maxDepth = maxDepth;
         this.maxGroupDepth = maxGroupDepth;
+        this.groupKeyInterner = groupKeyInterner;
+        this.filterGenerators = ThreadLocal.withInitial(() -> new Generator[fields.getFilterFieldIndexes().length]);
     }
 
     @Override
     public void map(final GroupKey key, final Val[] values, final OutputCollector<GroupKey, Item> output) {
+        // Check filters before creating any items so that rows that are filtered out cost as little as possible.
+        if (!filter(values)) {
+            return;
+        }
+
         // Add the item to the output recursively up to the max depth.
         addItem(values, null, PARENT_GENERATORS, 0, maxDepth, maxGroupDepth, output);
     }
 
+    private boolean filter(final Val[] values) {
+        final int[] filterFieldIndexes = fields.getFilterFieldIndexes();
+        if (filterFieldIndexes.length == 0) {
+            return true;
+        }
+
+        final Generator[] generators = filterGenerators.get();
+        for (int i = 0; i < filterFieldIndexes.length; i++) {
+            final CompiledField compiledField = fields.getField(filterFieldIndexes[i]);
+            Generator generator = generators[i];
+            if (generator == null) {
+                final Expression expression = compiledField.getExpression();
+                generator = expression.createGenerator();
+
+                // Generators without aggregation only hold the values of the last row they were given so they can be
+                // reused, aggregating generators need to start afresh for each row.
+                if (!expression.hasAggregate()) {
+                    generators[i] = generator;
+                }
+            }
+            generator.set(values);
+
+            final Val value = generator.eval();
+            if (value != null && !compiledField.getCompiledFilter().match(value)) {
+                // We want to exclude this item.
+                return false;
+            }
+        }
+        return true;
+    }
+
     private void addItem(final Val[] values, final GroupKey parentKey, final Generator[] parentGenerators,
                          final int depth, final int maxDepth, final int maxGroupDepth, final OutputCollector<GroupKey, Item> output) {
         // Process list into fields.
@@ -80,15 +137,9 @@ public class ItemMapper extends MapperBase<GroupKey, Val[], GroupKey, Item> {
                     generators[pos] = generator;
                 }
 
-                if (compiledField.getCompiledFilter() != null || compiledField.getGroupDepth() == depth) {
-                    // If we are filtering then we need to evaluate this field
-                    // now so that we can filter the resultant value.
+                if (compiledField.getGroupDepth() == depth) {
+                    // Evaluate the field now as the value is part of the group key.
                     value = generator.eval();
-
-                    if (compiledField.getCompiledFilter() != null && value != null && !compiledField.getCompiledFilter().match(value.toString())) {
-                        // We want to exclude this item.
-                        return;
-                    }
                 }
             }
 
@@ -108,6 +159,10 @@ public class ItemMapper extends MapperBase<GroupKey, Val[], GroupKey, Item> {
         GroupKey key = null;
         if (parentKey != null || groupValues != null) {
             key = new GroupKey(parentKey, groupValues);
+            if (groupKeyInterner != null) {
+                // Children are created with the interned key as their parent so the whole chain is shared.
+                key = groupKeyInterner.intern(key);
+            }
         }
 
         // If the popToWhenComplete row has child group key sets then add this child group
@@ -118,13 +173,14 @@ public class ItemMapper extends MapperBase<GroupKey, Val[], GroupKey, Item> {
             }
         }
 
-        // Add the new item.
-        output.collect(key, new Item(key, generators, depth));
-
         // If we haven't reached the max depth then recurse.
         if (depth < maxDepth) {
             addItem(values, key, generators, depth + 1, maxDepth, maxGroupDepth, output);
         }
+
+        // Add the new item. This is done after recursion so that the generators of this item have received all of
+        // their child keys before the item is output, as the output may combine it with another item straight away.
+        output.collect(key, new Item(key, generators, depth));
     }
 
     @Override
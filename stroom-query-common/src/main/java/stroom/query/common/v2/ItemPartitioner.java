@@ -17,10 +17,12 @@
 package stroom.query.common.v2;
 
 import stroom.mapreduce.v2.OutputCollector;
+import stroom.mapreduce.v2.ParallelPartitioner;
 import stroom.mapreduce.v2.Reducer;
-import stroom.mapreduce.v2.SimplePartitioner;
 
-public class ItemPartitioner extends SimplePartitioner<GroupKey, Item, GroupKey, Item> {
+import java.util.concurrent.ForkJoinPool;
+
+public class ItemPartitioner extends ParallelPartitioner<GroupKey, Item, GroupKey, Item> {
     private final ItemReducer itemReducer;
     private OutputCollector<GroupKey, Item> outputCollector;
 
@@ -29,6 +31,18 @@ public class ItemPartitioner extends SimplePartitioner<GroupKey, Item, GroupKey,
         itemReducer = new ItemReducer(depths, maxDepth);
     }
 
+    /**
+     * @param depths    The group depth of each field.
+     * @param maxDepth  The maximum depth of items.
+     * @param pool      The pool to run reduction on if there are enough keys, or null to reduce on the calling thread.
+     * @param threshold The minimum number of keys that are worth reducing in parallel.
+     */
+    public ItemPartitioner(final int[] depths, final int maxDepth, final ForkJoinPool pool, final int threshold) {
+        super(pool, threshold);
+        // Create a reusable reducer as it doesn't hold state.
+        itemReducer = new ItemReducer(depths, maxDepth);
+    }
+
     @Override
     protected Reducer<GroupKey, Item, GroupKey, Item> createReducer() {
         // Reuse the same reducer as there is no state.
@@ -37,16 +37,27 @@ public class ItemReducer implements Reducer<GroupKey, Item, GroupKey, Item> {
                 dest = item;
 
             } else {
-                // Combine new list into original item list.
-                for (int i = 0; i < depths.length; i++) {
-                    dest.generators[i] = combine(depths[i], maxDepth, dest.generators[i], item.generators[i], item.depth);
-                }
+                merge(dest, item);
             }
         }
 
         output.collect(key, dest);
     }
 
+    /**
+     * Combine the generators of an item into the generators of an existing item that has the same key.
+     *
+     * @param dest The existing item that will receive the combined generators.
+     * @param item The item to merge into the existing item.
+     */
+    void merge(final Item dest, final Item item) {
+        // Combine new list into original item list.
+        for (int i = 0; i < depths.length; i++) {
+            dest.generators[i] = combine(depths[i], maxDepth, dest.generators[i], item.generators[i], item.depth);
+        }
+        dest.changed();
+    }
+
     private Generator combine(final int groupDepth, final int maxDepth, final Generator existingValue,
                               final Generator addedValue, final int depth) {
         Generator output = null;
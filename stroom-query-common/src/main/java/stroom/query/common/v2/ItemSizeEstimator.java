@@ -0,0 +1,77 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package stroom.query.common.v2;
+
+import stroom.dashboard.expression.v1.Generator;
+import stroom.dashboard.expression.v1.Val;
+import stroom.dashboard.expression.v1.ValString;
+
+import java.util.List;
+
+/**
+ * Estimates the number of bytes of heap that an item takes up. Generators do not expose their state so every
+ * generator is assumed to be the same size, the estimate is only meant to be good enough to compare against a memory
+ * budget.
+ */
+final class ItemSizeEstimator {
+    private static final long ITEM_BYTES = 32;
+    private static final long ARRAY_BYTES = 16;
+    private static final long REFERENCE_BYTES = 4;
+    private static final long GENERATOR_BYTES = 48;
+    private static final long KEY_BYTES = 32;
+    private static final long LIST_BYTES = 24;
+    private static final long VAL_BYTES = 24;
+    private static final long STRING_BYTES = 40;
+
+    private ItemSizeEstimator() {
+        // Utility class.
+    }
+
+    static long estimate(final Item item) {
+        // The item and its reference from the list that holds it.
+        long bytes = ITEM_BYTES + REFERENCE_BYTES;
+
+        final Generator[] generators = item.generators;
+        if (generators != null) {
+            bytes += ARRAY_BYTES + REFERENCE_BYTES * generators.length;
+            for (final Generator generator : generators) {
+                if (generator != null) {
+                    bytes += GENERATOR_BYTES;
+                }
+            }
+        }
+
+        // Parent keys are shared by all of their children so only the key of the item itself is counted.
+        final GroupKey key = item.key;
+        if (key != null) {
+            bytes += KEY_BYTES;
+            final List<Val> values = key.getValues();
+            if (values != null) {
+                bytes += LIST_BYTES + REFERENCE_BYTES * values.size();
+                for (final Val val : values) {
+                    if (val != null) {
+                        bytes += VAL_BYTES;
+                        if (val instanceof ValString) {
+                            bytes += STRING_BYTES + val.toString().length();
+                        }
+                    }
+                }
+            }
+        }
+
+        return bytes;
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stroom.query.common.v2;
+
+import stroom.dashboard.expression.v1.Generator;
+import stroom.dashboard.expression.v1.Val;
+
+import java.util.Arrays;
+import java.util.function.Supplier;
+
+/**
+ * The evaluated and formatted values of an item for one generation of the item. Items are shared by every snapshot
+ * of a store so values that are worked out for one result request can be reused by later requests, and by other
+ * components that show the same data, until the item changes.
+ * <p>
+ * Values that are selected from child items, and rows that include them, are also kept along with the child items they
+ * were worked out from. The store publishes a new list of child items whenever a child changes so they are only
+ * reused while the list is the same.
+ * <p>
+ * Rows are only kept for the few formats that were used most recently, so a format that is no longer used, e.g. after
+ * a user changes a column format, doesn't hold on to rows for the life of the item.
+ * <p>
+ * Values are worked out on demand and may be worked out more than once if several threads ask for them at the same
+ * time, which is harmless as the result is the same.
+ */
+class ItemValues {
+    private static final Object NOT_EVALUATED = new Object();
+    // The number of row formats to keep rows for, enough for a few components that show the same data.
+    private static final int MAX_ROW_FORMATS = 4;
+    private static final CachedRow[] NO_ROWS = new CachedRow[0];
+
+    private final int generation;
+    private final Object[] values;
+    private volatile CachedRow[] rows = NO_ROWS;
+    private volatile Selection[] selections;
+
+    ItemValues(final int generation, final int size) {
+        this.generation = generation;
+        this.values = new Object[size];
+        for (int i = 0; i < size; i++) {
+            values[i] = NOT_EVALUATED;
+        }
+    }
+
+    int getGeneration() {
+        return generation;
+    }
+
+    /**
+     * @param generators The generators of the item.
+     * @param index      The index of the generator to evaluate.
+     * @return The value of the generator, evaluated the first time it is needed.
+     */
+    Val getValue(final Generator[] generators, final int index) {
+        Object value = values[index];
+        if (value == NOT_EVALUATED) {
+            final Generator generator = generators[index];
+            value = generator == null ? null : generator.eval();
+            values[index] = value;
+        }
+        return (Val) value;
+    }
+
+    /**
+     * @param index    The index of the selector generator.
+     * @param children The child items that the selector selects from.
+     * @param supplier Selects the value if it has not been selected from these children before.
+     * @return The selected value.
+     */
+    Val getSelection(final int index, final Items<Item> children, final Supplier<Val> supplier) {
+        Selection[] array = selections;
+        if (array == null) {
+            array = new Selection[values.length];
+            selections = array;
+        }
+
+        Selection selection = array[index];
+        if (selection == null || selection.children != children) {
+            selection = new Selection(children, supplier.get());
+            array[index] = selection;
+        }
+        return (Val) selection.value;
+    }
+
+    /**
+     * @param rowFormat The fields and formatting that the row is created for.
+     * @param children  The child items that values of the row are selected from, or null if the row does not
+     *                  depend on any children.
+     * @param supplier  Creates the row if it has not been created for this format and these children before.
+     * @return The row created from the values of the item and its children.
+     */
+    @SuppressWarnings("unchecked")
+    <T> T getRow(final RowFormat rowFormat, final Items<Item> children, final Supplier<T> supplier) {
+        // Rows are always kept with the children they were created from, so a row created without children is
+        // never mistaken for one that selects from them or the other way round.
+        final CachedRow[] array = rows;
+        for (final CachedRow cachedRow : array) {
+            if (cachedRow.rowFormat.equals(rowFormat)) {
+                if (cachedRow.children == children) {
+                    return (T) cachedRow.row;
+                }
+                break;
+            }
+        }
+
+        final T row = supplier.get();
+
+        // Put the new row first and drop any older row for the same format along with the least recently created
+        // rows once there are too many formats.
+        final CachedRow[] newArray = new CachedRow[Math.min(array.length + 1, MAX_ROW_FORMATS)];
+        newArray[0] = new CachedRow(rowFormat, children, row);
+        int pos = 1;
+        for (int i = 0; i < array.length && pos < newArray.length; i++) {
+            if (!array[i].rowFormat.equals(rowFormat)) {
+                newArray[pos++] = array[i];
+            }
+        }
+        rows = pos == newArray.length ? newArray : Arrays.copyOf(newArray, pos);
+        return row;
+    }
+
+    /**
+     * @param rowFormat The fields and formatting that the row is created for.
+     * @param supplier  Creates the row if it has not been created for this format before.
+     * @return The row created from the values of the item.
+     */
+    <T> T getRow(final RowFormat rowFormat, final Supplier<T> supplier) {
+        return getRow(rowFormat, null, supplier);
+    }
+
+    /**
+     * A row created for a format, along with the child items it was created from if it selects from them.
+     */
+    private static final class CachedRow {
+        private final RowFormat rowFormat;
+        private final Items<Item> children;
+        private final Object row;
+
+        private CachedRow(final RowFormat rowFormat, final Items<Item> children, final Object row) {
+            this.rowFormat = rowFormat;
+            this.children = children;
+            this.row = row;
+        }
+    }
+
+    /**
+     * Something worked out from a list of child items.
+     */
+    private static final class Selection {
+        private final Items<Item> children;
+        private final Object value;
+
+        private Selection(final Items<Item> children, final Object value) {
+            this.children = children;
+            this.value = value;
+        }
+    }
+}
@@ -22,7 +22,27 @@ import java.util.Iterator;
 import java.util.List;
 
 public class ItemsArrayList<E> implements Items<E> {
-    private final List<E> list = new ArrayList<>();
+    private final List<E> list;
+
+    public ItemsArrayList() {
+        list = new ArrayList<>();
+    }
+
+    /**
+     * Create a shallow copy of another list of items, e.g. to take a stable snapshot of a list that is still
+     * being added to.
+     *
+     * @param items The items to copy.
+     */
+    @SuppressWarnings("unchecked")
+    public ItemsArrayList(final Items<E> items) {
+        if (items instanceof ItemsArrayList) {
+            list = new ArrayList<>(((ItemsArrayList<E>) items).list);
+        } else {
+            list = new ArrayList<>(items.size());
+            items.forEach(list::add);
+        }
+    }
 
     @Override
     public boolean add(final E item) {
@@ -0,0 +1,251 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stroom.query.common.v2;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Holds the best items seen so far, up to a maximum number, in a binary heap ordered by a comparator. The worst item
+ * held is kept at the root of the heap so an item that cannot make the top items is rejected with a single
+ * comparison and an item that can replaces the worst in O(log K) time, so keeping K items out of N costs
+ * O(N log K) and never holds more than K items.
+ * <p>
+ * Items that compare as equal are kept in the order they were added, so the items held are exactly those that a
+ * stable sort followed by a trim would keep. Items are always iterated in sorted order; the order is worked out when
+ * the items are first iterated after a change.
+ */
+public class ItemsHeap<E> implements Items<E> {
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final Comparator<E> comparator;
+    private final RemoveHandler<E> removeHandler;
+    private final int maxSize;
+
+    private Object[] items;
+    private long[] sequences;
+    private int size;
+    private long sequence;
+
+    private List<E> sorted;
+
+    /**
+     * @param maxSize       The maximum number of items to hold.
+     * @param comparator    The order of items, best first.
+     * @param removeHandler Told about items that are pushed out of the heap by better items, may be null.
+     */
+    public ItemsHeap(final int maxSize, final Comparator<E> comparator, final RemoveHandler<E> removeHandler) {
+        this.maxSize = maxSize;
+        this.comparator = Objects.requireNonNull(comparator);
+        this.removeHandler = removeHandler;
+
+        final int capacity = Math.max(1, Math.min(maxSize, INITIAL_CAPACITY));
+        items = new Object[capacity];
+        sequences = new long[capacity];
+    }
+
+    /**
+     * Add an item if it is better than the worst item held or there is space for it.
+     *
+     * @param item The item to add.
+     * @return True if the item was added, false if it was rejected.
+     */
+    @Override
+    public boolean add(final E item) {
+        if (size < maxSize) {
+            if (size == items.length) {
+                final int capacity = (int) Math.min(maxSize, items.length * 2L);
+                items = Arrays.copyOf(items, capacity);
+                sequences = Arrays.copyOf(sequences, capacity);
+            }
+
+            items[size] = item;
+            sequences[size] = sequence++;
+            siftUp(size);
+            size++;
+
+        } else {
+            // Only replace the worst item if the new one is strictly better, otherwise the earlier item wins.
+            if (size == 0 || comparator.compare(item, get(0)) >= 0) {
+                return false;
+            }
+
+            final E removed = get(0);
+            items[0] = item;
+            sequences[0] = sequence++;
+            siftDown(items, sequences, size, 0);
+
+            if (removeHandler != null) {
+                removeHandler.onRemove(removed);
+            }
+        }
+
+        sorted = null;
+        return true;
+    }
+
+    @Override
+    public boolean remove(final E item) {
+        for (int i = 0; i < size; i++) {
+            if (Objects.equals(item, items[i])) {
+                removeAt(i);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return The worst item held if the heap is full, as any item that is not better than this will be rejected,
+     * or null if the heap still has space.
+     */
+    public E getThreshold() {
+        if (size == 0 || size < maxSize) {
+            return null;
+        }
+        return get(0);
+    }
+
+    /**
+     * Items are always held in the order of the comparator supplied when the heap was created so there is nothing
+     * to do here.
+     */
+    @Override
+    public void sort(final Comparator<E> comparator) {
+    }
+
+    @Override
+    public void sortAndTrim(final int size, final Comparator<E> comparator, final RemoveHandler<E> removeHandler) {
+        // The worst item is always at the root so trim by removing it.
+        while (this.size > size) {
+            final E lastItem = get(0);
+            removeAt(0);
+
+            // Tell the remove handler that we have removed an item.
+            if (removeHandler != null) {
+                removeHandler.onRemove(lastItem);
+            }
+        }
+    }
+
+    @Override
+    public Iterator<E> iterator() {
+        return getSorted().iterator();
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<E> getSorted() {
+        if (sorted == null) {
+            // Pop a copy of the heap, worst first, filling the array from the end.
+            final Object[] heapItems = Arrays.copyOf(items, size);
+            final long[] heapSequences = Arrays.copyOf(sequences, size);
+            final Object[] array = new Object[size];
+            for (int heapSize = size; heapSize > 0; heapSize--) {
+                array[heapSize - 1] = heapItems[0];
+                heapItems[0] = heapItems[heapSize - 1];
+                heapSequences[0] = heapSequences[heapSize - 1];
+                siftDown(heapItems, heapSequences, heapSize - 1, 0);
+            }
+            sorted = Collections.unmodifiableList((List<E>) Arrays.asList(array));
+        }
+        return sorted;
+    }
+
+    @SuppressWarnings("unchecked")
+    private E get(final int index) {
+        return (E) items[index];
+    }
+
+    private void removeAt(final int index) {
+        size--;
+        if (index < size) {
+            items[index] = items[size];
+            sequences[index] = sequences[size];
+            siftDown(items, sequences, size, index);
+            siftUp(index);
+        }
+        items[size] = null;
+        sorted = null;
+    }
+
+    private void siftUp(final int index) {
+        int child = index;
+        while (child > 0) {
+            final int parent = (child - 1) >>> 1;
+            if (!isWorse(items, sequences, child, parent)) {
+                break;
+            }
+            swap(items, sequences, child, parent);
+            child = parent;
+        }
+    }
+
+    private void siftDown(final Object[] items, final long[] sequences, final int size, final int index) {
+        int parent = index;
+        while (true) {
+            final int left = (parent << 1) + 1;
+            if (left >= size) {
+                break;
+            }
+
+            int worst = left;
+            final int right = left + 1;
+            if (right < size && isWorse(items, sequences, right, left)) {
+                worst = right;
+            }
+            if (!isWorse(items, sequences, worst, parent)) {
+                break;
+            }
+            swap(items, sequences, worst, parent);
+            parent = worst;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private boolean isWorse(final Object[] items, final long[] sequences, final int i, final int j) {
+        final int res = comparator.compare((E) items[i], (E) items[j]);
+        if (res != 0) {
+            return res > 0;
+        }
+        // Items added later are worse than equal items added earlier.
+        return sequences[i] > sequences[j];
+    }
+
+    private static void swap(final Object[] items, final long[] sequences, final int i, final int j) {
+        final Object item = items[i];
+        items[i] = items[j];
+        items[j] = item;
+
+        final long sequence = sequences[i];
+        sequences[i] = sequences[j];
+        sequences[j] = sequence;
+    }
+
+    @Override
+    public String toString() {
+        return getSorted().toString();
+    }
+}
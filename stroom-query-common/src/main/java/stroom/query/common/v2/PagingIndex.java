@@ -0,0 +1,136 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stroom.query.common.v2;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An index of the rows that are visible in a table for a particular set of open groups and maximum result sizes.
+ * For every list of items that is visible the index holds the number of visible rows that come before each item, so
+ * the item that is shown at any row can be found with a binary search at each depth rather than by walking every row
+ * before it.
+ */
+class PagingIndex {
+    private final Set<GroupKey> openGroups;
+    private final Sizes maxResults;
+    private final Map<GroupKey, Level> levels = new HashMap<>();
+    private final int totalRows;
+
+    PagingIndex(final Data data, final Set<GroupKey> openGroups, final Sizes maxResults) {
+        this.openGroups = openGroups;
+        this.maxResults = maxResults;
+        this.totalRows = build(data, null, 0);
+    }
+
+    private int build(final Data data, final GroupKey parentKey, final int depth) {
+        final Items<Item> items = data.getChildMap().get(parentKey);
+        if (items == null) {
+            return 0;
+        }
+
+        // Only the maximum number of results for this depth are ever shown.
+        final int count = Math.min(items.size(), maxResults.size(depth));
+        final Item[] array = new Item[count];
+        final int[] rowsBefore = new int[count + 1];
+        int i = 0;
+        for (final Item item : items) {
+            if (i >= count) {
+                break;
+            }
+
+            array[i] = item;
+            int rows = 1;
+            if (item.getKey() != null && openGroups.contains(item.getKey())) {
+                rows += build(data, item.getKey(), depth + 1);
+            }
+            rowsBefore[i + 1] = rowsBefore[i] + rows;
+            i++;
+        }
+
+        levels.put(parentKey, new Level(array, rowsBefore));
+        return rowsBefore[count];
+    }
+
+    boolean matches(final Set<GroupKey> openGroups, final Sizes maxResults) {
+        return this.openGroups.equals(openGroups) && this.maxResults.equals(maxResults);
+    }
+
+    int getTotalRows() {
+        return totalRows;
+    }
+
+    /**
+     * Visit the visible rows in a range.
+     *
+     * @param offset  The index of the first row to visit.
+     * @param length  The maximum number of rows to visit.
+     * @param visitor The visitor to pass each row to.
+     */
+    void visit(final int offset, final int length, final RowVisitor visitor) {
+        visit(null, Math.max(0, offset), length, visitor);
+    }
+
+    private int visit(final GroupKey parentKey, final int offset, final int length, final RowVisitor visitor) {
+        final Level level = levels.get(parentKey);
+        if (level == null || length <= 0) {
+            return 0;
+        }
+
+        // Find the item whose rows contain the offset.
+        int index = Arrays.binarySearch(level.rowsBefore, offset);
+        if (index < 0) {
+            // The offset is within the children of the item before the insertion point.
+            index = -index - 2;
+        }
+
+        int visited = 0;
+        for (int i = index; i < level.items.length && visited < length; i++) {
+            final Item item = level.items[i];
+            final int start = level.rowsBefore[i];
+
+            // The row for the item itself comes before its children.
+            if (start >= offset) {
+                visitor.visit(item);
+                visited++;
+            }
+
+            if (level.rowsBefore[i + 1] - start > 1) {
+                // The item is open so visit the rows of its children that are in range.
+                final int childOffset = Math.max(0, offset - start - 1);
+                visited += visit(item.getKey(), childOffset, length - visited, visitor);
+            }
+        }
+        return visited;
+    }
+
+    interface RowVisitor {
+        void visit(Item item);
+    }
+
+    private static class Level {
+        private final Item[] items;
+        private final int[] rowsBefore;
+
+        Level(final Item[] items, final int[] rowsBefore) {
+            this.items = items;
+            this.rowsBefore = rowsBefore;
+        }
+    }
+}
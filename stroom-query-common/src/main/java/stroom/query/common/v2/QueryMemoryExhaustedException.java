@@ -0,0 +1,26 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package stroom.query.common.v2;
+
+/**
+ * Thrown when a new search can't be started because the searches that are already cached hold as many results as the
+ * query memory budget allows.
+ */
+public class QueryMemoryExhaustedException extends RuntimeException {
+    public QueryMemoryExhaustedException(final String message) {
+        super(message);
+    }
+}
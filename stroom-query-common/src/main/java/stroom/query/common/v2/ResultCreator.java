@@ -16,9 +16,27 @@
 
 package stroom.query.common.v2;
 
+import com.fasterxml.jackson.core.JsonGenerator;
 import stroom.query.api.v2.Result;
 import stroom.query.api.v2.ResultRequest;
 
+import java.io.IOException;
+
 public interface ResultCreator {
     Result create(Data data, ResultRequest resultRequest);
+
+    /**
+     * Write the result straight to a JSON generator in the same shape that serialising the output of
+     * {@link #create(Data, ResultRequest)} would produce. Creators that can produce their rows one at a time should
+     * override this so that large results are never held in memory in full.
+     *
+     * @param data          The data to create the result from.
+     * @param resultRequest The request for the result.
+     * @param generator     The generator to write the result to. The generator must have an object codec.
+     * @throws IOException If the result cannot be written.
+     */
+    default void write(final Data data, final ResultRequest resultRequest, final JsonGenerator generator)
+            throws IOException {
+        generator.writeObject(create(data, resultRequest));
+    }
 }
@@ -24,4 +24,28 @@ public interface ResultHandler {
     boolean handle(Map<CoprocessorKey, Payload> payloadMap);
 
     Data getResultStore(String componentId);
+
+    /**
+     * Release anything held for the results, e.g. temporary files that results have been spilled to. Stores should
+     * call this when they are destroyed.
+     */
+    default void destroy() {
+    }
+
+    /**
+     * Move the results to a compact read only form once no more results will be received. Stores should call this
+     * when the search is complete.
+     */
+    default void freeze() {
+    }
+
+    /**
+     * Estimate the number of bytes taken up by the results held for all components. This is used to weigh cached
+     * searches against a memory budget so it must be cheap, e.g. read a counter rather than take a snapshot.
+     *
+     * @return The estimated number of bytes held, or zero if unknown.
+     */
+    default long getEstimatedByteSize() {
+        return 0;
+    }
 }
@@ -1,6 +1,6 @@
 package stroom.query.common.v2;
 
-import stroom.mapreduce.v2.Pair;
+import stroom.mapreduce.v2.PairCursor;
 import stroom.mapreduce.v2.Reader;
 import stroom.mapreduce.v2.Source;
 
@@ -9,10 +9,22 @@ import java.util.Map;
 
 public class ResultStoreCreator implements Reader<GroupKey, Item> {
     private final CompiledSorter sorter;
+    private final Sizes storeSize;
     private final Map<GroupKey, Items<Item>> childMap;
 
     public ResultStoreCreator(final CompiledSorter sorter) {
+        this(sorter, null);
+    }
+
+    /**
+     * @param sorter    The sorter to order items with.
+     * @param storeSize The number of items that will be kept at each depth. If this is supplied and the items are
+     *                  sorted then ungrouped items are kept in a bounded heap as they are read so that items that
+     *                  will be trimmed are never held.
+     */
+    public ResultStoreCreator(final CompiledSorter sorter, final Sizes storeSize) {
         this.sorter = sorter;
+        this.storeSize = storeSize;
         childMap = new HashMap<>();
     }
 
@@ -27,17 +39,25 @@ public class ResultStoreCreator implements Reader<GroupKey, Item> {
     @Override
     public void read(final Source<GroupKey, Item> source) {
         // We should now have a reduction in the reducedQueue.
-        for (final Pair<GroupKey, Item> pair : source) {
-            final Item item = pair.getValue();
+        final PairCursor<GroupKey, Item> cursor = source.cursor();
+        while (cursor.next()) {
+            final Item item = cursor.getValue();
 
             if (item.key != null) {
                 childMap.computeIfAbsent(item.key.getParent(), k -> new ItemsArrayList<>()).add(item);
             } else {
-                childMap.computeIfAbsent(null, k -> new ItemsArrayList<>()).add(item);
+                childMap.computeIfAbsent(null, k -> createUngroupedItems()).add(item);
             }
         }
     }
 
+    private Items<Item> createUngroupedItems() {
+        if (storeSize != null && sorter != null && sorter.hasSort()) {
+            return new ItemsHeap<>(storeSize.size(0), sorter, null);
+        }
+        return new ItemsArrayList<>();
+    }
+
     public void sortAndTrim(final Sizes storeSize) {
         sortAndTrim(storeSize, null, 0);
     }
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stroom.query.common.v2;
+
+import stroom.query.api.v2.Field;
+
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Identifies the way that the values of an item are turned into a row, i.e. the fields and their formats along with
+ * the formatter that is applied to them, so that formatted rows can be cached by {@link ItemValues}. The hash is
+ * worked out once as a format is used to look up a row for every item that is shown.
+ */
+class RowFormat {
+    private final Object formatter;
+    private final List<Field> fields;
+    private final int hash;
+
+    RowFormat(final Object formatter, final List<Field> fields) {
+        this.formatter = formatter;
+        this.fields = fields;
+        this.hash = Objects.hash(formatter, fields);
+    }
+
+    /**
+     * Get a format for a set of fields, reusing the previous format if it is the same so that cache lookups can
+     * usually compare formats by identity.
+     *
+     * @param previous  The format that was used last time, may be null.
+     * @param formatter The object that formats the values, or that identifies the kind of formatting applied.
+     * @param fields    The fields of the result.
+     * @return A format for the fields.
+     */
+    static RowFormat get(final RowFormat previous, final Object formatter, final List<Field> fields) {
+        if (previous != null && previous.formatter.equals(formatter) && Objects.equals(previous.fields, fields)) {
+            return previous;
+        }
+        return new RowFormat(formatter, fields);
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        final RowFormat rowFormat = (RowFormat) o;
+        return hash == rowFormat.hash &&
+                formatter.equals(rowFormat.formatter) &&
+                Objects.equals(fields, rowFormat.fields);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+}
@@ -0,0 +1,275 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package stroom.query.common.v2;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import stroom.docref.DocRef;
+import stroom.query.api.v2.ExpressionItem;
+import stroom.query.api.v2.ExpressionOperator;
+import stroom.query.api.v2.ExpressionOperator.Op;
+import stroom.query.api.v2.ExpressionParamUtil;
+import stroom.query.api.v2.ExpressionTerm;
+import stroom.query.api.v2.Param;
+import stroom.query.api.v2.Query;
+import stroom.query.api.v2.ResultRequest;
+import stroom.query.api.v2.SearchRequest;
+import stroom.query.api.v2.TableSettings;
+
+import java.io.UncheckedIOException;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Creates a canonical form of everything about a search that affects the results a store holds, so that searches
+ * that would produce the same results have the same fingerprint. Only the user, the query and the table settings of
+ * each component are included, things that only affect how results are returned to the client, e.g. the date time
+ * locale, are not.
+ * <p>
+ * Expressions are normalised so that trivially different ways of writing the same expression are equal. Disabled
+ * items are removed, nested operators of the same type are flattened into their parent, the children of operators
+ * are sorted, parameters are replaced and the values of terms on date fields, including relative dates, are resolved
+ * to absolute times. The values of terms on other fields are kept as they are.
+ */
+final class SearchFingerprint {
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private SearchFingerprint() {
+        // Utility class.
+    }
+
+    /**
+     * @param searchRequest The search to create a fingerprint for.
+     * @param userId        The identity of the user running the search, or null if results don't depend on the user.
+     * @param dateFields    The names of the fields that hold dates.
+     * @param nowEpochMilli The time to resolve relative dates against.
+     * @return The fingerprint of the search.
+     */
+    static String create(final SearchRequest searchRequest,
+                         final String userId,
+                         final Set<String> dateFields,
+                         final long nowEpochMilli) {
+        return create(searchRequest, userId, null, dateFields, nowEpochMilli);
+    }
+
+    /**
+     * @param searchRequest The search to create a fingerprint for.
+     * @param userId        The identity of the user running the search, or null if results don't depend on the user.
+     * @param excludedItem  An item of the expression to leave out of the fingerprint, e.g. a time range that is dealt
+     *                      with separately, or null.
+     * @param dateFields    The names of the fields that hold dates.
+     * @param nowEpochMilli The time to resolve relative dates against.
+     * @return The fingerprint of the search.
+     */
+    static String create(final SearchRequest searchRequest,
+                         final String userId,
+                         final ExpressionItem excludedItem,
+                         final Set<String> dateFields,
+                         final long nowEpochMilli) {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("user=");
+        appendString(sb, userId);
+        sb.append(',');
+
+        final Query query = searchRequest.getQuery();
+        if (query != null) {
+            sb.append("dataSource=");
+            appendDocRef(sb, query.getDataSource());
+
+            final Context context = new Context(excludedItem, ExpressionParamUtil.createParamMap(query.getParams()),
+                    dateFields, nowEpochMilli);
+            sb.append(",expression=");
+            final String expression = query.getExpression() == null
+                    ? null
+                    : canonicalise(query.getExpression(), context);
+            sb.append(expression);
+
+            sb.append(",params=");
+            final Map<String, String> params = new TreeMap<>();
+            if (query.getParams() != null) {
+                for (final Param param : query.getParams()) {
+                    params.put(String.valueOf(param.getKey()), param.getValue());
+                }
+            }
+            params.forEach((key, value) -> {
+                appendString(sb, key);
+                sb.append('=');
+                appendString(sb, value);
+                sb.append(',');
+            });
+        }
+
+        // Stores hold results for each component using the first table settings of the component.
+        sb.append("components=");
+        final Map<String, String> components = new TreeMap<>();
+        if (searchRequest.getResultRequests() != null) {
+            for (final ResultRequest resultRequest : searchRequest.getResultRequests()) {
+                final List<TableSettings> mappings = resultRequest.getMappings();
+                final TableSettings tableSettings = mappings == null || mappings.isEmpty() ? null : mappings.get(0);
+                components.put(String.valueOf(resultRequest.getComponentId()), toJson(tableSettings));
+            }
+        }
+        components.forEach((componentId, tableSettings) -> {
+            appendString(sb, componentId);
+            sb.append('=');
+            sb.append(tableSettings);
+            sb.append(',');
+        });
+
+        return sb.toString();
+    }
+
+    /**
+     * @return The canonical form of an expression item, or null if the item is disabled.
+     */
+    private static String canonicalise(final ExpressionItem item, final Context context) {
+        if (!item.enabled()) {
+            return null;
+        }
+
+        if (item instanceof ExpressionOperator) {
+            final ExpressionOperator operator = (ExpressionOperator) item;
+            final List<String> children = new ArrayList<>();
+            addChildren(operator, operator.op(), children, context);
+
+            // The order of children never changes what an operator matches.
+            Collections.sort(children);
+            return operator.op().name() + children;
+        }
+
+        final ExpressionTerm term = (ExpressionTerm) item;
+        final StringBuilder sb = new StringBuilder("term(");
+        appendString(sb, term.getField());
+        sb.append(',');
+        sb.append(term.getCondition());
+        sb.append(',');
+        appendString(sb, resolveValue(term, context));
+        sb.append(',');
+        appendDocRef(sb, term.getDocRef());
+        sb.append(')');
+        return sb.toString();
+    }
+
+    private static void addChildren(final ExpressionOperator operator,
+                                    final Op op,
+                                    final List<String> children,
+                                    final Context context) {
+        if (operator.getChildren() == null) {
+            return;
+        }
+
+        for (final ExpressionItem child : operator.getChildren()) {
+            if (child.enabled() && child != context.excludedItem) {
+                // AND(a, AND(b, c)) is the same as AND(a, b, c), and the same goes for OR.
+                if (op != Op.NOT && child instanceof ExpressionOperator && ((ExpressionOperator) child).op() == op) {
+                    addChildren((ExpressionOperator) child, op, children, context);
+                } else {
+                    children.add(canonicalise(child, context));
+                }
+            }
+        }
+    }
+
+    /**
+     * Replace parameters in a term value and, if the term is on a date field, resolve each comma separated part that
+     * is a date to epoch milliseconds.
+     */
+    private static String resolveValue(final ExpressionTerm term, final Context context) {
+        if (term.getValue() == null) {
+            return null;
+        }
+
+        final String replaced = ExpressionParamUtil.replaceParameters(term.getValue(), context.paramMap);
+        if (context.dateFields == null || !context.dateFields.contains(term.getField())) {
+            return replaced;
+        }
+
+        final String[] parts = replaced.split(",", -1);
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < parts.length; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(resolveDate(parts[i].trim(), context.nowEpochMilli));
+        }
+        return sb.toString();
+    }
+
+    private static String resolveDate(final String value, final long nowEpochMilli) {
+        if (value.isEmpty()) {
+            return value;
+        }
+
+        try {
+            final Optional<ZonedDateTime> time = DateExpressionParser.parse(value, nowEpochMilli);
+            if (time.isPresent()) {
+                return "date(" + time.get().toInstant().toEpochMilli() + ")";
+            }
+        } catch (final RuntimeException e) {
+            // Not a date.
+        }
+        return value;
+    }
+
+    private static void appendDocRef(final StringBuilder sb, final DocRef docRef) {
+        if (docRef == null) {
+            sb.append("null");
+        } else {
+            // The name of a document can change without changing the document that is searched.
+            sb.append("docRef(");
+            appendString(sb, docRef.getType());
+            sb.append(',');
+            appendString(sb, docRef.getUuid());
+            sb.append(')');
+        }
+    }
+
+    private static void appendString(final StringBuilder sb, final String string) {
+        // Quote strings so that values containing separators can't be confused with the structure around them.
+        sb.append(toJson(string));
+    }
+
+    private static String toJson(final Object object) {
+        try {
+            return OBJECT_MAPPER.writeValueAsString(object);
+        } catch (final JsonProcessingException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static final class Context {
+        private final ExpressionItem excludedItem;
+        private final Map<String, String> paramMap;
+        private final Set<String> dateFields;
+        private final long nowEpochMilli;
+
+        private Context(final ExpressionItem excludedItem,
+                        final Map<String, String> paramMap,
+                        final Set<String> dateFields,
+                        final long nowEpochMilli) {
+            this.excludedItem = excludedItem;
+            this.paramMap = paramMap;
+            this.dateFields = dateFields;
+            this.nowEpochMilli = nowEpochMilli;
+        }
+    }
+}
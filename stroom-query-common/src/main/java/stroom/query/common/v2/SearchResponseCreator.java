@@ -16,6 +16,8 @@
 
 package stroom.query.common.v2;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import stroom.query.api.v2.Result;
@@ -29,6 +31,8 @@ import stroom.query.common.v2.format.FieldFormatter;
 import stroom.query.common.v2.format.FormatterFactory;
 import stroom.query.util.LambdaLogger;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -50,6 +54,8 @@ public class SearchResponseCreator {
 
     // Cache the last results for each component.
     private final Map<String, Result> resultCache = new HashMap<>();
+    // Track the last table results delivered to clients that ask for changes since a version.
+    private final Map<String, TableDeltaCreator> tableDeltaCreators = new HashMap<>();
 
     /**
      * @param store The underlying store to use for creating the search responses.
@@ -77,6 +83,14 @@ public class SearchResponseCreator {
         store.destroy();
     }
 
+    /**
+     * @return The estimated number of bytes taken up by the results that the store holds, see
+     * {@link Store#getEstimatedByteSize()}.
+     */
+    long getEstimatedByteSize() {
+        return store.getEstimatedByteSize();
+    }
+
     /**
      * Build a {@link SearchResponse} from the passed {@link SearchRequest}.
      *
@@ -93,33 +107,9 @@ public class SearchResponseCreator {
      * </ul>
      */
     public SearchResponse create(final SearchRequest searchRequest) {
-        final boolean didSearchComplete;
-
-        if (!store.isComplete()) {
-            LOGGER.debug("Store not complete so will wait for completion or timeout");
-            try {
-                final Duration effectiveTimeout = getEffectiveTimeout(searchRequest);
-
-                LOGGER.debug("effectiveTimeout: {}", effectiveTimeout);
-
-                // Block and wait for the store to notify us of its completion/termination, or if the wait is too long
-                // we will timeout
-                didSearchComplete = store.awaitCompletion(effectiveTimeout.toMillis(), TimeUnit.MILLISECONDS);
-
-                if (!didSearchComplete && !searchRequest.incremental()) {
-                    // Search didn't complete non-incremental search in time so return a timed out error response
-                    return createErrorResponse(
-                            store,
-                            Collections.singletonList(
-                                    LambdaLogger.buildMessage("The search timed out after {}", effectiveTimeout.toString())));
-                }
-
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-                LOGGER.debug("Thread {} interrupted", Thread.currentThread().getName(), e);
-                return createErrorResponse(
-                        store, Collections.singletonList("Thread was interrupted before the search could complete"));
-            }
+        final SearchResponse errorResponse = awaitCompletion(searchRequest);
+        if (errorResponse != null) {
+            return errorResponse;
         }
 
         // We will only get here if the search is complete or it is an incremental search in which case we don't care
@@ -151,6 +141,113 @@ public class SearchResponseCreator {
         }
     }
 
+    /**
+     * Write the {@link SearchResponse} for the passed {@link SearchRequest} to an output stream as JSON. The JSON is
+     * the same as serialising the response returned by {@link #create(SearchRequest)} but results that are fetched in
+     * full are written row by row as they are created so the whole response is never held in memory.
+     * <p>
+     * Errors that happen before any of the response has been written are written as an error response, as they are
+     * by {@link #create(SearchRequest)}. Once the response has been started an error can't be reported in it, so the
+     * JSON is left unfinished and the error is thrown to make sure the client never receives a partial response that
+     * looks complete.
+     *
+     * @param searchRequest The {@link SearchRequest} containing the query terms and the result requests
+     * @param outputStream  The stream to write the response to. The stream is flushed but not closed.
+     * @param objectMapper  The mapper to write the response with. This should be the mapper that the application
+     *                      serialises responses that are not streamed with so that the JSON is the same.
+     * @throws IOException If the response cannot be written.
+     */
+    public void write(final SearchRequest searchRequest,
+                      final OutputStream outputStream,
+                      final ObjectMapper objectMapper) throws IOException {
+        try (final JsonGenerator generator = objectMapper.getFactory().createGenerator(outputStream)) {
+            // Apply the serialisation features of the mapper, e.g. indenting, as the mapper would for a whole response.
+            objectMapper.getSerializationConfig().initialize(generator);
+            generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            // Don't close open arrays and objects if writing fails part way through.
+            generator.disable(JsonGenerator.Feature.AUTO_CLOSE_JSON_CONTENT);
+
+            final SearchResponse errorResponse = awaitCompletion(searchRequest);
+            if (errorResponse != null) {
+                generator.writeObject(errorResponse);
+                return;
+            }
+
+            try {
+                writeResponse(searchRequest, generator);
+
+            } catch (final RuntimeException e) {
+                LOGGER.error("Error writing search results for query {}", searchRequest.getKey().toString(), e);
+
+                if (!generator.getOutputContext().inRoot() || generator.getOutputContext().getEntryCount() > 0) {
+                    throw e;
+                }
+
+                generator.writeObject(createErrorResponse(
+                        store, Collections.singletonList(
+                                LambdaLogger.buildMessage(
+                                        "Error getting search results: [{}], see service's logs for details",
+                                        e.getMessage()))));
+            }
+        }
+    }
+
+    private void writeResponse(final SearchRequest searchRequest, final JsonGenerator generator) throws IOException {
+        // Get completion state before we get results.
+        final boolean complete = store.isComplete();
+        // Get anything that might fail before the response is started so the failure can still be reported.
+        final List<String> highlights = store.getHighlights();
+
+        generator.writeStartObject();
+        if (highlights != null) {
+            generator.writeObjectField("highlights", highlights);
+        }
+        writeResults(searchRequest, generator);
+        if (store.getErrors() != null) {
+            generator.writeObjectField("errors", store.getErrors());
+        }
+        generator.writeBooleanField("complete", complete);
+        generator.writeEndObject();
+    }
+
+    /**
+     * Wait for the store to complete if the request needs it to.
+     *
+     * @return An error response if the search should not return results, otherwise null.
+     */
+    private SearchResponse awaitCompletion(final SearchRequest searchRequest) {
+        if (!store.isComplete()) {
+            LOGGER.debug("Store not complete so will wait for completion or timeout");
+            try {
+                final Duration effectiveTimeout = getEffectiveTimeout(searchRequest);
+
+                LOGGER.debug("effectiveTimeout: {}", effectiveTimeout);
+
+                // Block and wait for the store to notify us of its completion/termination, or if the wait is too long
+                // we will timeout
+                final boolean didSearchComplete = store.awaitCompletion(effectiveTimeout.toMillis(), TimeUnit.MILLISECONDS);
+
+                if (!didSearchComplete && !searchRequest.incremental()) {
+                    // Search didn't complete non-incremental search in time so return a timed out error response
+                    return createErrorResponse(
+                            store,
+                            Collections.singletonList(
+                                    LambdaLogger.buildMessage("The search timed out after {}", effectiveTimeout.toString())));
+                }
+
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                LOGGER.debug("Thread {} interrupted", Thread.currentThread().getName(), e);
+                return createErrorResponse(
+                        store, Collections.singletonList("Thread was interrupted before the search could complete"));
+            }
+        }
+
+        // We will only get here if the search is complete or it is an incremental search in which case we don't care
+        // about completion state.
+        return null;
+    }
+
     /**
      * @param errorMessages List of errors to add to the {@link SearchResponse}
      * @return An empty {@link SearchResponse} with the passed error messages
@@ -201,71 +298,144 @@ public class SearchResponseCreator {
         List<Result> results = new ArrayList<>(searchRequest.getResultRequests().size());
         // Copy the requested portion of the result cache into the result.
         for (final ResultRequest resultRequest : searchRequest.getResultRequests()) {
-            final String componentId = resultRequest.getComponentId();
+            final Result result = getResult(searchRequest, resultRequest);
+            if (result != null) {
+                results.add(result);
+            }
+        }
+        return results;
+    }
 
-            // Only deliver data to components that actually want it.
+    private void writeResults(final SearchRequest searchRequest, final JsonGenerator generator) throws IOException {
+        // The results property is left out altogether if there are no results, as it is when creating a response.
+        boolean started = false;
+        for (final ResultRequest resultRequest : searchRequest.getResultRequests()) {
+            final String componentId = resultRequest.getComponentId();
             final Fetch fetch = resultRequest.getFetch();
-            if (!Fetch.NONE.equals(fetch)) {
-                Result result = null;
 
+            if (fetch == null || Fetch.ALL.equals(fetch)) {
+                // The full result is wanted so write it straight out rather than creating it first.
                 final Data data = store.getData(componentId);
                 if (data != null) {
+                    Result errorResult = null;
+                    ResultCreator resultCreator = null;
                     try {
-                        final ResultCreator resultCreator = getResultCreator(componentId,
+                        resultCreator = getResultCreator(componentId,
                                 resultRequest, searchRequest.getDateTimeLocale());
-                        if (resultCreator != null) {
-                            result = resultCreator.create(data, resultRequest);
-                        }
                     } catch (final RuntimeException e) {
-                        result = new TableResult(componentId, null, null, null, 0, e.getMessage());
+                        errorResult = new TableResult(componentId, null, null, null, 0, e.getMessage());
+                    }
+
+                    if (errorResult != null || resultCreator != null) {
+                        if (!started) {
+                            generator.writeArrayFieldStart("results");
+                            started = true;
+                        }
+
+                        if (errorResult != null) {
+                            generator.writeObject(errorResult);
+                        } else {
+                            resultCreator.write(data, resultRequest, generator);
+                            LOGGER.debug("Delivered result for {}", componentId);
+                        }
                     }
                 }
 
+            } else {
+                // Changes are worked out by comparing with a previous result so the result has to be created.
+                final Result result = getResult(searchRequest, resultRequest);
                 if (result != null) {
-                    if (fetch == null || Fetch.ALL.equals(fetch)) {
-                        // If the fetch option has not been set or is set to ALL we deliver the full result.
-                        results.add(result);
-                        LOGGER.info("Delivering " + result + " for " + componentId);
-
-                    } else if (Fetch.CHANGES.equals(fetch)) {
-                        // Cache the new result and get the previous one.
-                        final Result lastResult = resultCache.put(componentId, result);
-
-                        // See if we have delivered an identical result before so we
-                        // don't send more data to the client than we need to.
-                        if (!result.equals(lastResult)) {
-                            //
-                            // CODE TO HELP DEBUGGING.
-                            //
-
-                            // try {
-                            // if (lastComponentResult instanceof
-                            // ChartResult) {
-                            // final ChartResult lr = (ChartResult)
-                            // lastComponentResult;
-                            // final ChartResult cr = (ChartResult)
-                            // componentResult;
-                            // final File dir = new
-                            // File(FileUtil.getTempDir());
-                            // StreamUtil.stringToFile(lr.getJSON(), new
-                            // File(dir, "last.json"));
-                            // StreamUtil.stringToFile(cr.getJSON(), new
-                            // File(dir, "current.json"));
-                            // }
-                            // } catch (final RuntimeException e) {
-                            // LOGGER.error(e.getMessage(), e);
-                            // }
-
-                            // Either we haven't returned a result before or this result
-                            // is different from the one delivered previously so deliver it to the client.
-                            results.add(result);
-                            LOGGER.info("Delivering {} for {}", result, componentId);
-                        }
+                    if (!started) {
+                        generator.writeArrayFieldStart("results");
+                        started = true;
                     }
+                    generator.writeObject(result);
                 }
             }
         }
-        return results;
+
+        if (started) {
+            generator.writeEndArray();
+        }
+    }
+
+    private Result getResult(final SearchRequest searchRequest, final ResultRequest resultRequest) {
+        final String componentId = resultRequest.getComponentId();
+
+        // Only deliver data to components that actually want it.
+        final Fetch fetch = resultRequest.getFetch();
+        if (!Fetch.NONE.equals(fetch)) {
+            Result result = null;
+
+            final Data data = store.getData(componentId);
+            if (data != null) {
+                try {
+                    final ResultCreator resultCreator = getResultCreator(componentId,
+                            resultRequest, searchRequest.getDateTimeLocale());
+                    if (resultCreator != null) {
+                        result = resultCreator.create(data, resultRequest);
+                    }
+                } catch (final RuntimeException e) {
+                    result = new TableResult(componentId, null, null, null, 0, e.getMessage());
+                }
+            }
+
+            if (result != null) {
+                if (fetch == null || Fetch.ALL.equals(fetch)) {
+                    // If the fetch option has not been set or is set to ALL we deliver the full result.
+                    LOGGER.info("Delivering " + result + " for " + componentId);
+                    return result;
+
+                } else if (Fetch.CHANGES.equals(fetch) &&
+                        resultRequest.getBaseVersion() != null &&
+                        result instanceof TableResult) {
+                    // The client holds a versioned table result so only send the rows that have changed.
+                    final Result delta = tableDeltaCreators
+                            .computeIfAbsent(componentId, k -> new TableDeltaCreator())
+                            .create((TableResult) result, resultRequest.getBaseVersion());
+                    if (delta != null) {
+                        LOGGER.debug("Delivering {} for {}", delta, componentId);
+                    }
+                    return delta;
+
+                } else if (Fetch.CHANGES.equals(fetch)) {
+                    // Cache the new result and get the previous one.
+                    final Result lastResult = resultCache.put(componentId, result);
+
+                    // See if we have delivered an identical result before so we
+                    // don't send more data to the client than we need to.
+                    if (!result.equals(lastResult)) {
+                        //
+                        // CODE TO HELP DEBUGGING.
+                        //
+
+                        // try {
+                        // if (lastComponentResult instanceof
+                        // ChartResult) {
+                        // final ChartResult lr = (ChartResult)
+                        // lastComponentResult;
+                        // final ChartResult cr = (ChartResult)
+                        // componentResult;
+                        // final File dir = new
+                        // File(FileUtil.getTempDir());
+                        // StreamUtil.stringToFile(lr.getJSON(), new
+                        // File(dir, "last.json"));
+                        // StreamUtil.stringToFile(cr.getJSON(), new
+                        // File(dir, "current.json"));
+                        // }
+                        // } catch (final RuntimeException e) {
+                        // LOGGER.error(e.getMessage(), e);
+                        // }
+
+                        // Either we haven't returned a result before or this result
+                        // is different from the one delivered previously so deliver it to the client.
+                        LOGGER.info("Delivering {} for {}", result, componentId);
+                        return result;
+                    }
+                }
+            }
+        }
+        return null;
     }
 
     private ResultCreator getResultCreator(final String componentId,
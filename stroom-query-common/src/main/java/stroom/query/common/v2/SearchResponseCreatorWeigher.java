@@ -0,0 +1,94 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package stroom.query.common.v2;
+
+import com.google.common.cache.Weigher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import stroom.query.api.v2.QueryKey;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Weighs each cached {@link SearchResponseCreator} by the estimated number of bytes taken up by the results its store
+ * holds, see {@link Store#getEstimatedByteSize()}. Cache weights are ints so they are measured in kilobytes, and every entry weighs at least one so that empty
+ * searches still count towards the maximum weight.
+ * <p>
+ * The last estimate for each entry is remembered so that the cache can tell when an entry needs weighing again, and so
+ * that the estimates can be reported.
+ */
+final class SearchResponseCreatorWeigher implements Weigher<SearchResponseCreatorCache.Key, SearchResponseCreator> {
+    private static final Logger LOGGER = LoggerFactory.getLogger(SearchResponseCreatorWeigher.class);
+
+    private static final long BYTES_PER_WEIGHT = 1024;
+
+    private final Map<SearchResponseCreatorCache.Key, Long> byteSizes = new ConcurrentHashMap<>();
+
+    @Override
+    public int weigh(final SearchResponseCreatorCache.Key key, final SearchResponseCreator searchResponseCreator) {
+        final long bytes = estimate(key, searchResponseCreator);
+        byteSizes.put(key, bytes);
+        return toWeight(bytes);
+    }
+
+    /**
+     * @return True if the weight of an entry has changed since it was last weighed.
+     */
+    boolean hasChanged(final SearchResponseCreatorCache.Key key, final SearchResponseCreator searchResponseCreator) {
+        final Long bytes = byteSizes.get(key);
+        return bytes == null || toWeight(bytes) != toWeight(estimate(key, searchResponseCreator));
+    }
+
+    void remove(final SearchResponseCreatorCache.Key key) {
+        byteSizes.remove(key);
+    }
+
+    /**
+     * @return The estimated number of bytes taken up by all entries when they were last weighed.
+     */
+    long getTotalByteSize() {
+        long total = 0;
+        for (final Long bytes : byteSizes.values()) {
+            total += bytes;
+        }
+        return total;
+    }
+
+    /**
+     * @return The estimated number of bytes taken up by each entry when it was last weighed.
+     */
+    Map<QueryKey, Long> getByteSizes() {
+        final Map<QueryKey, Long> map = new HashMap<>();
+        byteSizes.forEach((key, bytes) -> map.put(key.getQueryKey(), bytes));
+        return map;
+    }
+
+    static int toWeight(final long bytes) {
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(1, bytes / BYTES_PER_WEIGHT));
+    }
+
+    private long estimate(final SearchResponseCreatorCache.Key key, final SearchResponseCreator searchResponseCreator) {
+        try {
+            return searchResponseCreator.getEstimatedByteSize();
+        } catch (final RuntimeException e) {
+            // Keep the last estimate rather than fail a cache operation.
+            LOGGER.debug("Unable to estimate size of {}", key, e);
+            return byteSizes.getOrDefault(key, 0L);
+        }
+    }
+}
@@ -20,6 +20,7 @@ import stroom.mapreduce.v2.UnsafePairQueue;
 import stroom.query.api.v2.TableSettings;
 import stroom.query.common.v2.CoprocessorSettingsMap.CoprocessorKey;
 
+import java.util.HashMap;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.stream.Collectors;
@@ -31,6 +32,38 @@ public class SearchResultHandler implements ResultHandler {
     public SearchResultHandler(final CoprocessorSettingsMap coprocessorSettingsMap,
                                final Sizes defaultMaxResultsSizes,
                                final Sizes storeSize) {
+        this(coprocessorSettingsMap, defaultMaxResultsSizes, storeSize, 1);
+    }
+
+    /**
+     * @param coprocessorSettingsMap The settings for each coprocessor.
+     * @param defaultMaxResultsSizes The default maximum number of results to return at each depth.
+     * @param storeSize              The maximum number of items to hold at each depth.
+     * @param concurrency            The number of shards each table payload handler should spread items across so
+     *                               that payloads handled on different threads can be merged in parallel. A value of
+     *                               1 merges all payloads for a component one at a time.
+     */
+    public SearchResultHandler(final CoprocessorSettingsMap coprocessorSettingsMap,
+                               final Sizes defaultMaxResultsSizes,
+                               final Sizes storeSize,
+                               final int concurrency) {
+        this(coprocessorSettingsMap, defaultMaxResultsSizes, storeSize, concurrency, null);
+    }
+
+    /**
+     * @param coprocessorSettingsMap The settings for each coprocessor.
+     * @param defaultMaxResultsSizes The default maximum number of results to return at each depth.
+     * @param storeSize              The maximum number of items to hold at each depth.
+     * @param concurrency            The number of shards each table payload handler should spread items across.
+     * @param spillSettings          Where each table should move items to once they take up more memory than the
+     *                               budget allows, or null to always keep every item in memory. Temporary files are
+     *                               deleted by {@link #destroy()}.
+     */
+    public SearchResultHandler(final CoprocessorSettingsMap coprocessorSettingsMap,
+                               final Sizes defaultMaxResultsSizes,
+                               final Sizes storeSize,
+                               final int concurrency,
+                               final SpillSettings spillSettings) {
         this.coprocessorSettingsMap = coprocessorSettingsMap;
         this.handlerMap = coprocessorSettingsMap
                 .getMap()
@@ -42,7 +75,8 @@ public class SearchResultHandler implements ResultHandler {
                     final TableSettings tableSettings = tableCoprocessorSettings.getTableSettings();
                     // Create a set of sizes that are the minimum values for the combination of user provided sizes for the table and the default maximum sizes.
                     final Sizes maxResults = Sizes.min(Sizes.create(tableSettings.getMaxResults()), defaultMaxResultsSizes);
-                    return new TablePayloadHandler(tableSettings.getFields(), tableSettings.showDetail(), maxResults, storeSize);
+                    return new TablePayloadHandler(tableSettings.getFields(), tableSettings.showDetail(), maxResults, storeSize,
+                            concurrency, null, spillSettings);
                 }));
     }
 
@@ -76,6 +110,24 @@ public class SearchResultHandler implements ResultHandler {
         return partialSuccess;
     }
 
+    /**
+     * Get the current threshold for each table that has one, see {@link TablePayloadHandler#getThreshold()}. These
+     * can be passed to the coprocessor with the matching key, see {@link Coprocessor#setThreshold(Item)}, so that it
+     * can skip values that will never be kept.
+     *
+     * @return A map of coprocessor key to the worst item being kept.
+     */
+    public Map<CoprocessorKey, Item> getThresholds() {
+        final Map<CoprocessorKey, Item> thresholds = new HashMap<>();
+        handlerMap.forEach((key, handler) -> {
+            final Item threshold = handler.getThreshold();
+            if (threshold != null) {
+                thresholds.put(key, threshold);
+            }
+        });
+        return thresholds;
+    }
+
     private TablePayloadHandler getPayloadHandler(final String componentId) {
         final CoprocessorKey coprocessorKey = coprocessorSettingsMap.getCoprocessorKey(componentId);
         if (coprocessorKey == null) {
@@ -85,6 +137,25 @@ public class SearchResultHandler implements ResultHandler {
         return handlerMap.get(coprocessorKey);
     }
 
+    @Override
+    public void destroy() {
+        handlerMap.values().forEach(TablePayloadHandler::destroy);
+    }
+
+    @Override
+    public void freeze() {
+        handlerMap.values().forEach(TablePayloadHandler::freeze);
+    }
+
+    @Override
+    public long getEstimatedByteSize() {
+        long bytes = 0;
+        for (final TablePayloadHandler handler : handlerMap.values()) {
+            bytes += handler.getEstimatedByteSize();
+        }
+        return bytes;
+    }
+
     @Override
     public Data getResultStore(final String componentId) {
         final TablePayloadHandler tablePayloadHandler = getPayloadHandler(componentId);
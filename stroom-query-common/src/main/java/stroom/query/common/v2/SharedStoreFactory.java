@@ -0,0 +1,251 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package stroom.query.common.v2;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import stroom.query.api.v2.SearchRequest;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+/**
+ * A store factory that runs identical searches once. Each search is given a {@link SearchFingerprint} and if a store
+ * for a search with the same fingerprint is still running then the new search subscribes to it rather than starting
+ * another store. The shared store is destroyed when its last subscriber is destroyed.
+ * <p>
+ * Searches are only shared between searches run by the same user as the results of a search can depend on who runs
+ * it, e.g. where results are filtered by the permissions of the user. The identity of the user is supplied by the
+ * caller as the search request does not carry it.
+ * <p>
+ * Relative dates in terms on date fields, e.g. {@code now()-1h}, are resolved against the current time truncated to
+ * the time resolution so that identical searches started close together get the same fingerprint. Searches that
+ * subscribe to a running store get results for the time that the store was started with, which is never more than
+ * the time resolution away. The values of terms on any other field are compared as they are.
+ */
+public class SharedStoreFactory implements StoreFactory {
+    private static final Logger LOGGER = LoggerFactory.getLogger(SharedStoreFactory.class);
+
+    private static final Duration DEFAULT_TIME_RESOLUTION = Duration.ofSeconds(10);
+
+    private final StoreFactory storeFactory;
+    private final Supplier<String> userIdSupplier;
+    private final Set<String> dateFields;
+    private final long timeResolutionMs;
+    private final Map<String, SharedStore> sharedStores = new HashMap<>();
+
+    /**
+     * @param storeFactory   The factory that creates the stores that are shared.
+     * @param userIdSupplier Supplies the identity of the user that is running a search on the calling thread, or null
+     *                       if the results of a search never depend on who runs it.
+     * @param dateFields     The names of the fields that hold dates.
+     */
+    public SharedStoreFactory(final StoreFactory storeFactory,
+                              final Supplier<String> userIdSupplier,
+                              final Set<String> dateFields) {
+        this(storeFactory, userIdSupplier, dateFields, DEFAULT_TIME_RESOLUTION);
+    }
+
+    /**
+     * @param storeFactory   The factory that creates the stores that are shared.
+     * @param userIdSupplier Supplies the identity of the user that is running a search on the calling thread, or null
+     *                       if the results of a search never depend on who runs it.
+     * @param dateFields     The names of the fields that hold dates.
+     * @param timeResolution How far apart identical searches with relative dates can be started and still share a
+     *                       store.
+     */
+    public SharedStoreFactory(final StoreFactory storeFactory,
+                              final Supplier<String> userIdSupplier,
+                              final Set<String> dateFields,
+                              final Duration timeResolution) {
+        this.storeFactory = storeFactory;
+        this.userIdSupplier = userIdSupplier;
+        this.dateFields = dateFields;
+        this.timeResolutionMs = Math.max(1, timeResolution.toMillis());
+    }
+
+    @Override
+    public Store create(final SearchRequest searchRequest) {
+        final String fingerprint;
+        try {
+            final String userId = userIdSupplier == null ? null : userIdSupplier.get();
+            final long now = System.currentTimeMillis();
+            fingerprint = SearchFingerprint.create(searchRequest, userId, dateFields, now - now % timeResolutionMs);
+        } catch (final RuntimeException e) {
+            LOGGER.debug("Unable to create fingerprint for {}", searchRequest.getKey(), e);
+            return storeFactory.create(searchRequest);
+        }
+
+        // Only reserve the store while holding the lock as creating it can take a while, e.g. if it starts a search.
+        SharedStore sharedStore;
+        final boolean create;
+        synchronized (sharedStores) {
+            sharedStore = sharedStores.get(fingerprint);
+
+            // Only join searches that are still running, the results of a complete search may be out of date.
+            create = sharedStore == null || sharedStore.isComplete();
+            if (create) {
+                sharedStore = new SharedStore(fingerprint);
+                sharedStores.put(fingerprint, sharedStore);
+            } else {
+                LOGGER.debug("Sharing store for {}", searchRequest.getKey());
+            }
+
+            sharedStore.subscribers++;
+        }
+
+        if (create) {
+            try {
+                sharedStore.store.complete(storeFactory.create(searchRequest));
+            } catch (final RuntimeException e) {
+                // Searches waiting for this store will fail with the same error.
+                synchronized (sharedStores) {
+                    sharedStore.subscribers--;
+                    sharedStores.remove(fingerprint, sharedStore);
+                }
+                sharedStore.store.completeExceptionally(e);
+                throw e;
+            }
+        }
+
+        try {
+            return new Subscriber(sharedStore, sharedStore.store.join());
+        } catch (final CompletionException e) {
+            synchronized (sharedStores) {
+                sharedStore.subscribers--;
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private void release(final SharedStore sharedStore, final Store store) {
+        synchronized (sharedStores) {
+            sharedStore.subscribers--;
+            if (sharedStore.subscribers > 0) {
+                return;
+            }
+
+            // A newer store may have replaced this one if it completed.
+            sharedStores.remove(sharedStore.fingerprint, sharedStore);
+        }
+        store.destroy();
+    }
+
+    /**
+     * @return The number of stores that are currently shared by one or more searches.
+     */
+    int getSharedStoreCount() {
+        synchronized (sharedStores) {
+            return sharedStores.size();
+        }
+    }
+
+    private static final class SharedStore {
+        private final String fingerprint;
+        // Completed once the store has been created outside of the lock.
+        private final CompletableFuture<Store> store = new CompletableFuture<>();
+        private int subscribers;
+
+        private SharedStore(final String fingerprint) {
+            this.fingerprint = fingerprint;
+        }
+
+        /**
+         * @return True if the store has been created and is complete, a store that is still being created is running.
+         */
+        private boolean isComplete() {
+            final Store created = store.getNow(null);
+            return created != null && created.isComplete();
+        }
+    }
+
+    /**
+     * The store given to each search, destroying it only unsubscribes the search from the shared store.
+     */
+    private final class Subscriber implements Store {
+        private final SharedStore sharedStore;
+        private final Store store;
+        private final AtomicBoolean destroyed = new AtomicBoolean();
+
+        private Subscriber(final SharedStore sharedStore, final Store store) {
+            this.sharedStore = sharedStore;
+            this.store = store;
+        }
+
+        @Override
+        public void destroy() {
+            if (destroyed.compareAndSet(false, true)) {
+                release(sharedStore, store);
+            }
+        }
+
+        @Override
+        public boolean isComplete() {
+            return store.isComplete();
+        }
+
+        @Override
+        public void awaitCompletion() throws InterruptedException {
+            store.awaitCompletion();
+        }
+
+        @Override
+        public boolean awaitCompletion(final long timeout, final TimeUnit unit) throws InterruptedException {
+            return store.awaitCompletion(timeout, unit);
+        }
+
+        @Override
+        public Data getData(final String componentId) {
+            return store.getData(componentId);
+        }
+
+        @Override
+        public long getEstimatedByteSize() {
+            return store.getEstimatedByteSize();
+        }
+
+        @Override
+        public List<String> getErrors() {
+            return store.getErrors();
+        }
+
+        @Override
+        public List<String> getHighlights() {
+            return store.getHighlights();
+        }
+
+        @Override
+        public Sizes getDefaultMaxResultsSizes() {
+            return store.getDefaultMaxResultsSizes();
+        }
+
+        @Override
+        public Sizes getStoreSize() {
+            return store.getStoreSize();
+        }
+    }
+}
@@ -109,6 +109,20 @@ public class Sizes {
         return defaultSize;
     }
 
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        final Sizes that = (Sizes) o;
+        return defaultSize == that.defaultSize &&
+                Arrays.equals(sizes, that.sizes);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Arrays.hashCode(sizes) + defaultSize;
+    }
+
     @Override
     public String toString() {
         return "StoreSize{" +
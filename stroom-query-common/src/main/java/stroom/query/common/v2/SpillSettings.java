@@ -0,0 +1,55 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package stroom.query.common.v2;
+
+import java.nio.file.Path;
+import java.util.Objects;
+
+/**
+ * Settings for moving the items of a table out of memory once they take up more than a memory budget. Lists of child
+ * items that have not changed recently are written to memory mapped temporary files and are read back from them
+ * whenever they are walked.
+ */
+public class SpillSettings {
+    private final Path directory;
+    private final long maxResidentBytes;
+
+    /**
+     * @param directory        The directory to create temporary files in.
+     * @param maxResidentBytes The estimated number of bytes of items that can be held in memory for a table before
+     *                         items are moved to temporary files.
+     */
+    public SpillSettings(final Path directory, final long maxResidentBytes) {
+        this.directory = Objects.requireNonNull(directory);
+        this.maxResidentBytes = maxResidentBytes;
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    public long getMaxResidentBytes() {
+        return maxResidentBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "SpillSettings{" +
+                "directory=" + directory +
+                ", maxResidentBytes=" + maxResidentBytes +
+                '}';
+    }
+}
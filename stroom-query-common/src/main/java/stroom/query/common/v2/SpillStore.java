@@ -0,0 +1,159 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package stroom.query.common.v2;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Writes lists of items to memory mapped temporary files so that they no longer take up heap. Each call to
+ * {@link #spill(List)} writes a single file holding every list it is given. A file is deleted once none of the lists
+ * in it are needed any more, and any files that are left are deleted when the store is destroyed. A file that can't
+ * be deleted when it is released, e.g. because the platform doesn't allow a mapped file to be deleted, is kept so that
+ * it is deleted again when the store is destroyed.
+ * <p>
+ * This class is thread safe.
+ */
+class SpillStore {
+    private static final Logger LOGGER = LoggerFactory.getLogger(SpillStore.class);
+
+    private final Path directory;
+    private final Set<SpillFile> files = new HashSet<>();
+
+    SpillStore(final Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Write lists of items to a new temporary file.
+     *
+     * @param partitions The lists of items to write.
+     * @return A read only list of items for each list written, in the same order, that reads the items from the file.
+     * @throws UncheckedIOException If the items could not be written.
+     */
+    List<SpilledItems> spill(final List<Items<Item>> partitions) {
+        final long[] offsets = new long[partitions.size() + 1];
+        final int[] sizes = new int[partitions.size()];
+        Path path = null;
+        try {
+            Files.createDirectories(directory);
+            path = Files.createTempFile(directory, "stroom-query-", ".spill");
+
+            final MappedByteBuffer buffer;
+            try (final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+                for (int i = 0; i < partitions.size(); i++) {
+                    outputStream.reset();
+                    int size = 0;
+                    try (final TablePayloadCodec.Writer writer = new TablePayloadCodec.Writer(outputStream)) {
+                        for (final Item item : partitions.get(i)) {
+                            writer.write(item);
+                            size++;
+                        }
+                    }
+
+                    final ByteBuffer bytes = ByteBuffer.wrap(outputStream.toByteArray());
+                    while (bytes.hasRemaining()) {
+                        channel.write(bytes);
+                    }
+                    sizes[i] = size;
+                    offsets[i + 1] = channel.position();
+                }
+
+                // The mapping stays valid after the channel is closed.
+                buffer = channel.map(MapMode.READ_ONLY, 0, channel.size());
+            }
+
+            final SpillFile file = new SpillFile(path, partitions.size());
+            synchronized (this) {
+                files.add(file);
+            }
+
+            final List<SpilledItems> spilled = new ArrayList<>(partitions.size());
+            for (int i = 0; i < partitions.size(); i++) {
+                final ByteBuffer slice = buffer.duplicate();
+                slice.position((int) offsets[i]);
+                slice.limit((int) offsets[i + 1]);
+                spilled.add(new SpilledItems(this, file, slice.slice(), sizes[i]));
+            }
+
+            LOGGER.debug("Spilled {} lists of items to {} ({} bytes)", partitions.size(), path, offsets[partitions.size()]);
+            return spilled;
+
+        } catch (final IOException e) {
+            if (path != null) {
+                delete(path);
+            }
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Record that a list of items in a file is no longer needed, deleting the file if none of its lists are.
+     */
+    synchronized void release(final SpillFile file) {
+        file.liveCount--;
+        if (file.liveCount <= 0 && files.contains(file) && delete(file.path)) {
+            files.remove(file);
+        }
+    }
+
+    /**
+     * Delete all of the files written by this store. Lists of items that were read from the files must not be used
+     * after this.
+     */
+    synchronized void destroy() {
+        for (final SpillFile file : files) {
+            delete(file.path);
+        }
+        files.clear();
+    }
+
+    private boolean delete(final Path path) {
+        try {
+            Files.deleteIfExists(path);
+            return true;
+        } catch (final IOException e) {
+            LOGGER.warn("Unable to delete temporary file {}", path, e);
+            return false;
+        }
+    }
+
+    static final class SpillFile {
+        private final Path path;
+        private int liveCount;
+
+        private SpillFile(final Path path, final int liveCount) {
+            this.path = path;
+            this.liveCount = liveCount;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package stroom.query.common.v2;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A read only list of items that have been written to a memory mapped temporary file by a {@link SpillStore}. The
+ * items are read from the file when the list is iterated and are then kept with a soft reference, so iterating again
+ * returns the same item objects and the values and rows cached by each item are reused. The garbage collector can
+ * still free the items if memory runs short, in which case they are read from the file again as new objects.
+ * <p>
+ * Stores must replace the list with an in memory copy before changing it.
+ */
+class SpilledItems implements Items<Item> {
+    private final SpillStore spillStore;
+    private final SpillStore.SpillFile file;
+    private final ByteBuffer buffer;
+    private final int size;
+    private volatile SoftReference<List<Item>> items;
+
+    SpilledItems(final SpillStore spillStore, final SpillStore.SpillFile file, final ByteBuffer buffer, final int size) {
+        this.spillStore = spillStore;
+        this.file = file;
+        this.buffer = buffer;
+        this.size = size;
+    }
+
+    /**
+     * Record that the list is no longer needed by the store that spilled it or by the latest snapshot of the store.
+     * Earlier snapshots may still read it until the store is destroyed, as they read it through a mapping that stays
+     * valid after the file is deleted.
+     */
+    void release() {
+        spillStore.release(file);
+    }
+
+    @Override
+    public boolean add(final Item item) {
+        throw new UnsupportedOperationException("Spilled items are read only");
+    }
+
+    @Override
+    public boolean remove(final Item item) {
+        throw new UnsupportedOperationException("Spilled items are read only");
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void sort(final Comparator<Item> comparator) {
+        throw new UnsupportedOperationException("Spilled items are read only");
+    }
+
+    @Override
+    public void sortAndTrim(final int size, final Comparator<Item> comparator, final RemoveHandler<Item> removeHandler) {
+        throw new UnsupportedOperationException("Spilled items are read only");
+    }
+
+    @Override
+    public Iterator<Item> iterator() {
+        return getItems().iterator();
+    }
+
+    private List<Item> getItems() {
+        final SoftReference<List<Item>> reference = items;
+        List<Item> list = reference == null ? null : reference.get();
+        if (list == null) {
+            synchronized (this) {
+                list = items == null ? null : items.get();
+                if (list == null) {
+                    list = Collections.unmodifiableList(read());
+                    items = new SoftReference<>(list);
+                }
+            }
+        }
+        return list;
+    }
+
+    private List<Item> read() {
+        try {
+            // Read a view of the buffer so that the position of the shared buffer doesn't change.
+            final TablePayloadCodec.Reader reader =
+                    new TablePayloadCodec.Reader(new TablePayloadCodec.ByteBufferInputStream(buffer.duplicate()));
+            final List<Item> list = new ArrayList<>(size);
+            Item item = reader.next();
+            while (item != null) {
+                list.add(item);
+                item = reader.next();
+            }
+            return list;
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "SpilledItems{size=" + size + '}';
+    }
+}
@@ -21,7 +21,9 @@ import java.util.concurrent.TimeUnit;
 
 public interface Store {
     /**
-     * Stop searching and destroy any stored data.
+     * Stop searching and destroy any stored data. Stores that hold results in a {@link ResultHandler} must destroy it
+     * so that any temporary files holding spilled results are deleted. Stores should also freeze the results held by
+     * a {@link ResultHandler} as soon as the search is complete.
      */
     void destroy();
 
@@ -58,6 +60,17 @@ public interface Store {
      */
     Data getData(String componentId);
 
+    /**
+     * Estimate the number of bytes taken up by the results held for all components. Searches are weighed by this
+     * estimate when there is a query memory budget so it must not take a snapshot of the results. Stores that hold
+     * results in a {@link ResultHandler} should return {@link ResultHandler#getEstimatedByteSize()}.
+     *
+     * @return The estimated number of bytes held, or zero if unknown.
+     */
+    default long getEstimatedByteSize() {
+        return 0;
+    }
+
     /**
      * Gets a list of strings containing all errors that have occurred so far during the
      * current search.
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package stroom.query.common.v2;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.ObjectCodec;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+import stroom.query.api.v2.Result;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Writes a result with the model serialiser except for one list property, whose elements are written by the caller
+ * as they are produced. This keeps the type id, property order and null handling the same as serialising the whole
+ * result.
+ */
+final class StreamedResultWriter {
+    private StreamedResultWriter() {
+        // Utility class.
+    }
+
+    /**
+     * @param generator      The generator to write the result to.
+     * @param before         A result with an empty streamed list, used for the properties before the list.
+     * @param streamedName   The name of the list property to stream.
+     * @param elementsWriter Writes the elements of the list.
+     * @param after          Supplies a result with an empty streamed list once the elements have been written, used
+     *                       for the properties after the list.
+     */
+    static void write(final JsonGenerator generator,
+                      final Result before,
+                      final String streamedName,
+                      final ElementsWriter elementsWriter,
+                      final Supplier<Result> after) throws IOException {
+        generator.writeStartObject();
+
+        final Iterator<Map.Entry<String, JsonNode>> beforeFields = toTree(generator, before).fields();
+        while (beforeFields.hasNext()) {
+            final Map.Entry<String, JsonNode> field = beforeFields.next();
+            if (streamedName.equals(field.getKey())) {
+                break;
+            }
+            generator.writeFieldName(field.getKey());
+            generator.writeTree(field.getValue());
+        }
+
+        generator.writeArrayFieldStart(streamedName);
+        elementsWriter.write();
+        generator.writeEndArray();
+
+        boolean streamed = false;
+        final Iterator<Map.Entry<String, JsonNode>> afterFields = toTree(generator, after.get()).fields();
+        while (afterFields.hasNext()) {
+            final Map.Entry<String, JsonNode> field = afterFields.next();
+            if (streamed) {
+                generator.writeFieldName(field.getKey());
+                generator.writeTree(field.getValue());
+            } else {
+                streamed = streamedName.equals(field.getKey());
+            }
+        }
+
+        generator.writeEndObject();
+    }
+
+    private static JsonNode toTree(final JsonGenerator generator, final Result result) throws IOException {
+        final ObjectCodec codec = generator.getCodec();
+        final TokenBuffer buffer = new TokenBuffer(codec, false);
+        codec.writeValue(buffer, result);
+        return codec.readTree(buffer.asParser());
+    }
+
+    @FunctionalInterface
+    interface ElementsWriter {
+        void write() throws IOException;
+    }
+}
@@ -16,62 +16,223 @@
 
 package stroom.query.common.v2;
 
+import stroom.dashboard.expression.v1.Expression;
 import stroom.dashboard.expression.v1.FieldIndexMap;
+import stroom.dashboard.expression.v1.Generator;
 import stroom.dashboard.expression.v1.Val;
-import stroom.mapreduce.v2.BlockingPairQueue;
+import stroom.mapreduce.v2.OutputCollector;
 import stroom.mapreduce.v2.PairQueue;
+import stroom.mapreduce.v2.RingBufferPairQueue;
 import stroom.mapreduce.v2.UnsafePairQueue;
 import stroom.query.api.v2.Field;
 import stroom.query.api.v2.TableSettings;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.LongAdder;
 
 public class TableCoprocessor implements Coprocessor {
     private final PairQueue<GroupKey, Item> queue;
+    private final ItemCombiner combiner;
+    private final GroupKeyInterner groupKeyInterner;
     private final ItemMapper mapper;
 
     private final CompiledDepths compiledDepths;
+    private final ForkJoinPool reductionPool;
+
+    // The positions and expressions of the sorted fields, only set if the table can use a threshold.
+    private final int[] sortFieldIndexes;
+    private final Expression[] sortExpressions;
+    private final CompiledSorter compiledSorter;
+    private final int fieldCount;
+    private final LongAdder skipped = new LongAdder();
+    private volatile Item threshold;
 
     public TableCoprocessor(final TableCoprocessorSettings settings,
                             final FieldIndexMap fieldIndexMap,
                             final Map<String, String> paramMap) {
+        this(settings, fieldIndexMap, paramMap, null);
+    }
+
+    /**
+     * @param settings      The coprocessor settings.
+     * @param fieldIndexMap The map of field names to value positions.
+     * @param paramMap      The query parameters.
+     * @param reductionPool A pool to reduce items on when creating payloads, or null to reduce on the calling thread.
+     */
+    public TableCoprocessor(final TableCoprocessorSettings settings,
+                            final FieldIndexMap fieldIndexMap,
+                            final Map<String, String> paramMap,
+                            final ForkJoinPool reductionPool) {
+        this.reductionPool = reductionPool;
         final TableSettings tableSettings = settings.getTableSettings();
 
         final List<Field> fields = tableSettings.getFields();
         compiledDepths = new CompiledDepths(fields, tableSettings.showDetail());
         final CompiledFields compiledFields = new CompiledFields(fields, fieldIndexMap, paramMap);
 
-        queue = new BlockingPairQueue<>(settings.getQueueCapacity());
-        mapper = new ItemMapper(queue, compiledFields, compiledDepths.getMaxDepth(), compiledDepths.getMaxGroupDepth());
+        queue = new RingBufferPairQueue<>(settings.getQueueCapacity(), settings.getQueueBackPressure());
+
+        // Combine grouped items before they reach the queue if we have been asked to.
+        OutputCollector<GroupKey, Item> mapperOutput = queue;
+        if (settings.getCombinerCapacity() > 0 && compiledDepths.getMaxGroupDepth() >= 0) {
+            combiner = new ItemCombiner(queue, compiledDepths, settings.getCombinerCapacity(),
+                    Runtime.getRuntime().availableProcessors());
+            mapperOutput = combiner;
+        } else {
+            combiner = null;
+        }
+        // Share group key instances between rows so that they are cheap to compare when partitioning.
+        groupKeyInterner = compiledDepths.hasGroupBy() ? new GroupKeyInterner() : null;
+        mapper = new ItemMapper(mapperOutput, compiledFields, compiledDepths.getMaxDepth(),
+                compiledDepths.getMaxGroupDepth(), groupKeyInterner);
+
+        compiledSorter = new CompiledSorter(fields);
+        fieldCount = compiledFields.size();
+        sortFieldIndexes = getSortFieldIndexes(compiledFields, compiledDepths, compiledSorter);
+        sortExpressions = getSortExpressions(compiledFields, sortFieldIndexes);
     }
 
     public TableCoprocessor(final PairQueue<GroupKey, Item> queue, final CompiledFields compiledFields, final CompiledDepths compiledDepths) {
         this.queue = queue;
         this.compiledDepths = compiledDepths;
+        this.reductionPool = null;
+        this.combiner = null;
+        this.groupKeyInterner = null;
         mapper = new ItemMapper(queue, compiledFields, compiledDepths.getMaxDepth(), compiledDepths.getMaxGroupDepth());
+
+        final List<Field> fields = new ArrayList<>(compiledFields.size());
+        for (final CompiledField compiledField : compiledFields) {
+            fields.add(compiledField.getField());
+        }
+        compiledSorter = new CompiledSorter(fields);
+        fieldCount = compiledFields.size();
+        sortFieldIndexes = getSortFieldIndexes(compiledFields, compiledDepths, compiledSorter);
+        sortExpressions = getSortExpressions(compiledFields, sortFieldIndexes);
+    }
+
+    private static int[] getSortFieldIndexes(final CompiledFields compiledFields,
+                                             final CompiledDepths compiledDepths,
+                                             final CompiledSorter compiledSorter) {
+        // Grouped values can still change when they are merged so we can only compare values with a threshold for
+        // tables that are sorted but not grouped.
+        if (!compiledSorter.hasSort() || compiledDepths.hasGroupBy()) {
+            return null;
+        }
+
+        final List<Integer> indexes = new ArrayList<>();
+        for (int i = 0; i < compiledFields.size(); i++) {
+            final CompiledField compiledField = compiledFields.getField(i);
+            if (compiledField.getField().getSort() != null) {
+                // We can't tell if a value can beat the threshold if we can't evaluate the sort field.
+                if (compiledField.getExpression() == null) {
+                    return null;
+                }
+                indexes.add(i);
+            }
+        }
+        return indexes.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    private static Expression[] getSortExpressions(final CompiledFields compiledFields, final int[] sortFieldIndexes) {
+        if (sortFieldIndexes == null) {
+            return null;
+        }
+
+        final Expression[] expressions = new Expression[sortFieldIndexes.length];
+        for (int i = 0; i < sortFieldIndexes.length; i++) {
+            expressions[i] = compiledFields.getField(sortFieldIndexes[i]).getExpression();
+        }
+        return expressions;
     }
 
     @Override
     public void receive(final Val[] values) {
+        final Item threshold = this.threshold;
+        if (threshold != null && !canImprove(threshold, values)) {
+            // This value would be discarded by the result handler so don't bother mapping it.
+            skipped.increment();
+            return;
+        }
+
         mapper.collect(null, values);
     }
 
+    /**
+     * Set the worst item being kept by the result handler. Only tables that are sorted but not grouped use the
+     * threshold, after which any value that is not better than the threshold is skipped.
+     *
+     * @param threshold The worst item being kept, or null if any item might still be kept.
+     */
+    @Override
+    public void setThreshold(final Item threshold) {
+        if (sortFieldIndexes != null) {
+            this.threshold = threshold;
+        }
+    }
+
+    /**
+     * Find out if a set of values could still make it into the results. A producer that knows the best values it
+     * could still deliver, e.g. the latest time in an index shard when sorting by time descending, can use this to
+     * stop extracting values once none of them can beat the current threshold.
+     *
+     * @param values The best values that might still be received.
+     * @return False if the values are known not to beat the current threshold, true otherwise.
+     */
+    public boolean canImprove(final Val[] values) {
+        final Item threshold = this.threshold;
+        return threshold == null || canImprove(threshold, values);
+    }
+
+    private boolean canImprove(final Item threshold, final Val[] values) {
+        // Only create the generators needed to sort the values.
+        final Generator[] generators = new Generator[fieldCount];
+        for (int i = 0; i < sortFieldIndexes.length; i++) {
+            final Generator generator = sortExpressions[i].createGenerator();
+            generator.set(values);
+            generators[sortFieldIndexes[i]] = generator;
+        }
+
+        // Values that are equal to the threshold lose as the threshold item was received first.
+        return compiledSorter.compare(new Item(null, generators, 0), threshold) < 0;
+    }
+
+    /**
+     * @return The number of values that have been skipped because they could not beat the threshold.
+     */
+    public long getSkippedCount() {
+        return skipped.sum();
+    }
+
     @Override
     public Payload createPayload() {
         final UnsafePairQueue<GroupKey, Item> outputQueue = new UnsafePairQueue<>();
 
         // Create a partitioner to perform result reduction if needed.
         final ItemPartitioner partitioner = new ItemPartitioner(compiledDepths.getDepths(),
-                compiledDepths.getMaxDepth());
+                compiledDepths.getMaxDepth(), reductionPool, ItemPartitioner.DEFAULT_THRESHOLD);
         partitioner.setOutputCollector(outputQueue);
 
         // Partition the data prior to forwarding to the target node.
         partitioner.read(queue);
 
+        // Add any items that are still being combined.
+        if (combiner != null) {
+            final UnsafePairQueue<GroupKey, Item> combined = new UnsafePairQueue<>();
+            combiner.flush(combined);
+            partitioner.read(combined);
+        }
+
         // Perform partitioning.
         partitioner.partition();
 
+        // The keys we have seen so far are about to be sent elsewhere so there is no need to keep them.
+        if (groupKeyInterner != null) {
+            groupKeyInterner.clear();
+        }
+
         // Don't create a payload if the queue is empty.
         if (outputQueue.size() == 0) {
             return null;
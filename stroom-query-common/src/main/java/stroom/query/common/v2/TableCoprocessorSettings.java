@@ -17,6 +17,7 @@
 package stroom.query.common.v2;
 
 import stroom.docref.DocRef;
+import stroom.mapreduce.v2.RingBufferPairQueue.BackPressure;
 import stroom.query.api.v2.TableSettings;
 
 import java.util.Objects;
@@ -26,6 +27,8 @@ public class TableCoprocessorSettings implements CoprocessorSettings {
 
     private static final int DEFAULT_QUEUE_CAPACITY = 1000000;
     private volatile int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+    private volatile BackPressure queueBackPressure = BackPressure.BLOCK;
+    private volatile int combinerCapacity;
 
     TableCoprocessorSettings() {
     }
@@ -56,17 +59,42 @@ public class TableCoprocessorSettings implements CoprocessorSettings {
         this.queueCapacity = queueCapacity;
     }
 
+    public BackPressure getQueueBackPressure() {
+        return queueBackPressure;
+    }
+
+    /**
+     * @param queueBackPressure What extraction threads should do when the coprocessor queue is full.
+     */
+    public void setQueueBackPressure(final BackPressure queueBackPressure) {
+        this.queueBackPressure = queueBackPressure;
+    }
+
+    public int getCombinerCapacity() {
+        return combinerCapacity;
+    }
+
+    /**
+     * @param combinerCapacity The number of groups to combine in memory before they are added to the coprocessor
+     *                         queue, or 0 to add every item to the queue as it is mapped.
+     */
+    public void setCombinerCapacity(final int combinerCapacity) {
+        this.combinerCapacity = combinerCapacity;
+    }
+
     @Override
     public boolean equals(final Object o) {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         final TableCoprocessorSettings that = (TableCoprocessorSettings) o;
         return queueCapacity == that.queueCapacity &&
+                queueBackPressure == that.queueBackPressure &&
+                combinerCapacity == that.combinerCapacity &&
                 Objects.equals(tableSettings, that.tableSettings);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(tableSettings, queueCapacity);
+        return Objects.hash(tableSettings, queueCapacity, queueBackPressure, combinerCapacity);
     }
 }
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stroom.query.common.v2;
+
+import stroom.query.api.v2.Row;
+import stroom.query.api.v2.TableDeltaResult;
+import stroom.query.api.v2.TableResult;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Turns the table results created for a component into the changes since the result that was last delivered to the
+ * client. {@link TableResultCreator} reuses the row objects of items that have not changed so most rows are matched to
+ * the rows of the previous result by identity and only the rows of changed items need to be compared or sent.
+ * <p>
+ * Only the last delivered result is kept so a client that asks for the changes since any other version is sent the
+ * whole result.
+ */
+class TableDeltaCreator {
+    // Start from the current time so that versions from a previous run are unlikely to be mistaken for current ones.
+    private static final AtomicLong VERSION = new AtomicLong(System.currentTimeMillis() * 1000);
+
+    private TableResult lastResult;
+    private long lastVersion;
+
+    /**
+     * @param result      The new result.
+     * @param baseVersion The version of the result that the client holds.
+     * @return The changes since the base version, or null if the client already holds the current result.
+     */
+    TableDeltaResult create(final TableResult result, final long baseVersion) {
+        if (lastResult == null ||
+                baseVersion != lastVersion ||
+                !Objects.equals(result.getFields(), lastResult.getFields())) {
+            // The client does not hold a result we can compare with so send all of the rows.
+            return deliver(result, null);
+        }
+
+        final TableDeltaResult.Builder builder = createBuilder(result, baseVersion);
+        boolean changed = !Objects.equals(result.getResultRange(), lastResult.getResultRange()) ||
+                !Objects.equals(result.getTotalResults(), lastResult.getTotalResults()) ||
+                !Objects.equals(result.getError(), lastResult.getError());
+
+        final List<Row> baseRows = getRows(lastResult);
+        final List<Row> rows = getRows(result);
+        if (rows.size() != baseRows.size()) {
+            changed = true;
+        }
+
+        final Map<Row, Integer> baseIndexes = new IdentityHashMap<>(baseRows.size());
+        for (int i = 0; i < baseRows.size(); i++) {
+            baseIndexes.put(baseRows.get(i), i);
+        }
+
+        for (int i = 0; i < rows.size(); i++) {
+            final Row row = rows.get(i);
+            Integer index = baseIndexes.get(row);
+            if (index == null && i < baseRows.size() && row.equals(baseRows.get(i))) {
+                // Rows that are created every time, e.g. rows that select from child items, can still be unchanged.
+                index = i;
+            }
+
+            if (index == null) {
+                builder.addRow(row);
+                changed = true;
+            } else {
+                builder.addBaseRow(index);
+                if (index != i) {
+                    changed = true;
+                }
+            }
+        }
+
+        if (!changed) {
+            return null;
+        }
+        return deliver(result, builder);
+    }
+
+    private TableDeltaResult deliver(final TableResult result, final TableDeltaResult.Builder changes) {
+        TableDeltaResult.Builder builder = changes;
+        if (builder == null) {
+            builder = createBuilder(result, null);
+            getRows(result).forEach(builder::addRow);
+        }
+
+        lastResult = result;
+        lastVersion = VERSION.incrementAndGet();
+        return builder.version(lastVersion).build();
+    }
+
+    private TableDeltaResult.Builder createBuilder(final TableResult result, final Long baseVersion) {
+        final TableDeltaResult.Builder builder = new TableDeltaResult.Builder()
+                .componentId(result.getComponentId())
+                .error(result.getError())
+                .baseVersion(baseVersion)
+                .resultRange(result.getResultRange())
+                .totalResults(result.getTotalResults());
+        if (result.getFields() != null) {
+            result.getFields().forEach(builder::addFields);
+        }
+        return builder;
+    }
+
+    private List<Row> getRows(final TableResult result) {
+        if (result.getRows() == null) {
+            return Collections.emptyList();
+        }
+        return result.getRows();
+    }
+}
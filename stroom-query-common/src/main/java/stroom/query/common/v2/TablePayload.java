@@ -18,12 +18,19 @@ package stroom.query.common.v2;
 
 import stroom.mapreduce.v2.UnsafePairQueue;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.util.Objects;
 
+/**
+ * The items created by a table coprocessor. Items are serialised with {@link TablePayloadCodec} rather than default
+ * Java serialisation so that payloads sent between nodes are small.
+ */
 public class TablePayload implements Payload {
-    private static final long serialVersionUID = 5271438218782010968L;
+    private static final long serialVersionUID = -4419853651476187925L;
 
-    private UnsafePairQueue<GroupKey, Item> queue;
+    private transient UnsafePairQueue<GroupKey, Item> queue;
 
     public TablePayload() {
     }
@@ -36,6 +43,21 @@ public class TablePayload implements Payload {
         return queue;
     }
 
+    private void writeObject(final ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeBoolean(queue != null);
+        if (queue != null) {
+            TablePayloadCodec.write(queue, out);
+        }
+    }
+
+    private void readObject(final ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        if (in.readBoolean()) {
+            queue = TablePayloadCodec.read(in);
+        }
+    }
+
     @Override
     public boolean equals(final Object o) {
         if (this == o) return true;
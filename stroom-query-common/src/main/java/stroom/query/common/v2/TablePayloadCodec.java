@@ -0,0 +1,484 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stroom.query.common.v2;
+
+import stroom.dashboard.expression.v1.Generator;
+import stroom.dashboard.expression.v1.Val;
+import stroom.dashboard.expression.v1.ValBoolean;
+import stroom.dashboard.expression.v1.ValDouble;
+import stroom.dashboard.expression.v1.ValErr;
+import stroom.dashboard.expression.v1.ValInteger;
+import stroom.dashboard.expression.v1.ValLong;
+import stroom.dashboard.expression.v1.ValNull;
+import stroom.dashboard.expression.v1.ValString;
+import stroom.mapreduce.v2.PairCursor;
+import stroom.mapreduce.v2.UnsafePairQueue;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInput;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutput;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compact binary encoding of the items in a {@link TablePayload}.
+ * <p>
+ * The stream starts with a magic number and a format version and is followed by a record for each item and an end
+ * marker. Group keys are dictionary encoded so each distinct key, and so each parent, is written once and then
+ * referred to by number. Key values are written as typed variable length integers, doubles and UTF-8 strings.
+ * Generators do not expose their state so they are written with Java serialisation, but all generators share a
+ * single object stream so that each generator class is only described once per payload.
+ * <p>
+ * Items can be written and read one at a time with a {@link Writer} and {@link Reader} so a payload never needs to
+ * be held in memory in both forms.
+ */
+public final class TablePayloadCodec {
+    static final int MAGIC = 0x53545031;
+    static final int VERSION = 1;
+
+    private static final int END = 0;
+    private static final int ITEM = 1;
+
+    private static final int NULL_KEY = 0;
+    private static final int NEW_KEY = 1;
+    private static final int KEY_OFFSET = 2;
+
+    private static final int VAL_NULL = 0;
+    private static final int VAL_EMPTY = 1;
+    private static final int VAL_STRING = 2;
+    private static final int VAL_INTEGER = 3;
+    private static final int VAL_LONG = 4;
+    private static final int VAL_DOUBLE = 5;
+    private static final int VAL_BOOLEAN = 6;
+    private static final int VAL_ERR = 7;
+    private static final int VAL_OBJECT = 8;
+
+    private TablePayloadCodec() {
+        // Utility class.
+    }
+
+    /**
+     * Encode the items of a queue into a buffer.
+     *
+     * @param queue The items to encode.
+     * @return A buffer ready to be read that holds the encoded items.
+     */
+    public static ByteBuffer encode(final UnsafePairQueue<GroupKey, Item> queue) {
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        try (final Writer writer = new Writer(outputStream)) {
+            writer.writeAll(queue);
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return ByteBuffer.wrap(outputStream.toByteArray());
+    }
+
+    /**
+     * Decode items from a buffer that was created by {@link #encode(UnsafePairQueue)}.
+     *
+     * @param buffer The buffer to read items from.
+     * @return A queue of the decoded items.
+     */
+    public static UnsafePairQueue<GroupKey, Item> decode(final ByteBuffer buffer) {
+        try {
+            return new Reader(new ByteBufferInputStream(buffer)).readAll();
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Write the items of a queue into an existing object stream, e.g. from the {@code writeObject} method of a
+     * serialisable class.
+     *
+     * @param queue  The items to write.
+     * @param output The object stream to write to, this is not closed.
+     */
+    public static void write(final UnsafePairQueue<GroupKey, Item> queue, final ObjectOutput output) throws IOException {
+        final Writer writer = new Writer(output, false);
+        writer.writeAll(queue);
+        writer.finish();
+    }
+
+    /**
+     * Read items from an existing object stream that were written by
+     * {@link #write(UnsafePairQueue, ObjectOutput)}.
+     *
+     * @param input The object stream to read from.
+     * @return A queue of the items that were read.
+     */
+    public static UnsafePairQueue<GroupKey, Item> read(final ObjectInput input) throws IOException {
+        return new Reader(input).readAll();
+    }
+
+    /**
+     * Writes items to a stream.
+     */
+    public static class Writer implements AutoCloseable {
+        private final ObjectOutput output;
+        private final boolean closeOutput;
+        private final Map<GroupKey, Integer> keyIds = new HashMap<>();
+        private boolean finished;
+
+        /**
+         * Create a writer that will write a complete stream of its own, closing the stream when the writer is closed.
+         *
+         * @param outputStream The stream to write to.
+         */
+        public Writer(final OutputStream outputStream) throws IOException {
+            this(new ObjectOutputStream(new BufferedOutputStream(outputStream)), true);
+        }
+
+        private Writer(final ObjectOutput output, final boolean closeOutput) throws IOException {
+            this.output = output;
+            this.closeOutput = closeOutput;
+            output.writeInt(MAGIC);
+            writeVarInt(output, VERSION);
+        }
+
+        public void writeAll(final UnsafePairQueue<GroupKey, Item> queue) throws IOException {
+            final PairCursor<GroupKey, Item> cursor = queue.cursor();
+            while (cursor.next()) {
+                write(cursor.getValue());
+            }
+        }
+
+        public void write(final Item item) throws IOException {
+            output.writeByte(ITEM);
+            writeKey(item.key);
+            writeVarInt(output, item.depth);
+
+            final Generator[] generators = item.generators;
+            if (generators == null) {
+                writeVarInt(output, 0);
+            } else {
+                writeVarInt(output, generators.length + 1);
+
+                // Write a bit for each generator that is present.
+                for (int i = 0; i < generators.length; i += 8) {
+                    int bits = 0;
+                    for (int j = 0; j < 8 && i + j < generators.length; j++) {
+                        if (generators[i + j] != null) {
+                            bits |= 1 << j;
+                        }
+                    }
+                    output.writeByte(bits);
+                }
+                for (final Generator generator : generators) {
+                    if (generator != null) {
+                        output.writeObject(generator);
+                    }
+                }
+            }
+        }
+
+        private void writeKey(final GroupKey key) throws IOException {
+            if (key == null) {
+                writeVarInt(output, NULL_KEY);
+                return;
+            }
+
+            final Integer id = keyIds.get(key);
+            if (id != null) {
+                writeVarInt(output, id + KEY_OFFSET);
+                return;
+            }
+
+            // Define the key the first time we see it, parents first.
+            writeVarInt(output, NEW_KEY);
+            writeKey(key.getParent());
+            final List<Val> values = key.getValues();
+            if (values == null) {
+                writeVarInt(output, 0);
+            } else {
+                writeVarInt(output, values.size() + 1);
+                for (final Val val : values) {
+                    writeVal(val);
+                }
+            }
+            keyIds.put(key, keyIds.size());
+        }
+
+        private void writeVal(final Val val) throws IOException {
+            if (val == null) {
+                output.writeByte(VAL_NULL);
+            } else if (val instanceof ValString) {
+                output.writeByte(VAL_STRING);
+                writeString(output, val.toString());
+            } else if (val instanceof ValInteger) {
+                output.writeByte(VAL_INTEGER);
+                writeVarLong(output, zigZag(val.toInteger()));
+            } else if (val instanceof ValLong) {
+                output.writeByte(VAL_LONG);
+                writeVarLong(output, zigZag(val.toLong()));
+            } else if (val instanceof ValDouble) {
+                output.writeByte(VAL_DOUBLE);
+                output.writeDouble(val.toDouble());
+            } else if (val instanceof ValBoolean) {
+                output.writeByte(VAL_BOOLEAN);
+                output.writeBoolean(val.toBoolean());
+            } else if (val instanceof ValErr) {
+                output.writeByte(VAL_ERR);
+                writeString(output, ((ValErr) val).getMessage());
+            } else if (val instanceof ValNull) {
+                output.writeByte(VAL_EMPTY);
+            } else {
+                // We don't know about this type of value so fall back to Java serialisation.
+                output.writeByte(VAL_OBJECT);
+                output.writeObject(val);
+            }
+        }
+
+        /**
+         * Write the end marker. The writer can't be used after this.
+         */
+        public void finish() throws IOException {
+            if (!finished) {
+                finished = true;
+                output.writeByte(END);
+                output.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            finish();
+            if (closeOutput) {
+                output.close();
+            }
+        }
+    }
+
+    /**
+     * Reads items from a stream.
+     */
+    public static class Reader {
+        private final ObjectInput input;
+        private final List<GroupKey> keys = new ArrayList<>();
+        private boolean finished;
+
+        public Reader(final InputStream inputStream) throws IOException {
+            this(createObjectInput(inputStream));
+        }
+
+        private Reader(final ObjectInput input) throws IOException {
+            this.input = input;
+            final int magic = input.readInt();
+            if (magic != MAGIC) {
+                throw new IOException("Not a table payload stream");
+            }
+            final int version = readVarInt(input);
+            if (version != VERSION) {
+                throw new IOException("Unsupported table payload version " + version);
+            }
+        }
+
+        public UnsafePairQueue<GroupKey, Item> readAll() throws IOException {
+            final UnsafePairQueue<GroupKey, Item> queue = new UnsafePairQueue<>();
+            Item item;
+            while ((item = next()) != null) {
+                queue.collect(item.key, item);
+            }
+            return queue;
+        }
+
+        /**
+         * @return The next item or null if there are no more items.
+         */
+        public Item next() throws IOException {
+            if (finished) {
+                return null;
+            }
+
+            final int type = input.readByte();
+            if (type == END) {
+                finished = true;
+                return null;
+            } else if (type != ITEM) {
+                throw new IOException("Unexpected record type " + type);
+            }
+
+            final GroupKey key = readKey();
+            final int depth = readVarInt(input);
+
+            Generator[] generators = null;
+            final int length = readVarInt(input) - 1;
+            if (length >= 0) {
+                generators = new Generator[length];
+                final byte[] present = new byte[(length + 7) / 8];
+                input.readFully(present);
+                for (int i = 0; i < length; i++) {
+                    if ((present[i / 8] & (1 << (i % 8))) != 0) {
+                        generators[i] = (Generator) readObject();
+                    }
+                }
+            }
+
+            return new Item(key, generators, depth);
+        }
+
+        private static ObjectInput createObjectInput(final InputStream inputStream) throws IOException {
+            return new ObjectInputStream(new BufferedInputStream(inputStream));
+        }
+
+        private GroupKey readKey() throws IOException {
+            final int ref = readVarInt(input);
+            if (ref == NULL_KEY) {
+                return null;
+            } else if (ref != NEW_KEY) {
+                return keys.get(ref - KEY_OFFSET);
+            }
+
+            final GroupKey parent = readKey();
+            List<Val> values = null;
+            final int size = readVarInt(input) - 1;
+            if (size >= 0) {
+                values = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    values.add(readVal());
+                }
+            }
+
+            final GroupKey key = new GroupKey(parent, values);
+            keys.add(key);
+            return key;
+        }
+
+        private Val readVal() throws IOException {
+            final int type = input.readByte();
+            switch (type) {
+                case VAL_NULL:
+                    return null;
+                case VAL_EMPTY:
+                    return ValNull.INSTANCE;
+                case VAL_STRING:
+                    return ValString.create(readString(input));
+                case VAL_INTEGER:
+                    return ValInteger.create((int) unZigZag(readVarLong(input)));
+                case VAL_LONG:
+                    return ValLong.create(unZigZag(readVarLong(input)));
+                case VAL_DOUBLE:
+                    return ValDouble.create(input.readDouble());
+                case VAL_BOOLEAN:
+                    return ValBoolean.create(input.readBoolean());
+                case VAL_ERR:
+                    return ValErr.create(readString(input));
+                case VAL_OBJECT:
+                    return (Val) readObject();
+                default:
+                    throw new IOException("Unexpected value type " + type);
+            }
+        }
+
+        private Object readObject() throws IOException {
+            try {
+                return input.readObject();
+            } catch (final ClassNotFoundException e) {
+                throw new IOException(e.getMessage(), e);
+            }
+        }
+    }
+
+    private static long zigZag(final long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unZigZag(final long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static void writeVarInt(final ObjectOutput output, final int value) throws IOException {
+        writeVarLong(output, value & 0xFFFFFFFFL);
+    }
+
+    private static int readVarInt(final ObjectInput input) throws IOException {
+        return (int) readVarLong(input);
+    }
+
+    private static void writeVarLong(final ObjectOutput output, final long value) throws IOException {
+        long remaining = value;
+        while ((remaining & ~0x7FL) != 0) {
+            output.writeByte((int) ((remaining & 0x7F) | 0x80));
+            remaining >>>= 7;
+        }
+        output.writeByte((int) remaining);
+    }
+
+    private static long readVarLong(final ObjectInput input) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final int b = input.readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed variable length number");
+    }
+
+    private static void writeString(final ObjectOutput output, final String string) throws IOException {
+        final byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(output, bytes.length);
+        output.write(bytes);
+    }
+
+    private static String readString(final ObjectInput input) throws IOException {
+        final byte[] bytes = new byte[readVarInt(input)];
+        input.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(final ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(final byte[] bytes, final int off, final int len) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            final int count = Math.min(len, buffer.remaining());
+            buffer.get(bytes, off, count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
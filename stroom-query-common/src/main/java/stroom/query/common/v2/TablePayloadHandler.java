@@ -16,14 +16,23 @@
 
 package stroom.query.common.v2;
 
-import stroom.mapreduce.v2.PairQueue;
+import stroom.mapreduce.v2.PairCursor;
+import stroom.mapreduce.v2.ParallelPartitioner;
 import stroom.mapreduce.v2.UnsafePairQueue;
 import stroom.query.api.v2.Field;
 import stroom.query.util.LambdaLogger;
 import stroom.query.util.LambdaLoggerFactory;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class TablePayloadHandler implements PayloadHandler {
     private static final LambdaLogger LOGGER = LambdaLoggerFactory.getLogger(TablePayloadHandler.class);
@@ -33,26 +42,117 @@ public class TablePayloadHandler implements PayloadHandler {
     private final Sizes maxResults;
     private final Sizes storeSize;
     private final AtomicLong totalResults = new AtomicLong();
+    private final Shard[] shards;
+    private final ForkJoinPool reductionPool;
+    private final SpillStore spillStore;
+    private final long maxResidentBytesPerShard;
 
-    private volatile PairQueue<GroupKey, Item> currentQueue;
+    // Incremented every time items are merged so that we know when the current data snapshot is out of date.
+    private final AtomicLong version = new AtomicLong();
+    private volatile long dataVersion;
     private volatile Data data;
     private volatile boolean hasEnoughData;
+    private volatile boolean frozen;
+    private final AtomicReference<Item> threshold = new AtomicReference<>();
 
     public TablePayloadHandler(final List<Field> fields,
                                final boolean showDetails,
                                final Sizes maxResults,
                                final Sizes storeSize) {
+        this(fields, showDetails, maxResults, storeSize, 1);
+    }
+
+    /**
+     * @param fields      The table fields.
+     * @param showDetails True if detail rows should be kept below the lowest group level.
+     * @param maxResults  The maximum number of results to return at each depth.
+     * @param storeSize   The maximum number of items to hold at each depth.
+     * @param shardCount  The number of shards to spread items across. Payloads delivered concurrently are merged into
+     *                    different shards in parallel, items are partitioned between shards by the hash of their top
+     *                    level group key so that a group and all of its children live in the same shard.
+     */
+    public TablePayloadHandler(final List<Field> fields,
+                               final boolean showDetails,
+                               final Sizes maxResults,
+                               final Sizes storeSize,
+                               final int shardCount) {
+        this(fields, showDetails, maxResults, storeSize, shardCount, null);
+    }
+
+    /**
+     * @param fields        The table fields.
+     * @param showDetails   True if detail rows should be kept below the lowest group level.
+     * @param maxResults    The maximum number of results to return at each depth.
+     * @param storeSize     The maximum number of items to hold at each depth.
+     * @param shardCount    The number of shards to spread items across.
+     * @param reductionPool A pool used to merge a large payload into several shards at once, or null to always merge
+     *                      on the thread that delivers the payload.
+     */
+    public TablePayloadHandler(final List<Field> fields,
+                               final boolean showDetails,
+                               final Sizes maxResults,
+                               final Sizes storeSize,
+                               final int shardCount,
+                               final ForkJoinPool reductionPool) {
+        this(fields, showDetails, maxResults, storeSize, shardCount, reductionPool, null);
+    }
+
+    /**
+     * @param fields        The table fields.
+     * @param showDetails   True if detail rows should be kept below the lowest group level.
+     * @param maxResults    The maximum number of results to return at each depth.
+     * @param storeSize     The maximum number of items to hold at each depth.
+     * @param shardCount    The number of shards to spread items across.
+     * @param reductionPool A pool used to merge a large payload into several shards at once, or null to always merge
+     *                      on the thread that delivers the payload.
+     * @param spillSettings Where to move items to once they take up more memory than the budget allows, or null to
+     *                      always keep every item in memory. The budget is shared equally between shards.
+     */
+    public TablePayloadHandler(final List<Field> fields,
+                               final boolean showDetails,
+                               final Sizes maxResults,
+                               final Sizes storeSize,
+                               final int shardCount,
+                               final ForkJoinPool reductionPool,
+                               final SpillSettings spillSettings) {
+        this.reductionPool = reductionPool;
         this.compiledSorter = new CompiledSorter(fields);
         this.maxResults = maxResults;
         this.storeSize = storeSize;
         this.compiledDepths = new CompiledDepths(fields, showDetails);
-        this.data = new ResultStoreCreator(compiledSorter).create(0, 0);
+        this.shards = new Shard[Math.max(1, shardCount)];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new Shard();
+        }
+        if (spillSettings != null) {
+            this.spillStore = new SpillStore(spillSettings.getDirectory());
+            this.maxResidentBytesPerShard = spillSettings.getMaxResidentBytes() / shards.length;
+        } else {
+            this.spillStore = null;
+            this.maxResidentBytesPerShard = 0;
+        }
+        clear();
     }
 
     void clear() {
+        for (final Shard shard : shards) {
+            shard.lock.lock();
+            try {
+                if (shard.store != null) {
+                    shard.store.destroy();
+                }
+                shard.store = new IncrementalResultStore(compiledSorter, compiledDepths, storeSize, spillStore,
+                        maxResidentBytesPerShard);
+                shard.residentBytes = 0;
+            } finally {
+                shard.lock.unlock();
+            }
+        }
         totalResults.set(0);
-        currentQueue = null;
-        data = new ResultStoreCreator(compiledSorter).create(0, 0);
+        threshold.set(null);
+        frozen = false;
+        dataVersion = version.incrementAndGet();
+        data = new Data(new HashMap<>(), 0, 0);
     }
 
     /**
@@ -61,9 +161,9 @@ public class TablePayloadHandler implements PayloadHandler {
      * @param newQueue     The items to add to the queue.
      * @return False if we are terminating or have enough data, true otherwise.
      */
-    synchronized boolean addQueue(final UnsafePairQueue<GroupKey, Item> newQueue) {
+    boolean addQueue(final UnsafePairQueue<GroupKey, Item> newQueue) {
         LOGGER.trace(() -> LambdaLogger.buildMessage("addQueue called for {} items", newQueue.size()));
-        if (Thread.currentThread().isInterrupted() || hasEnoughData) {
+        if (Thread.currentThread().isInterrupted() || hasEnoughData || frozen) {
             return false;
         }
 
@@ -72,29 +172,29 @@ public class TablePayloadHandler implements PayloadHandler {
                 // Update the total number of results that we have received.
                 totalResults.getAndAdd(newQueue.size());
 
-                if (currentQueue == null) {
-                    currentQueue = updateResultStore(newQueue);
-
+                // Merge the new items into the items we already hold. Items are reduced and trimmed in place so we
+                // only do work in proportion to the size of the new queue.
+                if (shards.length == 1) {
+                    final Shard shard = shards[0];
+                    shard.lock.lock();
+                    try {
+                        shard.store.read(newQueue);
+                        updateShard(shard);
+                    } finally {
+                        shard.lock.unlock();
+                    }
                 } else {
-                    final PairQueue<GroupKey, Item> outputQueue = new UnsafePairQueue<>();
-
-                    // Create a partitioner to perform result reduction if needed.
-                    final ItemPartitioner partitioner = new ItemPartitioner(compiledDepths.getDepths(),
-                            compiledDepths.getMaxDepth());
-                    partitioner.setOutputCollector(outputQueue);
+                    addToShards(newQueue);
+                }
+                version.incrementAndGet();
 
-                    // First deal with the current queue.
-                    if (currentQueue != null) {
-                        partitioner.read(currentQueue);
+                // Some searches can be terminated early if the user is not sorting or grouping.
+                if (!hasEnoughData && !compiledSorter.hasSort() && !compiledDepths.hasGroupBy()) {
+                    // No sorting or grouping so we can stop the search as soon as we have the number of results
+                    // requested by the client
+                    if (maxResults != null && totalResults.get() >= maxResults.size(0)) {
+                        hasEnoughData = true;
                     }
-
-                    // New deal with the new queue.
-                    partitioner.read(newQueue);
-
-                    // Perform partitioning and reduction.
-                    partitioner.partition();
-
-                    currentQueue = updateResultStore(outputQueue);
                 }
             }
         } catch (final RuntimeException e) {
@@ -105,42 +205,251 @@ public class TablePayloadHandler implements PayloadHandler {
         return true;
     }
 
-    private PairQueue<GroupKey, Item> updateResultStore(final PairQueue<GroupKey, Item> queue) {
-        // Stick the new reduced results into a new result store.
-        final ResultStoreCreator resultStoreCreator = new ResultStoreCreator(compiledSorter);
-        resultStoreCreator.read(queue);
+    @SuppressWarnings("unchecked")
+    private void addToShards(final UnsafePairQueue<GroupKey, Item> queue) {
+        // Split the queue into a batch of items for each shard.
+        final List<Item>[] batches = new List[shards.length];
+        final PairCursor<GroupKey, Item> cursor = queue.cursor();
+        while (cursor.next()) {
+            final Item item = cursor.getValue();
+            final int index = getShardIndex(item.key);
+            if (batches[index] == null) {
+                batches[index] = new ArrayList<>();
+            }
+            batches[index].add(item);
+        }
+
+        // Large payloads can be merged into all shards at once if we have been given a pool to do it with.
+        if (reductionPool != null && queue.size() >= ParallelPartitioner.DEFAULT_THRESHOLD) {
+            final List<ForkJoinTask<?>> tasks = new ArrayList<>(batches.length);
+            for (int i = 0; i < batches.length; i++) {
+                if (batches[i] != null) {
+                    final Shard shard = shards[i];
+                    final List<Item> batch = batches[i];
+                    tasks.add(reductionPool.submit(() -> merge(shard, batch)));
+                }
+            }
+            for (final ForkJoinTask<?> task : tasks) {
+                task.join();
+            }
+            return;
+        }
+
+        // Merge batches into any shards that are not busy first, then wait for the rest.
+        int remaining = 0;
+        for (int i = 0; i < batches.length; i++) {
+            if (batches[i] != null) {
+                final Shard shard = shards[i];
+                if (shard.lock.tryLock()) {
+                    try {
+                        shard.store.addAll(batches[i]);
+                        updateShard(shard);
+                    } finally {
+                        shard.lock.unlock();
+                    }
+                    batches[i] = null;
+                } else {
+                    remaining++;
+                }
+            }
+        }
+
+        for (int i = 0; i < batches.length && remaining > 0; i++) {
+            if (batches[i] != null) {
+                merge(shards[i], batches[i]);
+                remaining--;
+            }
+        }
+    }
+
+    private void merge(final Shard shard, final List<Item> batch) {
+        shard.lock.lock();
+        try {
+            shard.store.addAll(batch);
+            updateShard(shard);
+        } finally {
+            shard.lock.unlock();
+        }
+    }
+
+    private void updateShard(final Shard shard) {
+        shard.residentBytes = shard.store.getResidentBytes();
 
-        // Trim the number of results in the store.
-        resultStoreCreator.sortAndTrim(storeSize);
+        // Every shard keeps its own top items and an item that is worse than all of the items kept by any one shard
+        // can never make the combined top items, so the best threshold of all the shards applies to all items.
+        final Item candidate = shard.store.getThreshold();
+        if (candidate != null) {
+            threshold.accumulateAndGet(candidate, (current, update) ->
+                    current == null || compiledSorter.compare(update, current) < 0 ? update : current);
+        }
+    }
 
-        // Put the remaining items into the current queue ready for the next
-        // result.
-        final PairQueue<GroupKey, Item> remaining = new UnsafePairQueue<>();
-        long size = 0;
-        for (final Items<Item> items : resultStoreCreator.getChildMap().values()) {
-            for (final Item item : items) {
-                remaining.collect(item.key, item);
-                size++;
+    /**
+     * Delete any temporary files that items have been spilled to. This must be called when the store that holds the
+     * results is destroyed.
+     */
+    public void destroy() {
+        for (final Shard shard : shards) {
+            shard.lock.lock();
+            try {
+                shard.store.destroy();
+            } finally {
+                shard.lock.unlock();
             }
         }
+    }
+
+    /**
+     * Move the items held to a compact read only copy off heap once no more items will be added, e.g. because the
+     * search is complete. The stores that held the items are emptied, and any temporary files that items have been
+     * spilled to are deleted, so the items no longer take up heap. Any items added after this are ignored.
+     */
+    public synchronized void freeze() {
+        if (frozen) {
+            return;
+        }
 
-        // Update the result store reference to point at this new store.
-        this.data = resultStoreCreator.create(size, totalResults.get());
+        data = FrozenChildMap.freeze(getData());
+        frozen = true;
 
-        // Some searches can be terminated early if the user is not sorting or grouping.
-        if (!hasEnoughData && !compiledSorter.hasSort() && !compiledDepths.hasGroupBy()) {
-            // No sorting or grouping so we can stop the search as soon as we have the number of results requested by
-            // the client
-            if (maxResults != null && data.getTotalSize() >= maxResults.size(0)) {
-                hasEnoughData = true;
+        for (final Shard shard : shards) {
+            shard.lock.lock();
+            try {
+                shard.store.destroy();
+                shard.store = new IncrementalResultStore(compiledSorter, compiledDepths, storeSize, spillStore,
+                        maxResidentBytesPerShard);
+                shard.residentBytes = 0;
+            } finally {
+                shard.lock.unlock();
             }
         }
+    }
 
-        // Give back the remaining queue items ready for the next result.
-        return remaining;
+    /**
+     * Get the worst item that is being kept for a sorted table that is not grouped. Once the table holds as many items
+     * as it can, any new item that is not better than this one will be discarded, so producers can skip values that
+     * cannot beat it, and stop altogether once they know that none of their remaining values can.
+     *
+     * @return The worst item being kept, or null if any new item might still be kept.
+     */
+    public Item getThreshold() {
+        return threshold.get();
+    }
+
+    /**
+     * Estimate the number of bytes taken up by the items held. This only reads a counter that each shard keeps up to
+     * date as items are merged so it is cheap enough to call often and never waits for a merge or takes a snapshot.
+     *
+     * @return The estimated bytes of heap taken up by the items held, or the bytes held off heap once frozen.
+     */
+    public long getEstimatedByteSize() {
+        if (frozen) {
+            return ((FrozenChildMap) data.getChildMap()).getByteSize();
+        }
+
+        long bytes = 0;
+        for (final Shard shard : shards) {
+            bytes += shard.residentBytes;
+        }
+        return bytes;
+    }
+
+    private int getShardIndex(final GroupKey key) {
+        if (key == null) {
+            // Ungrouped items can live in any shard so spread them by thread.
+            return (int) (Thread.currentThread().getId() % shards.length);
+        }
+
+        // Keep a group and all of its children in the same shard so that trimming can cascade within a shard.
+        GroupKey root = key;
+        while (root.getParent() != null) {
+            root = root.getParent();
+        }
+        return Math.floorMod(root.hashCode(), shards.length);
     }
 
     public Data getData() {
+        if (frozen) {
+            return data;
+        }
+
+        // Only take a new snapshot of the store if items have been added since the last one.
+        final long currentVersion = version.get();
+        if (currentVersion != dataVersion) {
+            synchronized (this) {
+                if (currentVersion != dataVersion) {
+                    data = createData();
+                    dataVersion = currentVersion;
+                }
+            }
+        }
         return data;
     }
+
+    private Data createData() {
+        final long totalSize = totalResults.get();
+
+        // Lock all shards in order so that generators are not changed while we sort.
+        for (final Shard shard : shards) {
+            shard.lock.lock();
+        }
+        try {
+            if (shards.length == 1) {
+                return shards[0].store.createData(totalSize);
+            }
+
+            // Combine the shards. Each group lives in a single shard so only the top level items need merging.
+            final Map<GroupKey, Items<Item>> childMap = new HashMap<>();
+            final ItemsArrayList<Item> rootItems = new ItemsArrayList<>();
+            final long[] size = new long[1];
+            for (final Shard shard : shards) {
+                final Data shardData = shard.store.createData(totalSize);
+                for (final Entry<GroupKey, Items<Item>> entry : shardData.getChildMap().entrySet()) {
+                    if (entry.getKey() == null) {
+                        for (final Item item : entry.getValue()) {
+                            rootItems.add(item);
+                        }
+                    } else {
+                        childMap.put(entry.getKey(), entry.getValue());
+                    }
+                }
+                size[0] += shardData.getSize();
+            }
+
+            // Every shard holds its own top items so the combined top level must be sorted and trimmed again.
+            if (storeSize == null) {
+                rootItems.sort(compiledSorter);
+            } else {
+                rootItems.sortAndTrim(storeSize.size(0), compiledSorter, item -> size[0] -= remove(childMap, item));
+            }
+            childMap.put(null, rootItems);
+
+            return new Data(childMap, size[0], totalSize);
+        } finally {
+            for (final Shard shard : shards) {
+                shard.lock.unlock();
+            }
+        }
+    }
+
+    private long remove(final Map<GroupKey, Items<Item>> childMap, final Item item) {
+        long count = 1;
+        if (item.key != null) {
+            // Cascade delete.
+            final Items<Item> children = childMap.remove(item.key);
+            if (children != null) {
+                for (final Item child : children) {
+                    count += remove(childMap, child);
+                }
+            }
+        }
+        return count;
+    }
+
+    private static class Shard {
+        private final ReentrantLock lock = new ReentrantLock();
+        private IncrementalResultStore store;
+        // Read without the lock so that the size of the store can be estimated while items are being merged.
+        private volatile long residentBytes;
+    }
 }
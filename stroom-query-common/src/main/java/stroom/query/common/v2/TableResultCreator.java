@@ -16,6 +16,7 @@
 
 package stroom.query.common.v2;
 
+import com.fasterxml.jackson.core.JsonGenerator;
 import stroom.dashboard.expression.v1.Generator;
 import stroom.dashboard.expression.v1.Selector;
 import stroom.dashboard.expression.v1.Val;
@@ -28,15 +29,17 @@ import stroom.query.api.v2.TableResult;
 import stroom.query.api.v2.TableSettings;
 import stroom.query.common.v2.format.FieldFormatter;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
 public class TableResultCreator implements ResultCreator {
     private final FieldFormatter fieldFormatter;
     private volatile List<Field> latestFields;
+    private volatile RowFormat latestRowFormat;
     private final Sizes defaultMaxResultsSizes;
 
     public TableResultCreator(final FieldFormatter fieldFormatter,
@@ -65,130 +68,206 @@ public class TableResultCreator implements ResultCreator {
             //maxResults defines the max number of records to come back and the paging can happen up to
             //that maxResults threshold
 
-            Set<String> openGroups = Collections.emptySet();
-            if (resultRequest.getOpenGroups() != null) {
-                openGroups = new HashSet<>(resultRequest.getOpenGroups());
-            }
-
             TableSettings tableSettings = resultRequest.getMappings().get(0);
             latestFields = tableSettings.getFields();
             // Create a set of sizes that are the minimum values for the combination of user provided sizes for the table and the default maximum sizes.
             final Sizes maxResults = Sizes.min(Sizes.create(tableSettings.getMaxResults()), defaultMaxResultsSizes);
 
-            totalResults = addTableResults(data,
-                    latestFields,
-                    maxResults,
-                    offset,
-                    length,
-                    openGroups,
-                    resultList,
-                    null,
-                    0,
-                    0);
+            // Find the rows in the requested range with an index of the visible rows rather than walking every row
+            // before the offset.
+            final Set<GroupKey> openGroups = data.getOpenGroupKeys(resultRequest.getOpenGroups());
+            final PagingIndex pagingIndex = data.getPagingIndex(openGroups, maxResults);
+            final RowFormat rowFormat = RowFormat.get(latestRowFormat, fieldFormatter, latestFields);
+            latestRowFormat = rowFormat;
+            final List<Field> fields = latestFields;
+            pagingIndex.visit(offset, length, item -> resultList.add(getRow(data, rowFormat, fields, item)));
+            totalResults = pagingIndex.getTotalRows();
         } catch (final RuntimeException e) {
-            if (e.getMessage() == null || e.getMessage().isBlank()) {
-                error = e.getClass().getName();
-            } else {
-                error = e.getMessage();
-            }
+            error = getErrorMessage(e);
         }
 
         return new TableResult(resultRequest.getComponentId(), latestFields, resultList, new OffsetRange(offset, resultList.size()), totalResults, error);
     }
 
-    private int addTableResults(final Data data,
-                                final List<Field> fields,
-                                final Sizes maxResults,
-                                final int offset,
-                                final int length,
-                                final Set<String> openGroups,
-                                final List<Row> resultList,
-                                final GroupKey parentKey,
-                                final int depth,
-                                final int position) {
-        int maxResultsAtThisDepth = maxResults.size(depth);
-        int pos = position;
-        int resultCountAtThisLevel = 0;
-        // Get top level items.
-        final Items<Item> items = data.getChildMap().get(parentKey);
-        if (items != null) {
-            for (final Item item : items) {
-                final GroupKey groupKey = item.getKey();
-
-                // If the result is within the requested window (offset + length) then add it.
-                if (pos >= offset &&
-                        resultList.size() < length) {
-                    // Convert all list into fully resolved objects evaluating functions where necessary.
-                    final List<String> values = new ArrayList<>(item.getGenerators().length);
-                    int i = 0;
-
-                    for (final Field field : fields) {
-                        String string = null;
-
-                        if (item.getGenerators().length > i) {
-                            final Generator generator = item.getGenerators()[i];
-                            if (generator != null) {
-                                Val val;
-
-                                if (groupKey != null && generator instanceof Selector) {
-                                    // If the generator is a selector then select a child row.
-                                    final Items<Item> childItems = data.getChildMap().get(groupKey);
-                                    if (childItems != null) {
-                                        // Create a list of child generators.
-                                        final List<Generator> childGenerators = new ArrayList<>(childItems.size());
-                                        for (final Item childItem : childItems) {
-                                            final Generator childGenerator = childItem.getGenerators()[i];
-                                            childGenerators.add(childGenerator);
-                                        }
-
-                                        // Make the selector select from the list of child generators.
-                                        final Selector selector = (Selector) generator;
-                                        val = selector.select(childGenerators.toArray(new Generator[0]));
-
-                                    } else {
-                                        // If there are are no child items then just evaluate the inner expression
-                                        // provided to the selector function.
-                                        val = generator.eval();
-                                    }
-                                } else {
-                                    // Convert all list into fully resolved objects evaluating functions where
-                                    // necessary.
-                                    val = generator.eval();
-                                }
+    @Override
+    public void write(final Data data, final ResultRequest resultRequest, final JsonGenerator generator)
+            throws IOException {
+        int offset = 0;
+        int length = Integer.MAX_VALUE;
+        String error = null;
+        PagingIndex pagingIndex = null;
 
-                                string = fieldFormatter.format(field, val);
-                            }
-                        }
+        try {
+            final OffsetRange range = resultRequest.getRequestedRange();
+            if (range != null) {
+                offset = range.getOffset().intValue();
+                length = range.getLength().intValue();
+            }
 
-                        values.add(string);
-                        i++;
-                    }
+            TableSettings tableSettings = resultRequest.getMappings().get(0);
+            latestFields = tableSettings.getFields();
+            final Sizes maxResults = Sizes.min(Sizes.create(tableSettings.getMaxResults()), defaultMaxResultsSizes);
 
-                    if (item.getKey() != null) {
-                        resultList.add(new Row(item.getKey().toString(), values, item.getDepth()));
-                    } else {
-                        resultList.add(new Row(null, values, item.getDepth()));
+            final Set<GroupKey> openGroups = data.getOpenGroupKeys(resultRequest.getOpenGroups());
+            pagingIndex = data.getPagingIndex(openGroups, maxResults);
+        } catch (final RuntimeException e) {
+            error = getErrorMessage(e);
+        }
+
+        // Write each row as soon as it has been created rather than collecting them all first. Everything else is
+        // written by the model serialiser so the output matches a serialised TableResult.
+        final String componentId = resultRequest.getComponentId();
+        final List<Field> fields = latestFields;
+        final int finalOffset = offset;
+        final int finalLength = length;
+        final PagingIndex finalPagingIndex = pagingIndex;
+        final int[] rowCount = new int[1];
+        final int[] totalResults = new int[1];
+        final String[] finalError = {error};
+        StreamedResultWriter.write(generator,
+                new TableResult(componentId, fields, Collections.emptyList(), null, null, null),
+                "rows",
+                () -> {
+                    if (finalPagingIndex != null) {
+                        try {
+                            finalPagingIndex.visit(finalOffset, finalLength, item -> {
+                                try {
+                                    writeRow(generator, data, fields, item);
+                                    rowCount[0]++;
+                                } catch (final IOException e) {
+                                    throw new UncheckedIOException(e);
+                                }
+                            });
+                            totalResults[0] = finalPagingIndex.getTotalRows();
+                        } catch (final UncheckedIOException e) {
+                            throw e.getCause();
+                        } catch (final RuntimeException e) {
+                            finalError[0] = getErrorMessage(e);
+                        }
                     }
-                }
-
-                // Increment the overall position.
-                pos++;
-
-                // Add child results if a node is open.
-                if (groupKey != null && openGroups != null && openGroups.contains(item.getKey().toString())) {
-                    pos = addTableResults(data, fields, maxResults, offset, length, openGroups, resultList,
-                            item.getKey(), depth + 1, pos);
-                }
-
-                // Increment the total results at this depth.
-                resultCountAtThisLevel++;
-                // Stop adding results if we have reached the maximum for this level.
-                if (resultCountAtThisLevel >= maxResultsAtThisDepth) {
-                    break;
-                }
+                },
+                () -> new TableResult(componentId, fields, Collections.emptyList(),
+                        new OffsetRange(finalOffset, rowCount[0]), totalResults[0], finalError[0]));
+    }
+
+    private void writeRow(final JsonGenerator generator,
+                          final Data data,
+                          final List<Field> fields,
+                          final Item item) throws IOException {
+        final ItemValues itemValues = item.getValues();
+        final GroupKey groupKey = item.getKey();
+
+        generator.writeStartObject();
+        if (groupKey != null) {
+            generator.writeStringField("groupKey", groupKey.toString());
+        }
+        generator.writeArrayFieldStart("values");
+        // Format the values straight into the output rather than creating a row that has to be kept.
+        for (int i = 0; i < fields.size(); i++) {
+            generator.writeString(formatValue(data, itemValues, fields.get(i), item, i));
+        }
+        generator.writeEndArray();
+        generator.writeNumberField("depth", item.getDepth());
+        generator.writeEndObject();
+    }
+
+    private static String getErrorMessage(final RuntimeException e) {
+        if (e.getMessage() == null || e.getMessage().isBlank()) {
+            return e.getClass().getName();
+        }
+        return e.getMessage();
+    }
+
+    private Row getRow(final Data data, final RowFormat rowFormat, final List<Field> fields, final Item item) {
+        final ItemValues itemValues = item.getValues();
+
+        // Rows that select from child items depend on the children as well as the item.
+        if (item.getKey() != null && hasSelector(item)) {
+            final Items<Item> childItems = data.getChildMap().get(item.getKey());
+            if (childItems != null) {
+                return itemValues.getRow(rowFormat, childItems, () -> createRow(data, itemValues, fields, item));
+            }
+        }
+        return itemValues.getRow(rowFormat, () -> createRow(data, itemValues, fields, item));
+    }
+
+    private boolean hasSelector(final Item item) {
+        for (final Generator generator : item.getGenerators()) {
+            if (generator instanceof Selector) {
+                return true;
             }
         }
-        return pos;
+        return false;
+    }
+
+    private Row createRow(final Data data, final ItemValues itemValues, final List<Field> fields, final Item item) {
+        final GroupKey groupKey = item.getKey();
+
+        // Convert all list into fully resolved objects evaluating functions where necessary.
+        final List<String> values = new ArrayList<>(fields.size());
+        int i = 0;
+
+        for (final Field field : fields) {
+            values.add(formatValue(data, itemValues, field, item, i));
+            i++;
+        }
+
+        if (groupKey != null) {
+            return new Row(groupKey.toString(), values, item.getDepth());
+        }
+        return new Row(null, values, item.getDepth());
+    }
+
+    private String formatValue(final Data data,
+                               final ItemValues itemValues,
+                               final Field field,
+                               final Item item,
+                               final int i) {
+        if (item.getGenerators().length <= i) {
+            return null;
+        }
+
+        final Generator generator = item.getGenerators()[i];
+        if (generator == null) {
+            return null;
+        }
+
+        final GroupKey groupKey = item.getKey();
+        Val val;
+
+        if (generator instanceof FrozenGenerator) {
+            // Frozen data selected from the child rows when it was frozen.
+            val = ((FrozenGenerator) generator).getSelectedValue();
+        } else if (groupKey != null && generator instanceof Selector) {
+            // If the generator is a selector then select a child row.
+            final Items<Item> childItems = data.getChildMap().get(groupKey);
+            if (childItems != null) {
+                // Only select again if the children have changed since the last selection.
+                val = itemValues.getSelection(i, childItems, () ->
+                        select((Selector) generator, childItems, i));
+
+            } else {
+                // If there are are no child items then just evaluate the inner expression
+                // provided to the selector function.
+                val = itemValues.getValue(item.getGenerators(), i);
+            }
+        } else {
+            // Convert all list into fully resolved objects evaluating functions where
+            // necessary.
+            val = itemValues.getValue(item.getGenerators(), i);
+        }
+
+        return fieldFormatter.format(field, val);
+    }
+
+    private Val select(final Selector selector, final Items<Item> childItems, final int index) {
+        // Make the selector select from the child generators.
+        final Generator[] childGenerators = new Generator[childItems.size()];
+        int pos = 0;
+        for (final Item childItem : childItems) {
+            childGenerators[pos++] = childItem.getGenerators()[index];
+        }
+        return selector.select(childGenerators);
     }
 
     public List<Field> getFields() {
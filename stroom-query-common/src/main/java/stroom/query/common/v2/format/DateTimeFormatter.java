@@ -16,6 +16,8 @@
 
 package stroom.query.common.v2.format;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import stroom.dashboard.expression.v1.DateUtil;
 import stroom.dashboard.expression.v1.Val;
 import stroom.query.api.v2.DateTimeFormat;
@@ -24,24 +26,76 @@ import stroom.query.api.v2.TimeZone;
 import java.time.Instant;
 import java.time.ZoneId;
 import java.time.ZoneOffset;
-import java.time.ZonedDateTime;
+import java.util.Objects;
 
+/**
+ * Formats millisecond timestamps with a date time pattern in a time zone.
+ * <p>
+ * Formatters are shared between fields that use the same pattern and zone. Each formatter remembers how it recently
+ * rendered whole seconds so that timestamps in the same second as a recent timestamp, which are common in time series
+ * data, are rendered by inserting the milliseconds between the text before and after them, or by reusing the string if
+ * the pattern does not show fractions of a second.
+ */
 public class DateTimeFormatter implements Formatter {
+    private static final int MAX_CACHED_FORMATTERS = 1000;
+    private static final Cache<Key, DateTimeFormatter> FORMATTER_CACHE = CacheBuilder.newBuilder()
+            .maximumSize(MAX_CACHED_FORMATTERS)
+            .build();
+
+    // The number of recently rendered seconds to remember, must be a power of two.
+    private static final int SECOND_CACHE_SIZE = 64;
+    private static final int MILLIS_LENGTH = 3;
+
     private final java.time.format.DateTimeFormatter format;
     private final ZoneId zone;
+    // Set if the pattern shows whole seconds, possibly with milliseconds, in which case these format the text before
+    // and after the milliseconds.
+    private final java.time.format.DateTimeFormatter prefixFormat;
+    private final java.time.format.DateTimeFormatter suffixFormat;
+    private final RenderedSecond[] renderedSeconds;
 
-    private DateTimeFormatter(final java.time.format.DateTimeFormatter format, final ZoneId zone) {
-        this.format = format;
+    private DateTimeFormatter(final String pattern, final ZoneId zone) {
         this.zone = zone;
+
+        java.time.format.DateTimeFormatter prefix = null;
+        java.time.format.DateTimeFormatter suffix = null;
+        if (pattern == null) {
+            format = null;
+
+        } else {
+            format = java.time.format.DateTimeFormatter.ofPattern(pattern).withZone(zone);
+
+            // Optional sections can't be split around the milliseconds so patterns with them are always fully
+            // formatted.
+            if (!hasOptionalSection(pattern)) {
+                final int millisIndex = findMillis(pattern);
+                if (millisIndex == -1) {
+                    if (!hasFractionField(pattern, 0, pattern.length())) {
+                        prefix = format;
+                    }
+                } else if (!hasFractionField(pattern, 0, millisIndex) &&
+                        !hasFractionField(pattern, millisIndex + MILLIS_LENGTH, pattern.length())) {
+                    prefix = java.time.format.DateTimeFormatter.ofPattern(pattern.substring(0, millisIndex))
+                            .withZone(zone);
+                    suffix = java.time.format.DateTimeFormatter.ofPattern(
+                            pattern.substring(millisIndex + MILLIS_LENGTH))
+                            .withZone(zone);
+                }
+            }
+        }
+
+        prefixFormat = prefix;
+        suffixFormat = suffix;
+        renderedSeconds = prefix == null ? null : new RenderedSecond[SECOND_CACHE_SIZE];
     }
 
     public static DateTimeFormatter create(final DateTimeFormat dateTimeFormat, final String dateTimeLocale) {
-        java.time.format.DateTimeFormatter format = null;
+        String pattern = null;
         ZoneId zone = ZoneOffset.UTC;
 
         if (dateTimeFormat != null) {
-            String pattern = dateTimeFormat.getPattern();
-            if (pattern != null && pattern.trim().length() > 0) {
+            if (dateTimeFormat.getPattern() != null && dateTimeFormat.getPattern().trim().length() > 0) {
+                pattern = dateTimeFormat.getPattern();
                 final TimeZone timeZone = dateTimeFormat.getTimeZone();
 
                 if (timeZone != null) {
@@ -66,12 +120,13 @@ public class DateTimeFormatter implements Formatter {
                                 getInt(timeZone.getOffsetMinutes()));
                     }
                 }
-
-                format = java.time.format.DateTimeFormatter.ofPattern(pattern);
             }
         }
 
-        return new DateTimeFormatter(format, zone);
+        final String finalPattern = pattern;
+        final ZoneId finalZone = zone;
+        return FORMATTER_CACHE.asMap().computeIfAbsent(new Key(pattern, zone), k ->
+                new DateTimeFormatter(finalPattern, finalZone));
     }
 
     private static int getInt(final Integer i) {
@@ -81,6 +136,67 @@ public class DateTimeFormatter implements Formatter {
         return i;
     }
 
+    /**
+     * @return The index of the first millisecond field, i.e. exactly three 'S' letters outside quotes, or -1 if there
+     * isn't one.
+     */
+    private static int findMillis(final String pattern) {
+        boolean inQuote = false;
+        int i = 0;
+        while (i < pattern.length()) {
+            final char c = pattern.charAt(i);
+            if (c == '\'') {
+                inQuote = !inQuote;
+                i++;
+            } else if (!inQuote && c == 'S') {
+                int end = i;
+                while (end < pattern.length() && pattern.charAt(end) == 'S') {
+                    end++;
+                }
+                if (end - i == MILLIS_LENGTH) {
+                    return i;
+                }
+                i = end;
+            } else {
+                i++;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return True if the pattern has optional sections or reserved braces outside quotes.
+     */
+    private static boolean hasOptionalSection(final String pattern) {
+        boolean inQuote = false;
+        for (int i = 0; i < pattern.length(); i++) {
+            final char c = pattern.charAt(i);
+            if (c == '\'') {
+                inQuote = !inQuote;
+            } else if (!inQuote && (c == '[' || c == ']' || c == '{' || c == '}')) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return True if the part of the pattern has letters outside quotes that show fractions of a second. The part
+     * must start outside quotes.
+     */
+    private static boolean hasFractionField(final String pattern, final int start, final int end) {
+        boolean inQuote = false;
+        for (int i = start; i < end; i++) {
+            final char c = pattern.charAt(i);
+            if (c == '\'') {
+                inQuote = !inQuote;
+            } else if (!inQuote && (c == 'S' || c == 'n' || c == 'N' || c == 'A')) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     @Override
     public String format(final Val value) {
         if (value == null) {
@@ -92,9 +208,76 @@ public class DateTimeFormatter implements Formatter {
             if (format == null) {
                 return DateUtil.createNormalDateTimeString(millis);
             }
+            if (prefixFormat == null) {
+                return format.format(Instant.ofEpochMilli(millis));
+            }
 
-            return format.format(Instant.ofEpochMilli(millis).atZone(zone));
+            final long second = Math.floorDiv(millis, 1000L);
+            final int index = (int) second & (SECOND_CACHE_SIZE - 1);
+            RenderedSecond renderedSecond = renderedSeconds[index];
+            if (renderedSecond == null || renderedSecond.second != second) {
+                final Instant instant = Instant.ofEpochSecond(second);
+                renderedSecond = new RenderedSecond(second,
+                        prefixFormat.format(instant),
+                        suffixFormat == null ? null : suffixFormat.format(instant));
+                // Rendered seconds are immutable so other threads see either the old or the new one.
+                renderedSeconds[index] = renderedSecond;
+            }
+
+            if (renderedSecond.suffix == null) {
+                return renderedSecond.prefix;
+            }
+            return insertMillis(renderedSecond, (int) Math.floorMod(millis, 1000L));
         }
         return value.toString();
     }
+
+    private static String insertMillis(final RenderedSecond renderedSecond, final int millis) {
+        final String prefix = renderedSecond.prefix;
+        final String suffix = renderedSecond.suffix;
+        final int length = prefix.length();
+        final char[] chars = new char[length + MILLIS_LENGTH + suffix.length()];
+        prefix.getChars(0, length, chars, 0);
+        chars[length] = (char) ('0' + millis / 100);
+        chars[length + 1] = (char) ('0' + (millis / 10) % 10);
+        chars[length + 2] = (char) ('0' + millis % 10);
+        suffix.getChars(0, suffix.length(), chars, length + MILLIS_LENGTH);
+        return new String(chars);
+    }
+
+    private static final class RenderedSecond {
+        private final long second;
+        private final String prefix;
+        private final String suffix;
+
+        private RenderedSecond(final long second, final String prefix, final String suffix) {
+            this.second = second;
+            this.prefix = prefix;
+            this.suffix = suffix;
+        }
+    }
+
+    private static final class Key {
+        private final String pattern;
+        private final ZoneId zone;
+
+        private Key(final String pattern, final ZoneId zone) {
+            this.pattern = pattern;
+            this.zone = zone;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            final Key key = (Key) o;
+            return Objects.equals(pattern, key.pattern) &&
+                    zone.equals(key.zone);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(pattern, zone);
+        }
+    }
 }
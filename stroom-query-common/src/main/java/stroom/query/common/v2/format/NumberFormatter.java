@@ -17,13 +17,55 @@
 package stroom.query.common.v2.format;
 
 import stroom.dashboard.expression.v1.Val;
+import stroom.dashboard.expression.v1.ValDouble;
+import stroom.dashboard.expression.v1.ValInteger;
+import stroom.dashboard.expression.v1.ValLong;
 import stroom.query.api.v2.NumberFormat;
 
+import java.util.Arrays;
+
+/**
+ * Formats numbers with a fixed number of decimal places and optional thousands separators. The number format is
+ * compiled into a plan when the formatter is created so that formatting a value only needs to fill a character buffer
+ * and create the resulting string.
+ * <p>
+ * Whole numbers are formatted straight from their numeric value. Other values are formatted from the text of the value,
+ * truncating rather than rounding any extra decimal places.
+ */
 public class NumberFormatter implements Formatter {
-    private final NumberFormat numberFormat;
+    // Doubles below this size are whole numbers that can be formatted exactly as longs.
+    private static final double MAX_EXACT_DOUBLE = 1e15;
+    // The sign, the digits of the minimum long and its separators.
+    private static final int MAX_LONG_LENGTH = 1 + 19 + 6;
+
+    private final boolean plain;
+    private final boolean useSeparator;
+    private final int decimalPlaces;
+    // The decimal point and zeros that follow every whole number.
+    private final char[] wholeSuffix;
+    // Per thread buffers for formatting whole numbers that always end with the whole number suffix.
+    private final ThreadLocal<char[]> longBuffer;
 
     private NumberFormatter(final NumberFormat numberFormat) {
-        this.numberFormat = numberFormat;
+        plain = numberFormat == null;
+        useSeparator = numberFormat != null && Boolean.TRUE.equals(numberFormat.getUseSeparator());
+        decimalPlaces = numberFormat == null || numberFormat.getDecimalPlaces() == null
+                ? 0
+                : Math.max(0, numberFormat.getDecimalPlaces());
+
+        if (decimalPlaces > 0) {
+            wholeSuffix = new char[decimalPlaces + 1];
+            Arrays.fill(wholeSuffix, '0');
+            wholeSuffix[0] = '.';
+        } else {
+            wholeSuffix = new char[0];
+        }
+
+        longBuffer = ThreadLocal.withInitial(() -> {
+            final char[] buffer = new char[MAX_LONG_LENGTH + wholeSuffix.length];
+            System.arraycopy(wholeSuffix, 0, buffer, MAX_LONG_LENGTH, wholeSuffix.length);
+            return buffer;
+        });
     }
 
     public static NumberFormatter create(final NumberFormat numberFormat) {
@@ -35,56 +77,83 @@ public class NumberFormatter implements Formatter {
         if (value == null) {
             return null;
         }
+        if (plain) {
+            return value.toString();
+        }
+
+        if (value instanceof ValLong || value instanceof ValInteger) {
+            return formatLong(value.toLong());
+        }
 
         final Double dbl = value.toDouble();
-        if (dbl != null) {
-            final String string = value.toString();
-
-            if (numberFormat != null) {
-                final int index = string.indexOf(".");
-
-                String p1 = string;
-                String p2 = "";
-                if (index != -1) {
-                    p1 = string.substring(0, index);
-                    p2 = string.substring(index + 1);
-                }
-
-                // Add separator chars to i part.
-                if (numberFormat.getUseSeparator()) {
-                    final StringBuilder sb = new StringBuilder();
-                    for (int i = 0; i < p1.length(); i++) {
-                        sb.append(p1.charAt(i));
-
-                        final int pos = p1.length() - i - 1;
-                        if (pos > 0 && pos % 3 == 0) {
-                            sb.append(",");
-                        }
-                    }
-                    p1 = sb.toString();
-                }
-
-                // Trim or pad decimal part.
-                if (p2.length() > numberFormat.getDecimalPlaces()) {
-                    p2 = p2.substring(0, numberFormat.getDecimalPlaces());
-                } else if (p2.length() < numberFormat.getDecimalPlaces()) {
-                    final StringBuilder sb = new StringBuilder();
-                    sb.append(p2);
-                    for (int i = 0; i < numberFormat.getDecimalPlaces() - p2.length(); i++) {
-                        sb.append('0');
-                    }
-                    p2 = sb.toString();
-                }
-
-                if (p2.length() == 0) {
-                    return p1;
-                }
-
-                return p1 + "." + p2;
+        if (dbl == null) {
+            return value.toString();
+        }
+
+        final double d = dbl;
+        if (value instanceof ValDouble && d == Math.rint(d) && Math.abs(d) < MAX_EXACT_DOUBLE) {
+            return formatLong((long) d);
+        }
+
+        return formatText(value.toString());
+    }
+
+    private String formatLong(final long value) {
+        final char[] buffer = longBuffer.get();
+
+        // Write the digits backwards in front of the suffix, negating rather than taking the absolute value so that
+        // the minimum long does not overflow.
+        int pos = MAX_LONG_LENGTH;
+        long remaining = value < 0 ? value : -value;
+        int digits = 0;
+        do {
+            if (useSeparator && digits > 0 && digits % 3 == 0) {
+                buffer[--pos] = ',';
+            }
+            buffer[--pos] = (char) ('0' - (remaining % 10));
+            remaining /= 10;
+            digits++;
+        } while (remaining != 0);
+
+        if (value < 0) {
+            buffer[--pos] = '-';
+        }
+        return new String(buffer, pos, buffer.length - pos);
+    }
+
+    private String formatText(final String string) {
+        final int index = string.indexOf('.');
+        final int integerEnd = index == -1 ? string.length() : index;
+
+        int digitsStart = 0;
+        if (integerEnd > 0 && (string.charAt(0) == '-' || string.charAt(0) == '+')) {
+            digitsStart = 1;
+        }
+
+        final int digits = integerEnd - digitsStart;
+        final int separators = useSeparator && digits > 0 ? (digits - 1) / 3 : 0;
+        final int fractionLength = index == -1 ? 0 : Math.min(decimalPlaces, string.length() - index - 1);
+
+        final char[] chars = new char[digitsStart + digits + separators + wholeSuffix.length];
+        int pos = 0;
+        if (digitsStart > 0) {
+            chars[pos++] = string.charAt(0);
+        }
+
+        // Copy the integer part adding separator chars.
+        for (int i = digitsStart; i < integerEnd; i++) {
+            chars[pos++] = string.charAt(i);
+            final int remaining = integerEnd - i - 1;
+            if (separators > 0 && remaining > 0 && remaining % 3 == 0) {
+                chars[pos++] = ',';
             }
+        }
 
-            return string;
+        // Trim or pad decimal part.
+        System.arraycopy(wholeSuffix, 0, chars, pos, wholeSuffix.length);
+        if (fractionLength > 0) {
+            string.getChars(index + 1, index + 1 + fractionLength, chars, pos + 1);
         }
-        return value.toString();
+        return new String(chars);
     }
 }
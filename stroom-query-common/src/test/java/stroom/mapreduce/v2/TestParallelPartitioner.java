@@ -0,0 +1,76 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stroom.mapreduce.v2;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class TestParallelPartitioner {
+    @Test
+    void testSameOutputAsSequential() {
+        final ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            final List<Pair<String, Integer>> sequential = partition(null);
+            final List<Pair<String, Integer>> parallel = partition(pool);
+
+            assertThat(sequential).hasSize(5003);
+            assertThat(parallel).isEqualTo(sequential);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private List<Pair<String, Integer>> partition(final ForkJoinPool pool) {
+        final SumPartitioner partitioner = new SumPartitioner(pool, 100);
+        final UnsafePairQueue<String, Integer> outputQueue = new UnsafePairQueue<>();
+        partitioner.setOutputCollector(outputQueue);
+
+        final UnsafePairQueue<String, Integer> inputQueue = new UnsafePairQueue<>();
+        for (int i = 0; i < 100000; i++) {
+            inputQueue.collect("key" + (i * 7919 % 5003), i % 10);
+        }
+
+        partitioner.read(inputQueue);
+        partitioner.partition();
+
+        final List<Pair<String, Integer>> list = new ArrayList<>(outputQueue.size());
+        outputQueue.forEach(list::add);
+        return list;
+    }
+
+    private static class SumPartitioner extends ParallelPartitioner<String, Integer, String, Integer> {
+        SumPartitioner(final ForkJoinPool pool, final int threshold) {
+            super(pool, threshold);
+        }
+
+        @Override
+        protected Reducer<String, Integer, String, Integer> createReducer() {
+            return (key, values, output) -> {
+                int sum = 0;
+                for (final Integer value : values) {
+                    sum += value;
+                }
+                output.collect(key, sum);
+            };
+        }
+    }
+}
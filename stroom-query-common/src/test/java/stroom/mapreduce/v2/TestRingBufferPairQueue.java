@@ -0,0 +1,153 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stroom.mapreduce.v2;
+
+import org.junit.jupiter.api.Test;
+import stroom.mapreduce.v2.RingBufferPairQueue.BackPressure;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class TestRingBufferPairQueue {
+    private static final int PRODUCERS = 4;
+    private static final int PAIRS_PER_PRODUCER = 100000;
+
+    @Test
+    void testBlock() {
+        final long[] counts = produceAndConsume(BackPressure.BLOCK);
+        for (final long count : counts) {
+            assertThat(count).isEqualTo(PAIRS_PER_PRODUCER);
+        }
+    }
+
+    @Test
+    void testSpinThenPark() {
+        final long[] counts = produceAndConsume(BackPressure.SPIN_THEN_PARK);
+        for (final long count : counts) {
+            assertThat(count).isEqualTo(PAIRS_PER_PRODUCER);
+        }
+    }
+
+    @Test
+    void testDropAndCount() {
+        final RingBufferPairQueue<String, Integer> queue = new RingBufferPairQueue<>(10, BackPressure.DROP_AND_COUNT);
+        for (int i = 0; i < 15; i++) {
+            queue.collect("key" + i, i);
+        }
+
+        assertThat(queue.size()).isEqualTo(10);
+        assertThat(queue.getDroppedCount()).isEqualTo(5);
+    }
+
+    @Test
+    void testDrainTo() {
+        final RingBufferPairQueue<String, Integer> queue = new RingBufferPairQueue<>(100);
+        for (int i = 0; i < 50; i++) {
+            queue.collect("key" + i, i);
+        }
+
+        final UnsafePairQueue<String, Integer> output = new UnsafePairQueue<>();
+        assertThat(queue.drainTo(output, 20)).isEqualTo(20);
+        assertThat(queue.size()).isEqualTo(30);
+        assertThat(queue.drainTo(output, 100)).isEqualTo(30);
+        assertThat(queue.size()).isEqualTo(0);
+
+        int i = 0;
+        for (final Pair<String, Integer> pair : output) {
+            assertThat(pair.getValue()).isEqualTo(i++);
+        }
+    }
+
+    @Test
+    void testSegmentsAllocatedOnDemand() {
+        final RingBufferPairQueue<String, Integer> queue = new RingBufferPairQueue<>(1000000);
+        assertThat(queue.getAllocatedSlots()).isZero();
+
+        for (int i = 0; i < 10; i++) {
+            queue.collect("key" + i, i);
+        }
+        assertThat(queue.getAllocatedSlots()).isEqualTo(4096);
+
+        // Pairs that span several segments are read back in order.
+        queue.drainTo(new UnsafePairQueue<>(), 10);
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 10000; i++) {
+                queue.collect("key" + i, i);
+            }
+            final UnsafePairQueue<String, Integer> output = new UnsafePairQueue<>();
+            assertThat(queue.drainTo(output, Integer.MAX_VALUE)).isEqualTo(10000);
+            int i = 0;
+            for (final Pair<String, Integer> pair : output) {
+                assertThat(pair.getValue()).isEqualTo(i++);
+            }
+        }
+        // Only the segments that 30010 pairs have passed through are allocated.
+        assertThat(queue.getAllocatedSlots()).isEqualTo(8 * 4096);
+    }
+
+    @Test
+    void testProduceAndConsumeAcrossSegments() {
+        final long[] counts = produceAndConsume(BackPressure.BLOCK, 10000);
+        for (final long count : counts) {
+            assertThat(count).isEqualTo(PAIRS_PER_PRODUCER);
+        }
+    }
+
+    private long[] produceAndConsume(final BackPressure backPressure) {
+        return produceAndConsume(backPressure, 1000);
+    }
+
+    private long[] produceAndConsume(final BackPressure backPressure, final int capacity) {
+        final RingBufferPairQueue<Integer, Integer> queue = new RingBufferPairQueue<>(capacity, backPressure);
+        final ExecutorService executorService = Executors.newFixedThreadPool(PRODUCERS);
+        try {
+            final List<CompletableFuture<Void>> futures = new ArrayList<>();
+            for (int i = 0; i < PRODUCERS; i++) {
+                final int producer = i;
+                futures.add(CompletableFuture.runAsync(() -> {
+                    for (int j = 0; j < PAIRS_PER_PRODUCER; j++) {
+                        queue.collect(producer, j);
+                    }
+                }, executorService));
+            }
+            final CompletableFuture<Void> allProduced = CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]));
+
+            final long[] counts = new long[PRODUCERS];
+            final int[] lastValues = new int[PRODUCERS];
+            boolean done = false;
+            while (!done) {
+                done = allProduced.isDone();
+                final PairCursor<Integer, Integer> cursor = queue.cursor();
+                while (cursor.next()) {
+                    // Pairs from each producer must arrive in the order they were added.
+                    final int producer = cursor.getKey();
+                    assertThat(cursor.getValue()).isEqualTo(lastValues[producer]);
+                    lastValues[producer]++;
+                    counts[producer]++;
+                }
+            }
+            return counts;
+        } finally {
+            executorService.shutdown();
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stroom.mapreduce.v2;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class TestUnsafePairQueue {
+    @Test
+    void testCursor() {
+        final UnsafePairQueue<String, Integer> queue = create(100);
+
+        final PairCursor<String, Integer> cursor = queue.cursor();
+        int count = 0;
+        while (cursor.next()) {
+            assertThat(cursor.getKey()).isEqualTo("key" + count);
+            assertThat(cursor.getValue()).isEqualTo(count);
+            count++;
+        }
+        assertThat(count).isEqualTo(100);
+        assertThat(queue.size()).isEqualTo(100);
+    }
+
+    @Test
+    void testIterator() {
+        final UnsafePairQueue<String, Integer> queue = create(100);
+
+        int count = 0;
+        for (final Pair<String, Integer> pair : queue) {
+            assertThat(pair).isEqualTo(new Pair<>("key" + count, count));
+            count++;
+        }
+        assertThat(count).isEqualTo(100);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    void testSerialisation() throws IOException, ClassNotFoundException {
+        final UnsafePairQueue<String, Integer> queue = create(1000);
+
+        final ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        try (final ObjectOutputStream objectOutputStream = new ObjectOutputStream(byteArrayOutputStream)) {
+            objectOutputStream.writeObject(queue);
+        }
+
+        try (final ObjectInputStream objectInputStream =
+                     new ObjectInputStream(new ByteArrayInputStream(byteArrayOutputStream.toByteArray()))) {
+            final UnsafePairQueue<String, Integer> copy = (UnsafePairQueue<String, Integer>) objectInputStream.readObject();
+            assertThat(copy).isEqualTo(queue);
+            assertThat(copy.hashCode()).isEqualTo(queue.hashCode());
+        }
+    }
+
+    private UnsafePairQueue<String, Integer> create(final int size) {
+        final UnsafePairQueue<String, Integer> queue = new UnsafePairQueue<>();
+        for (int i = 0; i < size; i++) {
+            queue.collect("key" + i, i);
+        }
+        return queue;
+    }
+}
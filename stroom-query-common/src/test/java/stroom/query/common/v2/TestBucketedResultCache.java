@@ -0,0 +1,242 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package stroom.query.common.v2;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import stroom.dashboard.expression.v1.FieldIndexMap;
+import stroom.dashboard.expression.v1.Val;
+import stroom.dashboard.expression.v1.ValString;
+import stroom.docref.DocRef;
+import stroom.mapreduce.v2.UnsafePairQueue;
+import stroom.query.api.v2.ExpressionOperator;
+import stroom.query.api.v2.ExpressionTerm.Condition;
+import stroom.query.api.v2.Field;
+import stroom.query.api.v2.Query;
+import stroom.query.api.v2.ResultRequest;
+import stroom.query.api.v2.SearchRequest;
+import stroom.query.api.v2.TableSettings;
+import stroom.query.shared.v2.ParamUtil;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class TestBucketedResultCache {
+    private static final long MINUTE = 60_000L;
+    private static final long HOUR = 60 * MINUTE;
+
+    private final TableSettings tableSettings = new TableSettings.Builder()
+            .queryId("query")
+            .addFields(new Field.Builder()
+                    .name("Hour")
+                    .expression(ParamUtil.makeParam("Hour"))
+                    .group(0)
+                    .build())
+            .addFields(new Field.Builder()
+                    .name("Count")
+                    .expression("count()")
+                    .build())
+            .build();
+
+    private final TableSettings minuteTableSettings = new TableSettings.Builder()
+            .queryId("query")
+            .addFields(new Field.Builder()
+                    .name("Minute")
+                    .expression(ParamUtil.makeParam("Minute"))
+                    .group(0)
+                    .build())
+            .addFields(new Field.Builder()
+                    .name("Count")
+                    .expression("count()")
+                    .build())
+            .build();
+
+    @Test
+    void testBucketReuse(@TempDir final Path tempDir) {
+        BucketedResultCache cache = new BucketedResultCache(tempDir, 10_000_000);
+        final long now = 1_600_000_123_456L;
+
+        // The first search extracts every bucket and caches the whole ones.
+        BucketedResultCache.Plan plan = cache.plan(createSearchRequest(), "EventTime", Collections.emptySet(), "1",
+                Duration.ofHours(1), now);
+        assertThat(plan.getBuckets()).hasSize(25);
+        assertThat(plan.getCachedBuckets()).isEmpty();
+        assertThat(search(cache, plan, "table", tableSettings)).isEqualTo(extractAll(tableSettings, now));
+        assertThat(cache.size()).isEqualTo(23);
+
+        // A later search only extracts the edges and the new bucket.
+        final long later = now + 37 * MINUTE;
+        plan = cache.plan(createSearchRequest(), "EventTime", Collections.emptySet(), "1",
+                Duration.ofHours(1), later);
+        assertThat(plan.getCachedBuckets()).hasSize(22);
+        assertThat(plan.getBucketsToExtract()).hasSize(3);
+        assertThat(search(cache, plan, "table", tableSettings)).isEqualTo(extractAll(tableSettings, later));
+
+        // Buckets are still cached after a restart.
+        cache = new BucketedResultCache(tempDir, 10_000_000);
+        plan = cache.plan(createSearchRequest(), "EventTime", Collections.emptySet(), "1",
+                Duration.ofHours(1), later);
+        assertThat(plan.getCachedBuckets()).hasSize(23);
+
+        // A new version of the data source invalidates the cached buckets.
+        plan = cache.plan(createSearchRequest(), "EventTime", Collections.emptySet(), "2",
+                Duration.ofHours(1), later);
+        assertThat(plan.getCachedBuckets()).isEmpty();
+        assertThat(cache.size()).isZero();
+    }
+
+    @Test
+    void testComponentsAreCachedSeparately(@TempDir final Path tempDir) {
+        final BucketedResultCache cache = new BucketedResultCache(tempDir, 10_000_000);
+        final long now = 1_600_000_123_456L;
+        final SearchRequest searchRequest = createSearchRequest(
+                createResultRequest("hours", tableSettings),
+                createResultRequest("minutes", minuteTableSettings));
+
+        BucketedResultCache.Plan plan = cache.plan(searchRequest, "EventTime", Collections.emptySet(), "1",
+                Duration.ofHours(1), now);
+        assertThat(plan.getComponentIds()).containsExactly("hours", "minutes");
+        search(cache, plan, "hours", tableSettings);
+
+        // A bucket is only read from the cache once it is cached for every component.
+        plan = cache.plan(searchRequest, "EventTime", Collections.emptySet(), "1", Duration.ofHours(1), now);
+        assertThat(plan.getCachedBuckets()).isEmpty();
+        search(cache, plan, "minutes", minuteTableSettings);
+        assertThat(cache.size()).isEqualTo(46);
+
+        // Each component gets back the items that were cached for it.
+        final long later = now + 37 * MINUTE;
+        plan = cache.plan(searchRequest, "EventTime", Collections.emptySet(), "1", Duration.ofHours(1), later);
+        assertThat(plan.getCachedBuckets()).hasSize(22);
+        assertThat(search(cache, plan, "hours", tableSettings))
+                .isEqualTo(extractAll(tableSettings, later));
+        assertThat(search(cache, plan, "minutes", minuteTableSettings))
+                .isEqualTo(extractAll(minuteTableSettings, later));
+
+        // Both components are still cached after a restart.
+        final BucketedResultCache reloaded = new BucketedResultCache(tempDir, 10_000_000);
+        plan = reloaded.plan(searchRequest, "EventTime", Collections.emptySet(), "1", Duration.ofHours(1), later);
+        assertThat(plan.getCachedBuckets()).hasSize(23);
+        assertThat(search(reloaded, plan, "minutes", minuteTableSettings))
+                .isEqualTo(extractAll(minuteTableSettings, later));
+    }
+
+    @Test
+    void testUncacheableSearch(@TempDir final Path tempDir) {
+        final BucketedResultCache cache = new BucketedResultCache(tempDir, 10_000_000);
+        final SearchRequest searchRequest = new SearchRequest.Builder()
+                .key("test")
+                .query(new Query.Builder()
+                        .dataSource(new DocRef("Index", "1234"))
+                        .expression(new ExpressionOperator.Builder()
+                                .addTerm("EventTime", Condition.GREATER_THAN, "now()-1d")
+                                .build())
+                        .build())
+                .build();
+        assertThat(cache.plan(searchRequest, "EventTime", Collections.emptySet(), "1", Duration.ofHours(1),
+                System.currentTimeMillis()))
+                .isNull();
+    }
+
+    private List<String> search(final BucketedResultCache cache,
+                                final BucketedResultCache.Plan plan,
+                                final String componentId,
+                                final TableSettings settings) {
+        final TablePayloadHandler tablePayloadHandler = createTablePayloadHandler(settings);
+        assertThat(cache.addCachedResults(plan, componentId, tablePayloadHandler)).isEmpty();
+        for (final BucketedResultCache.Bucket bucket : plan.getBucketsToExtract()) {
+            final UnsafePairQueue<GroupKey, Item> queue = extract(settings, bucket.getFrom(), bucket.getTo());
+            if (bucket.isCacheable()) {
+                cache.put(plan, componentId, bucket, queue);
+            }
+            tablePayloadHandler.addQueue(queue);
+        }
+        return toStrings(tablePayloadHandler.getData());
+    }
+
+    private List<String> extractAll(final TableSettings settings, final long now) {
+        final TablePayloadHandler tablePayloadHandler = createTablePayloadHandler(settings);
+        tablePayloadHandler.addQueue(extract(settings, now - 24 * HOUR, now));
+        return toStrings(tablePayloadHandler.getData());
+    }
+
+    private TablePayloadHandler createTablePayloadHandler(final TableSettings settings) {
+        return new TablePayloadHandler(settings.getFields(), false, Sizes.create(100), Sizes.create(100));
+    }
+
+    /**
+     * Extract a record for every minute in a time range and count them by the hour of the day or the minute of the
+     * hour, depending on the table.
+     */
+    private UnsafePairQueue<GroupKey, Item> extract(final TableSettings settings, final long from, final long to) {
+        final FieldIndexMap fieldIndexMap = new FieldIndexMap(true);
+        final int hourIndex = fieldIndexMap.create("Hour");
+        final int minuteIndex = fieldIndexMap.create("Minute");
+        final CompiledDepths compiledDepths = new CompiledDepths(settings.getFields(), false);
+        final CompiledFields compiledFields = new CompiledFields(settings.getFields(), fieldIndexMap,
+                Collections.emptyMap());
+
+        final UnsafePairQueue<GroupKey, Item> queue = new UnsafePairQueue<>();
+        final ItemMapper itemMapper = new ItemMapper(queue, compiledFields, compiledDepths.getMaxDepth(),
+                compiledDepths.getMaxGroupDepth());
+        for (long time = (from + MINUTE - 1) / MINUTE * MINUTE; time < to; time += MINUTE) {
+            final Val[] values = new Val[fieldIndexMap.size()];
+            values[hourIndex] = ValString.create("Hour " + (time / HOUR % 24));
+            values[minuteIndex] = ValString.create("Minute " + (time / MINUTE % 60));
+            itemMapper.collect(null, values);
+        }
+        return queue;
+    }
+
+    private SearchRequest createSearchRequest() {
+        return createSearchRequest(createResultRequest("table", tableSettings));
+    }
+
+    private SearchRequest createSearchRequest(final ResultRequest... resultRequests) {
+        return new SearchRequest.Builder()
+                .key("test")
+                .query(new Query.Builder()
+                        .dataSource(new DocRef("Index", "1234"))
+                        .expression(new ExpressionOperator.Builder()
+                                .addTerm("Feed", Condition.EQUALS, "TEST")
+                                .addTerm("EventTime", Condition.BETWEEN, "now()-1d,now()")
+                                .build())
+                        .build())
+                .addResultRequests(resultRequests)
+                .build();
+    }
+
+    private ResultRequest createResultRequest(final String componentId, final TableSettings settings) {
+        return new ResultRequest.Builder()
+                .componentId(componentId)
+                .addMappings(settings)
+                .build();
+    }
+
+    private List<String> toStrings(final Data data) {
+        final List<String> list = new ArrayList<>();
+        for (final Item item : data.getChildMap().get(null)) {
+            list.add(item.getKey() + " " + item);
+        }
+        Collections.sort(list);
+        return list;
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stroom.query.common.v2;
+
+import org.junit.jupiter.api.Test;
+import stroom.dashboard.expression.v1.ValDouble;
+import stroom.dashboard.expression.v1.ValLong;
+import stroom.dashboard.expression.v1.ValString;
+import stroom.query.api.v2.Filter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class TestCompiledFilter {
+    private static final String[] PARTS = {"a", "b", "ab", "\\.", ".", "^", "$", "a*", "[ab]", "1", "\\$", "(a|b)", " ", "\\Q."};
+    private static final String[] VALUES = {"", "a", "b", "ab", "ba", "aab", "a.b", "a$", "1", "11", "a\n", "ab\r\n",
+            " a", "b1"};
+
+    @Test
+    void testNumbers() {
+        final CompiledFilter filter = new CompiledFilter(new Filter("^10$\n^-5$", "^11$"), Collections.emptyMap());
+        assertThat(filter.match(ValLong.create(10))).isTrue();
+        assertThat(filter.match(ValLong.create(-5))).isTrue();
+        assertThat(filter.match(ValLong.create(11))).isFalse();
+        assertThat(filter.match(ValLong.create(100))).isFalse();
+        assertThat(filter.match(ValString.create("10"))).isTrue();
+        assertThat(filter.match(ValString.create("010"))).isFalse();
+        assertThat(filter.match(ValDouble.create(10.5))).isFalse();
+    }
+
+    @Test
+    void testSameAsRegex() {
+        final Random random = new Random(1234);
+        for (int i = 0; i < 2000; i++) {
+            final List<String> includes = createPatterns(random, random.nextInt(12));
+            final List<String> excludes = createPatterns(random, random.nextInt(3));
+            final CompiledFilter filter = new CompiledFilter(new Filter(
+                    includes.isEmpty() ? null : String.join("\n", includes),
+                    excludes.isEmpty() ? null : String.join("\n", excludes)), Collections.emptyMap());
+
+            for (final String value : VALUES) {
+                assertThat(filter.match(value))
+                        .as("includes %s excludes %s value '%s'", includes, excludes, value)
+                        .isEqualTo(matchRegex(includes, excludes, value));
+            }
+        }
+    }
+
+    private List<String> createPatterns(final Random random, final int count) {
+        final List<String> patterns = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            final StringBuilder sb = new StringBuilder();
+            final int parts = 1 + random.nextInt(3);
+            for (int j = 0; j < parts; j++) {
+                sb.append(PARTS[random.nextInt(PARTS.length)]);
+            }
+            final String pattern = sb.toString().trim();
+            if (pattern.length() > 0) {
+                patterns.add(pattern);
+            }
+        }
+        return patterns;
+    }
+
+    private boolean matchRegex(final List<String> includes, final List<String> excludes, final String value) {
+        boolean match = includes.isEmpty();
+        for (final String include : includes) {
+            match |= Pattern.compile(include).matcher(value).find();
+        }
+        for (final String exclude : excludes) {
+            match &= !Pattern.compile(exclude).matcher(value).find();
+        }
+        return match;
+    }
+}
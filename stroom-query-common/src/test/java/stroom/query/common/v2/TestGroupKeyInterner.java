@@ -0,0 +1,96 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package stroom.query.common.v2;
+
+import org.junit.jupiter.api.Test;
+import stroom.dashboard.expression.v1.Val;
+import stroom.dashboard.expression.v1.ValString;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Objects;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class TestGroupKeyInterner {
+    @Test
+    void testEqualKeysShareAnInstance() {
+        final GroupKeyInterner interner = new GroupKeyInterner();
+
+        final GroupKey parent = interner.intern(new GroupKey(ValString.create("parent")));
+        final GroupKey child = interner.intern(new GroupKey(parent, ValString.create("child")));
+
+        // Equal keys that are separate instances, including their parents, intern to the first instance.
+        assertThat(interner.intern(new GroupKey(ValString.create("parent")))).isSameAs(parent);
+        assertThat(interner.intern(new GroupKey(new GroupKey(ValString.create("parent")), ValString.create("child"))))
+                .isSameAs(child);
+
+        // Keys that are not equal keep their own instances.
+        final GroupKey other = new GroupKey(parent, ValString.create("other"));
+        assertThat(interner.intern(other)).isSameAs(other);
+        assertThat(interner.intern(new GroupKey(ValString.create("child")))).isNotSameAs(child);
+
+        assertThat(interner.intern(null)).isNull();
+        assertThat(interner.size()).isEqualTo(4);
+
+        interner.clear();
+        assertThat(interner.size()).isEqualTo(0);
+        assertThat(interner.intern(new GroupKey(ValString.create("parent")))).isNotSameAs(parent);
+    }
+
+    @Test
+    void testCachedHashMatchesRecomputedHash() {
+        final GroupKey parent = new GroupKey(ValString.create("parent"));
+        final GroupKey child = new GroupKey(parent, Arrays.asList(ValString.create("a"), null));
+        final GroupKey nullValues = new GroupKey(child, (Val) null);
+        final GroupKey emptyValues = new GroupKey(Collections.emptyList());
+
+        for (final GroupKey key : Arrays.asList(parent, child, nullValues, emptyValues)) {
+            final int hash = Objects.hash(key.getDepth(), key.getParent(), key.getValues());
+            // Check the hash before and after it has been cached.
+            assertThat(key.hashCode()).isEqualTo(hash);
+            assertThat(key.hashCode()).isEqualTo(hash);
+        }
+
+        // An equal key built separately has the same hash.
+        assertThat(new GroupKey(new GroupKey(ValString.create("parent")), Arrays.asList(ValString.create("a"), null))
+                .hashCode())
+                .isEqualTo(child.hashCode());
+    }
+
+    @Test
+    void testEqualsWithCollidingHashes() {
+        // "Aa" and "BB" have the same string hash so these keys have the same hash but are not equal.
+        final GroupKey aa = new GroupKey(ValString.create("Aa"));
+        final GroupKey bb = new GroupKey(ValString.create("BB"));
+        assertThat(aa.hashCode()).isEqualTo(bb.hashCode());
+        assertThat(aa).isNotEqualTo(bb);
+
+        // Children with the same values and colliding parents also collide but are not equal.
+        final GroupKey aaChild = new GroupKey(aa, ValString.create("child"));
+        final GroupKey bbChild = new GroupKey(bb, ValString.create("child"));
+        assertThat(aaChild.hashCode()).isEqualTo(bbChild.hashCode());
+        assertThat(aaChild).isNotEqualTo(bbChild);
+        assertThat(aaChild).isEqualTo(new GroupKey(new GroupKey(ValString.create("Aa")), ValString.create("child")));
+
+        final GroupKeyInterner interner = new GroupKeyInterner();
+        assertThat(interner.intern(aaChild)).isSameAs(aaChild);
+        assertThat(interner.intern(bbChild)).isSameAs(bbChild);
+        assertThat(interner.size()).isEqualTo(2);
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package stroom.query.common.v2;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import stroom.query.api.v2.QueryKey;
+import stroom.query.api.v2.ResultRequest;
+import stroom.query.api.v2.SearchRequest;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class TestInMemorySearchResponseCreatorCache {
+    private final Map<String, Store> stores = new HashMap<>();
+    private Supplier<Map<QueryKey, Long>> byteSizes;
+
+    @Test
+    void testWeightedEvictionAndAdmission() {
+        final SearchResponseCreatorCache cache = createCache(1_000_000);
+
+        final Store a = load(cache, "a");
+        final Store b = load(cache, "b");
+        setByteSize(a, 300_000);
+        setByteSize(b, 560_000);
+        cache.evictExpiredElements();
+        assertThat(byteSizes.get()).containsOnlyKeys(new QueryKey("a"), new QueryKey("b"));
+        assertThat(byteSizes.get().get(new QueryKey("b"))).isGreaterThan(byteSizes.get().get(new QueryKey("a")));
+
+        // The cached searches now hold more than three quarters of the budget so new searches are rejected.
+        assertThatThrownBy(() -> load(cache, "c")).isInstanceOf(QueryMemoryExhaustedException.class);
+        Mockito.verify(a, Mockito.never()).destroy();
+
+        // Growing past the budget evicts the least recently used search.
+        setByteSize(b, 900_000);
+        cache.evictExpiredElements();
+        Mockito.verify(a).destroy();
+        assertThat(byteSizes.get()).containsOnlyKeys(new QueryKey("b"));
+
+        cache.remove(new SearchResponseCreatorCache.Key(new QueryKey("b")));
+        Mockito.verify(b).destroy();
+        load(cache, "c");
+        assertThat(byteSizes.get()).containsOnlyKeys(new QueryKey("c"));
+
+        // Searches are weighed without taking a snapshot of their results.
+        Mockito.verify(a, Mockito.never()).getData(Mockito.any());
+        Mockito.verify(b, Mockito.never()).getData(Mockito.any());
+    }
+
+    private SearchResponseCreatorCache createCache(final long maxQueryMemoryBytes) {
+        final AbstractInMemorySearchResponseCreatorCacheFactory factory =
+                new AbstractInMemorySearchResponseCreatorCacheFactory() {
+                    @Override
+                    protected void addAdditionalBuildOptions(
+                            final CacheBuilder<SearchResponseCreatorCache.Key, SearchResponseCreator> cacheBuilder) {
+                    }
+
+                    @Override
+                    protected void registerCache(
+                            final CacheBuilder<SearchResponseCreatorCache.Key, SearchResponseCreator> cacheBuilder,
+                            final Cache<SearchResponseCreatorCache.Key, SearchResponseCreator> cache) {
+                    }
+
+                    @Override
+                    protected long getMaxQueryMemoryBytes() {
+                        return maxQueryMemoryBytes;
+                    }
+
+                    @Override
+                    protected void registerWeights(final Supplier<Map<QueryKey, Long>> byteSizes) {
+                        TestInMemorySearchResponseCreatorCache.this.byteSizes = byteSizes;
+                    }
+                };
+
+        return factory.create(searchRequest -> {
+            final Store store = Mockito.mock(Store.class);
+            setByteSize(store, 0);
+            stores.put(searchRequest.getKey().getUuid(), store);
+            return store;
+        });
+    }
+
+    private Store load(final SearchResponseCreatorCache cache, final String key) {
+        final SearchRequest searchRequest = new SearchRequest.Builder()
+                .key(key)
+                .addResultRequests(new ResultRequest.Builder().componentId("table").build())
+                .build();
+        cache.get(new SearchResponseCreatorCache.Key(searchRequest));
+        return stores.get(key);
+    }
+
+    private void setByteSize(final Store store, final long bytes) {
+        Mockito.when(store.getEstimatedByteSize()).thenReturn(bytes);
+    }
+}
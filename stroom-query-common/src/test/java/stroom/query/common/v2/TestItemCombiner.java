@@ -0,0 +1,110 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stroom.query.common.v2;
+
+import org.junit.jupiter.api.Test;
+import stroom.dashboard.expression.v1.FieldIndexMap;
+import stroom.dashboard.expression.v1.Val;
+import stroom.dashboard.expression.v1.ValString;
+import stroom.mapreduce.v2.UnsafePairQueue;
+import stroom.query.api.v2.Field;
+import stroom.query.api.v2.TableSettings;
+import stroom.query.shared.v2.ParamUtil;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class TestItemCombiner {
+    private final TableSettings tableSettings = new TableSettings.Builder()
+            .addFields(new Field.Builder()
+                    .id("Text")
+                    .name("Text")
+                    .expression(ParamUtil.makeParam("Text"))
+                    .group(0)
+                    .build())
+            .addFields(new Field.Builder()
+                    .id("Count")
+                    .name("Count")
+                    .expression("count()")
+                    .build())
+            .build();
+    private final FieldIndexMap fieldIndexMap = new FieldIndexMap(true);
+    private final int textIndex = fieldIndexMap.create("Text");
+    private final CompiledDepths compiledDepths = new CompiledDepths(tableSettings.getFields(),
+            tableSettings.showDetail());
+    private final CompiledFields compiledFields = new CompiledFields(tableSettings.getFields(), fieldIndexMap,
+            Collections.emptyMap());
+
+    @Test
+    void testEvictsWhenFull() {
+        // Hold fewer groups than there are so that the combiner has to forward items before it is flushed. Every
+        // other row is for the same group so it should stay in the combiner while the other groups are evicted.
+        final UnsafePairQueue<GroupKey, Item> queue = new UnsafePairQueue<>();
+        final ItemCombiner combiner = new ItemCombiner(queue, compiledDepths, 5, 1);
+        final ItemMapper itemMapper = new ItemMapper(combiner, compiledFields, compiledDepths.getMaxDepth(),
+                compiledDepths.getMaxGroupDepth());
+        for (int i = 0; i < 1000; i++) {
+            final Val[] values = new Val[fieldIndexMap.size()];
+            values[textIndex] = ValString.create(i % 2 == 0 ? "Text 0" : "Text " + (1 + (i / 2) % 10));
+            itemMapper.collect(null, values);
+        }
+        combiner.flush(queue);
+        assertThat(queue.size()).isLessThan(600);
+
+        final Map<String, Long> counts = getCounts(queue);
+        assertThat(counts).hasSize(11);
+        assertThat(counts.get("Text 0")).isEqualTo(500L);
+        for (int i = 1; i <= 10; i++) {
+            assertThat(counts.get("Text " + i)).isEqualTo(50L);
+        }
+    }
+
+    @Test
+    void testCombinesGroupsWithinCapacity() {
+        // Fewer groups than the capacity are combined into one item each.
+        final UnsafePairQueue<GroupKey, Item> queue = new UnsafePairQueue<>();
+        final ItemCombiner combiner = new ItemCombiner(queue, compiledDepths, 20, 1);
+        final ItemMapper itemMapper = new ItemMapper(combiner, compiledFields, compiledDepths.getMaxDepth(),
+                compiledDepths.getMaxGroupDepth());
+        for (int i = 0; i < 1000; i++) {
+            final Val[] values = new Val[fieldIndexMap.size()];
+            values[textIndex] = ValString.create("Text " + (i % 10));
+            itemMapper.collect(null, values);
+        }
+        combiner.flush(queue);
+        assertThat(queue.size()).isEqualTo(10);
+
+        final Map<String, Long> counts = getCounts(queue);
+        assertThat(counts).hasSize(10);
+        assertThat(counts.values()).containsOnly(100L);
+    }
+
+    private Map<String, Long> getCounts(final UnsafePairQueue<GroupKey, Item> queue) {
+        final TablePayloadHandler payloadHandler = new TablePayloadHandler(tableSettings.getFields(),
+                tableSettings.showDetail(), Sizes.create(50), Sizes.create(100));
+        payloadHandler.addQueue(queue);
+
+        final Map<String, Long> counts = new HashMap<>();
+        for (final Item item : payloadHandler.getData().getChildMap().get(null)) {
+            counts.put(item.getGenerators()[0].eval().toString(), item.getGenerators()[1].eval().toLong());
+        }
+        return counts;
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stroom.query.common.v2;
+
+import org.junit.jupiter.api.Test;
+import stroom.dashboard.expression.v1.FieldIndexMap;
+import stroom.dashboard.expression.v1.Val;
+import stroom.dashboard.expression.v1.ValString;
+import stroom.mapreduce.v2.UnsafePairQueue;
+import stroom.query.api.v2.Field;
+import stroom.query.api.v2.Filter;
+import stroom.query.shared.v2.ParamUtil;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class TestItemMapper {
+    @Test
+    void testFilter() {
+        final List<Field> fields = Arrays.asList(
+                new Field.Builder()
+                        .name("Group")
+                        .expression(ParamUtil.makeParam("Group"))
+                        .group(0)
+                        .build(),
+                new Field.Builder()
+                        .name("Text")
+                        .expression(ParamUtil.makeParam("Text"))
+                        .filter(new Filter("^keep", "drop$"))
+                        .build(),
+                new Field.Builder()
+                        .name("Count")
+                        .expression("count()")
+                        .build());
+
+        final FieldIndexMap fieldIndexMap = new FieldIndexMap(true);
+        final int groupIndex = fieldIndexMap.create("Group");
+        final int textIndex = fieldIndexMap.create("Text");
+        final CompiledDepths compiledDepths = new CompiledDepths(fields, true);
+        final CompiledFields compiledFields = new CompiledFields(fields, fieldIndexMap, Collections.emptyMap());
+        assertThat(compiledFields.getFilterFieldIndexes()).containsExactly(1);
+
+        final UnsafePairQueue<GroupKey, Item> queue = new UnsafePairQueue<>();
+        final ItemMapper itemMapper = new ItemMapper(queue, compiledFields, compiledDepths.getMaxDepth(),
+                compiledDepths.getMaxGroupDepth());
+
+        final String[] texts = {"keep", "keep and drop", "other", "keep this"};
+        for (final String text : texts) {
+            final Val[] values = new Val[fieldIndexMap.size()];
+            values[groupIndex] = ValString.create("group");
+            values[textIndex] = ValString.create(text);
+            itemMapper.collect(null, values);
+        }
+
+        // Each row that is kept creates a group item and a detail item.
+        assertThat(queue.size()).isEqualTo(4);
+        queue.forEach(pair -> {
+            final Item item = pair.getValue();
+            if (item.getDepth() == 1) {
+                assertThat(item.getGenerators()[1].eval().toString()).startsWith("keep");
+            }
+        });
+    }
+}
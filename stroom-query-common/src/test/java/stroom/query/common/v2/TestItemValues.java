@@ -0,0 +1,133 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stroom.query.common.v2;
+
+import org.junit.jupiter.api.Test;
+import stroom.dashboard.expression.v1.FieldIndexMap;
+import stroom.dashboard.expression.v1.Val;
+import stroom.dashboard.expression.v1.ValString;
+import stroom.mapreduce.v2.UnsafePairQueue;
+import stroom.query.api.v2.Field;
+import stroom.query.shared.v2.ParamUtil;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class TestItemValues {
+    private final List<Field> fields = Arrays.asList(
+            new Field.Builder()
+                    .name("Text")
+                    .expression(ParamUtil.makeParam("Text"))
+                    .group(0)
+                    .build(),
+            new Field.Builder()
+                    .name("Count")
+                    .expression("count()")
+                    .build());
+
+    @Test
+    void testCachedUntilChanged() {
+        final CompiledDepths compiledDepths = new CompiledDepths(fields, false);
+        final ItemReducer itemReducer = new ItemReducer(compiledDepths.getDepths(), compiledDepths.getMaxDepth());
+
+        final Item item = createItem(compiledDepths);
+        final ItemValues values = item.getValues();
+        assertThat(values.getValue(item.getGenerators(), 1).toString()).isEqualTo("1");
+        assertThat(item.getValues()).isSameAs(values);
+
+        final RowFormat rowFormat = new RowFormat(TestItemValues.class, fields);
+        assertThat(values.getRow(rowFormat, () -> "first")).isEqualTo("first");
+        assertThat(item.getValues().getRow(new RowFormat(TestItemValues.class, fields), () -> "second"))
+                .isEqualTo("first");
+
+        // Merging another item into the item must discard the values worked out before.
+        itemReducer.merge(item, createItem(compiledDepths));
+        final ItemValues changed = item.getValues();
+        assertThat(changed).isNotSameAs(values);
+        assertThat(changed.getValue(item.getGenerators(), 1).toString()).isEqualTo("2");
+        assertThat(changed.getRow(rowFormat, () -> "second")).isEqualTo("second");
+    }
+
+    @Test
+    void testSelectionCachedForSameChildren() {
+        final CompiledDepths compiledDepths = new CompiledDepths(fields, false);
+        final ItemValues values = createItem(compiledDepths).getValues();
+
+        final Items<Item> children = new ItemsArrayList<>();
+        assertThat(values.getSelection(1, children, () -> ValString.create("first")).toString()).isEqualTo("first");
+        assertThat(values.getSelection(1, children, () -> ValString.create("second")).toString()).isEqualTo("first");
+
+        // A new list of children means that the children have changed.
+        final Items<Item> changedChildren = new ItemsArrayList<>(children);
+        assertThat(values.getSelection(1, changedChildren, () -> ValString.create("second")).toString())
+                .isEqualTo("second");
+    }
+
+    @Test
+    void testRowsWithAndWithoutChildren() {
+        final CompiledDepths compiledDepths = new CompiledDepths(fields, false);
+        final ItemValues values = createItem(compiledDepths).getValues();
+        final RowFormat rowFormat = new RowFormat(TestItemValues.class, fields);
+
+        // A row that selects from children must not be returned as a row without children, or the other way round.
+        final Items<Item> children = new ItemsArrayList<>();
+        assertThat(values.getRow(rowFormat, children, () -> "selected")).isEqualTo("selected");
+        assertThat(values.getRow(rowFormat, () -> "plain")).isEqualTo("plain");
+        assertThat(values.getRow(rowFormat, () -> "other")).isEqualTo("plain");
+        assertThat(values.getRow(rowFormat, children, () -> "selected again")).isEqualTo("selected again");
+        assertThat(values.getRow(rowFormat, children, () -> "other")).isEqualTo("selected again");
+    }
+
+    @Test
+    void testRowsOnlyKeptForRecentFormats() {
+        final CompiledDepths compiledDepths = new CompiledDepths(fields, false);
+        final ItemValues values = createItem(compiledDepths).getValues();
+
+        // Each edit of a column format creates a new format, only the most recent ones keep their rows.
+        final List<RowFormat> rowFormats = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            final RowFormat rowFormat = new RowFormat("formatter " + i, fields);
+            rowFormats.add(rowFormat);
+            assertThat(values.getRow(rowFormat, () -> "row")).isEqualTo("row");
+        }
+        for (int i = 6; i < 10; i++) {
+            assertThat(values.getRow(rowFormats.get(i), () -> "new row")).isEqualTo("row");
+        }
+        assertThat(values.getRow(rowFormats.get(5), () -> "new row")).isEqualTo("new row");
+    }
+
+    private Item createItem(final CompiledDepths compiledDepths) {
+        final FieldIndexMap fieldIndexMap = new FieldIndexMap(true);
+        final int textIndex = fieldIndexMap.create("Text");
+        final CompiledFields compiledFields = new CompiledFields(fields, fieldIndexMap, Collections.emptyMap());
+
+        final UnsafePairQueue<GroupKey, Item> queue = new UnsafePairQueue<>();
+        final ItemMapper itemMapper = new ItemMapper(queue, compiledFields, compiledDepths.getMaxDepth(),
+                compiledDepths.getMaxGroupDepth());
+        final Val[] values = new Val[fieldIndexMap.size()];
+        values[textIndex] = ValString.create("a");
+        itemMapper.collect(null, values);
+
+        final List<Item> items = new ArrayList<>();
+        queue.forEach(pair -> items.add(pair.getValue()));
+        return items.get(0);
+    }
+}
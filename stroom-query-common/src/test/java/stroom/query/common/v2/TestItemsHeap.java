@@ -0,0 +1,79 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stroom.query.common.v2;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class TestItemsHeap {
+    private static final Comparator<int[]> COMPARATOR = Comparator.comparingInt(value -> value[0]);
+
+    @Test
+    void testSameItemsAsSortAndTrim() {
+        final Random random = new Random(1);
+        final ItemsArrayList<int[]> list = new ItemsArrayList<>();
+        final List<int[]> removed = new ArrayList<>();
+        final ItemsHeap<int[]> heap = new ItemsHeap<>(100, COMPARATOR, removed::add);
+
+        int rejected = 0;
+        for (int i = 0; i < 10000; i++) {
+            // Use a small range of values so that there are lots of equal items.
+            final int[] value = new int[]{random.nextInt(500)};
+            list.add(value);
+            if (!heap.add(value)) {
+                rejected++;
+            }
+        }
+        list.sortAndTrim(100, COMPARATOR, null);
+
+        assertThat(heap.size()).isEqualTo(100);
+        assertThat(rejected + removed.size()).isEqualTo(9900);
+
+        // The heap must keep exactly the same items, in the same order, as a stable sort.
+        final List<int[]> expected = new ArrayList<>();
+        list.forEach(expected::add);
+        final List<int[]> actual = new ArrayList<>();
+        heap.forEach(actual::add);
+        assertThat(actual).containsExactlyElementsOf(expected);
+    }
+
+    @Test
+    void testTrimAndRemove() {
+        final ItemsHeap<int[]> heap = new ItemsHeap<>(10, COMPARATOR, null);
+        final int[] five = new int[]{5};
+        for (int i = 9; i >= 0; i--) {
+            heap.add(i == 5 ? five : new int[]{i});
+        }
+
+        assertThat(heap.remove(five)).isTrue();
+        assertThat(heap.remove(five)).isFalse();
+
+        final List<int[]> removed = new ArrayList<>();
+        heap.sortAndTrim(3, COMPARATOR, removed::add);
+        assertThat(removed).hasSize(6);
+
+        final List<Integer> values = new ArrayList<>();
+        heap.forEach(value -> values.add(value[0]));
+        assertThat(values).containsExactly(0, 1, 2);
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package stroom.query.common.v2;
+
+import org.junit.jupiter.api.Test;
+import stroom.dashboard.expression.v1.Generator;
+import stroom.dashboard.expression.v1.StaticValueFunction;
+import stroom.dashboard.expression.v1.ValString;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class TestPagingIndex {
+    private static final int[] LENGTHS = {1, 3, 7, Integer.MAX_VALUE};
+
+    @Test
+    void testPagingMatchesWalk() {
+        final Data data = createData();
+
+        // Open and closed groups at each depth, including an open group under a closed one and a missing group.
+        final List<List<String>> openGroupsList = Arrays.asList(
+                Collections.emptyList(),
+                Arrays.asList("g1", "g3"),
+                Arrays.asList("g1", "g3", "g3/s0", "g3/s2", "g4"),
+                Arrays.asList("g2/s1", "g0", "missing"),
+                getAllGroups(data));
+        final List<Sizes> sizesList = Arrays.asList(
+                Sizes.create(Integer.MAX_VALUE),
+                Sizes.create(Arrays.asList(4, 2)),
+                Sizes.create(Arrays.asList(3, 1, 2)),
+                Sizes.create(Arrays.asList(100, 10, 1)));
+
+        for (final List<String> openGroups : openGroupsList) {
+            final Set<GroupKey> openGroupKeys = data.getOpenGroupKeys(openGroups);
+            for (final Sizes maxResults : sizesList) {
+                final PagingIndex pagingIndex = data.getPagingIndex(openGroupKeys, maxResults);
+
+                final List<Item> allRows = new ArrayList<>();
+                final int totalRows = walk(data, new HashSet<>(openGroups), maxResults, 0, Integer.MAX_VALUE,
+                        allRows, null, 0, 0);
+                assertThat(pagingIndex.getTotalRows()).isEqualTo(totalRows);
+
+                for (int offset = 0; offset <= totalRows + 2; offset++) {
+                    for (final int length : LENGTHS) {
+                        final List<Item> expected = new ArrayList<>();
+                        walk(data, new HashSet<>(openGroups), maxResults, offset, length, expected, null, 0, 0);
+
+                        final List<Item> actual = new ArrayList<>();
+                        pagingIndex.visit(offset, length, actual::add);
+
+                        assertThat(actual)
+                                .as("open groups %s, max results %s, offset %s, length %s",
+                                        openGroups, maxResults, offset, length)
+                                .isEqualTo(expected);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    void testGetOpenGroupKeys() {
+        final Data data = createData();
+
+        final Set<GroupKey> openGroupKeys = data.getOpenGroupKeys(Arrays.asList("g1", "g3/s2", "missing"));
+        assertThat(openGroupKeys).hasSize(2);
+        for (final GroupKey key : openGroupKeys) {
+            assertThat(data.getChildMap()).containsKey(key);
+            assertThat(key.toString()).isIn("g1", "g3/s2");
+        }
+
+        assertThat(data.getOpenGroupKeys(null)).isEmpty();
+        assertThat(data.getOpenGroupKeys(Collections.emptyList())).isEmpty();
+    }
+
+    @Test
+    void testPagingIndexIsReused() {
+        final Data data = createData();
+        final Set<GroupKey> openGroupKeys = data.getOpenGroupKeys(Collections.singletonList("g1"));
+        final Sizes maxResults = Sizes.create(Arrays.asList(4, 2));
+
+        final PagingIndex pagingIndex = data.getPagingIndex(openGroupKeys, maxResults);
+        assertThat(data.getPagingIndex(data.getOpenGroupKeys(Collections.singletonList("g1")),
+                Sizes.create(Arrays.asList(4, 2))))
+                .isSameAs(pagingIndex);
+        assertThat(data.getPagingIndex(openGroupKeys, Sizes.create(Arrays.asList(4, 3))))
+                .isNotSameAs(pagingIndex);
+    }
+
+    /**
+     * Find the rows in a range by walking every visible row before them, as tables were paged before the index.
+     */
+    private int walk(final Data data,
+                     final Set<String> openGroups,
+                     final Sizes maxResults,
+                     final int offset,
+                     final int length,
+                     final List<Item> resultList,
+                     final GroupKey parentKey,
+                     final int depth,
+                     final int position) {
+        final int maxResultsAtThisDepth = maxResults.size(depth);
+        int pos = position;
+        int resultCountAtThisLevel = 0;
+        final Items<Item> items = data.getChildMap().get(parentKey);
+        if (items != null) {
+            for (final Item item : items) {
+                if (pos >= offset && resultList.size() < length) {
+                    resultList.add(item);
+                }
+                pos++;
+
+                if (item.getKey() != null && openGroups.contains(item.getKey().toString())) {
+                    pos = walk(data, openGroups, maxResults, offset, length, resultList, item.getKey(), depth + 1,
+                            pos);
+                }
+
+                resultCountAtThisLevel++;
+                if (resultCountAtThisLevel >= maxResultsAtThisDepth) {
+                    break;
+                }
+            }
+        }
+        return pos;
+    }
+
+    private List<String> getAllGroups(final Data data) {
+        final List<String> groups = new ArrayList<>();
+        for (final GroupKey key : data.getChildMap().keySet()) {
+            if (key != null) {
+                groups.add(key.toString());
+            }
+        }
+        return groups;
+    }
+
+    /**
+     * Create five groups, each with a varying number of sub groups that each have a varying number of detail rows.
+     */
+    private Data createData() {
+        final Map<GroupKey, Items<Item>> childMap = new HashMap<>();
+        final Items<Item> groups = new ItemsArrayList<>();
+        int size = 0;
+        for (int i = 0; i < 5; i++) {
+            final GroupKey groupKey = new GroupKey(ValString.create("g" + i));
+            groups.add(new Item(groupKey, createGenerators("g" + i), 0));
+            size++;
+
+            final Items<Item> subGroups = new ItemsArrayList<>();
+            for (int j = 0; j < i; j++) {
+                final GroupKey subGroupKey = new GroupKey(groupKey, ValString.create("s" + j));
+                subGroups.add(new Item(subGroupKey, createGenerators("s" + j), 1));
+                size++;
+
+                final Items<Item> details = new ItemsArrayList<>();
+                for (int k = 0; k < j + 1; k++) {
+                    details.add(new Item(null, createGenerators("d" + k), 2));
+                    size++;
+                }
+                childMap.put(subGroupKey, details);
+            }
+            if (i > 0) {
+                childMap.put(groupKey, subGroups);
+            }
+        }
+        childMap.put(null, groups);
+
+        return new Data(childMap, size, size);
+    }
+
+    private Generator[] createGenerators(final String value) {
+        return new Generator[]{new StaticValueFunction(ValString.create(value)).createGenerator()};
+    }
+}
@@ -1,5 +1,7 @@
 package stroom.query.common.v2;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
@@ -19,6 +21,9 @@ import stroom.query.api.v2.TableSettings;
 import stroom.query.test.util.MockitoExtension;
 import stroom.query.test.util.TimingUtils;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.util.Arrays;
 import java.util.Collections;
@@ -28,6 +33,7 @@ import java.util.UUID;
 import java.util.concurrent.TimeUnit;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 
 @ExtendWith(MockitoExtension.class)
 class TestSearchResponseCreator {
@@ -211,6 +217,140 @@ class TestSearchResponseCreator {
                 TOLLERANCE)).isTrue();
     }
 
+    @Test
+    void write_matchesCreate() throws IOException {
+        Mockito.when(mockStore.isComplete()).thenReturn(true);
+
+        SearchRequest searchRequest = getSearchRequest(false, null);
+
+        SearchResponse searchResponse = new SearchResponseCreator(mockStore).create(searchRequest);
+        assertResponseWithData(searchResponse);
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        new SearchResponseCreator(mockStore).write(searchRequest, outputStream, new ObjectMapper());
+
+        assertThat(outputStream.toString(StandardCharsets.UTF_8))
+                .isEqualTo(new ObjectMapper().writeValueAsString(searchResponse));
+    }
+
+    @Test
+    void write_flatResult_matchesCreate() throws IOException {
+        Mockito.when(mockStore.isComplete()).thenReturn(true);
+
+        assertWriteMatchesCreate(getResultRequest(ResultRequest.ResultStyle.FLAT)
+                .addMappings(getTableSettings())
+                .build());
+    }
+
+    @Test
+    void write_emptyResult_matchesCreate() throws IOException {
+        Mockito.when(mockStore.isComplete()).thenReturn(true);
+        Mockito.when(mockStore.getData(Mockito.any())).thenReturn(new Data(new HashMap<>(), 0, 0));
+
+        assertWriteMatchesCreate(getResultRequest(ResultRequest.ResultStyle.TABLE)
+                .addMappings(getTableSettings())
+                .build());
+        assertWriteMatchesCreate(getResultRequest(ResultRequest.ResultStyle.FLAT)
+                .addMappings(getTableSettings())
+                .build());
+    }
+
+    @Test
+    void write_errorResult_matchesCreate() throws IOException {
+        Mockito.when(mockStore.isComplete()).thenReturn(true);
+
+        // A table request without any table settings can't be created so the result holds an error.
+        final String json = assertWriteMatchesCreate(getResultRequest(ResultRequest.ResultStyle.TABLE)
+                .build());
+        final SearchResponse searchResponse = new ObjectMapper().readValue(json, SearchResponse.class);
+        assertThat(searchResponse.getResults()).hasSize(1);
+        assertThat(searchResponse.getResults().get(0).getError()).isNotNull();
+    }
+
+    @Test
+    void write_usesSuppliedMapper() throws IOException {
+        Mockito.when(mockStore.isComplete()).thenReturn(true);
+
+        // The streamed response must be written with the same features as the mapper would write the whole response.
+        final ObjectMapper objectMapper = new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
+        final SearchRequest searchRequest = getSearchRequest(false, null);
+        final String expected = objectMapper.writeValueAsString(
+                new SearchResponseCreator(mockStore).create(searchRequest));
+
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        new SearchResponseCreator(mockStore).write(searchRequest, outputStream, objectMapper);
+
+        assertThat(outputStream.toString(StandardCharsets.UTF_8)).isEqualTo(expected);
+    }
+
+    @Test
+    void write_failureBeforeResponse_matchesCreate() throws IOException {
+        Mockito.when(mockStore.isComplete()).thenReturn(true);
+        Mockito.when(mockStore.getHighlights()).thenThrow(new RuntimeException("Highlights failed"));
+
+        // Failures before anything is written are reported in an error response, just as they are when creating one.
+        final String json = assertWriteMatchesCreate(getResultRequest(ResultRequest.ResultStyle.TABLE)
+                .addMappings(getTableSettings())
+                .build());
+        final SearchResponse searchResponse = new ObjectMapper().readValue(json, SearchResponse.class);
+        assertThat(searchResponse.getResults()).isNullOrEmpty();
+        assertThat(searchResponse.getErrors()).hasSize(1);
+        assertThat(searchResponse.getErrors().get(0)).contains("Highlights failed");
+    }
+
+    @Test
+    void write_failureDuringResults_leavesResponseUnfinished() {
+        Mockito.when(mockStore.isComplete()).thenReturn(true);
+        Mockito.when(mockStore.getData(Mockito.any())).thenThrow(new RuntimeException("Data failed"));
+
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        assertThatThrownBy(() -> new SearchResponseCreator(mockStore)
+                .write(getSearchRequest(false, null), outputStream, new ObjectMapper()))
+                .isInstanceOf(RuntimeException.class)
+                .hasMessage("Data failed");
+
+        // The open JSON object must not be closed or the client would see a response that looks complete.
+        assertThat(outputStream.size()).isGreaterThan(0);
+        assertThatThrownBy(() -> new ObjectMapper().readValue(outputStream.toByteArray(), SearchResponse.class))
+                .isInstanceOf(IOException.class);
+    }
+
+    @Test
+    void write_nonIncremental_timesOut() throws IOException {
+        SearchResponseCreator searchResponseCreator = new SearchResponseCreator(mockStore, Duration.ofMillis(100));
+
+        //store is never complete
+        Mockito.when(mockStore.isComplete()).thenReturn(false);
+        makeSearchStateAfter(100, false);
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        searchResponseCreator.write(getSearchRequest(false, null), outputStream, new ObjectMapper());
+
+        SearchResponse searchResponse = new ObjectMapper().readValue(outputStream.toByteArray(), SearchResponse.class);
+        assertThat(searchResponse.getResults()).isNullOrEmpty();
+        assertThat(searchResponse.getErrors()).hasSize(1);
+        assertThat(searchResponse.getErrors().get(0)).containsIgnoringCase("timed out");
+    }
+
+    private String assertWriteMatchesCreate(final ResultRequest resultRequest) throws IOException {
+        final SearchRequest searchRequest = new SearchRequest.Builder()
+                .key(UUID.randomUUID().toString())
+                .addResultRequests(resultRequest)
+                .incremental(false)
+                .dateTimeLocale("en-gb")
+                .build();
+
+        final String expected = new ObjectMapper()
+                .writeValueAsString(new SearchResponseCreator(mockStore).create(searchRequest));
+
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        new SearchResponseCreator(mockStore).write(searchRequest, outputStream, new ObjectMapper());
+
+        final String actual = outputStream.toString(StandardCharsets.UTF_8);
+        assertThat(actual).isEqualTo(expected);
+        return actual;
+    }
+
     private void makeSearchStateAfter(final long sleepTime, final boolean state) {
         try {
             final Answer answer = invocation -> {
@@ -232,34 +372,8 @@ class TestSearchResponseCreator {
         String key = UUID.randomUUID().toString();
         return new SearchRequest.Builder()
                 .key(key)
-                .addResultRequests(new ResultRequest.Builder()
-                        .componentId(UUID.randomUUID().toString())
-                        .resultStyle(ResultRequest.ResultStyle.TABLE)
-                        .requestedRange(new OffsetRange.Builder()
-                                .offset(0L)
-                                .length(100L)
-                                .build())
-                        .addMappings(new TableSettings.Builder()
-                                .queryId("someQueryId")
-                                .addFields(
-                                        new Field.Builder()
-                                                .id("field1")
-                                                .name("field1")
-                                                .expression("expression1")
-                                                .build(),
-                                        new Field.Builder()
-                                                .id("field2")
-                                                .name("field2")
-                                                .expression("expression1")
-                                                .build(),
-                                        new Field.Builder()
-                                                .id("field3")
-                                                .name("field3")
-                                                .expression("expression2")
-                                                .build())
-                                .extractValues(false)
-                                .showDetail(false)
-                                .build())
+                .addResultRequests(getResultRequest(ResultRequest.ResultStyle.TABLE)
+                        .addMappings(getTableSettings())
                         .build())
                 .incremental(isIncremental)
                 .timeout(timeout)
@@ -267,6 +381,40 @@ class TestSearchResponseCreator {
                 .build();
     }
 
+    private ResultRequest.Builder getResultRequest(final ResultRequest.ResultStyle resultStyle) {
+        return new ResultRequest.Builder()
+                .componentId(UUID.randomUUID().toString())
+                .resultStyle(resultStyle)
+                .requestedRange(new OffsetRange.Builder()
+                        .offset(0L)
+                        .length(100L)
+                        .build());
+    }
+
+    private TableSettings getTableSettings() {
+        return new TableSettings.Builder()
+                .queryId("someQueryId")
+                .addFields(
+                        new Field.Builder()
+                                .id("field1")
+                                .name("field1")
+                                .expression("expression1")
+                                .build(),
+                        new Field.Builder()
+                                .id("field2")
+                                .name("field2")
+                                .expression("expression1")
+                                .build(),
+                        new Field.Builder()
+                                .id("field3")
+                                .name("field3")
+                                .expression("expression2")
+                                .build())
+                .extractValues(false)
+                .showDetail(false)
+                .build();
+    }
+
     private Data createSingleItemDataObject() {
         final Items<Item> items = new ItemsArrayList<>();
         final Generator[] generators = new Generator[3];
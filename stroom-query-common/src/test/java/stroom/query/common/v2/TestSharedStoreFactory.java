@@ -0,0 +1,235 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package stroom.query.common.v2;
+
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import stroom.docref.DocRef;
+import stroom.query.api.v2.ExpressionOperator;
+import stroom.query.api.v2.ExpressionOperator.Op;
+import stroom.query.api.v2.ExpressionTerm;
+import stroom.query.api.v2.ExpressionTerm.Condition;
+import stroom.query.api.v2.Field;
+import stroom.query.api.v2.Param;
+import stroom.query.api.v2.Query;
+import stroom.query.api.v2.ResultRequest;
+import stroom.query.api.v2.SearchRequest;
+import stroom.query.api.v2.TableSettings;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class TestSharedStoreFactory {
+    private static final Set<String> DATE_FIELDS = Collections.singleton("EventTime");
+
+    private final List<Store> stores = new CopyOnWriteArrayList<>();
+
+    @Test
+    void testIdenticalSearchesShareStore() {
+        // Resolve relative dates to the hour so that both searches are sure to resolve them to the same time.
+        final SharedStoreFactory sharedStoreFactory = new SharedStoreFactory(this::createStore, () -> "admin",
+                DATE_FIELDS, Duration.ofHours(1));
+
+        final ExpressionOperator expression1 = new ExpressionOperator.Builder()
+                .addTerm("Feed", Condition.EQUALS, "TEST")
+                .addOperator(new ExpressionOperator.Builder()
+                        .addTerm("User", Condition.EQUALS, "${user}")
+                        .build())
+                .addTerm("EventTime", Condition.BETWEEN, "day()-1d,now()")
+                .build();
+        // The same expression in a different order with the parameter replaced and a disabled term.
+        final ExpressionOperator expression2 = new ExpressionOperator.Builder()
+                .addTerm("EventTime", Condition.BETWEEN, "day() - 1d, now()")
+                .addTerm("User", Condition.EQUALS, "admin")
+                .addTerm("Feed", Condition.EQUALS, "TEST")
+                .addTerm(new ExpressionTerm.Builder(false)
+                        .field("Feed")
+                        .condition(Condition.EQUALS)
+                        .value("OTHER")
+                        .build())
+                .build();
+
+        final Store store1 = sharedStoreFactory.create(createSearchRequest("1", expression1));
+        final Store store2 = sharedStoreFactory.create(createSearchRequest("2", expression2));
+        assertThat(stores).hasSize(1);
+        assertThat(sharedStoreFactory.getSharedStoreCount()).isEqualTo(1);
+
+        // A different search gets its own store.
+        final Store store3 = sharedStoreFactory.create(createSearchRequest("3", new ExpressionOperator.Builder(Op.OR)
+                .addTerm("Feed", Condition.EQUALS, "TEST")
+                .addTerm("User", Condition.EQUALS, "admin")
+                .build()));
+        assertThat(stores).hasSize(2);
+
+        // The shared store is only destroyed when the last search that uses it is destroyed.
+        store1.destroy();
+        store1.destroy();
+        Mockito.verify(stores.get(0), Mockito.never()).destroy();
+        store2.destroy();
+        Mockito.verify(stores.get(0)).destroy();
+
+        store3.destroy();
+        Mockito.verify(stores.get(1)).destroy();
+        assertThat(sharedStoreFactory.getSharedStoreCount()).isZero();
+    }
+
+    @Test
+    void testSearchesAreOnlySharedBySameUser() {
+        final String[] userId = {"user1"};
+        final SharedStoreFactory sharedStoreFactory = new SharedStoreFactory(this::createStore, () -> userId[0],
+                DATE_FIELDS);
+        final ExpressionOperator expression = new ExpressionOperator.Builder()
+                .addTerm("Feed", Condition.EQUALS, "TEST")
+                .build();
+
+        sharedStoreFactory.create(createSearchRequest("1", expression));
+        userId[0] = "user2";
+        sharedStoreFactory.create(createSearchRequest("2", expression));
+        assertThat(stores).hasSize(2);
+
+        sharedStoreFactory.create(createSearchRequest("3", expression));
+        assertThat(stores).hasSize(2);
+    }
+
+    @Test
+    void testOnlyDateFieldsAreResolved() {
+        final SharedStoreFactory sharedStoreFactory = new SharedStoreFactory(this::createStore, () -> "admin",
+                DATE_FIELDS, Duration.ofHours(1));
+
+        // Different ways of writing the same time are the same search on a date field.
+        sharedStoreFactory.create(createSearchRequest("1", new ExpressionOperator.Builder()
+                .addTerm("EventTime", Condition.GREATER_THAN, "2015-02-03T01:00:00.000Z")
+                .build()));
+        sharedStoreFactory.create(createSearchRequest("2", new ExpressionOperator.Builder()
+                .addTerm("EventTime", Condition.GREATER_THAN, "2015-02-03T01:00:00.000Z + 0h")
+                .build()));
+        assertThat(stores).hasSize(1);
+
+        // They are different values on any other field.
+        sharedStoreFactory.create(createSearchRequest("3", new ExpressionOperator.Builder()
+                .addTerm("Feed", Condition.EQUALS, "2015-02-03T01:00:00.000Z")
+                .build()));
+        sharedStoreFactory.create(createSearchRequest("4", new ExpressionOperator.Builder()
+                .addTerm("Feed", Condition.EQUALS, "2015-02-03T01:00:00.000Z + 0h")
+                .build()));
+        assertThat(stores).hasSize(3);
+    }
+
+    @Test
+    void testStoresAreCreatedOutsideLock() throws Exception {
+        final CountDownLatch creating = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final SharedStoreFactory sharedStoreFactory = new SharedStoreFactory(searchRequest -> {
+            if ("slow".equals(searchRequest.getKey().getUuid())) {
+                creating.countDown();
+                try {
+                    release.await();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return createStore(searchRequest);
+        }, () -> "admin", DATE_FIELDS);
+
+        final ExpressionOperator slowExpression = new ExpressionOperator.Builder()
+                .addTerm("Feed", Condition.EQUALS, "SLOW")
+                .build();
+        final ExecutorService executorService = Executors.newFixedThreadPool(2);
+        try {
+            final Future<Store> slow = executorService.submit(() ->
+                    sharedStoreFactory.create(createSearchRequest("slow", slowExpression)));
+            creating.await();
+
+            // The same search waits for the store that is being created.
+            final Future<Store> same = executorService.submit(() ->
+                    sharedStoreFactory.create(createSearchRequest("same", slowExpression)));
+
+            // Other searches don't wait for it.
+            sharedStoreFactory.create(createSearchRequest("other", new ExpressionOperator.Builder()
+                    .addTerm("Feed", Condition.EQUALS, "OTHER")
+                    .build()));
+            assertThat(stores).hasSize(1);
+            assertThat(same.isDone()).isFalse();
+
+            release.countDown();
+            slow.get(10, TimeUnit.SECONDS);
+            same.get(10, TimeUnit.SECONDS);
+            assertThat(stores).hasSize(2);
+            assertThat(sharedStoreFactory.getSharedStoreCount()).isEqualTo(2);
+        } finally {
+            release.countDown();
+            executorService.shutdownNow();
+        }
+    }
+
+    @Test
+    void testCompleteStoreIsNotShared() {
+        final SharedStoreFactory sharedStoreFactory = new SharedStoreFactory(this::createStore, () -> "admin",
+                DATE_FIELDS);
+        final ExpressionOperator expression = new ExpressionOperator.Builder()
+                .addTerm("Feed", Condition.EQUALS, "TEST")
+                .build();
+
+        final Store store1 = sharedStoreFactory.create(createSearchRequest("1", expression));
+        Mockito.when(stores.get(0).isComplete()).thenReturn(true);
+        final Store store2 = sharedStoreFactory.create(createSearchRequest("2", expression));
+        assertThat(stores).hasSize(2);
+
+        store1.destroy();
+        Mockito.verify(stores.get(0)).destroy();
+        assertThat(sharedStoreFactory.getSharedStoreCount()).isEqualTo(1);
+        store2.destroy();
+        Mockito.verify(stores.get(1)).destroy();
+    }
+
+    private Store createStore(final SearchRequest searchRequest) {
+        final Store store = Mockito.mock(Store.class);
+        stores.add(store);
+        return store;
+    }
+
+    private SearchRequest createSearchRequest(final String key, final ExpressionOperator expression) {
+        final TableSettings tableSettings = new TableSettings.Builder()
+                .queryId("query")
+                .addFields(new Field.Builder()
+                        .name("Feed")
+                        .expression("${Feed}")
+                        .build())
+                .build();
+        return new SearchRequest.Builder()
+                .key(key)
+                .query(new Query.Builder()
+                        .dataSource(new DocRef("Index", "1234", "Test index"))
+                        .expression(expression)
+                        .addParams(new Param("user", "admin"))
+                        .build())
+                .addResultRequests(new ResultRequest.Builder()
+                        .componentId("table")
+                        .addMappings(tableSettings)
+                        .build())
+                .build();
+    }
+}
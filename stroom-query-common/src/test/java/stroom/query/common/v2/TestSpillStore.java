@@ -0,0 +1,148 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package stroom.query.common.v2;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import stroom.dashboard.expression.v1.FieldIndexMap;
+import stroom.dashboard.expression.v1.Val;
+import stroom.dashboard.expression.v1.ValString;
+import stroom.mapreduce.v2.UnsafePairQueue;
+import stroom.query.api.v2.Field;
+import stroom.query.shared.v2.ParamUtil;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class TestSpillStore {
+    private final List<Field> fields = Arrays.asList(
+            new Field.Builder()
+                    .name("Group")
+                    .expression(ParamUtil.makeParam("Group"))
+                    .group(0)
+                    .build(),
+            new Field.Builder()
+                    .name("Text")
+                    .expression(ParamUtil.makeParam("Text"))
+                    .group(1)
+                    .build(),
+            new Field.Builder()
+                    .name("Count")
+                    .expression("count()")
+                    .build());
+    private final FieldIndexMap fieldIndexMap = new FieldIndexMap(true);
+    private final int groupIndex = fieldIndexMap.create("Group");
+    private final int textIndex = fieldIndexMap.create("Text");
+    private final CompiledDepths compiledDepths = new CompiledDepths(fields, false);
+    private final CompiledFields compiledFields = new CompiledFields(fields, fieldIndexMap, Collections.emptyMap());
+
+    @Test
+    void testSpilledItemsKeepTheirIdentity(@TempDir final Path tempDir) {
+        final SpillStore spillStore = new SpillStore(tempDir);
+        final Items<Item> items = new ItemsArrayList<>();
+        createQueue("Group", 10).forEach(pair -> items.add(pair.getValue()));
+
+        final SpilledItems spilled = spillStore.spill(Collections.singletonList(items)).get(0);
+        assertThat(toStrings(spilled)).isEqualTo(toStrings(items));
+
+        // Iterating again must return the same items so that the values and rows they cache are reused.
+        final Iterator<Item> first = spilled.iterator();
+        final Iterator<Item> second = spilled.iterator();
+        while (first.hasNext()) {
+            assertThat(second.next()).isSameAs(first.next());
+        }
+        assertThat(second.hasNext()).isFalse();
+
+        spillStore.destroy();
+    }
+
+    @Test
+    void testFileDeletedOnceAllListsReleased(@TempDir final Path tempDir) throws IOException {
+        final SpillStore spillStore = new SpillStore(tempDir);
+        final Items<Item> items = new ItemsArrayList<>();
+        createQueue("Group", 10).forEach(pair -> items.add(pair.getValue()));
+
+        final List<SpilledItems> spilled = spillStore.spill(Arrays.asList(items, items));
+        assertThat(countFiles(tempDir)).isEqualTo(1);
+        spilled.get(0).release();
+        assertThat(countFiles(tempDir)).isEqualTo(1);
+        spilled.get(1).release();
+        assertThat(countFiles(tempDir)).isZero();
+    }
+
+    @Test
+    void testReleasedListsKeptUntilNextSnapshot(@TempDir final Path tempDir) throws IOException {
+        // Use a tiny budget so that every child list is spilled after each batch.
+        final IncrementalResultStore store = new IncrementalResultStore(new CompiledSorter(fields), compiledDepths,
+                Sizes.create(1000), new SpillStore(tempDir), 1);
+        store.read(createQueue("Group", 10));
+        final Data before = store.createData(10);
+        final GroupKey parentKey = before.getChildMap().get(null).iterator().next().getKey();
+        assertThat(before.getChildMap().get(parentKey)).isInstanceOf(SpilledItems.class);
+        assertThat(countFiles(tempDir)).isEqualTo(1);
+
+        // Adding to the group reads its children back and spills them again to a new file. The first file is still
+        // used by the last snapshot so it must not be deleted until a new snapshot is created.
+        store.read(createQueue("Group", 5));
+        assertThat(countFiles(tempDir)).isEqualTo(2);
+        assertThat(toStrings(before.getChildMap().get(parentKey))).hasSize(10);
+
+        final Data after = store.createData(15);
+        assertThat(countFiles(tempDir)).isEqualTo(1);
+        assertThat(toStrings(after.getChildMap().get(parentKey))).hasSize(10);
+
+        store.destroy();
+        assertThat(countFiles(tempDir)).isZero();
+    }
+
+    private UnsafePairQueue<GroupKey, Item> createQueue(final String group, final int count) {
+        final UnsafePairQueue<GroupKey, Item> queue = new UnsafePairQueue<>();
+        final ItemMapper itemMapper = new ItemMapper(queue, compiledFields, compiledDepths.getMaxDepth(),
+                compiledDepths.getMaxGroupDepth());
+        for (int i = 0; i < count; i++) {
+            final Val[] values = new Val[fieldIndexMap.size()];
+            values[groupIndex] = ValString.create(group);
+            values[textIndex] = ValString.create("Text " + i);
+            itemMapper.collect(null, values);
+        }
+        return queue;
+    }
+
+    private List<String> toStrings(final Items<Item> items) {
+        final List<String> list = new ArrayList<>();
+        for (final Item item : items) {
+            list.add(item.getKey() + " " + item);
+        }
+        return list;
+    }
+
+    private long countFiles(final Path directory) throws IOException {
+        try (final Stream<Path> files = Files.list(directory)) {
+            return files.count();
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stroom.query.common.v2;
+
+import org.junit.jupiter.api.Test;
+import stroom.query.api.v2.OffsetRange;
+import stroom.query.api.v2.Row;
+import stroom.query.api.v2.TableDeltaResult;
+import stroom.query.api.v2.TableResult;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class TestTableDeltaCreator {
+    @Test
+    void testDelta() {
+        final Row a = createRow("a");
+        final Row b = createRow("b");
+        final Row c = createRow("c");
+        final TableDeltaCreator tableDeltaCreator = new TableDeltaCreator();
+
+        // The first request gets all of the rows.
+        final TableDeltaResult first = tableDeltaCreator.create(createResult(a, b), 0);
+        assertThat(first.getBaseVersion()).isNull();
+        assertThat(first.apply(null)).containsExactly(a, b);
+
+        // Nothing is sent if nothing has changed.
+        assertThat(tableDeltaCreator.create(createResult(a, b), first.getVersion())).isNull();
+
+        // Only new rows are sent.
+        final Row updatedA = createRow("a2");
+        final TableDeltaResult second = tableDeltaCreator.create(createResult(c, b, updatedA), first.getVersion());
+        assertThat(second.getBaseVersion()).isEqualTo(first.getVersion());
+        assertThat(second.getRows()).containsExactly(c, updatedA);
+        assertThat(second.apply(Arrays.asList(a, b))).containsExactly(c, b, updatedA);
+
+        // Equal rows that are not the same objects are not sent again.
+        final TableDeltaResult third = tableDeltaCreator.create(createResult(createRow("c"), b), second.getVersion());
+        assertThat(third.getRows()).isEmpty();
+        assertThat(third.getRowIndexes()).containsExactly(0, 1);
+
+        // Asking for changes since an old version gets all of the rows.
+        final TableDeltaResult fourth = tableDeltaCreator.create(createResult(c, b), first.getVersion());
+        assertThat(fourth.getBaseVersion()).isNull();
+        assertThat(fourth.getRows()).containsExactly(c, b);
+    }
+
+    private Row createRow(final String value) {
+        return new Row(value, Collections.singletonList(value), 0);
+    }
+
+    private TableResult createResult(final Row... rows) {
+        final List<Row> list = Arrays.asList(rows);
+        return new TableResult("component", Collections.emptyList(), list, new OffsetRange(0, list.size()),
+                list.size(), null);
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stroom.query.common.v2;
+
+import org.junit.jupiter.api.Test;
+import stroom.dashboard.expression.v1.FieldIndexMap;
+import stroom.dashboard.expression.v1.Generator;
+import stroom.dashboard.expression.v1.Val;
+import stroom.dashboard.expression.v1.ValBoolean;
+import stroom.dashboard.expression.v1.ValDouble;
+import stroom.dashboard.expression.v1.ValErr;
+import stroom.dashboard.expression.v1.ValInteger;
+import stroom.dashboard.expression.v1.ValLong;
+import stroom.dashboard.expression.v1.ValNull;
+import stroom.dashboard.expression.v1.ValString;
+import stroom.mapreduce.v2.Pair;
+import stroom.mapreduce.v2.UnsafePairQueue;
+import stroom.query.api.v2.Field;
+import stroom.query.api.v2.TableSettings;
+import stroom.query.shared.v2.ParamUtil;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class TestTablePayloadCodec {
+    @Test
+    void testRoundTrip() {
+        final UnsafePairQueue<GroupKey, Item> queue = createQueue(100);
+
+        final ByteBuffer buffer = TablePayloadCodec.encode(queue);
+        final UnsafePairQueue<GroupKey, Item> decoded = TablePayloadCodec.decode(buffer);
+
+        assertSame(queue, decoded);
+    }
+
+    @Test
+    void testValues() {
+        final GroupKey parent = new GroupKey(ValString.create("parent"));
+        final List<Val> values = Arrays.asList(
+                ValString.create("text é"),
+                ValInteger.create(-5),
+                ValLong.create(Long.MIN_VALUE),
+                ValDouble.create(1.5),
+                ValBoolean.create(true),
+                ValErr.create("error"),
+                ValNull.INSTANCE,
+                null);
+        final GroupKey key = new GroupKey(parent, values);
+
+        final UnsafePairQueue<GroupKey, Item> queue = new UnsafePairQueue<>();
+        queue.collect(key, new Item(key, new Generator[0], 1));
+        queue.collect(null, new Item(null, null, 0));
+
+        final UnsafePairQueue<GroupKey, Item> decoded = TablePayloadCodec.decode(TablePayloadCodec.encode(queue));
+        final Iterator<Pair<GroupKey, Item>> iterator = decoded.iterator();
+
+        final Item item = iterator.next().getValue();
+        assertThat(item.getKey()).isEqualTo(key);
+        assertThat(item.getKey().getParent()).isEqualTo(parent);
+        assertThat(item.getDepth()).isEqualTo(1);
+        assertThat(item.getGenerators()).isEmpty();
+
+        final Item ungrouped = iterator.next().getValue();
+        assertThat(ungrouped.getKey()).isNull();
+        assertThat(ungrouped.getGenerators()).isNull();
+    }
+
+    @Test
+    void testJavaSerialisation() throws IOException, ClassNotFoundException {
+        final UnsafePairQueue<GroupKey, Item> queue = createQueue(100);
+
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        try (final ObjectOutputStream objectOutputStream = new ObjectOutputStream(outputStream)) {
+            objectOutputStream.writeObject(new TablePayload(queue));
+        }
+        try (final ObjectInputStream objectInputStream =
+                     new ObjectInputStream(new ByteArrayInputStream(outputStream.toByteArray()))) {
+            final TablePayload payload = (TablePayload) objectInputStream.readObject();
+            assertSame(queue, payload.getQueue());
+        }
+    }
+
+    @Test
+    void testCompareWithJavaSerialisation() throws IOException {
+        final UnsafePairQueue<GroupKey, Item> queue = createQueue(10000);
+
+        // Serialise the pairs in the way that the queue used to be serialised.
+        final List<Pair<GroupKey, Item>> pairs = new ArrayList<>();
+        queue.forEach(pairs::add);
+
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        try (final ObjectOutputStream objectOutputStream = new ObjectOutputStream(outputStream)) {
+            objectOutputStream.writeObject(pairs);
+        }
+
+        final ByteBuffer buffer = TablePayloadCodec.encode(queue);
+        assertThat(buffer.remaining()).isLessThan(outputStream.size());
+    }
+
+    private UnsafePairQueue<GroupKey, Item> createQueue(final int rows) {
+        final TableSettings tableSettings = new TableSettings.Builder()
+                .addFields(new Field.Builder()
+                        .id("Group")
+                        .name("Group")
+                        .expression(ParamUtil.makeParam("Group"))
+                        .group(0)
+                        .build())
+                .addFields(new Field.Builder()
+                        .id("Text")
+                        .name("Text")
+                        .expression(ParamUtil.makeParam("Text"))
+                        .group(1)
+                        .build())
+                .addFields(new Field.Builder()
+                        .id("Count")
+                        .name("Count")
+                        .expression("count()")
+                        .build())
+                .showDetail(true)
+                .build();
+
+        final FieldIndexMap fieldIndexMap = new FieldIndexMap(true);
+        final int groupIndex = fieldIndexMap.create("Group");
+        final int textIndex = fieldIndexMap.create("Text");
+        final CompiledDepths compiledDepths = new CompiledDepths(tableSettings.getFields(), tableSettings.showDetail());
+        final CompiledFields compiledFields = new CompiledFields(tableSettings.getFields(), fieldIndexMap,
+                Collections.emptyMap());
+
+        final UnsafePairQueue<GroupKey, Item> queue = new UnsafePairQueue<>();
+        final ItemMapper itemMapper = new ItemMapper(queue, compiledFields, compiledDepths.getMaxDepth(),
+                compiledDepths.getMaxGroupDepth());
+        for (int i = 0; i < rows; i++) {
+            final Val[] values = new Val[fieldIndexMap.size()];
+            values[groupIndex] = ValString.create("Group " + (i % 10));
+            values[textIndex] = ValString.create("Text " + (i % 100));
+            itemMapper.collect(null, values);
+        }
+        return queue;
+    }
+
+    private void assertSame(final UnsafePairQueue<GroupKey, Item> expected,
+                            final UnsafePairQueue<GroupKey, Item> actual) {
+        assertThat(actual.size()).isEqualTo(expected.size());
+
+        final Iterator<Pair<GroupKey, Item>> iterator = actual.iterator();
+        for (final Pair<GroupKey, Item> pair : expected) {
+            final Pair<GroupKey, Item> other = iterator.next();
+            assertThat(other.getKey()).isEqualTo(pair.getKey());
+
+            final Item item = pair.getValue();
+            final Item otherItem = other.getValue();
+            assertThat(otherItem.getKey()).isEqualTo(item.getKey());
+            assertThat(otherItem.getDepth()).isEqualTo(item.getDepth());
+            assertThat(otherItem.getGenerators().length).isEqualTo(item.getGenerators().length);
+            for (int i = 0; i < item.getGenerators().length; i++) {
+                final Generator generator = item.getGenerators()[i];
+                final Generator otherGenerator = otherItem.getGenerators()[i];
+                if (generator == null) {
+                    assertThat(otherGenerator).isNull();
+                } else {
+                    assertThat(otherGenerator.eval()).isEqualTo(generator.eval());
+                }
+            }
+        }
+    }
+}
@@ -17,7 +17,10 @@
 package stroom.query.common.v2;
 
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import stroom.dashboard.expression.v1.FieldIndexMap;
 import stroom.dashboard.expression.v1.Val;
+import stroom.dashboard.expression.v1.ValLong;
 import stroom.dashboard.expression.v1.ValString;
 import stroom.mapreduce.v2.UnsafePairQueue;
 import stroom.query.api.v2.Field;
@@ -33,7 +36,17 @@ import stroom.query.common.v2.format.FieldFormatter;
 import stroom.query.common.v2.format.FormatterFactory;
 import stroom.query.shared.v2.ParamUtil;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
 
 import static org.assertj.core.api.Assertions.assertThat;
 
@@ -336,6 +349,462 @@ class TestTablePayloadHandler {
         checkResults(data, tableResultRequest, 1);
     }
 
+    @Test
+    void incrementalMergeTest() {
+        final TableSettings tableSettings = new TableSettings.Builder()
+                .addFields(new Field.Builder()
+                        .id("Text")
+                        .name("Text")
+                        .expression(ParamUtil.makeParam("Text"))
+                        .group(0)
+                        .build())
+                .addFields(new Field.Builder()
+                        .id("Count")
+                        .name("Count")
+                        .expression("count()")
+                        .build())
+                .build();
+
+        final FieldIndexMap fieldIndexMap = new FieldIndexMap(true);
+        final int textIndex = fieldIndexMap.create("Text");
+        final CompiledDepths compiledDepths = new CompiledDepths(tableSettings.getFields(), tableSettings.showDetail());
+        final CompiledFields compiledFields = new CompiledFields(tableSettings.getFields(), fieldIndexMap, Collections.emptyMap());
+
+        final TablePayloadHandler payloadHandler = new TablePayloadHandler(tableSettings.getFields(),
+                tableSettings.showDetail(), maxResults, storeSize);
+
+        // Deliver the same 10 groups in several separate payloads.
+        for (int payload = 0; payload < 5; payload++) {
+            final UnsafePairQueue<GroupKey, Item> queue = new UnsafePairQueue<>();
+            final ItemMapper itemMapper = new ItemMapper(queue, compiledFields, compiledDepths.getMaxDepth(),
+                    compiledDepths.getMaxGroupDepth());
+
+            for (int i = 0; i < 100; i++) {
+                final Val[] values = new Val[fieldIndexMap.size()];
+                values[textIndex] = ValString.create("Text " + (i % 10));
+
+                itemMapper.collect(null, values);
+            }
+
+            payloadHandler.addQueue(queue);
+        }
+
+        final Data data = payloadHandler.getData();
+        assertThat(data.getTotalSize()).isEqualTo(500);
+        assertThat(data.getSize()).isEqualTo(10);
+
+        // Each group should have been merged into a single item with the combined count.
+        final Items<Item> items = data.getChildMap().get(null);
+        assertThat(items.size()).isEqualTo(10);
+        for (final Item item : items) {
+            assertThat(item.getGenerators()[1].eval().toLong()).isEqualTo(50L);
+        }
+    }
+
+    @Test
+    void thresholdTest() {
+        final TableSettings tableSettings = new TableSettings.Builder()
+                .addFields(new Field.Builder()
+                        .id("Number")
+                        .name("Number")
+                        .expression(ParamUtil.makeParam("Number"))
+                        .sort(new Sort(0, SortDirection.DESCENDING))
+                        .format(Format.Type.NUMBER)
+                        .build())
+                .build();
+
+        final FieldIndexMap fieldIndexMap = new FieldIndexMap(true);
+        final int numberIndex = fieldIndexMap.create("Number");
+        final TableCoprocessor coprocessor = new TableCoprocessor(new TableCoprocessorSettings(tableSettings),
+                fieldIndexMap, Collections.emptyMap());
+        final TablePayloadHandler payloadHandler = new TablePayloadHandler(tableSettings.getFields(),
+                tableSettings.showDetail(), maxResults, storeSize);
+
+        for (int i = 0; i < 1000; i++) {
+            final Val[] values = new Val[fieldIndexMap.size()];
+            values[numberIndex] = ValLong.create(i);
+            coprocessor.receive(values);
+        }
+        payloadHandler.addQueue(((TablePayload) coprocessor.createPayload()).getQueue());
+
+        // The store keeps the top 100 numbers so the worst one kept is 900.
+        final Item threshold = payloadHandler.getThreshold();
+        assertThat(threshold.getGenerators()[0].eval().toLong()).isEqualTo(900L);
+        coprocessor.setThreshold(threshold);
+
+        final Val[] lower = new Val[fieldIndexMap.size()];
+        lower[numberIndex] = ValLong.create(900);
+        assertThat(coprocessor.canImprove(lower)).isFalse();
+        final Val[] higher = new Val[fieldIndexMap.size()];
+        higher[numberIndex] = ValLong.create(901);
+        assertThat(coprocessor.canImprove(higher)).isTrue();
+
+        // Only values that beat the threshold should be mapped.
+        for (int i = 0; i < 1000; i++) {
+            final Val[] values = new Val[fieldIndexMap.size()];
+            values[numberIndex] = ValLong.create(i * 2);
+            coprocessor.receive(values);
+        }
+        assertThat(coprocessor.getSkippedCount()).isEqualTo(451);
+        assertThat(((TablePayload) coprocessor.createPayload()).getQueue().size()).isEqualTo(549);
+    }
+
+    @Test
+    void spillTest(@TempDir final Path tempDir) throws IOException {
+        final TableSettings tableSettings = new TableSettings.Builder()
+                .addFields(new Field.Builder()
+                        .id("Group")
+                        .name("Group")
+                        .expression(ParamUtil.makeParam("Group"))
+                        .group(0)
+                        .build())
+                .addFields(new Field.Builder()
+                        .id("Text")
+                        .name("Text")
+                        .expression(ParamUtil.makeParam("Text"))
+                        .group(1)
+                        .build())
+                .addFields(new Field.Builder()
+                        .id("Count")
+                        .name("Count")
+                        .expression("count()")
+                        .build())
+                .build();
+
+        final FieldIndexMap fieldIndexMap = new FieldIndexMap(true);
+        final int groupIndex = fieldIndexMap.create("Group");
+        final int textIndex = fieldIndexMap.create("Text");
+        final CompiledDepths compiledDepths = new CompiledDepths(tableSettings.getFields(), tableSettings.showDetail());
+        final CompiledFields compiledFields = new CompiledFields(tableSettings.getFields(), fieldIndexMap, Collections.emptyMap());
+
+        final Sizes storeSize = Sizes.create(1000);
+        final TablePayloadHandler inMemory = new TablePayloadHandler(tableSettings.getFields(),
+                tableSettings.showDetail(), maxResults, storeSize);
+        // Use a tiny budget so that most child lists are spilled.
+        final TablePayloadHandler spilling = new TablePayloadHandler(tableSettings.getFields(),
+                tableSettings.showDetail(), maxResults, storeSize, 1, null, new SpillSettings(tempDir, 10000));
+
+        // Later payloads add to some of the groups that will have been spilled by earlier ones.
+        for (int payload = 0; payload < 5; payload++) {
+            for (final TablePayloadHandler payloadHandler : new TablePayloadHandler[]{inMemory, spilling}) {
+                final UnsafePairQueue<GroupKey, Item> queue = new UnsafePairQueue<>();
+                final ItemMapper itemMapper = new ItemMapper(queue, compiledFields, compiledDepths.getMaxDepth(),
+                        compiledDepths.getMaxGroupDepth());
+                for (int i = 0; i < 1000; i++) {
+                    final Val[] values = new Val[fieldIndexMap.size()];
+                    values[groupIndex] = ValString.create("Group " + (i % (20 + payload * 10)));
+                    values[textIndex] = ValString.create("Text " + (i % 37));
+                    itemMapper.collect(null, values);
+                }
+                payloadHandler.addQueue(queue);
+            }
+        }
+
+        final Data expected = inMemory.getData();
+        final Data actual = spilling.getData();
+        assertThat(actual.getSize()).isEqualTo(expected.getSize());
+        assertThat(actual.getChildMap().keySet()).isEqualTo(expected.getChildMap().keySet());
+        assertThat(actual.getChildMap().values()).anyMatch(items -> items instanceof SpilledItems);
+        for (final Entry<GroupKey, Items<Item>> entry : expected.getChildMap().entrySet()) {
+            assertThat(toStrings(actual.getChildMap().get(entry.getKey()))).isEqualTo(toStrings(entry.getValue()));
+        }
+
+        try (final Stream<Path> files = Files.list(tempDir)) {
+            assertThat(files.count()).isGreaterThan(0);
+        }
+        spilling.destroy();
+        try (final Stream<Path> files = Files.list(tempDir)) {
+            assertThat(files.count()).isZero();
+        }
+    }
+
+    @Test
+    void freezeTest() {
+        final TableSettings tableSettings = new TableSettings.Builder()
+                .addFields(new Field.Builder()
+                        .id("Group")
+                        .name("Group")
+                        .expression(ParamUtil.makeParam("Group"))
+                        .group(0)
+                        .build())
+                .addFields(new Field.Builder()
+                        .id("Text")
+                        .name("Text")
+                        .expression(ParamUtil.makeParam("Text"))
+                        .group(1)
+                        .build())
+                .addFields(new Field.Builder()
+                        .id("Count")
+                        .name("Count")
+                        .expression("count()")
+                        .build())
+                .addFields(new Field.Builder()
+                        .id("First")
+                        .name("First")
+                        .expression("first(" + ParamUtil.makeParam("Text") + ")")
+                        .build())
+                .addFields(new Field.Builder()
+                        .id("Last")
+                        .name("Last")
+                        .expression("last(" + ParamUtil.makeParam("Text") + ")")
+                        .build())
+                .addFields(new Field.Builder()
+                        .id("Nth")
+                        .name("Nth")
+                        .expression("nth(" + ParamUtil.makeParam("Text") + ", 2)")
+                        .build())
+                .build();
+
+        final FieldIndexMap fieldIndexMap = new FieldIndexMap(true);
+        final int groupIndex = fieldIndexMap.create("Group");
+        final int textIndex = fieldIndexMap.create("Text");
+        final CompiledDepths compiledDepths = new CompiledDepths(tableSettings.getFields(), tableSettings.showDetail());
+        final CompiledFields compiledFields = new CompiledFields(tableSettings.getFields(), fieldIndexMap, Collections.emptyMap());
+
+        final Sizes storeSize = Sizes.create(1000);
+        final TablePayloadHandler live = new TablePayloadHandler(tableSettings.getFields(),
+                tableSettings.showDetail(), maxResults, storeSize, 3);
+        final TablePayloadHandler frozen = new TablePayloadHandler(tableSettings.getFields(),
+                tableSettings.showDetail(), maxResults, storeSize, 3);
+
+        for (final TablePayloadHandler payloadHandler : new TablePayloadHandler[]{live, frozen}) {
+            final UnsafePairQueue<GroupKey, Item> queue = new UnsafePairQueue<>();
+            final ItemMapper itemMapper = new ItemMapper(queue, compiledFields, compiledDepths.getMaxDepth(),
+                    compiledDepths.getMaxGroupDepth());
+            for (int i = 0; i < 3000; i++) {
+                final Val[] values = new Val[fieldIndexMap.size()];
+                values[groupIndex] = ValString.create("Group " + (i % 30));
+                values[textIndex] = ValString.create("Text " + (i % 37));
+                itemMapper.collect(null, values);
+            }
+            payloadHandler.addQueue(queue);
+        }
+        frozen.freeze();
+
+        final Data expected = live.getData();
+        final Data actual = frozen.getData();
+        assertThat(actual.getChildMap()).isInstanceOf(FrozenChildMap.class);
+        assertThat(actual.getSize()).isEqualTo(expected.getSize());
+        assertThat(actual.getTotalSize()).isEqualTo(expected.getTotalSize());
+        assertThat(actual.getChildMap().keySet()).isEqualTo(expected.getChildMap().keySet());
+        for (final Entry<GroupKey, Items<Item>> entry : expected.getChildMap().entrySet()) {
+            assertThat(toStrings(actual.getChildMap().get(entry.getKey()))).isEqualTo(toStrings(entry.getValue()));
+        }
+
+        // Nothing more can be added once the data is frozen.
+        assertThat(frozen.addQueue(new UnsafePairQueue<>())).isFalse();
+
+        // Tables over frozen data are the same as tables over live data, including open groups.
+        final ResultRequest.Builder builder = new ResultRequest.Builder()
+                .componentId("table")
+                .addMappings(tableSettings)
+                .requestedRange(new OffsetRange(0, 5000));
+        for (final Item item : expected.getChildMap().get(null)) {
+            builder.addOpenGroups(item.getKey().toString());
+        }
+        final ResultRequest resultRequest = builder.build();
+        final FieldFormatter fieldFormatter = new FieldFormatter(new FormatterFactory(null));
+        final TableResult expectedResult = (TableResult) new TableResultCreator(fieldFormatter, storeSize)
+                .create(expected, resultRequest);
+        final TableResult actualResult = (TableResult) new TableResultCreator(fieldFormatter, storeSize)
+                .create(actual, resultRequest);
+        assertThat(actualResult.getRows()).isEqualTo(expectedResult.getRows());
+        assertThat(actualResult.getTotalResults()).isEqualTo(expectedResult.getTotalResults());
+
+        // Selectors on group rows pick from the child rows rather than from the group row itself.
+        final Row groupRow = actualResult.getRows().stream()
+                .filter(row -> row.getDepth() == 0)
+                .findFirst()
+                .orElseThrow();
+        assertThat(groupRow.getValues().get(3)).isNotEqualTo(groupRow.getValues().get(4));
+        assertThat(groupRow.getValues().get(5)).isNotNull();
+    }
+
+    @Test
+    void estimatedByteSizeTest() {
+        final TableSettings tableSettings = new TableSettings.Builder()
+                .addFields(new Field.Builder()
+                        .id("Group")
+                        .name("Group")
+                        .expression(ParamUtil.makeParam("Group"))
+                        .group(0)
+                        .build())
+                .addFields(new Field.Builder()
+                        .id("Text")
+                        .name("Text")
+                        .expression(ParamUtil.makeParam("Text"))
+                        .build())
+                .build();
+
+        final FieldIndexMap fieldIndexMap = new FieldIndexMap(true);
+        final int groupIndex = fieldIndexMap.create("Group");
+        final int textIndex = fieldIndexMap.create("Text");
+        final CompiledDepths compiledDepths = new CompiledDepths(tableSettings.getFields(), true);
+        final CompiledFields compiledFields = new CompiledFields(tableSettings.getFields(), fieldIndexMap, Collections.emptyMap());
+
+        final TablePayloadHandler payloadHandler = new TablePayloadHandler(tableSettings.getFields(), true,
+                maxResults, Sizes.create(Integer.MAX_VALUE), 3);
+        assertThat(payloadHandler.getEstimatedByteSize()).isZero();
+
+        // The estimate follows the items as they are merged without a snapshot being taken.
+        long last = 0;
+        for (int batch = 0; batch < 3; batch++) {
+            final UnsafePairQueue<GroupKey, Item> queue = new UnsafePairQueue<>();
+            final ItemMapper itemMapper = new ItemMapper(queue, compiledFields, compiledDepths.getMaxDepth(),
+                    compiledDepths.getMaxGroupDepth());
+            for (int i = 0; i < 1000; i++) {
+                final Val[] values = new Val[fieldIndexMap.size()];
+                values[groupIndex] = ValString.create("Group " + (i % 30));
+                values[textIndex] = ValString.create("Text " + batch + " " + i);
+                itemMapper.collect(null, values);
+            }
+            payloadHandler.addQueue(queue);
+
+            final long estimate = payloadHandler.getEstimatedByteSize();
+            assertThat(estimate).isGreaterThan(last);
+            last = estimate;
+        }
+
+        // Frozen data is measured by the bytes it holds off heap.
+        payloadHandler.freeze();
+        final FrozenChildMap childMap = (FrozenChildMap) payloadHandler.getData().getChildMap();
+        assertThat(payloadHandler.getEstimatedByteSize()).isEqualTo(childMap.getByteSize());
+    }
+
+    @Test
+    void shardedUngroupedTest() throws Exception {
+        // Ungrouped items are routed to shards by thread and the combined top level has to be re-sorted and trimmed
+        // to the store size.
+        final TableSettings tableSettings = new TableSettings.Builder()
+                .addFields(new Field.Builder()
+                        .id("Number")
+                        .name("Number")
+                        .expression(ParamUtil.makeParam("Number"))
+                        .sort(new Sort(0, SortDirection.ASCENDING))
+                        .build())
+                .addFields(new Field.Builder()
+                        .id("Text")
+                        .name("Text")
+                        .expression(ParamUtil.makeParam("Text"))
+                        .build())
+                .build();
+
+        checkShardedMatchesSingleShard(tableSettings);
+    }
+
+    @Test
+    void shardedGroupedTest() throws Exception {
+        // Groups are routed to shards by key and trimming the combined top level has to remove the children of any
+        // group that is trimmed.
+        final TableSettings tableSettings = new TableSettings.Builder()
+                .addFields(new Field.Builder()
+                        .id("Text")
+                        .name("Text")
+                        .expression(ParamUtil.makeParam("Text"))
+                        .sort(new Sort(0, SortDirection.ASCENDING))
+                        .group(0)
+                        .build())
+                .addFields(new Field.Builder()
+                        .id("Number")
+                        .name("Number")
+                        .expression(ParamUtil.makeParam("Number"))
+                        .sort(new Sort(1, SortDirection.ASCENDING))
+                        .build())
+                .showDetail(true)
+                .build();
+
+        checkShardedMatchesSingleShard(tableSettings);
+    }
+
+    private void checkShardedMatchesSingleShard(final TableSettings tableSettings) throws Exception {
+        final FieldIndexMap fieldIndexMap = new FieldIndexMap(true);
+        final int numberIndex = fieldIndexMap.create("Number");
+        final int textIndex = fieldIndexMap.create("Text");
+        final CompiledDepths compiledDepths = new CompiledDepths(tableSettings.getFields(), tableSettings.showDetail());
+        final CompiledFields compiledFields = new CompiledFields(tableSettings.getFields(), fieldIndexMap, Collections.emptyMap());
+
+        final int threads = 4;
+        final int payloadsPerThread = 5;
+        final int itemsPerPayload = 500;
+        final TablePayloadHandler single = new TablePayloadHandler(tableSettings.getFields(),
+                tableSettings.showDetail(), maxResults, storeSize);
+        final TablePayloadHandler sharded = new TablePayloadHandler(tableSettings.getFields(),
+                tableSettings.showDetail(), maxResults, storeSize, threads);
+
+        // Deliver payloads from several threads at once as searches do. Every number is distinct so that the sort
+        // order, and therefore the items that are kept, doesn't depend on the order that payloads are merged in.
+        final ExecutorService executorService = Executors.newFixedThreadPool(threads);
+        try {
+            final List<Future<?>> futures = new ArrayList<>();
+            for (int thread = 0; thread < threads; thread++) {
+                final int firstItem = thread * payloadsPerThread * itemsPerPayload;
+                futures.add(executorService.submit(() -> {
+                    for (int payload = 0; payload < payloadsPerThread; payload++) {
+                        final UnsafePairQueue<GroupKey, Item> singleQueue = new UnsafePairQueue<>();
+                        final UnsafePairQueue<GroupKey, Item> shardedQueue = new UnsafePairQueue<>();
+                        final ItemMapper singleMapper = new ItemMapper(singleQueue, compiledFields,
+                                compiledDepths.getMaxDepth(), compiledDepths.getMaxGroupDepth());
+                        final ItemMapper shardedMapper = new ItemMapper(shardedQueue, compiledFields,
+                                compiledDepths.getMaxDepth(), compiledDepths.getMaxGroupDepth());
+                        for (int i = 0; i < itemsPerPayload; i++) {
+                            final int number = ((firstItem + payload * itemsPerPayload + i) * 7919) % 10007;
+                            final Val[] values = new Val[fieldIndexMap.size()];
+                            values[numberIndex] = ValString.create(String.format("%05d", number));
+                            values[textIndex] = ValString.create("Text " + (number % 500));
+                            singleMapper.collect(null, values);
+                            shardedMapper.collect(null, values);
+                        }
+                        single.addQueue(singleQueue);
+                        sharded.addQueue(shardedQueue);
+                    }
+                    return null;
+                }));
+            }
+            for (final Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executorService.shutdown();
+        }
+
+        final Data expected = single.getData();
+        final Data actual = sharded.getData();
+        assertThat(expected.getChildMap().get(null).size()).isEqualTo(storeSize.size(0));
+        assertThat(actual.getSize()).isEqualTo(expected.getSize());
+        assertThat(actual.getTotalSize()).isEqualTo(expected.getTotalSize());
+        assertThat(actual.getChildMap().keySet()).isEqualTo(expected.getChildMap().keySet());
+        for (final Entry<GroupKey, Items<Item>> entry : expected.getChildMap().entrySet()) {
+            assertThat(toStrings(actual.getChildMap().get(entry.getKey()))).isEqualTo(toStrings(entry.getValue()));
+        }
+
+        // Tables over the sharded data are the same, including open groups.
+        final ResultRequest.Builder builder = new ResultRequest.Builder()
+                .componentId("table")
+                .addMappings(tableSettings)
+                .requestedRange(new OffsetRange(0, 50000));
+        for (final Item item : expected.getChildMap().get(null)) {
+            if (item.getKey() != null) {
+                builder.addOpenGroups(item.getKey().toString());
+            }
+        }
+        final ResultRequest resultRequest = builder.build();
+        final FieldFormatter fieldFormatter = new FieldFormatter(new FormatterFactory(null));
+        final TableResult expectedResult = (TableResult) new TableResultCreator(fieldFormatter, storeSize)
+                .create(expected, resultRequest);
+        final TableResult actualResult = (TableResult) new TableResultCreator(fieldFormatter, storeSize)
+                .create(actual, resultRequest);
+        assertThat(actualResult.getRows()).isEqualTo(expectedResult.getRows());
+        assertThat(actualResult.getTotalResults()).isEqualTo(expectedResult.getTotalResults());
+    }
+
+    private List<String> toStrings(final Items<Item> items) {
+        final List<String> list = new ArrayList<>();
+        for (final Item item : items) {
+            list.add(item.getKey() + " " + item);
+        }
+        return list;
+    }
+
     @SuppressWarnings({"rawtypes", "unchecked"})
     private void checkResults(final Data data, final ResultRequest tableResultRequest,
                               final int sortCol) {
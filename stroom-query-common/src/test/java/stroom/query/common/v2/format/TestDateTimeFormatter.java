@@ -0,0 +1,79 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stroom.query.common.v2.format;
+
+import org.junit.jupiter.api.Test;
+import stroom.dashboard.expression.v1.ValLong;
+import stroom.query.api.v2.DateTimeFormat;
+import stroom.query.api.v2.TimeZone;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class TestDateTimeFormatter {
+    private static final String[] PATTERNS = {
+            "yyyy-MM-dd'T'HH:mm:ss.SSSXX",
+            "yyyy-MM-dd HH:mm:ss.SSS",
+            "dd/MM/yyyy HH:mm",
+            "HH:mm:ss.SS",
+            "SSS' ms'",
+            "'t'HH:mm:ss.SSSS",
+            "'SSS' yyyy",
+            "HH:mm:ss[.SSS]",
+            "yyyy-MM-dd['T'HH:mm[:ss.SSS]]' [x]'",
+            "A"
+    };
+
+    @Test
+    void testSharedFormatters() {
+        final DateTimeFormat dateTimeFormat = createFormat(PATTERNS[0], "Europe/London");
+        assertThat(DateTimeFormatter.create(dateTimeFormat, null))
+                .isSameAs(DateTimeFormatter.create(createFormat(PATTERNS[0], "Europe/London"), null));
+        assertThat(DateTimeFormatter.create(dateTimeFormat, null))
+                .isNotSameAs(DateTimeFormatter.create(createFormat(PATTERNS[0], "Europe/Paris"), null));
+    }
+
+    @Test
+    void testFormat() {
+        final Random random = new Random(1234);
+        for (final String pattern : PATTERNS) {
+            for (final String zone : new String[]{"UTC", "Europe/London", "America/St_Johns"}) {
+                final DateTimeFormatter formatter = DateTimeFormatter.create(createFormat(pattern, zone), null);
+                final java.time.format.DateTimeFormatter expected = java.time.format.DateTimeFormatter
+                        .ofPattern(pattern);
+
+                // Format runs of nearby times, including times before the epoch, to exercise the cached seconds.
+                long millis = random.nextLong() % 4000000000000L;
+                for (int i = 0; i < 10000; i++) {
+                    millis += random.nextInt(1500);
+                    assertThat(formatter.format(ValLong.create(millis)))
+                            .isEqualTo(expected.format(Instant.ofEpochMilli(millis).atZone(ZoneId.of(zone))));
+                }
+            }
+        }
+    }
+
+    private DateTimeFormat createFormat(final String pattern, final String zone) {
+        return new DateTimeFormat(pattern, new TimeZone.Builder()
+                .use(TimeZone.Use.ID)
+                .id(zone)
+                .build());
+    }
+}
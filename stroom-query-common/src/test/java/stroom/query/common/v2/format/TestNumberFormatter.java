@@ -0,0 +1,133 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stroom.query.common.v2.format;
+
+import org.junit.jupiter.api.Test;
+import stroom.dashboard.expression.v1.Val;
+import stroom.dashboard.expression.v1.ValDouble;
+import stroom.dashboard.expression.v1.ValInteger;
+import stroom.dashboard.expression.v1.ValLong;
+import stroom.dashboard.expression.v1.ValString;
+import stroom.query.api.v2.NumberFormat;
+
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class TestNumberFormatter {
+    private static final NumberFormat SEPARATOR_2DP = new NumberFormat(2, true);
+
+    @Test
+    void testFormat() {
+        final NumberFormatter formatter = NumberFormatter.create(SEPARATOR_2DP);
+        assertThat(formatter.format(null)).isNull();
+        assertThat(formatter.format(ValLong.create(0))).isEqualTo("0.00");
+        assertThat(formatter.format(ValLong.create(999))).isEqualTo("999.00");
+        assertThat(formatter.format(ValLong.create(1000))).isEqualTo("1,000.00");
+        assertThat(formatter.format(ValLong.create(-123456))).isEqualTo("-123,456.00");
+        assertThat(formatter.format(ValLong.create(Long.MIN_VALUE))).isEqualTo("-9,223,372,036,854,775,808.00");
+        assertThat(formatter.format(ValInteger.create(1234567))).isEqualTo("1,234,567.00");
+        assertThat(formatter.format(ValDouble.create(1234567))).isEqualTo("1,234,567.00");
+        assertThat(formatter.format(ValDouble.create(1234.5))).isEqualTo("1,234.50");
+        assertThat(formatter.format(ValDouble.create(-1234.5678))).isEqualTo("-1,234.56");
+        assertThat(formatter.format(ValString.create("1234.5"))).isEqualTo("1,234.50");
+        assertThat(formatter.format(ValString.create("text"))).isEqualTo("text");
+
+        final NumberFormatter noDecimals = NumberFormatter.create(new NumberFormat(0, false));
+        assertThat(noDecimals.format(ValDouble.create(1234.5678))).isEqualTo("1234");
+        assertThat(noDecimals.format(ValLong.create(1234))).isEqualTo("1234");
+
+        assertThat(NumberFormatter.create(null).format(ValDouble.create(1234.5))).isEqualTo("1234.5");
+    }
+
+    @Test
+    void testCompareWithTextFormatting() {
+        final NumberFormatter formatter = NumberFormatter.create(SEPARATOR_2DP);
+        final Val[] values = createValues(100000);
+
+        // Check that the formatter produces the same output as formatting the text of each value.
+        for (final Val value : values) {
+            assertThat(formatter.format(value)).isEqualTo(formatText(value, SEPARATOR_2DP));
+        }
+    }
+
+    private Val[] createValues(final int count) {
+        final Random random = new Random(1234);
+        final Val[] values = new Val[count];
+        for (int i = 0; i < count; i++) {
+            switch (i % 3) {
+                case 0:
+                    values[i] = ValLong.create(random.nextInt(100000000));
+                    break;
+                case 1:
+                    values[i] = ValDouble.create(random.nextInt(1000000));
+                    break;
+                default:
+                    values[i] = ValDouble.create(random.nextInt(1000000) / 8D);
+                    break;
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Format the text of a value in the way that values were formatted before format plans were used.
+     */
+    private String formatText(final Val value, final NumberFormat numberFormat) {
+        final String string = value.toString();
+        final int index = string.indexOf(".");
+
+        String p1 = string;
+        String p2 = "";
+        if (index != -1) {
+            p1 = string.substring(0, index);
+            p2 = string.substring(index + 1);
+        }
+
+        // Add separator chars to i part.
+        if (numberFormat.getUseSeparator()) {
+            final StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < p1.length(); i++) {
+                sb.append(p1.charAt(i));
+
+                final int pos = p1.length() - i - 1;
+                if (pos > 0 && pos % 3 == 0) {
+                    sb.append(",");
+                }
+            }
+            p1 = sb.toString();
+        }
+
+        // Trim or pad decimal part.
+        if (p2.length() > numberFormat.getDecimalPlaces()) {
+            p2 = p2.substring(0, numberFormat.getDecimalPlaces());
+        } else if (p2.length() < numberFormat.getDecimalPlaces()) {
+            final StringBuilder sb = new StringBuilder();
+            sb.append(p2);
+            for (int i = 0; i < numberFormat.getDecimalPlaces() - p2.length(); i++) {
+                sb.append('0');
+            }
+            p2 = sb.toString();
+        }
+
+        if (p2.length() == 0) {
+            return p1;
+        }
+
+        return p1 + "." + p2;
+    }
+}
@@ -10,6 +10,7 @@ import stroom.docref.DocRef;
 import stroom.query.api.v2.ExpressionOperator;
 import stroom.query.api.v2.OffsetRange;
 import stroom.query.api.v2.SearchRequest;
+import stroom.query.api.v2.SearchResponse;
 import stroom.query.audit.client.DocRefResourceHttpClient;
 import stroom.query.audit.client.QueryResourceHttpClient;
 import stroom.query.audit.model.DocRefEntity;
@@ -17,6 +18,7 @@ import stroom.query.audit.rest.AuditedDocRefResourceImpl;
 import stroom.query.audit.rest.AuditedQueryResourceImpl;
 import stroom.query.authorisation.DocumentPermission;
 
+import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import java.util.UUID;
 
@@ -114,6 +116,34 @@ public abstract class QueryResourceIT<
                 .containsOrdered(containsAllOf(AuditedQueryResourceImpl.GET_DATA_SOURCE, docRef.getUuid()));
     }
 
+    @Test
+    void testSearch() {
+        final DocRef docRef = createDocument();
+
+        final SearchRequest searchRequest = getValidSearchRequest(docRef,
+                new ExpressionOperator.Builder(ExpressionOperator.Op.OR).build(),
+                new OffsetRange.Builder()
+                        .length(100L)
+                        .offset(0L)
+                        .build());
+
+        // Services may stream the response so check that it reaches the client as a complete search response.
+        final Response response = queryClient.search(authRule.adminUser(), searchRequest);
+        assertThat(response.getStatus()).isEqualTo(HttpStatus.OK_200);
+        assertThat(response.getMediaType().isCompatible(MediaType.APPLICATION_JSON_TYPE)).isTrue();
+        final SearchResponse result = response.readEntity(SearchResponse.class);
+        response.close();
+
+        assertThat(result).isNotNull();
+
+        // Create doc ref, update, search
+        auditLogRule.check()
+                .thereAreAtLeast(3)
+                .containsOrdered(containsAllOf(AuditedDocRefResourceImpl.CREATE_DOC_REF, docRef.getUuid()))
+                .containsOrdered(containsAllOf(AuditedDocRefResourceImpl.UPDATE_DOC_REF, docRef.getUuid()))
+                .containsOrdered(containsAllOf(AuditedQueryResourceImpl.QUERY_SEARCH, docRef.getUuid()));
+    }
+
     @Test
     void testSearchPermissions() {
         final DocRef docRef = createDocument();
@@ -1,5 +1,6 @@
 package stroom.query.testing.memory.app;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import stroom.datasource.api.v2.DataSource;
 import stroom.datasource.api.v2.TextField;
 import stroom.docref.DocRef;
@@ -12,9 +13,12 @@ import stroom.query.audit.service.QueryService;
 import stroom.query.security.ServiceUser;
 
 import javax.inject.Inject;
+import javax.ws.rs.core.StreamingOutput;
 import java.util.Optional;
 
 public class TestQueryServiceImpl implements QueryService {
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
     private final DocRefService<TestDocRefEntity> docRefService;
 
     @SuppressWarnings("unchecked")
@@ -58,6 +62,14 @@ public class TestQueryServiceImpl implements QueryService {
                 .build());
     }
 
+    @Override
+    public Optional<StreamingOutput> searchStreaming(final ServiceUser user,
+                                                     final SearchRequest request) throws QueryApiException {
+        // Write the same response as a normal search so that the resource tests search through the streamed path.
+        return search(user, request)
+                .map(searchResponse -> outputStream -> OBJECT_MAPPER.writeValue(outputStream, searchResponse));
+    }
+
     @Override
     public Boolean destroy(final ServiceUser user,
                            final QueryKey queryKey) {